@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks once per thread count with allocation profiling and
+ * writes one JSON result file per thread count ("jmh-t{threads}.json"),
+ * which can be compared against the results of a previous build.
+ * <p>
+ * The thread counts default to 1, 4 and 16 and can be changed using the
+ * "threads" system property (comma separated). All other arguments are
+ * passed on to JMH, e.g. a benchmark pattern or "-p members=1".
+ *
+ * @author ancoron
+ */
+public class BenchmarkRunner
+{
+
+    public static void main(String[] args) throws RunnerException,
+            CommandLineOptionException
+    {
+        CommandLineOptions cli = new CommandLineOptions(args);
+        for (String threads : System.getProperty("threads", "1,4,16")
+                .split(","))
+        {
+            int t = Integer.parseInt(threads.trim());
+            Options options = new OptionsBuilder()
+                    .parent(cli)
+                    .threads(t)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-t" + t + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
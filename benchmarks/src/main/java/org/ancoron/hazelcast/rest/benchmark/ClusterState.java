@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+import org.ancoron.hazelcast.rest.servlet.HazelcastMapServlet;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * An embedded cluster of {@link #members} members on the loopback interface
+ * with one servlet per member. Benchmark threads are spread across the
+ * servlets, so that with more than one member most operations involve a
+ * remote partition owner.
+ *
+ * @author ancoron
+ */
+@State(Scope.Benchmark)
+public class ClusterState
+{
+
+    public static final String BUCKET = "benchmark";
+
+    @Param({"1", "3"})
+    public int members;
+
+    @Param({"none", "deflate"})
+    public String compression;
+
+    private HazelcastInstance[] instances;
+    private HazelcastMapServlet[] servlets;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void start() throws Exception
+    {
+        String group = "hazelcast-rest-benchmark-" + UUID.randomUUID();
+        instances = new HazelcastInstance[members];
+        for (int i = 0; i < members; i++) {
+            instances[i] = LoadCluster.newMember(group, i);
+        }
+
+        // the bucket configuration is local to each member...
+        servlets = new HazelcastMapServlet[members];
+        for (int i = 0; i < members; i++) {
+            servlets[i] = new HazelcastMapServlet();
+            servlets[i].setHazelcast(instances[i]);
+            servlets[i].createBucket(BUCKET, 0, Math.min(1, members - 1),
+                    1024, null, ValueEncoding.forName(compression));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop()
+    {
+        for (HazelcastInstance instance : instances) {
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Returns the next thread number for distributing threads and keys.
+     */
+    int nextThread()
+    {
+        return threads.getAndIncrement();
+    }
+
+    HazelcastMapServlet servlet(int thread)
+    {
+        return servlets[thread % servlets.length];
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.logging.Level;
+
+import javax.servlet.ServletException;
+
+import org.ancoron.hazelcast.rest.osgi.OSGiHazelcastMapServlet;
+import org.ancoron.hazelcast.rest.servlet.HazelcastMapServlet;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.osgi.httpservice.HttpServiceImpl;
+import org.glassfish.grizzly.osgi.httpservice.OSGiMainHandler;
+import org.glassfish.grizzly.osgi.httpservice.util.Logger;
+import org.glassfish.grizzly.servlet.ServletRegistration;
+import org.glassfish.grizzly.servlet.WebappContext;
+import org.osgi.framework.Bundle;
+import org.osgi.service.http.NamespaceException;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.JoinConfig;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * An embedded cluster of Hazelcast members on the loopback interface, each
+ * one serving the buckets through its own Grizzly HTTP server.
+ * <p>
+ * The first member is set up exactly like in an OSGi container: the
+ * {@link OSGiHazelcastMapServlet} registers itself at "/buckets" with the
+ * Grizzly {@code HttpService}. As the aliases of that service are kept in a
+ * static registry, all other members serve a {@link HazelcastMapServlet}
+ * mapped to the same path through a plain Grizzly web application instead.
+ *
+ * @author ancoron
+ */
+public class LoadCluster
+{
+
+    private static final java.util.logging.Logger LOG = java.util.logging.Logger
+            .getLogger(LoadCluster.class.getName());
+
+    public static final String PATH = "/buckets";
+
+    private final HazelcastInstance[] instances;
+    private final HttpServer[] servers;
+    private final String[] urls;
+    private OSGiHazelcastMapServlet osgi;
+    private WebappContext[] contexts;
+
+    /**
+     * Starts the given number of members, serving HTTP on consecutive ports
+     * starting at the given one.
+     *
+     * @param async whether the servlets serve single values asynchronously
+     */
+    public LoadCluster(int members, int port, boolean async)
+            throws IOException, ServletException, NamespaceException
+    {
+        instances = new HazelcastInstance[members];
+        servers = new HttpServer[members];
+        urls = new String[members];
+        contexts = new WebappContext[members];
+
+        String group = "hazelcast-rest-load-" + UUID.randomUUID();
+        for (int i = 0; i < members; i++) {
+            instances[i] = newMember(group, i);
+        }
+
+        for (int i = 0; i < members; i++) {
+            servers[i] = new HttpServer();
+            servers[i].addListener(new NetworkListener("member-" + i,
+                    "127.0.0.1", port + i));
+
+            if (i == 0) {
+                Logger logger = new JulLogger();
+                Bundle bundle = bundle();
+                HttpServiceImpl http = new HttpServiceImpl(bundle, logger);
+                servers[i].getServerConfiguration().addHttpHandler(
+                        new OSGiMainHandler(logger, bundle), "/");
+
+                osgi = new OSGiHazelcastMapServlet();
+                osgi.setHazelcast(instances[i]);
+                osgi.setHttp(http);
+                osgi.configure(Collections.<String, Object>singletonMap(
+                        "async", async));
+            } else {
+                contexts[i] = new WebappContext("member-" + i, "");
+                HazelcastMapServlet servlet = new HazelcastMapServlet();
+                servlet.setHazelcast(instances[i]);
+                ServletRegistration reg = contexts[i].addServlet("buckets",
+                        servlet);
+                reg.addMapping(PATH + "/*");
+                reg.setInitParameter("async", String.valueOf(async));
+                reg.setAsyncSupported(true);
+                contexts[i].deploy(servers[i]);
+            }
+
+            servers[i].start();
+            urls[i] = "http://127.0.0.1:" + (port + i) + PATH;
+        }
+    }
+
+    static HazelcastInstance newMember(String group, int index)
+    {
+        Config cfg = new Config(group + "-" + index);
+        cfg.getGroupConfig().setName(group);
+        cfg.setProperty("hazelcast.logging.type", "none");
+        cfg.setProperty("hazelcast.phone.home.enabled", "false");
+        cfg.getNetworkConfig().getInterfaces().setEnabled(true)
+                .addInterface("127.0.0.1");
+        JoinConfig join = cfg.getNetworkConfig().getJoin();
+        join.getMulticastConfig().setEnabled(false);
+        join.getTcpIpConfig().setEnabled(true).addMember("127.0.0.1");
+        return Hazelcast.newHazelcastInstance(cfg);
+    }
+
+    /**
+     * Returns the base URLs of the buckets, one per member.
+     */
+    public String[] getUrls()
+    {
+        return urls.clone();
+    }
+
+    public void stop()
+    {
+        if (osgi != null) {
+            osgi.unconfigure();
+        }
+        for (int i = 0; i < servers.length; i++) {
+            if (contexts[i] != null) {
+                contexts[i].undeploy();
+            }
+            servers[i].shutdownNow();
+        }
+        for (HazelcastInstance instance : instances) {
+            instance.shutdown();
+        }
+    }
+
+    /**
+     * Returns a bundle without any resources, which is all the HTTP service
+     * needs from it when registering servlets.
+     */
+    private static Bundle bundle()
+    {
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(),
+                new Class<?>[] {Bundle.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                switch (method.getName()) {
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "LoadCluster";
+                    case "getBundleId":
+                        return 0L;
+                    case "getState":
+                        return Bundle.ACTIVE;
+                    default:
+                        return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Logs to java.util.logging instead of an OSGi log service.
+     */
+    private static class JulLogger extends Logger
+    {
+
+        JulLogger()
+        {
+            super(null);
+        }
+
+        @Override
+        public void info(String msg)
+        {
+            LOG.fine(msg);
+        }
+
+        @Override
+        public void debug(String msg)
+        {
+            LOG.finer(msg);
+        }
+
+        @Override
+        public void warn(String msg)
+        {
+            LOG.warning(msg);
+        }
+
+        @Override
+        public void warn(String msg, Throwable t)
+        {
+            LOG.log(Level.WARNING, msg, t);
+        }
+
+        @Override
+        public void error(String msg, Throwable t)
+        {
+            LOG.log(Level.SEVERE, msg, t);
+        }
+    }
+}
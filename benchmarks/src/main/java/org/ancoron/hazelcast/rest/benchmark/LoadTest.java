@@ -0,0 +1,502 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.ancoron.hazelcast.rest.metrics.LatencyHistogram;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Replays a {@link Workload} over HTTP against the buckets of a cluster and
+ * reports throughput and latency percentiles per operation.
+ * <p>
+ * Unless the "url" system property lists the bucket URLs of a running
+ * cluster (comma separated, e.g. "http://host:8080/buckets"), an embedded
+ * {@link LoadCluster} is started. Every connection is served by its own
+ * thread and connections are spread evenly across the URLs. By default each
+ * thread sends its next request as soon as the previous one completed
+ * (closed loop); with the "rate" property the total request rate is fixed
+ * instead and latencies are measured from the intended start of a request,
+ * so that queueing delays are not hidden when the cluster falls behind.
+ * <p>
+ * All settings are system properties (defaults in parentheses): members (3),
+ * port (8180), async (false), bucket ("load"), backups (1), compression
+ * ("none"), maxData (1024 MiB), connections (32), warmup (10 s), duration
+ * (30 s), interval (5 s), rate (0, i.e. closed loop), reads (0.9), keys
+ * (100000), skew (0.99), sizes ("1k"), preload (true) and result (a JSON
+ * file to write the results to).
+ *
+ * @author ancoron
+ */
+public class LoadTest
+{
+
+    private static final String[] OPERATIONS = {"get", "put"};
+    private static final int GET = 0;
+    private static final int PUT = 1;
+
+    private final String[] urls;
+    private final String bucket;
+    private final Workload workload;
+    private final int connections;
+    private final long rate;
+
+    private volatile Stats stats = new Stats();
+    private volatile boolean running = true;
+
+    public LoadTest(String[] urls, String bucket, Workload workload,
+            int connections, long rate)
+    {
+        this.urls = urls;
+        this.bucket = bucket;
+        this.workload = workload;
+        this.connections = connections;
+        this.rate = rate;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int connections = Integer.getInteger("connections", 32);
+        // the JDK keeps only 5 idle connections per host by default...
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections",
+                    String.valueOf(connections));
+        }
+
+        Workload workload = new Workload(
+                Double.parseDouble(System.getProperty("reads", "0.9")),
+                Integer.getInteger("keys", 100000),
+                Double.parseDouble(System.getProperty("skew", "0.99")),
+                System.getProperty("sizes", "1k"));
+
+        LoadCluster cluster = null;
+        String[] urls;
+        String url = System.getProperty("url");
+        if (url == null) {
+            int members = Integer.getInteger("members", 3);
+            System.out.println("Starting " + members + " member(s)...");
+            cluster = new LoadCluster(members, Integer.getInteger("port", 8180),
+                    Boolean.getBoolean("async"));
+            urls = cluster.getUrls();
+        } else {
+            urls = url.split(",");
+        }
+
+        try {
+            LoadTest test = new LoadTest(urls,
+                    System.getProperty("bucket", "load"), workload,
+                    connections, Long.getLong("rate", 0));
+            test.createBucket("ttl=0&backups="
+                    + Integer.getInteger("backups", 1)
+                    + "&maxData=" + Integer.getInteger("maxData", 1024)
+                    + "&compression="
+                    + System.getProperty("compression", "none"));
+            try {
+                if (Boolean.parseBoolean(System.getProperty("preload",
+                        "true")))
+                {
+                    test.preload();
+                }
+
+                Stats result = test.run(Integer.getInteger("warmup", 10),
+                        Integer.getInteger("duration", 30),
+                        Integer.getInteger("interval", 5));
+                result.print(System.out);
+
+                String file = System.getProperty("result");
+                if (file != null) {
+                    try (OutputStream out = new FileOutputStream(file)) {
+                        result.writeJson(out, test);
+                    }
+                }
+            } finally {
+                test.deleteBucket();
+            }
+        } finally {
+            if (cluster != null) {
+                cluster.stop();
+            }
+        }
+    }
+
+    /**
+     * Creates the bucket on every member (the bucket configuration is local
+     * to each member), accepting already existing buckets.
+     */
+    void createBucket(String params) throws IOException
+    {
+        for (String url : urls) {
+            int status = send("POST", url + "/" + bucket + "?" + params,
+                    null, 0, new byte[8192]);
+            if (status != HttpURLConnection.HTTP_NO_CONTENT
+                    && status != HttpURLConnection.HTTP_CONFLICT)
+            {
+                throw new IOException("Unable to create bucket at " + url
+                        + ": HTTP " + status);
+            }
+        }
+    }
+
+    void deleteBucket() throws IOException
+    {
+        send("DELETE", urls[0] + "/" + bucket, null, 0, new byte[8192]);
+    }
+
+    /**
+     * Writes a value for every key that can be requested, so that reads
+     * actually find something.
+     */
+    void preload() throws InterruptedException
+    {
+        System.out.println("Preloading " + workload.getKeys() + " keys...");
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicLong errors = new AtomicLong();
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < threads.length; i++) {
+            final String base = urls[i % urls.length] + "/" + bucket + "/";
+            threads[i] = new Thread("preload-" + i) {
+                @Override
+                public void run()
+                {
+                    Random random = new Random(getId());
+                    byte[] value = value(random);
+                    byte[] buffer = new byte[8192];
+                    int rank;
+                    while ((rank = next.getAndIncrement()) < workload.getKeys()) {
+                        try {
+                            int status = send("PUT", base + workload.key(rank),
+                                    value, workload.nextSize(random), buffer);
+                            if (status >= 300) {
+                                errors.incrementAndGet();
+                            }
+                        } catch (IOException x) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (errors.get() > 0) {
+            System.out.println("Failed to preload " + errors.get() + " keys");
+        }
+    }
+
+    /**
+     * Runs the workload for the warmup and measurement periods and returns
+     * the statistics of the measurement period.
+     */
+    Stats run(int warmup, int duration, int interval)
+            throws InterruptedException
+    {
+        System.out.println("Running " + workload + " over " + connections
+                + " connection(s) to " + urls.length + " member(s)"
+                + (rate > 0 ? " at " + rate + " requests/s" : ""));
+
+        final CountDownLatch done = new CountDownLatch(connections);
+        final long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            new Worker(i, start, done).start();
+        }
+
+        report("warmup", stats, warmup, interval);
+        Stats measured = new Stats();
+        stats = measured;
+        report("measure", measured, duration, interval);
+        running = false;
+        done.await();
+        return measured;
+    }
+
+    private void report(String phase, Stats current, int seconds, int interval)
+            throws InterruptedException
+    {
+        long begin = System.nanoTime();
+        long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+        long lastCount = 0;
+        long lastErrors = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long sleep = Math.min(end - now, TimeUnit.SECONDS.toNanos(
+                    Math.max(1, interval)));
+            TimeUnit.NANOSECONDS.sleep(sleep);
+
+            long count = current.count();
+            long errors = current.errors();
+            System.out.println(String.format(Locale.ROOT,
+                    "%-8s %6ds %10.0f ops/s %8d errors", phase,
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - begin),
+                    (count - lastCount) * 1e9 / sleep, errors - lastErrors));
+            lastCount = count;
+            lastErrors = errors;
+        }
+        current.elapsed = System.nanoTime() - begin;
+    }
+
+    private byte[] value(Random random)
+    {
+        byte[] value = new byte[workload.getMaxSize()];
+        random.nextBytes(value);
+        return value;
+    }
+
+    /**
+     * Sends a request, consuming the complete response so that the
+     * connection can be reused.
+     *
+     * @return the response status
+     */
+    static int send(String method, String url, byte[] body, int length,
+            byte[] buffer) throws IOException
+    {
+        return send(method, url, body, length, buffer, null);
+    }
+
+    private static int send(String method, String url, byte[] body,
+            int length, byte[] buffer, long[] received) throws IOException
+    {
+        HttpURLConnection con = (HttpURLConnection) new URL(url)
+                .openConnection();
+        con.setRequestMethod(method);
+        if (body != null) {
+            con.setDoOutput(true);
+            con.setFixedLengthStreamingMode(length);
+            con.setRequestProperty("Content-Type", "application/octet-stream");
+            try (OutputStream out = con.getOutputStream()) {
+                out.write(body, 0, length);
+            }
+        }
+
+        int status = con.getResponseCode();
+        InputStream in = status >= 400 ? con.getErrorStream()
+                : con.getInputStream();
+        if (in != null) {
+            try {
+                long total = 0;
+                int num;
+                while ((num = in.read(buffer)) > 0) {
+                    total += num;
+                }
+                if (received != null) {
+                    received[0] = total;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    private class Worker extends Thread
+    {
+
+        private final int id;
+        private final String base;
+        private final long start;
+        private final CountDownLatch done;
+        private final long period;
+
+        Worker(int id, long start, CountDownLatch done)
+        {
+            super("load-" + id);
+            this.id = id;
+            this.base = urls[id % urls.length] + "/" + bucket + "/";
+            this.start = start;
+            this.done = done;
+            // spread the requests of all workers over the period...
+            this.period = rate > 0 ? TimeUnit.SECONDS.toNanos(connections)
+                    / rate : 0;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                Random random = new Random(getId());
+                byte[] value = value(random);
+                byte[] buffer = new byte[64 * 1024];
+                long[] received = new long[1];
+                long intended = start + period * id / connections;
+
+                while (running) {
+                    if (period > 0) {
+                        long delay;
+                        while ((delay = intended - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(delay);
+                        }
+                    }
+
+                    boolean read = workload.nextIsRead(random);
+                    String url = base + workload.nextKey(random);
+                    int length = read ? 0 : workload.nextSize(random);
+                    long begin = period > 0 ? intended : System.nanoTime();
+                    Stats current = stats;
+                    try {
+                        received[0] = 0;
+                        int status = read
+                                ? send("GET", url, null, 0, buffer, received)
+                                : send("PUT", url, value, length, buffer, received);
+                        current.record(read ? GET : PUT,
+                                System.nanoTime() - begin, status,
+                                read ? received[0] : length);
+                    } catch (IOException x) {
+                        current.error(read ? GET : PUT);
+                    }
+                    intended += period;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    static class Stats
+    {
+
+        final LatencyHistogram[] latencies = new LatencyHistogram[OPERATIONS.length];
+        final AtomicLong[] notFound = new AtomicLong[OPERATIONS.length];
+        final AtomicLong[] errors = new AtomicLong[OPERATIONS.length];
+        final AtomicLong[] bytes = new AtomicLong[OPERATIONS.length];
+        volatile long elapsed;
+
+        Stats()
+        {
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                latencies[i] = new LatencyHistogram();
+                notFound[i] = new AtomicLong();
+                errors[i] = new AtomicLong();
+                bytes[i] = new AtomicLong();
+            }
+        }
+
+        void record(int op, long nanos, int status, long length)
+        {
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                notFound[op].incrementAndGet();
+            } else if (status >= 400) {
+                errors[op].incrementAndGet();
+                return;
+            }
+            latencies[op].record(nanos);
+            bytes[op].addAndGet(length);
+        }
+
+        void error(int op)
+        {
+            errors[op].incrementAndGet();
+        }
+
+        long count()
+        {
+            long count = 0;
+            for (LatencyHistogram latency : latencies) {
+                count += latency.getCount();
+            }
+            return count;
+        }
+
+        long errors()
+        {
+            long count = 0;
+            for (AtomicLong error : errors) {
+                count += error.get();
+            }
+            return count;
+        }
+
+        double seconds()
+        {
+            return elapsed / 1e9;
+        }
+
+        void print(PrintStream out)
+        {
+            out.println(String.format(Locale.ROOT,
+                    "%-4s %10s %10s %8s %8s %8s %8s %8s %8s %8s %8s %8s",
+                    "op", "count", "ops/s", "MiB/s", "mean", "p50", "p90",
+                    "p99", "p99.9", "max", "404", "errors"));
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                LatencyHistogram latency = latencies[i];
+                out.println(String.format(Locale.ROOT,
+                        "%-4s %10d %10.0f %8.2f %8.3f %8.3f %8.3f %8.3f %8.3f %8.3f %8d %8d",
+                        OPERATIONS[i], latency.getCount(),
+                        latency.getCount() / seconds(),
+                        bytes[i].get() / seconds() / (1024 * 1024),
+                        latency.getMean() / 1000,
+                        latency.getPercentile(0.5) / 1000.0,
+                        latency.getPercentile(0.9) / 1000.0,
+                        latency.getPercentile(0.99) / 1000.0,
+                        latency.getPercentile(0.999) / 1000.0,
+                        latency.getMax() / 1000.0,
+                        notFound[i].get(), errors[i].get()));
+            }
+            out.println("(latencies in milliseconds)");
+        }
+
+        void writeJson(OutputStream stream, LoadTest test) throws IOException
+        {
+            JsonWriter json = new JsonWriter(new OutputStreamWriter(stream,
+                    StandardCharsets.UTF_8));
+            json.setIndent("  ");
+            json.beginObject();
+            json.name("workload").value(test.workload.toString());
+            json.name("members").value(test.urls.length);
+            json.name("connections").value(test.connections);
+            json.name("rate").value(test.rate);
+            json.name("seconds").value(seconds());
+            for (int i = 0; i < OPERATIONS.length; i++) {
+                LatencyHistogram latency = latencies[i];
+                json.name(OPERATIONS[i]).beginObject();
+                json.name("count").value(latency.getCount());
+                json.name("throughput").value(latency.getCount() / seconds());
+                json.name("bytes").value(bytes[i].get());
+                json.name("notFound").value(notFound[i].get());
+                json.name("errors").value(errors[i].get());
+                json.name("latencyMicros").beginObject();
+                json.name("mean").value(latency.getMean());
+                json.name("p50").value(latency.getPercentile(0.5));
+                json.name("p90").value(latency.getPercentile(0.9));
+                json.name("p99").value(latency.getPercentile(0.99));
+                json.name("p999").value(latency.getPercentile(0.999));
+                json.name("max").value(latency.getMax());
+                json.endObject();
+                json.endObject();
+            }
+            json.endObject();
+            json.flush();
+        }
+    }
+}
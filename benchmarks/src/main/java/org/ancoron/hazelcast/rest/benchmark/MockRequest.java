@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * A reusable request with just enough state for the servlet hot paths. All
+ * methods not overridden here fail, so that a change in the servlet which
+ * depends on more of the request is noticed instead of silently measured.
+ * <p>
+ * Unlike a mocking framework, this does not record invocations and thus does
+ * not distort the allocation profile.
+ *
+ * @author ancoron
+ */
+public class MockRequest extends HttpServletRequestWrapper
+{
+
+    private static final HttpServletRequest UNSUPPORTED
+            = (HttpServletRequest) Proxy.newProxyInstance(
+                    MockRequest.class.getClassLoader(),
+                    new Class<?>[] {HttpServletRequest.class},
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers = new HashMap<>();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private String contentType;
+    private byte[] body = new byte[0];
+    private final Body in = new Body();
+
+    public MockRequest(String method, String path)
+    {
+        super(UNSUPPORTED);
+        this.method = method;
+        this.path = path;
+    }
+
+    public MockRequest header(String name, String value)
+    {
+        headers.put(name, value);
+        return this;
+    }
+
+    public MockRequest body(String contentType, byte[] body)
+    {
+        this.contentType = contentType;
+        this.body = body;
+        return this;
+    }
+
+    @Override
+    public String getMethod()
+    {
+        return method;
+    }
+
+    @Override
+    public String getPathInfo()
+    {
+        return path;
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+        return headers.get(name);
+    }
+
+    @Override
+    public Object getAttribute(String name)
+    {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value)
+    {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public String getParameter(String name)
+    {
+        return null;
+    }
+
+    @Override
+    public String getContentType()
+    {
+        return contentType;
+    }
+
+    @Override
+    public int getContentLength()
+    {
+        return body.length;
+    }
+
+    @Override
+    public long getContentLengthLong()
+    {
+        return body.length;
+    }
+
+    @Override
+    public boolean isAsyncSupported()
+    {
+        return false;
+    }
+
+    @Override
+    public boolean isAsyncStarted()
+    {
+        return false;
+    }
+
+    @Override
+    public ServletInputStream getInputStream()
+    {
+        in.reset(body);
+        return in;
+    }
+
+    private static class Body extends ServletInputStream
+    {
+
+        private ByteArrayInputStream data;
+
+        void reset(byte[] body)
+        {
+            data = new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public int read()
+        {
+            return data.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            return data.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished()
+        {
+            return data.available() == 0;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener)
+        {
+            throw new UnsupportedOperationException("setReadListener");
+        }
+    }
+}
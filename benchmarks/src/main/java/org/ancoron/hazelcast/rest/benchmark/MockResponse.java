@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.io.output.NullWriter;
+
+/**
+ * A reusable response that discards the body and only keeps the status and
+ * the number of bytes written, see {@link MockRequest}.
+ *
+ * @author ancoron
+ */
+public class MockResponse extends HttpServletResponseWrapper
+{
+
+    private static final HttpServletResponse UNSUPPORTED
+            = (HttpServletResponse) Proxy.newProxyInstance(
+                    MockResponse.class.getClassLoader(),
+                    new Class<?>[] {HttpServletResponse.class},
+                    new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+    private int status;
+    private long written;
+    private final PrintWriter writer = new PrintWriter(NullWriter.NULL_WRITER);
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b)
+        {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            written += len;
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener)
+        {
+            throw new UnsupportedOperationException("setWriteListener");
+        }
+    };
+
+    public MockResponse()
+    {
+        super(UNSUPPORTED);
+    }
+
+    public int getStatus()
+    {
+        return status;
+    }
+
+    public long getWritten()
+    {
+        return written;
+    }
+
+    @Override
+    public void reset()
+    {
+        status = 0;
+        written = 0;
+    }
+
+    @Override
+    public void resetBuffer()
+    {
+        written = 0;
+    }
+
+    @Override
+    public boolean isCommitted()
+    {
+        return false;
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+        this.status = status;
+    }
+
+    @Override
+    public void sendError(int status)
+    {
+        this.status = status;
+    }
+
+    @Override
+    public void sendError(int status, String message)
+    {
+        this.status = status;
+    }
+
+    @Override
+    public void setHeader(String name, String value)
+    {
+    }
+
+    @Override
+    public void addHeader(String name, String value)
+    {
+    }
+
+    @Override
+    public void setContentType(String type)
+    {
+    }
+
+    @Override
+    public void setContentLength(int length)
+    {
+    }
+
+    @Override
+    public void setContentLengthLong(long length)
+    {
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream()
+    {
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter()
+    {
+        return writer;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.servlet.HazelcastMapServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the value operations of {@link HazelcastMapServlet}, both through
+ * its public API and through the HTTP handlers.
+ * <p>
+ * Every thread works on its own set of {@link #KEYS} keys, so that threads
+ * do not contend for the same entries. Values of 2 MiB exceed the default
+ * chunk threshold and thus measure chunked values.
+ *
+ * @author ancoron
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class ServletBenchmark
+{
+
+    private static final int KEYS = 64;
+
+    @Param({"128", "4096", "65536", "2097152"})
+    public int valueSize;
+
+    @Param({"application/json", "application/octet-stream"})
+    public String contentType;
+
+    private HazelcastMapServlet servlet;
+    private byte[] value;
+    private String[] keys;
+    private MockRequest[] gets;
+    private MockRequest[] revalidations;
+    private MockRequest[] puts;
+    private final MockResponse response = new MockResponse();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(ClusterState cluster) throws IOException
+    {
+        int thread = cluster.nextThread();
+        servlet = cluster.servlet(thread);
+        value = "application/json".equals(contentType)
+                ? json(valueSize) : binary(valueSize);
+
+        keys = new String[KEYS];
+        gets = new MockRequest[KEYS];
+        revalidations = new MockRequest[KEYS];
+        puts = new MockRequest[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "t" + thread + "-" + i;
+            String path = "/" + ClusterState.BUCKET + "/" + keys[i];
+            gets[i] = new MockRequest("GET", path);
+            puts[i] = new MockRequest("PUT", path).body(contentType, value);
+            set(keys[i]);
+
+            revalidations[i] = new MockRequest("GET", path).header(
+                    "If-None-Match", servlet.getValue(ClusterState.BUCKET,
+                            keys[i]).getETag());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void nextKey()
+    {
+        next = (next + 1) % KEYS;
+        response.reset();
+    }
+
+    @Benchmark
+    public void setValue() throws IOException
+    {
+        set(keys[next]);
+    }
+
+    @Benchmark
+    public StoredValue getValue() throws IOException
+    {
+        return servlet.getValue(ClusterState.BUCKET, keys[next]);
+    }
+
+    /**
+     * Deletes and stores the value again, as a value can only be deleted
+     * once. Subtract {@link #setValue()} for the cost of the delete.
+     */
+    @Benchmark
+    public void deleteValue() throws IOException
+    {
+        servlet.deleteValue(ClusterState.BUCKET, keys[next]);
+        set(keys[next]);
+    }
+
+    @Benchmark
+    public int doPut() throws IOException, ServletException
+    {
+        servlet.service(puts[next], response);
+        return response.getStatus();
+    }
+
+    @Benchmark
+    public long doGet() throws IOException, ServletException
+    {
+        servlet.service(gets[next], response);
+        return response.getWritten();
+    }
+
+    @Benchmark
+    public int doGetNotModified() throws IOException, ServletException
+    {
+        servlet.service(revalidations[next], response);
+        return response.getStatus();
+    }
+
+    private void set(String key) throws IOException
+    {
+        servlet.setValue(ClusterState.BUCKET, key, contentType, value.length,
+                new ByteArrayInputStream(value));
+    }
+
+    private static byte[] json(int size)
+    {
+        Random rnd = new Random(size);
+        StringBuilder json = new StringBuilder(size + 128).append('[');
+        while (json.length() < size - 96) {
+            json.append("{\"id\":").append(rnd.nextInt(100000))
+                    .append(",\"name\":\"user").append(rnd.nextInt(1000))
+                    .append("\",\"active\":").append(rnd.nextBoolean())
+                    .append(",\"score\":").append(rnd.nextInt()).append("},");
+        }
+        json.append("{}]");
+        while (json.length() < size) {
+            json.append(' ');
+        }
+        json.setLength(size);
+        return json.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] binary(int size)
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.benchmark;
+
+import java.util.Random;
+
+/**
+ * The mix of operations to replay: the share of reads, the number of keys
+ * and their popularity and the distribution of value sizes.
+ * <p>
+ * Key popularity follows a Zipfian distribution with the given skew, where
+ * 0 means uniform and values around 0.99 resemble typical cache workloads
+ * (a few keys get most of the requests). The ranks are scrambled, so that
+ * the hot keys are spread across partitions.
+ * <p>
+ * Value sizes are given as a weighted list like "1k:0.8,16k:0.15,1m:0.05"
+ * (sizes may use the suffixes "k" and "m", weights are relative).
+ *
+ * @author ancoron
+ */
+public class Workload
+{
+
+    private final double reads;
+    private final int keys;
+    private final double skew;
+    private final int[] sizes;
+    private final double[] weights;
+
+    // constants of the Zipfian distribution...
+    private final double zeta;
+    private final double alpha;
+    private final double eta;
+
+    public Workload(double reads, int keys, double skew, String sizes)
+    {
+        if (reads < 0 || reads > 1) {
+            throw new IllegalArgumentException("Invalid read ratio: " + reads);
+        } else if (keys < 1) {
+            throw new IllegalArgumentException("Invalid number of keys: "
+                    + keys);
+        } else if (skew < 0 || skew == 1) {
+            throw new IllegalArgumentException("Invalid key skew: " + skew);
+        }
+        this.reads = reads;
+        this.keys = keys;
+        this.skew = skew;
+
+        String[] items = sizes.split(",");
+        this.sizes = new int[items.length];
+        this.weights = new double[items.length];
+        double total = 0;
+        for (int i = 0; i < items.length; i++) {
+            String[] item = items[i].trim().split(":");
+            this.sizes[i] = parseSize(item[0].trim());
+            total += item.length > 1 ? Double.parseDouble(item[1].trim()) : 1;
+            this.weights[i] = total;
+        }
+        for (int i = 0; i < items.length; i++) {
+            this.weights[i] /= total;
+        }
+
+        if (skew > 0) {
+            zeta = zeta(keys, skew);
+            alpha = 1 / (1 - skew);
+            eta = (1 - Math.pow(2.0 / keys, 1 - skew))
+                    / (1 - zeta(2, skew) / zeta);
+        } else {
+            zeta = alpha = eta = 0;
+        }
+    }
+
+    static int parseSize(String size)
+    {
+        char unit = Character.toLowerCase(size.charAt(size.length() - 1));
+        switch (unit) {
+            case 'k':
+                return Integer.parseInt(size.substring(0, size.length() - 1))
+                        * 1024;
+            case 'm':
+                return Integer.parseInt(size.substring(0, size.length() - 1))
+                        * 1024 * 1024;
+            default:
+                return Integer.parseInt(size);
+        }
+    }
+
+    private static double zeta(long n, double theta)
+    {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    public int getKeys()
+    {
+        return keys;
+    }
+
+    public int getMaxSize()
+    {
+        int max = 0;
+        for (int size : sizes) {
+            max = Math.max(max, size);
+        }
+        return max;
+    }
+
+    public boolean nextIsRead(Random random)
+    {
+        return random.nextDouble() < reads;
+    }
+
+    /**
+     * Returns the next key according to the key skew.
+     */
+    public String nextKey(Random random)
+    {
+        return key(nextRank(random));
+    }
+
+    /**
+     * Returns the key of the given popularity rank (0 is the most popular).
+     */
+    public String key(int rank)
+    {
+        // FNV-1a over the rank, so that neighbours are not hot together...
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < 4; i++) {
+            hash ^= (rank >>> (i * 8)) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return "k" + ((hash & Long.MAX_VALUE) % keys);
+    }
+
+    int nextRank(Random random)
+    {
+        if (skew == 0) {
+            return random.nextInt(keys);
+        }
+
+        // see Gray et al., "Quickly Generating Billion-Record Synthetic
+        // Databases", SIGMOD 1994
+        double u = random.nextDouble();
+        double uz = u * zeta;
+        if (uz < 1) {
+            return 0;
+        } else if (uz < 1 + Math.pow(0.5, skew)) {
+            return Math.min(1, keys - 1);
+        }
+        return Math.min(keys - 1,
+                (int) (keys * Math.pow(eta * u - eta + 1, alpha)));
+    }
+
+    public int nextSize(Random random)
+    {
+        double u = random.nextDouble();
+        for (int i = 0; i < weights.length - 1; i++) {
+            if (u < weights[i]) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("reads=").append(reads)
+                .append(", keys=").append(keys)
+                .append(", skew=").append(skew)
+                .append(", sizes=");
+        double previous = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(sizes[i]).append(':')
+                    .append(Math.round((weights[i] - previous) * 1000) / 1000.0);
+            previous = weights[i];
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.admission;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Limits the operations in flight on this member, both in total and per
+ * bucket, so that a burst of requests is rejected early instead of piling
+ * up on blocking map calls. With a bucket limit below the global one, a
+ * noisy bucket sheds its own load before it can take all capacity of the
+ * member.
+ * <p>
+ * Limits of 0 disable the respective check.
+ *
+ * @author ancoron
+ */
+public class AdmissionControl
+{
+
+    /**
+     * A slot taken for a single operation, to be released exactly once
+     * when it has completed.
+     */
+    public static final class Permit
+    {
+
+        private final ConcurrencyLimit global;
+        private final ConcurrencyLimit bucket;
+
+        private Permit(ConcurrencyLimit global, ConcurrencyLimit bucket)
+        {
+            this.global = global;
+            this.bucket = bucket;
+        }
+
+        /**
+         * @param nanos the time the operation took
+         */
+        public void release(long nanos)
+        {
+            if (bucket != null) {
+                bucket.release(nanos);
+            }
+            if (global != null) {
+                global.release(nanos);
+            }
+        }
+    }
+
+    private static final Permit UNLIMITED = new Permit(null, null);
+
+    private final ConcurrencyLimit global;
+    private final int bucketLimit;
+    private final boolean adaptive;
+    private final ConcurrentMap<String, ConcurrencyLimit> buckets
+            = new ConcurrentHashMap<>();
+
+    /**
+     * @param globalLimit the maximum number of operations in flight on this
+     * member
+     * @param bucketLimit the maximum number of operations in flight per
+     * bucket
+     * @param adaptive whether the limits follow the observed latency
+     */
+    public AdmissionControl(int globalLimit, int bucketLimit, boolean adaptive)
+    {
+        this.global = globalLimit > 0
+                ? new ConcurrencyLimit(globalLimit, adaptive) : null;
+        this.bucketLimit = Math.max(0, bucketLimit);
+        this.adaptive = adaptive;
+    }
+
+    public boolean isEnabled()
+    {
+        return global != null || bucketLimit > 0;
+    }
+
+    /**
+     * Admits another operation on the given bucket if neither the bucket
+     * nor the member has reached its limit.
+     *
+     * @return the permit or {@code null} if the operation has to be
+     * rejected
+     */
+    public Permit acquire(String bucket)
+    {
+        ConcurrencyLimit limit = get(bucket);
+        if (limit == null && global == null) {
+            return UNLIMITED;
+        }
+
+        if (limit != null && !limit.tryAcquire()) {
+            return null;
+        }
+        if (global != null && !global.tryAcquire()) {
+            if (limit != null) {
+                limit.release();
+            }
+            return null;
+        }
+        return new Permit(global, limit);
+    }
+
+    /**
+     * Returns the limit of the given bucket or {@code null} if buckets are
+     * not limited.
+     */
+    public ConcurrencyLimit get(String bucket)
+    {
+        if (bucketLimit == 0) {
+            return null;
+        }
+
+        ConcurrencyLimit limit = buckets.get(bucket);
+        if (limit == null) {
+            limit = new ConcurrencyLimit(bucketLimit, adaptive);
+            ConcurrencyLimit existing = buckets.putIfAbsent(bucket, limit);
+            if (existing != null) {
+                limit = existing;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Returns the limit of this member or {@code null} if not limited.
+     */
+    public ConcurrencyLimit getGlobal()
+    {
+        return global;
+    }
+
+    public void remove(String bucket)
+    {
+        buckets.remove(bucket);
+    }
+}
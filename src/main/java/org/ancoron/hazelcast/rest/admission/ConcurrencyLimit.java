@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.admission;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A limit on the number of operations in flight which, if adaptive, follows
+ * the observed latency between a minimum and the configured maximum.
+ * <p>
+ * Latencies are sampled in batches of about the current limit. At the end
+ * of each batch its average latency is compared to a long-term average: as
+ * long as it stays within a tolerance of the long-term one, the limit grows
+ * by its square root (if it has actually been used), otherwise it shrinks
+ * in proportion to the increase, i.e. queuing somewhere behind us is
+ * answered by letting fewer requests in. The long-term average drifts
+ * down quickly after an overload, so that it does not get used to it.
+ *
+ * @author ancoron
+ */
+public class ConcurrencyLimit
+{
+
+    private static final int MIN_BATCH = 10;
+    private static final double TOLERANCE = 1.5;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double LONG_TERM_WEIGHT = 0.05;
+    private static final double SMOOTHING = 0.2;
+
+    private final int maxLimit;
+    private final int minLimit;
+    private final boolean adaptive;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile int limit;
+
+    // guarded by this...
+    private double estimate;
+    private double longTerm;
+    private long batchSum;
+    private int batchCount;
+    private int batchInFlight;
+
+    /**
+     * @param maxLimit the maximum number of operations in flight
+     * @param adaptive whether the limit follows the observed latency
+     */
+    public ConcurrencyLimit(int maxLimit, boolean adaptive)
+    {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.minLimit = Math.max(1, this.maxLimit / 10);
+        this.adaptive = adaptive;
+        this.limit = this.maxLimit;
+        this.estimate = this.maxLimit;
+    }
+
+    /**
+     * Takes a slot for another operation if the limit has not been reached
+     * yet.
+     *
+     * @return {@code false} if the operation has to be rejected
+     */
+    public boolean tryAcquire()
+    {
+        for (;;) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a slot without sampling, e.g. if the operation has not
+     * been executed at all.
+     */
+    public void release()
+    {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gives back the slot of a completed operation.
+     *
+     * @param nanos the time the operation took
+     */
+    public void release(long nanos)
+    {
+        int current = inFlight.getAndDecrement();
+        if (adaptive) {
+            sample(nanos, current);
+        }
+    }
+
+    private synchronized void sample(long nanos, int current)
+    {
+        batchSum += nanos;
+        batchInFlight = Math.max(batchInFlight, current);
+        if (++batchCount < Math.max(MIN_BATCH, limit)) {
+            return;
+        }
+
+        double shortTerm = (double) batchSum / batchCount;
+        if (longTerm == 0) {
+            longTerm = shortTerm;
+        } else {
+            longTerm += (shortTerm - longTerm) * LONG_TERM_WEIGHT;
+            if (longTerm > 2 * shortTerm) {
+                // recover from an overload faster...
+                longTerm *= 0.9;
+            }
+        }
+
+        double gradient = Math.max(MIN_GRADIENT,
+                Math.min(1.0, TOLERANCE * longTerm / Math.max(1.0, shortTerm)));
+        double target = estimate * gradient;
+        if (gradient == 1.0 && 2 * batchInFlight >= limit) {
+            // only probe for more if the limit has been needed
+            target += Math.sqrt(estimate);
+        }
+        estimate = Math.max(minLimit, Math.min(maxLimit,
+                estimate * (1 - SMOOTHING) + target * SMOOTHING));
+        limit = (int) estimate;
+
+        batchSum = 0;
+        batchCount = 0;
+        batchInFlight = 0;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public int getMaxLimit()
+    {
+        return maxLimit;
+    }
+
+    public int getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns the number of operations rejected so far.
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+}
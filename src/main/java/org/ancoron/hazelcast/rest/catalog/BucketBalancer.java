@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.catalog;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.MemberAttributeEvent;
+import com.hazelcast.core.MembershipEvent;
+import com.hazelcast.core.MembershipListener;
+import com.hazelcast.map.impl.MapContainer;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.impl.NodeEngineImpl;
+
+/**
+ * Splits the memory limits of all buckets across the members of the
+ * cluster and adjusts the per-member limits whenever members join or leave,
+ * so that the capacity of a bucket stays the same while the cluster
+ * scales.
+ * <p>
+ * An optional heap budget caps the sum of the limits of all buckets on
+ * each member: if the buckets ask for more, their limits are reduced
+ * proportionally, otherwise the rest of the budget is shared by the buckets
+ * without a limit of their own. As the budget is per member, adding members
+ * adds usable capacity.
+ * <p>
+ * The new limits apply to maps that already exist on this member as well,
+ * since their eviction reads the limit from the configuration of the map
+ * container on every check.
+ *
+ * @author ancoron
+ */
+public class BucketBalancer implements MembershipListener
+{
+
+    private final HazelcastInstance hazelcast;
+    private final NodeEngine engine;
+    private final BucketCatalog catalog;
+    private final Map<String, Integer> limits = new HashMap<>();
+    private final Map<String, BucketDefinition> applied = new HashMap<>();
+    private volatile int heapBudget;
+
+    BucketBalancer(HazelcastInstance hazelcast, NodeEngine engine,
+            BucketCatalog catalog)
+    {
+        this.hazelcast = hazelcast;
+        this.engine = engine;
+        this.catalog = catalog;
+    }
+
+    /**
+     * Returns the heap budget for all buckets on each member in MiB or 0 for
+     * none.
+     */
+    public int getHeapBudget()
+    {
+        return heapBudget;
+    }
+
+    public void setHeapBudget(int heapBudget)
+    {
+        this.heapBudget = Math.max(0, heapBudget);
+        rebalance();
+    }
+
+    /**
+     * Returns the current limit of the given bucket on this member in MiB or
+     * 0 for none.
+     */
+    public synchronized int getLimit(String name)
+    {
+        Integer limit = limits.get(name);
+        return limit == null ? 0 : limit;
+    }
+
+    /**
+     * Computes the per-member limits of all buckets in MiB, where 0 means
+     * no limit.
+     */
+    static Map<String, Integer> limits(Collection<BucketDefinition> buckets,
+            int members, int budget)
+    {
+        Map<String, Integer> limits = new HashMap<>();
+        long total = 0;
+        int unlimited = 0;
+        for (BucketDefinition bucket : buckets) {
+            if (bucket.getMaxData() > 0) {
+                // at least 1 MiB, as 0 means no limit at all...
+                int limit = Math.max(1, bucket.getMaxData()
+                        / Math.max(1, members));
+                limits.put(bucket.getName(), limit);
+                total += limit;
+            } else {
+                unlimited++;
+            }
+        }
+
+        if (budget <= 0) {
+            for (BucketDefinition bucket : buckets) {
+                if (bucket.getMaxData() <= 0) {
+                    limits.put(bucket.getName(), 0);
+                }
+            }
+            return limits;
+        }
+
+        if (total > budget) {
+            for (Map.Entry<String, Integer> entry : limits.entrySet()) {
+                entry.setValue(Math.max(1,
+                        (int) (entry.getValue() * (long) budget / total)));
+            }
+        }
+        long rest = Math.max(0, budget - total);
+        for (BucketDefinition bucket : buckets) {
+            if (bucket.getMaxData() <= 0) {
+                limits.put(bucket.getName(),
+                        (int) Math.max(1, rest / unlimited));
+            }
+        }
+        return limits;
+    }
+
+    /**
+     * Recomputes the limits of all buckets for the current members and
+     * applies the changed ones.
+     */
+    public synchronized void rebalance()
+    {
+        Collection<BucketDefinition> buckets = catalog.definitions();
+        int members = hazelcast.getCluster().getMembers().size();
+        Map<String, Integer> computed = limits(buckets, members, heapBudget);
+
+        MapService service = ((NodeEngineImpl) engine).getService(
+                MapService.SERVICE_NAME);
+        Map<String, MapContainer> containers = service.getMapServiceContext()
+                .getMapContainers();
+        for (BucketDefinition bucket : buckets) {
+            String name = bucket.getName();
+            Integer limit = computed.get(name);
+            if (limit.equals(limits.get(name)) && applied.get(name) == bucket) {
+                continue;
+            }
+
+            MapConfig config = bucket.toMapConfig(limit);
+            hazelcast.getConfig().getMapConfigs().put(name, config);
+            MapContainer container = containers.get(name);
+            if (container != null) {
+                container.setMapConfig(config.getAsReadOnly());
+            }
+            applied.put(name, bucket);
+        }
+        limits.clear();
+        limits.putAll(computed);
+        applied.keySet().retainAll(computed.keySet());
+    }
+
+    @Override
+    public void memberAdded(MembershipEvent event)
+    {
+        rebalance();
+    }
+
+    @Override
+    public void memberRemoved(MembershipEvent event)
+    {
+        rebalance();
+    }
+
+    @Override
+    public void memberAttributeChanged(MemberAttributeEvent event)
+    {
+    }
+}
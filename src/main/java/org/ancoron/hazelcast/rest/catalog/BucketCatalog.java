@@ -0,0 +1,392 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.catalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ancoron.hazelcast.rest.store.PersistentBucket;
+
+import com.hazelcast.core.EntryAdapter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.LifecycleEvent;
+import com.hazelcast.core.LifecycleListener;
+import com.hazelcast.core.MapEvent;
+import com.hazelcast.core.ReplicatedMap;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.NodeEngine;
+
+/**
+ * The definitions of all buckets of the cluster, kept in a
+ * {@link ReplicatedMap} so that every member holds a full copy and knows
+ * all buckets as soon as it has joined, without waiting for the map of a
+ * bucket to be created locally.
+ * <p>
+ * Lookups are served from a local cache that is filled on startup, kept
+ * up to date by an entry listener and falls back to the (local) replica
+ * for definitions that arrived without an event (e.g. while joining).
+ * Whenever a definition becomes known, the configuration of the map of the
+ * bucket is added to the local Hazelcast configuration by the
+ * {@link BucketBalancer}, so that the map is set up identically on all
+ * members.
+ * <p>
+ * As the replicated map is only eventually consistent, concurrent creation
+ * of the same bucket on different members is not detected reliably.
+ * <p>
+ * With a data directory, persistent buckets are kept on disk by a
+ * {@link PersistentBucket} each, which also records the definition. As the
+ * catalog itself is lost when the whole cluster stops, the definitions
+ * found in the data directory are added again on startup.
+ *
+ * @author ancoron
+ */
+public class BucketCatalog
+{
+
+    public static final String NAME = "_buckets";
+
+    private static final Logger LOG = Logger.getLogger(BucketCatalog.class
+            .getName());
+
+    // the delay of writing changes of persistent buckets in milliseconds
+    private static final long WRITE_DELAY = 1000;
+
+    private final HazelcastInstance hazelcast;
+    private final NodeEngine engine;
+    private final ReplicatedMap<String, BucketDefinition> catalog;
+    private final ConcurrentMap<String, BucketDefinition> buckets
+            = new ConcurrentHashMap<>();
+    private final Set<String> configured = Collections.newSetFromMap(
+            new ConcurrentHashMap<String, Boolean>());
+    private final String registration;
+    private final BucketBalancer balancer;
+    private final String membership;
+    private final String lifecycle;
+    private final ConcurrentMap<String, PersistentBucket> persistent
+            = new ConcurrentHashMap<>();
+    private volatile File dataDirectory;
+    private ScheduledExecutorService persistence;
+
+    public BucketCatalog(HazelcastInstance hazelcast)
+    {
+        this.hazelcast = hazelcast;
+        this.catalog = hazelcast.getReplicatedMap(NAME);
+        this.engine = ((AbstractDistributedObject<?>) catalog).getNodeEngine();
+        this.balancer = new BucketBalancer(hazelcast, engine, this);
+        this.membership = hazelcast.getCluster().addMembershipListener(
+                balancer);
+        this.lifecycle = hazelcast.getLifecycleService().addLifecycleListener(
+                new LifecycleListener() {
+            @Override
+            public void stateChanged(LifecycleEvent event)
+            {
+                // keep the stores as they are before migrating away...
+                if (event.getState()
+                        == LifecycleEvent.LifecycleState.SHUTTING_DOWN)
+                {
+                    closePersistentBuckets();
+                }
+            }
+        });
+        this.registration = catalog.addEntryListener(
+                new EntryAdapter<String, BucketDefinition>() {
+            @Override
+            public void onEntryEvent(EntryEvent<String, BucketDefinition> event)
+            {
+                if (event.getValue() != null) {
+                    apply(event.getValue());
+                } else {
+                    discard(event.getKey());
+                }
+            }
+
+            @Override
+            public void onMapEvent(MapEvent event)
+            {
+                for (String name : buckets.keySet()) {
+                    discard(name);
+                }
+            }
+        });
+
+        for (BucketDefinition definition : catalog.values()) {
+            buckets.put(definition.getName(), definition);
+            configured.add(definition.getName());
+        }
+        balancer.rebalance();
+    }
+
+    public BucketBalancer getBalancer()
+    {
+        return balancer;
+    }
+
+    /**
+     * Returns the directory of the persistent buckets on this member or
+     * {@code null} if there is none.
+     */
+    public File getDataDirectory()
+    {
+        return dataDirectory;
+    }
+
+    /**
+     * Sets the directory of the persistent buckets on this member and adds
+     * the buckets found in it to the catalog, unless they have been deleted
+     * while this member was away.
+     */
+    public synchronized void setDataDirectory(File directory)
+            throws IOException
+    {
+        if (directory == null || directory.equals(dataDirectory)) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        closePersistentBuckets();
+        dataDirectory = directory;
+
+        if (persistence == null) {
+            persistence = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "bucket-persistence");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            persistence.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run()
+                {
+                    for (PersistentBucket bucket : persistent.values()) {
+                        bucket.flush();
+                    }
+                }
+            }, WRITE_DELAY, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+
+        File[] stores = directory.listFiles();
+        for (File store : stores == null ? new File[0] : stores) {
+            BucketDefinition definition = PersistentBucket.readDefinition(
+                    engine, store);
+            if (definition == null) {
+                continue;
+            }
+            String name = definition.getName();
+            if (contains(name)) {
+                continue;
+            }
+            if (PersistentBucket.isCurrent(engine, store)) {
+                // deleted while this member was away...
+                PersistentBucket.delete(store);
+            } else {
+                try {
+                    create(definition);
+                } catch (FileAlreadyExistsException x) {
+                    // restored by another member in the meantime...
+                }
+            }
+        }
+        for (BucketDefinition definition : definitions()) {
+            persist(definition);
+        }
+    }
+
+    /**
+     * Returns the definition of the given bucket or {@code null} if there is
+     * no such bucket.
+     */
+    public BucketDefinition get(String name)
+    {
+        BucketDefinition definition = buckets.get(name);
+        if (definition == null) {
+            definition = catalog.get(name);
+            if (definition != null) {
+                apply(definition);
+            }
+        }
+        return definition;
+    }
+
+    public boolean contains(String name)
+    {
+        return get(name) != null;
+    }
+
+    /**
+     * Returns the names of all buckets known to this member.
+     */
+    public Set<String> names()
+    {
+        return Collections.unmodifiableSet(buckets.keySet());
+    }
+
+    /**
+     * Returns the definitions of all buckets created through the catalog.
+     */
+    Collection<BucketDefinition> definitions()
+    {
+        List<BucketDefinition> definitions = new ArrayList<>(
+                configured.size());
+        for (String name : configured) {
+            BucketDefinition definition = buckets.get(name);
+            if (definition != null) {
+                definitions.add(definition);
+            }
+        }
+        return definitions;
+    }
+
+    /**
+     * Adds the definition of a new bucket to the catalog of the cluster.
+     *
+     * @throws FileAlreadyExistsException if the bucket already exists
+     */
+    public void create(BucketDefinition definition)
+            throws FileAlreadyExistsException
+    {
+        String name = definition.getName();
+        if (contains(name)) {
+            throw new FileAlreadyExistsException(null, null,
+                    "Bucket already exists: " + name);
+        }
+        apply(definition);
+        catalog.put(name, definition);
+    }
+
+    /**
+     * Registers a map that has not been created as a bucket (e.g. using a
+     * static configuration) on this member only, unless it is known
+     * already.
+     */
+    public void register(BucketDefinition definition)
+    {
+        buckets.putIfAbsent(definition.getName(), definition);
+    }
+
+    /**
+     * Removes the definition of a bucket from the catalog of the cluster.
+     */
+    public void remove(String name)
+    {
+        discard(name);
+        catalog.remove(name);
+    }
+
+    /**
+     * Forgets about a bucket on this member only, e.g. after its map has been
+     * destroyed.
+     */
+    public void discard(String name)
+    {
+        PersistentBucket bucket = persistent.remove(name);
+        if (bucket != null) {
+            bucket.destroy();
+        }
+        buckets.remove(name);
+        // static configurations are left alone...
+        if (configured.remove(name)) {
+            hazelcast.getConfig().getMapConfigs().remove(name);
+            balancer.rebalance();
+        }
+    }
+
+    /**
+     * Returns the store of the given bucket on this member or {@code null}
+     * if it is not persistent here.
+     */
+    public PersistentBucket getPersistentBucket(String name)
+    {
+        return persistent.get(name);
+    }
+
+    /**
+     * Stops listening for changes of the catalog and closes the stores of
+     * all persistent buckets.
+     */
+    public void close()
+    {
+        catalog.removeEntryListener(registration);
+        hazelcast.getCluster().removeMembershipListener(membership);
+        hazelcast.getLifecycleService().removeLifecycleListener(lifecycle);
+        synchronized (this) {
+            closePersistentBuckets();
+            if (persistence != null) {
+                persistence.shutdown();
+                persistence = null;
+            }
+        }
+    }
+
+    private void apply(BucketDefinition definition)
+    {
+        buckets.put(definition.getName(), definition);
+        configured.add(definition.getName());
+        balancer.rebalance();
+        if (definition.isPersistent()) {
+            persist(definition);
+        }
+    }
+
+    private synchronized void closePersistentBuckets()
+    {
+        for (String name : persistent.keySet()) {
+            PersistentBucket bucket = persistent.remove(name);
+            if (bucket != null) {
+                bucket.close();
+            }
+        }
+    }
+
+    private synchronized void persist(BucketDefinition definition)
+    {
+        String name = definition.getName();
+        if (dataDirectory == null || !definition.isPersistent()
+                || persistent.containsKey(name))
+        {
+            return;
+        }
+        PersistentBucket bucket = new PersistentBucket(hazelcast, engine,
+                definition, PersistentBucket.directory(dataDirectory, name),
+                persistence);
+        try {
+            bucket.open();
+            persistent.put(name, bucket);
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to keep bucket '" + name
+                    + "' on disk", x);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.catalog;
+
+import java.io.IOException;
+
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+
+import com.hazelcast.config.EvictionPolicy;
+import com.hazelcast.config.InMemoryFormat;
+import com.hazelcast.config.MapConfig;
+import com.hazelcast.config.MaxSizeConfig;
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The definition of a bucket as kept in the {@link BucketCatalog}: the
+ * options given on creation, from which every member derives the
+ * configuration of the underlying map.
+ *
+ * @author ancoron
+ */
+public class BucketDefinition implements DataSerializable
+{
+
+    private String name;
+    private int ttl;
+    private int backups;
+    private int maxData;
+    private NearCacheConfig nearCache;
+    private ValueEncoding compression = ValueEncoding.IDENTITY;
+    private long creationTime;
+    private boolean persistent;
+
+    public BucketDefinition()
+    {
+    }
+
+    /**
+     * @param ttl the time to live of values in seconds (0 for none)
+     * @param maxData the maximum size of all values in MiB (0 for none),
+     * which is split evenly across the members
+     * @param nearCache the near cache settings or {@code null}
+     */
+    public BucketDefinition(String name, int ttl, int backups, int maxData,
+            NearCacheConfig nearCache, ValueEncoding compression,
+            long creationTime)
+    {
+        this(name, ttl, backups, maxData, nearCache, compression,
+                creationTime, false);
+    }
+
+    /**
+     * @param persistent whether the values are kept on the local disk of
+     * their owners as well
+     */
+    public BucketDefinition(String name, int ttl, int backups, int maxData,
+            NearCacheConfig nearCache, ValueEncoding compression,
+            long creationTime, boolean persistent)
+    {
+        this.name = name;
+        this.ttl = ttl;
+        this.backups = backups;
+        this.maxData = maxData;
+        this.nearCache = nearCache;
+        this.compression = compression;
+        this.creationTime = creationTime;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Returns the definition of a map that has not been created as a bucket,
+     * derived from its (static) configuration.
+     */
+    public static BucketDefinition of(MapConfig config, int members,
+            long creationTime)
+    {
+        MaxSizeConfig max = config.getMaxSizeConfig();
+        int maxData = max.getMaxSizePolicy()
+                == MaxSizeConfig.MaxSizePolicy.USED_HEAP_SIZE
+                ? max.getSize() * members : 0;
+        return new BucketDefinition(config.getName(),
+                config.getTimeToLiveSeconds(), config.getBackupCount(),
+                maxData, config.getNearCacheConfig(), ValueEncoding.IDENTITY,
+                creationTime);
+    }
+
+    /**
+     * Creates the configuration of the map of this bucket with the given
+     * limit per member.
+     *
+     * @param limit the maximum size of the values on each member in MiB or
+     * 0 for none
+     * @see BucketBalancer
+     */
+    public MapConfig toMapConfig(int limit)
+    {
+        MapConfig config = new MapConfig(name);
+        config.setTimeToLiveSeconds(ttl);
+        config.setEvictionPolicy(EvictionPolicy.LRU);
+        config.setInMemoryFormat(InMemoryFormat.BINARY);
+        config.setBackupCount(backups);
+        config.setMaxSizeConfig(new MaxSizeConfig(limit,
+                MaxSizeConfig.MaxSizePolicy.USED_HEAP_SIZE));
+        if (nearCache != null) {
+            config.setNearCacheConfig(nearCache);
+        }
+        return config;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the time to live of values in seconds.
+     */
+    public int getTtl()
+    {
+        return ttl;
+    }
+
+    public int getBackups()
+    {
+        return backups;
+    }
+
+    /**
+     * Returns the maximum size of all values of the bucket in MiB.
+     */
+    public int getMaxData()
+    {
+        return maxData;
+    }
+
+    public NearCacheConfig getNearCache()
+    {
+        return nearCache;
+    }
+
+    public ValueEncoding getCompression()
+    {
+        return compression;
+    }
+
+    /**
+     * Returns the time the bucket has been created in milliseconds since the
+     * epoch.
+     */
+    public long getCreationTime()
+    {
+        return creationTime;
+    }
+
+    /**
+     * Tells whether the values of the bucket are kept on disk as well.
+     *
+     * @see org.ancoron.hazelcast.rest.store.PersistentBucket
+     */
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTF(name);
+        out.writeInt(ttl);
+        out.writeInt(backups);
+        out.writeInt(maxData);
+        out.writeByte(compression.getCode());
+        out.writeLong(creationTime);
+        out.writeBoolean(nearCache != null);
+        if (nearCache != null) {
+            out.writeInt(nearCache.getMaxSize());
+            out.writeInt(nearCache.getTimeToLiveSeconds());
+            out.writeBoolean(nearCache.isInvalidateOnChange());
+            out.writeUTF(nearCache.getInMemoryFormat().name());
+            out.writeUTF(nearCache.getEvictionPolicy());
+        }
+        out.writeBoolean(persistent);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        name = in.readUTF();
+        ttl = in.readInt();
+        backups = in.readInt();
+        maxData = in.readInt();
+        compression = ValueEncoding.of(in.readByte());
+        creationTime = in.readLong();
+        if (in.readBoolean()) {
+            nearCache = new NearCacheConfig();
+            nearCache.setMaxSize(in.readInt());
+            nearCache.setTimeToLiveSeconds(in.readInt());
+            nearCache.setInvalidateOnChange(in.readBoolean());
+            nearCache.setInMemoryFormat(InMemoryFormat.valueOf(in.readUTF()));
+            nearCache.setEvictionPolicy(in.readUTF());
+        }
+        persistent = in.readBoolean();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of byte buffers in power-of-two size classes, used for staging
+ * bulk requests and compressing values without allocating a new array each
+ * time. Requests for buffers larger than the largest size class are not
+ * pooled.
+ * <p>
+ * A buffer must only be released once nothing refers to it anymore. In
+ * particular, values passed to entry processors are used as they are for
+ * keys owned by the local member, even after the operation returned (e.g.
+ * to publish entry events), so they must not be kept in pooled buffers at
+ * all.
+ *
+ * @author ancoron
+ */
+public class BufferPool
+{
+
+    private static final int MIN_SHIFT = 12; // 4 KiB
+
+    /**
+     * A buffer acquired from a {@link BufferPool}, which can only be
+     * returned to the pool it has been acquired from.
+     */
+    public static final class Buffer
+    {
+
+        private final BufferPool pool;
+        private final int sizeClass;
+        private byte[] array;
+
+        private Buffer(BufferPool pool, int sizeClass, byte[] array)
+        {
+            this.pool = pool;
+            this.sizeClass = sizeClass;
+            this.array = array;
+        }
+
+        /**
+         * Returns the array of this buffer, which is at least as large as
+         * requested.
+         *
+         * @throws IllegalStateException if the buffer has been released
+         */
+        public byte[] array()
+        {
+            if (array == null) {
+                throw new IllegalStateException("Buffer has been released");
+            }
+            return array;
+        }
+    }
+
+    private final List<ArrayBlockingQueue<byte[]>> classes;
+    private final int maxSize;
+
+    public BufferPool(int maxSize, int buffersPerClass)
+    {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < maxSize) {
+            shift++;
+        }
+        this.maxSize = 1 << shift;
+        this.classes = new ArrayList<>(shift - MIN_SHIFT + 1);
+        for (int i = MIN_SHIFT; i <= shift; i++) {
+            classes.add(new ArrayBlockingQueue<byte[]>(buffersPerClass));
+        }
+    }
+
+    /**
+     * Returns a buffer of at least the given size.
+     */
+    public Buffer acquire(int size)
+    {
+        if (size > maxSize) {
+            return new Buffer(this, -1, new byte[size]);
+        }
+        int index = indexOf(size);
+        byte[] buf = classes.get(index).poll();
+        if (buf == null) {
+            buf = new byte[1 << (index + MIN_SHIFT)];
+        }
+        return new Buffer(this, index, buf);
+    }
+
+    /**
+     * Returns a buffer to the pool, after which its array must not be used
+     * anymore. Buffers of other pools, buffers too large to be pooled and
+     * buffers released before are silently dropped.
+     */
+    public void release(Buffer buf)
+    {
+        if (buf == null || buf.pool != this || buf.array == null) {
+            return;
+        }
+        byte[] array = buf.array;
+        buf.array = null;
+        if (buf.sizeClass >= 0) {
+            classes.get(buf.sizeClass).offer(array);
+        }
+    }
+
+    private static int indexOf(int size)
+    {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * The manifest of a large value that is stored as a sequence of fixed-size
+ * chunks under derived keys, so that neither the REST node nor a single
+ * partition has to hold the whole value at once.
+ * <p>
+ * The manifest itself is stored under the original key, each chunk is
+ * stored as a {@link StoredValue} of type {@link #T_CHUNK}.
+ *
+ * @author ancoron
+ * @see ChunkedValueSerializer
+ */
+public class ChunkedValue extends StoredValue
+{
+
+    public static final byte T_CHUNK = 126;
+
+    private static final char CHUNK_SEPARATOR = '\u0000';
+
+    /**
+     * The number of chunk operations kept in flight while storing, fetching
+     * or deleting a chunked value.
+     */
+    private static final int PIPELINE_DEPTH = 4;
+
+    private final long generation;
+    private final long length;
+    private final int chunkSize;
+    private final int chunks;
+
+    public ChunkedValue(byte type, byte[] digest, long generation, long length,
+            int chunkSize)
+    {
+        super(type, digest, EMPTY, 0, 0);
+        this.generation = generation;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.chunks = (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Stores the value read from the given stream as a sequence of chunks,
+     * updating the given digest with the content. The returned manifest that
+     * makes the value visible has to be stored by the caller afterwards.
+     */
+    public static ChunkedValue write(IMap<String, StoredValue> map, String key,
+            byte type, long length, int chunkSize, InputStream in,
+            MessageDigest md) throws IOException
+    {
+        long generation = ThreadLocalRandom.current().nextLong();
+        ChunkedValue value = new ChunkedValue(type, null, generation, length,
+                chunkSize);
+
+        // chunks are not read into pooled buffers, as they are still referenced
+        // by the operations on keys owned locally after those completed
+        Deque<Future<?>> pending = new ArrayDeque<>(PIPELINE_DEPTH);
+        for (int i = 0; i < value.chunks; i++) {
+            if (pending.size() == PIPELINE_DEPTH) {
+                await(pending.removeFirst());
+            }
+
+            int size = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+            byte[] chunk = new byte[size];
+            int offset = 0;
+            int num;
+            while (offset < size
+                    && (num = in.read(chunk, offset, size - offset)) > 0)
+            {
+                offset += num;
+            }
+            if (offset < size) {
+                value.delete(map, key);
+                throw new EOFException("Unexpected end of value for key: "
+                        + key);
+            }
+            md.update(chunk, 0, size);
+
+            pending.addLast(map.submitToKey(value.chunkKey(key, i),
+                    new SetValueProcessor(new StoredValue(T_CHUNK, chunk))));
+        }
+
+        while (!pending.isEmpty()) {
+            await(pending.removeFirst());
+        }
+        return new ChunkedValue(type, md.digest(), generation, length,
+                chunkSize);
+    }
+
+    /**
+     * Writes all chunks in order to the given stream while prefetching the
+     * following chunks.
+     *
+     * @throws FileNotFoundException if a chunk has already been evicted
+     */
+    @Override
+    public void writeTo(IMap<String, StoredValue> map, String key,
+            OutputStream out) throws IOException
+    {
+        Deque<Future<StoredValue>> pending = new ArrayDeque<>(PIPELINE_DEPTH);
+        int next = 0;
+        for (int i = 0; i < chunks; i++) {
+            while (next < chunks && pending.size() < PIPELINE_DEPTH) {
+                pending.addLast(map.getAsync(chunkKey(key, next++)));
+            }
+
+            StoredValue chunk = await(pending.removeFirst());
+            if (chunk == null) {
+                throw new FileNotFoundException("Chunk " + i
+                        + " not found for key: " + key);
+            }
+            chunk.writeTo(map, chunkKey(key, i), out);
+        }
+    }
+
+    /**
+     * Writes the given range of the content (positions inclusive) to the
+     * stream, transferring only the overlapping slice of each chunk from its
+     * owner while prefetching the following ones.
+     *
+     * @throws FileNotFoundException if a chunk has already been evicted
+     */
+    public void writeTo(IMap<String, StoredValue> map, String key, long first,
+            long last, OutputStream out) throws IOException
+    {
+        int from = (int) (first / chunkSize);
+        int to = (int) (last / chunkSize);
+        Deque<Future<ValueRange>> pending = new ArrayDeque<>(PIPELINE_DEPTH);
+        int next = from;
+        for (int i = from; i <= to; i++) {
+            while (next <= to && pending.size() < PIPELINE_DEPTH) {
+                long start = (long) next * chunkSize;
+                pending.addLast(ValueRangeOperation.submit(map,
+                        chunkKey(key, next++), Math.max(first, start) - start,
+                        Math.min(last, start + chunkSize - 1) - start));
+            }
+
+            ValueRange slice = await(pending.removeFirst());
+            if (slice == null || slice.size() == 0) {
+                throw new FileNotFoundException("Chunk " + i
+                        + " not found for key: " + key);
+            }
+            slice.writeTo(map, key, 0, out);
+        }
+    }
+
+    /**
+     * Reads the whole value into memory.
+     */
+    public StoredValue toValue(IMap<String, StoredValue> map, String key)
+            throws IOException
+    {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Value too large for key: " + key);
+        }
+        final byte[] data = new byte[(int) length];
+        writeTo(map, key, new OutputStream() {
+            private int offset = 0;
+
+            @Override
+            public void write(int b)
+            {
+                data[offset++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len)
+            {
+                System.arraycopy(b, off, data, offset, len);
+                offset += len;
+            }
+        });
+        return new StoredValue(getType(), getDigest(), data, 0, data.length);
+    }
+
+    /**
+     * Deletes all chunks (but not the manifest) of this value.
+     */
+    public void delete(IMap<String, StoredValue> map, String key)
+            throws IOException
+    {
+        Deque<Future<?>> pending = new ArrayDeque<>(PIPELINE_DEPTH);
+        for (int i = 0; i < chunks; i++) {
+            if (pending.size() == PIPELINE_DEPTH) {
+                await(pending.removeFirst());
+            }
+            pending.addLast(map.submitToKey(chunkKey(key, i),
+                    new SetValueProcessor(null)));
+        }
+
+        while (!pending.isEmpty()) {
+            await(pending.removeFirst());
+        }
+    }
+
+    /**
+     * Submits the deletion of all chunks without waiting for completion.
+     */
+    public void deleteAsync(IMap<String, StoredValue> map, String key)
+    {
+        for (int i = 0; i < chunks; i++) {
+            map.submitToKey(chunkKey(key, i), new SetValueProcessor(null));
+        }
+    }
+
+    /**
+     * Checks whether the given key is the derived key of a chunk, which is
+     * never a key used by clients as it contains a NUL character (rejected
+     * in keys of requests).
+     */
+    public static boolean isChunkKey(String key)
+    {
+        return key.indexOf(CHUNK_SEPARATOR) >= 0;
+    }
+
+    public String chunkKey(String key, int index)
+    {
+        return key + CHUNK_SEPARATOR + Long.toHexString(generation)
+                + CHUNK_SEPARATOR + index;
+    }
+
+    @Override
+    public long getContentLength()
+    {
+        return length;
+    }
+
+    public long getGeneration()
+    {
+        return generation;
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public int getChunks()
+    {
+        return chunks;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException
+    {
+        try {
+            return future.get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for chunk", x);
+        } catch (ExecutionException x) {
+            throw new IOException(x.getCause());
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.Serializer;
+import com.hazelcast.nio.serialization.SerializerHook;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+/**
+ * Serializes the manifest of a {@link ChunkedValue}. Having a type ID of its
+ * own allows recognizing manifests from their serialized form alone, the
+ * layout of the header is described in {@link ValueHeader}.
+ *
+ * @author ancoron
+ */
+public class ChunkedValueSerializer implements StreamSerializer<ChunkedValue>
+{
+
+    public static final int TYPE_ID = 0x487a0002;
+
+    @Override
+    public void write(ObjectDataOutput out, ChunkedValue value) throws IOException
+    {
+        ValueHeader.write(out, value.getType(), value.getEncoding(),
+                value.getDigest());
+        ValueHeader.writeLong(out, value.getGeneration());
+        ValueHeader.writeLong(out, value.getContentLength());
+        ValueHeader.writeInt(out, value.getChunkSize());
+    }
+
+    @Override
+    public ChunkedValue read(ObjectDataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        // chunks are always stored unencoded...
+        in.readByte();
+        byte[] digest = ValueHeader.readDigest(in);
+        long generation = ValueHeader.readLong(in);
+        long length = ValueHeader.readLong(in);
+        int chunkSize = ValueHeader.readInt(in);
+        return new ChunkedValue(type, digest, generation, length, chunkSize);
+    }
+
+    @Override
+    public int getTypeId()
+    {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    public static class Hook implements SerializerHook<ChunkedValue>
+    {
+
+        @Override
+        public Class<ChunkedValue> getSerializationType()
+        {
+            return ChunkedValue.class;
+        }
+
+        @Override
+        public Serializer createSerializer()
+        {
+            return new ChunkedValueSerializer();
+        }
+
+        @Override
+        public boolean isOverwritable()
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * Gets the value of an entry unless it matches one of the given entity tags
+ * (as for {@code If-None-Match}), in which case only its
+ * {@link ValueHeader} is sent back. The comparison is done on the partition
+ * owner using the serialized header, so that an unchanged value is never
+ * transferred.
+ *
+ * @author ancoron
+ */
+public class ConditionalGetProcessor implements
+        EntryProcessor<String, StoredValue>, DataSerializable
+{
+
+    private static final long serialVersionUID = -2719845312077436402L;
+
+    private String[] ifNoneMatch;
+
+    public ConditionalGetProcessor()
+    {
+    }
+
+    public ConditionalGetProcessor(String[] ifNoneMatch)
+    {
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, StoredValue> entry)
+    {
+        ValueHeader header = ValueHeader.of(entry);
+        if (header == null) {
+            return null;
+        } else if (header.matches(ifNoneMatch, true)) {
+            return header;
+        }
+        return entry.getValue();
+    }
+
+    @Override
+    public EntryBackupProcessor<String, StoredValue> getBackupProcessor()
+    {
+        return null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTFArray(ifNoneMatch);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        ifNoneMatch = in.readUTFArray();
+    }
+}
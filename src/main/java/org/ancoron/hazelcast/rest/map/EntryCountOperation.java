@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.impl.operation.MapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.map.impl.recordstore.RecordStore;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.InternalCompletableFuture;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.OperationService;
+import com.hazelcast.spi.PartitionAwareOperation;
+import com.hazelcast.spi.ReadonlyOperation;
+import com.hazelcast.util.Clock;
+
+/**
+ * Counts the entries of a single partition on its owner, telling the values
+ * stored by clients apart from the derived keys of chunks, which
+ * {@link IMap#size()} counts alike.
+ *
+ * @author ancoron
+ */
+public class EntryCountOperation extends MapOperation
+        implements PartitionAwareOperation, ReadonlyOperation
+{
+
+    private int[] result;
+
+    public EntryCountOperation()
+    {
+    }
+
+    public EntryCountOperation(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Counts the entries of all partitions of the given map, which requires
+     * the map proxy of a cluster member.
+     *
+     * @return the number of values and the number of chunks
+     */
+    public static long[] count(IMap<String, StoredValue> map)
+            throws IOException
+    {
+        NodeEngine engine = ((AbstractDistributedObject<?>) map)
+                .getNodeEngine();
+        OperationService operations = engine.getOperationService();
+        int partitions = engine.getPartitionService().getPartitionCount();
+        List<InternalCompletableFuture<int[]>> pending = new ArrayList<>(
+                partitions);
+        for (int i = 0; i < partitions; i++) {
+            InternalCompletableFuture<int[]> future = operations
+                    .invokeOnPartition(MapService.SERVICE_NAME,
+                            new EntryCountOperation(map.getName()), i);
+            pending.add(future);
+        }
+
+        long[] count = new long[2];
+        try {
+            for (InternalCompletableFuture<int[]> future : pending) {
+                int[] partition = future.get();
+                count[0] += partition[0];
+                count[1] += partition[1];
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while counting entries", x);
+        } catch (ExecutionException x) {
+            throw new IOException(x.getCause());
+        }
+        return count;
+    }
+
+    @Override
+    public void run()
+    {
+        result = new int[2];
+        RecordStore<?> store = mapServiceContext.getExistingRecordStore(
+                getPartitionId(), name);
+        if (store == null) {
+            return;
+        }
+
+        Iterator<?> records = store.iterator(Clock.currentTimeMillis(), false);
+        while (records.hasNext()) {
+            String key = (String) mapServiceContext.toObject(
+                    ((Record<?>) records.next()).getKey());
+            result[ChunkedValue.isChunkKey(key) ? 1 : 0]++;
+        }
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return result;
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Applies JSON Merge Patch (RFC 7396) and JSON Patch (RFC 6902) documents.
+ * <p>
+ * Besides the operations of RFC 6902, JSON Patch supports
+ * {@code {"op": "increment", "path": ..., "value": n}}, which adds a number
+ * to a numeric member or array element, or sets it if it is missing. A
+ * missing document is patched as {@code null}, so that a merge patch or an
+ * increment of the whole document ({@code "path": ""}) creates it.
+ * <p>
+ * Documents are patched in place; a failing operation throws an
+ * {@link IllegalStateException}, leaving the document partially patched.
+ *
+ * @author ancoron
+ */
+final class JsonPatch
+{
+
+    private JsonPatch()
+    {
+    }
+
+    /**
+     * Parses a patch document.
+     *
+     * @throws IllegalArgumentException if it is not valid JSON or, for a
+     * JSON Patch, no array of valid operations
+     */
+    static JsonElement parse(String patch, boolean merge)
+    {
+        final JsonElement json;
+        try {
+            json = new JsonParser().parse(patch);
+        } catch (JsonParseException x) {
+            throw new IllegalArgumentException("Invalid patch: "
+                    + x.getMessage(), x);
+        }
+        if (merge) {
+            return json;
+        }
+
+        if (!json.isJsonArray()) {
+            throw new IllegalArgumentException(
+                    "Expected an array of operations");
+        }
+        for (JsonElement operation : json.getAsJsonArray()) {
+            if (!operation.isJsonObject()) {
+                throw new IllegalArgumentException(
+                        "Expected an object for each operation");
+            }
+            JsonObject op = operation.getAsJsonObject();
+            pointer(string(op, "path"));
+            switch (string(op, "op")) {
+                case "add":
+                case "replace":
+                case "test":
+                    if (!op.has("value")) {
+                        throw new IllegalArgumentException(
+                                "Missing value of operation");
+                    }
+                    break;
+                case "increment":
+                    JsonElement value = op.get("value");
+                    if (value == null || !value.isJsonPrimitive()
+                            || !value.getAsJsonPrimitive().isNumber())
+                    {
+                        throw new IllegalArgumentException(
+                                "Expected a number to increment by");
+                    }
+                    break;
+                case "move":
+                case "copy":
+                    pointer(string(op, "from"));
+                    break;
+                case "remove":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation: "
+                            + op.get("op"));
+            }
+        }
+        return json;
+    }
+
+    private static String string(JsonObject op, String name)
+    {
+        JsonElement value = op.get(name);
+        if (value == null || !value.isJsonPrimitive()
+                || !value.getAsJsonPrimitive().isString())
+        {
+            throw new IllegalArgumentException("Expected a string for '"
+                    + name + "'");
+        }
+        return value.getAsString();
+    }
+
+    /**
+     * Splits a JSON Pointer (RFC 6901) into its unescaped reference tokens.
+     */
+    static String[] pointer(String path)
+    {
+        if (path.isEmpty()) {
+            return new String[0];
+        } else if (path.charAt(0) != '/') {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+
+        List<String> tokens = new ArrayList<>();
+        int start = 1;
+        while (start <= path.length()) {
+            int slash = path.indexOf('/', start);
+            if (slash < 0) {
+                slash = path.length();
+            }
+            tokens.add(path.substring(start, slash).replace("~1", "/")
+                    .replace("~0", "~"));
+            start = slash + 1;
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Applies a merge patch to the given document (or {@code null}).
+     */
+    static JsonElement merge(JsonElement target, JsonElement patch)
+    {
+        if (!patch.isJsonObject()) {
+            return patch;
+        }
+
+        JsonObject result = target != null && target.isJsonObject()
+                ? target.getAsJsonObject() : new JsonObject();
+        for (Map.Entry<String, JsonElement> member
+                : patch.getAsJsonObject().entrySet())
+        {
+            if (member.getValue().isJsonNull()) {
+                result.remove(member.getKey());
+            } else {
+                result.add(member.getKey(), merge(result.get(member.getKey()),
+                        member.getValue()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Applies the operations of a JSON Patch to the given document (or
+     * {@code null}).
+     */
+    static JsonElement apply(JsonElement document, JsonArray patch)
+    {
+        JsonElement root = document == null ? JsonNull.INSTANCE : document;
+        for (JsonElement operation : patch) {
+            JsonObject op = operation.getAsJsonObject();
+            String path = op.get("path").getAsString();
+            String[] tokens = pointer(path);
+            switch (op.get("op").getAsString()) {
+                case "add":
+                    root = add(root, tokens, op.get("value"), path);
+                    break;
+                case "remove":
+                    remove(root, tokens, path);
+                    break;
+                case "replace":
+                    get(root, tokens, path);
+                    root = set(root, tokens, op.get("value"), path);
+                    break;
+                case "move": {
+                    String from = op.get("from").getAsString();
+                    if (path.startsWith(from + "/")) {
+                        throw new IllegalStateException("Cannot move " + from
+                                + " into itself");
+                    }
+                    JsonElement value = remove(root, pointer(from), from);
+                    root = add(root, tokens, value, path);
+                    break;
+                }
+                case "copy": {
+                    String from = op.get("from").getAsString();
+                    JsonElement value = get(root, pointer(from), from);
+                    // no shared nodes, please
+                    root = add(root, tokens, new JsonParser().parse(
+                            value.toString()), path);
+                    break;
+                }
+                case "test":
+                    if (!get(root, tokens, path).equals(op.get("value"))) {
+                        throw new IllegalStateException("Test failed for "
+                                + path);
+                    }
+                    break;
+                case "increment":
+                    root = increment(root, tokens,
+                            op.get("value").getAsBigDecimal(), path);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown operation: "
+                            + op.get("op"));
+            }
+        }
+        return root;
+    }
+
+    private static JsonElement parent(JsonElement root, String[] tokens,
+            String path)
+    {
+        JsonElement parent = root;
+        for (int i = 0; i < tokens.length - 1; i++) {
+            parent = child(parent, tokens[i], path);
+        }
+        return parent;
+    }
+
+    private static JsonElement child(JsonElement node, String token,
+            String path)
+    {
+        JsonElement child = null;
+        if (node.isJsonObject()) {
+            child = node.getAsJsonObject().get(token);
+        } else if (node.isJsonArray()) {
+            JsonArray array = node.getAsJsonArray();
+            int index = index(token, array.size() - 1, path);
+            child = array.get(index);
+        }
+        if (child == null) {
+            throw new IllegalStateException("Path not found: " + path);
+        }
+        return child;
+    }
+
+    private static int index(String token, int max, String path)
+    {
+        try {
+            int index = Integer.parseInt(token);
+            if (index >= 0 && index <= max
+                    && (token.length() == 1 || token.charAt(0) != '0'))
+            {
+                return index;
+            }
+        } catch (NumberFormatException x) {
+            // not an index...
+        }
+        throw new IllegalStateException("Path not found: " + path);
+    }
+
+    private static JsonElement get(JsonElement root, String[] tokens,
+            String path)
+    {
+        if (tokens.length == 0) {
+            return root;
+        }
+        return child(parent(root, tokens, path), tokens[tokens.length - 1],
+                path);
+    }
+
+    private static JsonElement add(JsonElement root, String[] tokens,
+            JsonElement value, String path)
+    {
+        if (tokens.length == 0) {
+            return value;
+        }
+
+        JsonElement parent = parent(root, tokens, path);
+        String token = tokens[tokens.length - 1];
+        if (parent.isJsonObject()) {
+            parent.getAsJsonObject().add(token, value);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            int index = "-".equals(token) ? array.size()
+                    : index(token, array.size(), path);
+            // Gson 2.7 offers no insertion...
+            List<JsonElement> tail = new ArrayList<>();
+            while (array.size() > index) {
+                tail.add(array.remove(index));
+            }
+            array.add(value);
+            for (JsonElement element : tail) {
+                array.add(element);
+            }
+        } else {
+            throw new IllegalStateException("Path not found: " + path);
+        }
+        return root;
+    }
+
+    private static JsonElement set(JsonElement root, String[] tokens,
+            JsonElement value, String path)
+    {
+        if (tokens.length == 0) {
+            return value;
+        }
+
+        JsonElement parent = parent(root, tokens, path);
+        String token = tokens[tokens.length - 1];
+        if (parent.isJsonObject()) {
+            parent.getAsJsonObject().add(token, value);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            array.set(index(token, array.size() - 1, path), value);
+        } else {
+            throw new IllegalStateException("Path not found: " + path);
+        }
+        return root;
+    }
+
+    private static JsonElement remove(JsonElement root, String[] tokens,
+            String path)
+    {
+        if (tokens.length == 0) {
+            throw new IllegalStateException("Cannot remove the document");
+        }
+
+        JsonElement parent = parent(root, tokens, path);
+        String token = tokens[tokens.length - 1];
+        JsonElement removed = null;
+        if (parent.isJsonObject()) {
+            removed = parent.getAsJsonObject().remove(token);
+        } else if (parent.isJsonArray()) {
+            JsonArray array = parent.getAsJsonArray();
+            removed = array.remove(index(token, array.size() - 1, path));
+        }
+        if (removed == null) {
+            throw new IllegalStateException("Path not found: " + path);
+        }
+        return removed;
+    }
+
+    private static JsonElement increment(JsonElement root, String[] tokens,
+            BigDecimal delta, String path)
+    {
+        JsonElement current;
+        if (tokens.length == 0) {
+            current = root;
+        } else {
+            JsonElement parent = parent(root, tokens, path);
+            current = parent.isJsonObject() ? parent.getAsJsonObject().get(
+                    tokens[tokens.length - 1]) : get(root, tokens, path);
+        }
+
+        BigDecimal value = delta;
+        if (current != null && !current.isJsonNull()) {
+            if (!current.isJsonPrimitive()
+                    || !current.getAsJsonPrimitive().isNumber())
+            {
+                throw new IllegalStateException("Not a number: " + path);
+            }
+            value = current.getAsBigDecimal().add(delta);
+        }
+        return set(root, tokens, new JsonPrimitive(value), path);
+    }
+}
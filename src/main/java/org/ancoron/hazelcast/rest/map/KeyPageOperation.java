@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.impl.operation.MapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.map.impl.recordstore.RecordStore;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.InternalCompletableFuture;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.PartitionAwareOperation;
+import com.hazelcast.spi.ReadonlyOperation;
+import com.hazelcast.util.Clock;
+
+/**
+ * Reads a page of the keys of a single partition on its owner: the keys
+ * following a given key in lexicographical order, optionally restricted to
+ * a prefix. Continuing after the last key of the previous page makes the
+ * paging stable while entries are added or removed concurrently.
+ * <p>
+ * Only the keys of the page are kept in a bounded heap, so neither the
+ * owner nor the caller has to hold all keys of a partition. The derived
+ * keys of chunks are skipped.
+ *
+ * @author ancoron
+ */
+public class KeyPageOperation extends MapOperation
+        implements PartitionAwareOperation, ReadonlyOperation
+{
+
+    private String prefix;
+    private String after;
+    private int limit;
+    private String[] result;
+
+    public KeyPageOperation()
+    {
+    }
+
+    /**
+     * @param prefix the prefix of all keys or {@code null}
+     * @param after the last key of the previous page or {@code null} to start
+     * with the first key
+     */
+    public KeyPageOperation(String name, String prefix, String after,
+            int limit)
+    {
+        super(name);
+        this.prefix = prefix;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the number of partitions of the cluster of the given map.
+     */
+    public static int partitions(IMap<String, StoredValue> map)
+    {
+        return ((AbstractDistributedObject<?>) map).getNodeEngine()
+                .getPartitionService().getPartitionCount();
+    }
+
+    /**
+     * Submits the retrieval of a page of the keys of the given partition,
+     * which results in the sorted keys (at most the given limit). This
+     * requires the map proxy of a cluster member.
+     */
+    public static InternalCompletableFuture<String[]> submit(
+            IMap<String, StoredValue> map, int partition, String prefix,
+            String after, int limit)
+    {
+        NodeEngine engine = ((AbstractDistributedObject<?>) map)
+                .getNodeEngine();
+        return engine.getOperationService().invokeOnPartition(
+                MapService.SERVICE_NAME,
+                new KeyPageOperation(map.getName(), prefix, after, limit),
+                partition);
+    }
+
+    @Override
+    public void run()
+    {
+        RecordStore<?> store = mapServiceContext.getExistingRecordStore(
+                getPartitionId(), name);
+        if (store == null) {
+            result = new String[0];
+            return;
+        }
+
+        // the largest key of the page on top...
+        PriorityQueue<String> page = new PriorityQueue<>(
+                Math.min(limit, Math.max(1, store.size())) + 1,
+                Collections.reverseOrder());
+        Iterator<?> records = store.iterator(Clock.currentTimeMillis(), false);
+        while (records.hasNext()) {
+            String key = (String) mapServiceContext.toObject(
+                    ((Record<?>) records.next()).getKey());
+            if ((after != null && key.compareTo(after) <= 0)
+                    || (prefix != null && !key.startsWith(prefix))
+                    || ChunkedValue.isChunkKey(key))
+            {
+                continue;
+            }
+            if (page.size() < limit) {
+                page.add(key);
+            } else if (key.compareTo(page.peek()) < 0) {
+                page.poll();
+                page.add(key);
+            }
+        }
+
+        result = page.toArray(new String[page.size()]);
+        Arrays.sort(result);
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return result;
+    }
+
+    @Override
+    protected void writeInternal(ObjectDataOutput out) throws IOException
+    {
+        super.writeInternal(out);
+        out.writeUTF(prefix);
+        out.writeUTF(after);
+        out.writeInt(limit);
+    }
+
+    @Override
+    protected void readInternal(ObjectDataInput in) throws IOException
+    {
+        super.readInternal(in);
+        prefix = in.readUTF();
+        after = in.readUTF();
+        limit = in.readInt();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+import com.hazelcast.query.Predicate;
+
+/**
+ * Matches the entries whose keys start with a prefix, but never the derived
+ * keys of chunks. Used as the filter of entry listeners, it is evaluated on
+ * the owning member, so events of other keys are not even sent.
+ *
+ * @author ancoron
+ */
+public class KeyPrefixPredicate
+        implements Predicate<String, StoredValue>, DataSerializable
+{
+
+    private static final long serialVersionUID = -3551164932544830917L;
+
+    private String prefix;
+
+    public KeyPrefixPredicate()
+    {
+    }
+
+    /**
+     * @param prefix the prefix of all keys or {@code null} for all keys
+     */
+    public KeyPrefixPredicate(String prefix)
+    {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public boolean apply(Map.Entry<String, StoredValue> entry)
+    {
+        String key = entry.getKey();
+        return key != null && !ChunkedValue.isChunkKey(key)
+                && (prefix == null || key.startsWith(prefix));
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTF(prefix);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        prefix = in.readUTF();
+    }
+}
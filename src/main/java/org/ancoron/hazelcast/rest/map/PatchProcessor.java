@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * Patches the value of an entry on the partition owner, so that neither the
+ * value nor the patched value has to travel to the caller and concurrent
+ * patches of the same value are applied one after another. Supported are
+ * the {@link Type}s of patches for JSON and binary values.
+ * <p>
+ * If entity tags are given, the value is only patched if it matches one of
+ * them (as for {@code If-Match}), otherwise {@link Boolean#FALSE} is
+ * returned. A patch that cannot be applied to the value (e.g. because of
+ * its content type or a failing JSON Patch operation) leaves it unchanged
+ * and returns the reason as a {@link String}. Otherwise the
+ * {@link ValueHeader} of the patched value is returned, or the patched value
+ * itself if requested.
+ * <p>
+ * The patched value is compressed with the given encoding like values
+ * stored by the servlet. Only the patched value is sent to the backups.
+ * Chunked values cannot be patched, nor can values grow beyond the given
+ * maximum length, as chunking has to happen on the caller.
+ *
+ * @author ancoron
+ */
+public class PatchProcessor implements EntryProcessor<String, StoredValue>,
+        DataSerializable
+{
+
+    private static final long serialVersionUID = -2466312004590146187L;
+
+    /**
+     * The types of patches, by the content type of the patch document.
+     */
+    public static enum Type
+    {
+
+        /**
+         * A JSON Merge Patch (RFC 7396) of a JSON value.
+         */
+        MERGE("application/merge-patch+json"),
+        /**
+         * A JSON Patch (RFC 6902) of a JSON value, which also supports
+         * numeric increments.
+         */
+        JSON("application/json-patch+json"),
+        /**
+         * Bytes to append to an "application/octet-stream" value.
+         */
+        APPEND("application/octet-stream");
+
+        private final String contentType;
+
+        private Type(String contentType)
+        {
+            this.contentType = contentType;
+        }
+
+        public String getContentType()
+        {
+            return contentType;
+        }
+
+        /**
+         * Returns the type of patch for the given content type (without
+         * parameters) or {@code null} if none.
+         */
+        public static Type forContentType(String contentType)
+        {
+            int semicolon = contentType.indexOf(';');
+            String mime = (semicolon < 0 ? contentType
+                    : contentType.substring(0, semicolon)).trim();
+            for (Type type : values()) {
+                if (type.contentType.equalsIgnoreCase(mime)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private Type type;
+    private byte[] patch;
+    private String[] ifMatch;
+    private byte encoding;
+    private int maxLength;
+    private boolean returnValue;
+
+    private transient StoredValue result;
+
+    public PatchProcessor()
+    {
+    }
+
+    /**
+     * @param encoding the code of the {@link ValueEncoding} to compress
+     * JSON values with
+     * @param returnValue whether to return the patched value instead of its
+     * header
+     */
+    public PatchProcessor(Type type, byte[] patch, String[] ifMatch,
+            byte encoding, int maxLength, boolean returnValue)
+    {
+        this.type = type;
+        this.patch = patch;
+        this.ifMatch = ifMatch;
+        this.encoding = encoding;
+        this.maxLength = maxLength;
+        this.returnValue = returnValue;
+    }
+
+    /**
+     * Checks whether the given patch document is valid for the given type of
+     * patch, before bothering the owner of the value with it.
+     *
+     * @throws IllegalArgumentException if the patch is invalid
+     */
+    public static void validate(Type type, byte[] patch)
+    {
+        if (type != Type.APPEND) {
+            JsonPatch.parse(new String(patch, StandardCharsets.UTF_8),
+                    type == Type.MERGE);
+        }
+    }
+
+    @Override
+    public Object process(Map.Entry<String, StoredValue> entry)
+    {
+        StoredValue value = entry.getValue();
+        if (ifMatch != null && (value == null
+                || !ValueHeader.of(value).matches(ifMatch, false)))
+        {
+            return Boolean.FALSE;
+        } else if (value instanceof ChunkedValue) {
+            return "Cannot patch chunked values";
+        }
+
+        final StoredValue patched;
+        try {
+            patched = patch(value);
+        } catch (IllegalStateException | IOException x) {
+            return x.getMessage();
+        }
+        if (patched.getLength() > maxLength) {
+            return "Patched value would exceed " + maxLength + " bytes";
+        }
+
+        result = encode(patched);
+        entry.setValue(result);
+        return returnValue ? result : ValueHeader.of(result);
+    }
+
+    private StoredValue patch(StoredValue value) throws IOException
+    {
+        if (type == Type.APPEND) {
+            if (value == null) {
+                return value(StoredValue.T_APPLICATION_OCTETSTREAM, patch);
+            } else if (value.getType()
+                    != StoredValue.T_APPLICATION_OCTETSTREAM)
+            {
+                throw new IllegalStateException(
+                        "Can only append to application/octet-stream values");
+            }
+            value = ValueEncoding.decode(value);
+            byte[] data = new byte[value.getLength() + patch.length];
+            System.arraycopy(value.getData(), value.getOffset(), data, 0,
+                    value.getLength());
+            System.arraycopy(patch, 0, data, value.getLength(), patch.length);
+            return value(StoredValue.T_APPLICATION_OCTETSTREAM, data);
+        }
+
+        JsonElement document = null;
+        if (value != null) {
+            if (value.getType() != StoredValue.T_APPLICATION_JSON) {
+                throw new IllegalStateException(
+                        "Can only patch application/json values");
+            }
+            value = ValueEncoding.decode(value);
+            try {
+                document = new JsonParser().parse(new InputStreamReader(
+                        new ByteArrayInputStream(value.getData(),
+                                value.getOffset(), value.getLength()),
+                        StandardCharsets.UTF_8));
+            } catch (JsonParseException x) {
+                throw new IllegalStateException("Value is no valid JSON", x);
+            }
+        }
+
+        JsonElement json = JsonPatch.parse(new String(patch,
+                StandardCharsets.UTF_8), type == Type.MERGE);
+        if (type == Type.MERGE) {
+            document = JsonPatch.merge(document, json);
+        } else {
+            document = JsonPatch.apply(document, json.getAsJsonArray());
+        }
+        return value(StoredValue.T_APPLICATION_JSON,
+                document.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static StoredValue value(byte type, byte[] data)
+    {
+        return new StoredValue(type, StoredValue.digest(data, 0, data.length),
+                data, 0, data.length);
+    }
+
+    private StoredValue encode(StoredValue value)
+    {
+        ValueEncoding compression = ValueEncoding.of(encoding);
+        if (compression == ValueEncoding.IDENTITY
+                || value.getType() != StoredValue.T_APPLICATION_JSON
+                || value.getLength() < ValueEncoding.MIN_LENGTH)
+        {
+            return value;
+        }
+
+        byte[] data = new byte[value.getLength()];
+        int length = compression.encode(value.getData(), value.getOffset(),
+                value.getLength(), data);
+        if (length < 0) {
+            return value;
+        }
+        return new StoredValue(value.getType(), compression.getCode(),
+                value.getDigest(), data, 0, length);
+    }
+
+    /**
+     * Returns a processor setting the patched value on the backups, if it
+     * has been patched.
+     */
+    @Override
+    public EntryBackupProcessor<String, StoredValue> getBackupProcessor()
+    {
+        return result == null ? null : new SetValueProcessor(result);
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTF(type.name());
+        out.writeByteArray(patch);
+        out.writeUTFArray(ifMatch);
+        out.writeByte(encoding);
+        out.writeInt(maxLength);
+        out.writeBoolean(returnValue);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        type = Type.valueOf(in.readUTF());
+        patch = in.readByteArray();
+        ifMatch = in.readUTFArray();
+        encoding = in.readByte();
+        maxLength = in.readInt();
+        returnValue = in.readBoolean();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.hazelcast.map.EntryBackupProcessor;
+import com.hazelcast.map.EntryProcessor;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * Sets the value of an entry on the partition owner like {@code IMap.set()}
+ * but usable with {@code IMap.submitToKey()} for asynchronous execution. A
+ * {@code null} value removes the entry.
+ * <p>
+ * Instead of the previous value only its {@link ValueHeader} is sent back,
+ * or {@code null} if there was none, which is enough to tell whether the
+ * entry existed. A previous {@link ChunkedValue} (just the manifest) is sent
+ * back as it is, so that the caller can delete its chunks.
+ * <p>
+ * Preconditions are checked atomically with the update: if entity tags are
+ * given, the value is only changed if the current value matches one of them
+ * (as for {@code If-Match}) and none of the entity tags to avoid (as for
+ * {@code If-None-Match}, where {@code "*"} means "only if absent"),
+ * otherwise {@link Boolean#FALSE} is returned.
+ * <p>
+ * Only an actual change is sent to the backups, without the preconditions
+ * that have already been checked on the owner.
+ *
+ * @author ancoron
+ */
+public class SetValueProcessor implements EntryProcessor<String, StoredValue>,
+        EntryBackupProcessor<String, StoredValue>, DataSerializable
+{
+
+    private static final long serialVersionUID = 4871940367127834095L;
+
+    private StoredValue value;
+    private String[] ifMatch;
+    private String[] ifNoneMatch;
+
+    private transient boolean changed;
+
+    public SetValueProcessor()
+    {
+    }
+
+    public SetValueProcessor(StoredValue value)
+    {
+        this(value, null);
+    }
+
+    public SetValueProcessor(StoredValue value, String[] ifMatch)
+    {
+        this(value, ifMatch, null);
+    }
+
+    public SetValueProcessor(StoredValue value, String[] ifMatch,
+            String[] ifNoneMatch)
+    {
+        this.value = value;
+        this.ifMatch = ifMatch;
+        this.ifNoneMatch = ifNoneMatch;
+    }
+
+    @Override
+    public Object process(Map.Entry<String, StoredValue> entry)
+    {
+        ValueHeader header = ValueHeader.of(entry);
+        if (!matches(header)) {
+            return Boolean.FALSE;
+        }
+
+        Object old = header != null && header.isChunked()
+                ? entry.getValue() : header;
+        if (value != null || header != null) {
+            entry.setValue(value);
+            changed = true;
+        }
+        return old;
+    }
+
+    @Override
+    public void processBackup(Map.Entry<String, StoredValue> entry)
+    {
+        entry.setValue(value);
+    }
+
+    private boolean matches(ValueHeader header)
+    {
+        if (ifMatch != null
+                && (header == null || !header.matches(ifMatch, false)))
+        {
+            return false;
+        }
+        return ifNoneMatch == null || header == null
+                || !header.matches(ifNoneMatch, true);
+    }
+
+    /**
+     * Returns a processor setting the value on the backups, if the entry has
+     * been changed.
+     */
+    @Override
+    public EntryBackupProcessor<String, StoredValue> getBackupProcessor()
+    {
+        return changed ? new SetValueProcessor(value) : null;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeObject(value);
+        out.writeUTFArray(ifMatch);
+        out.writeUTFArray(ifNoneMatch);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        value = in.readObject();
+        ifMatch = in.readUTFArray();
+        ifNoneMatch = in.readUTFArray();
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.hazelcast.core.IMap;
+
+/**
+ * A value as stored in a bucket: the content type code, the
+ * {@link ValueEncoding} of the payload, an optional digest of the (decoded)
+ * content and the payload, kept separately so that neither has to be
+ * copied to prepend or strip the other. The payload may be a slice of a
+ * larger (pooled) buffer.
+ *
+ * @author ancoron
+ * @see StoredValueSerializer
+ */
+public class StoredValue
+{
+
+    /**
+     * The type code of {@code application/octet-stream} values.
+     */
+    public static final byte T_APPLICATION_OCTETSTREAM = 0;
+    /**
+     * The type code of {@code application/json} values.
+     */
+    public static final byte T_APPLICATION_JSON = 1;
+
+    static final byte[] EMPTY = new byte[0];
+
+    private final byte type;
+    private final byte encoding;
+    private final byte[] digest;
+    private final byte[] data;
+    private final int offset;
+    private final int length;
+
+    public StoredValue(byte type, byte[] data)
+    {
+        this(type, data, 0, data.length);
+    }
+
+    public StoredValue(byte type, byte[] data, int offset, int length)
+    {
+        this(type, null, data, offset, length);
+    }
+
+    public StoredValue(byte type, byte[] digest, byte[] data, int offset,
+            int length)
+    {
+        this(type, (byte) 0, digest, data, offset, length);
+    }
+
+    public StoredValue(byte type, byte encoding, byte[] digest, byte[] data,
+            int offset, int length)
+    {
+        this.type = type;
+        this.encoding = encoding;
+        this.digest = digest;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public byte getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the code of the {@link ValueEncoding} of the payload.
+     */
+    public byte getEncoding()
+    {
+        return encoding;
+    }
+
+    /**
+     * Returns the digest of the content or {@code null} if none has been
+     * computed when the value was stored.
+     */
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Returns the strong entity tag of this value or {@code null} if it has
+     * no digest.
+     */
+    public String getETag()
+    {
+        return toETag(digest);
+    }
+
+    /**
+     * Returns a new instance of the digest algorithm used for values, which is
+     * MD5 as it is cheap to compute and only needs to detect changes.
+     */
+    public static MessageDigest newDigest()
+    {
+        return DigestUtils.getMd5Digest();
+    }
+
+    public static byte[] digest(byte[] data, int offset, int length)
+    {
+        MessageDigest md = newDigest();
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    public static String toETag(byte[] digest)
+    {
+        if (digest == null) {
+            return null;
+        }
+        return '"' + Hex.encodeHexString(digest) + '"';
+    }
+
+    public byte[] getData()
+    {
+        return data;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the length of the content represented by this value, which may
+     * be larger than the inline payload.
+     */
+    public long getContentLength()
+    {
+        return length;
+    }
+
+    /**
+     * Writes the content of this value, stored under the given key of the
+     * given bucket, to the stream. Only {@link ChunkedValue chunked values}
+     * read anything from the bucket.
+     *
+     * @throws FileNotFoundException if a chunk has already been evicted
+     */
+    public void writeTo(IMap<String, StoredValue> map, String key,
+            OutputStream out) throws IOException
+    {
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Returns the payload as an array of exactly its length, which is only
+     * copied if it is a slice of a larger buffer.
+     */
+    public byte[] toByteArray()
+    {
+        if (offset == 0 && length == data.length) {
+            return data;
+        }
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.config.SerializerConfig;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.Serializer;
+import com.hazelcast.nio.serialization.SerializerHook;
+import com.hazelcast.nio.serialization.StreamSerializer;
+
+/**
+ * Serializes a {@link StoredValue} as a small header followed by the raw
+ * payload, which is written straight from (and read straight into) the
+ * payload array without any intermediate buffer.
+ * <p>
+ * The header consists of the content type code, the digest and the payload
+ * length as described in {@link ValueHeader}.
+ * <p>
+ * The serializer is registered automatically through a {@link SerializerHook}
+ * if this bundle is visible to the Hazelcast class loader, otherwise it has
+ * to be registered explicitly, e.g. using {@link #register(SerializationConfig)}.
+ *
+ * @author ancoron
+ */
+public class StoredValueSerializer implements StreamSerializer<StoredValue>
+{
+
+    public static final int TYPE_ID = 0x487a0001;
+
+    @Override
+    public void write(ObjectDataOutput out, StoredValue value) throws IOException
+    {
+        ValueHeader.write(out, value.getType(), value.getEncoding(),
+                value.getDigest());
+        ValueHeader.writeInt(out, value.getLength());
+        out.write(value.getData(), value.getOffset(), value.getLength());
+    }
+
+    @Override
+    public StoredValue read(ObjectDataInput in) throws IOException
+    {
+        byte type = in.readByte();
+        byte encoding = in.readByte();
+        byte[] digest = ValueHeader.readDigest(in);
+        byte[] data = new byte[ValueHeader.readInt(in)];
+        in.readFully(data);
+        return new StoredValue(type, encoding, digest, data, 0, data.length);
+    }
+
+    @Override
+    public int getTypeId()
+    {
+        return TYPE_ID;
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    /**
+     * Registers the serializers for all value types stored in buckets.
+     */
+    public static void register(SerializationConfig config)
+    {
+        config.addSerializerConfig(new SerializerConfig()
+                .setTypeClass(StoredValue.class)
+                .setImplementation(new StoredValueSerializer()));
+        config.addSerializerConfig(new SerializerConfig()
+                .setTypeClass(ChunkedValue.class)
+                .setImplementation(new ChunkedValueSerializer()));
+    }
+
+    public static class Hook implements SerializerHook<StoredValue>
+    {
+
+        @Override
+        public Class<StoredValue> getSerializationType()
+        {
+            return StoredValue.class;
+        }
+
+        @Override
+        public Serializer createSerializer()
+        {
+            return new StoredValueSerializer();
+        }
+
+        @Override
+        public boolean isOverwritable()
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * The content codings a value may be stored with. The encoded bytes are
+ * exactly what is sent with the corresponding HTTP {@code Content-Encoding},
+ * so that they can be served as they are to clients accepting the coding.
+ *
+ * @author ancoron
+ */
+public enum ValueEncoding
+{
+
+    /**
+     * The value is stored as it has been received.
+     */
+    IDENTITY(0, "identity", Deflater.NO_COMPRESSION, false),
+    /**
+     * The value is stored in the gzip format using the default compression
+     * level, trading CPU for a better ratio.
+     */
+    GZIP(1, "gzip", Deflater.DEFAULT_COMPRESSION, true),
+    /**
+     * The value is stored in the zlib format using the fastest compression
+     * level.
+     */
+    DEFLATE(2, "deflate", Deflater.BEST_SPEED, false);
+
+    /**
+     * The length below which values are stored as they are, as compressing
+     * them does not pay off.
+     */
+    public static final int MIN_LENGTH = 256;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_HEADER = 10;
+    private static final int GZIP_TRAILER = 8;
+
+    private final byte code;
+    private final String token;
+    private final int level;
+    private final boolean nowrap;
+    // setting up the native zlib stream costs more than compressing a few
+    // KiB, so keep a few of them (not one per thread, as requests may run on
+    // a new virtual thread each)...
+    private final ArrayBlockingQueue<Deflater> deflaters;
+
+    /**
+     * @param nowrap whether the raw deflate stream is wrapped by this coding
+     * itself instead of using the zlib format
+     */
+    private ValueEncoding(int code, String token, final int level,
+            final boolean nowrap)
+    {
+        this.code = (byte) code;
+        this.token = token;
+        this.level = level;
+        this.nowrap = nowrap;
+        this.deflaters = new ArrayBlockingQueue<>(
+                2 * Runtime.getRuntime().availableProcessors());
+    }
+
+    public byte getCode()
+    {
+        return code;
+    }
+
+    /**
+     * Returns the token used for this coding in the HTTP
+     * {@code Content-Encoding} and {@code Accept-Encoding} headers.
+     */
+    public String getToken()
+    {
+        return token;
+    }
+
+    public static ValueEncoding of(byte code)
+    {
+        for (ValueEncoding encoding : values()) {
+            if (encoding.code == code) {
+                return encoding;
+            }
+        }
+        throw new IllegalArgumentException("Unknown value encoding: " + code);
+    }
+
+    /**
+     * Returns the encoding for the given name (case insensitive), where
+     * {@code "none"} is an alias for {@link #IDENTITY}.
+     */
+    public static ValueEncoding forName(String name)
+    {
+        if ("none".equalsIgnoreCase(name)) {
+            return IDENTITY;
+        }
+        return valueOf(name.toUpperCase());
+    }
+
+    /**
+     * Encodes the given bytes into the target array, which is at most as
+     * large as the source, so that no buffer has to grow while compressing.
+     *
+     * @return the number of encoded bytes or -1 if the encoded form would not
+     * be smaller than the source
+     */
+    public int encode(byte[] src, int offset, int length, byte[] dst)
+    {
+        if (this == IDENTITY) {
+            return -1;
+        }
+
+        int limit = Math.min(dst.length, length - 1);
+        int pos = 0;
+        if (this == GZIP) {
+            if (limit <= GZIP_HEADER + GZIP_TRAILER) {
+                return -1;
+            }
+            // magic, CM (deflate), FLG, MTIME (4), XFL, OS (unknown)
+            dst[pos++] = (byte) GZIP_MAGIC;
+            dst[pos++] = (byte) (GZIP_MAGIC >> 8);
+            dst[pos++] = Deflater.DEFLATED;
+            for (int i = 0; i < 6; i++) {
+                dst[pos++] = 0;
+            }
+            dst[pos++] = (byte) 0xff;
+            limit -= GZIP_TRAILER;
+        }
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, nowrap);
+        }
+        try {
+            deflater.setInput(src, offset, length);
+            deflater.finish();
+            while (!deflater.finished() && pos < limit) {
+                pos += deflater.deflate(dst, pos, limit - pos);
+            }
+            if (!deflater.finished()) {
+                return -1;
+            }
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+
+        if (this == GZIP) {
+            CRC32 crc = new CRC32();
+            crc.update(src, offset, length);
+            pos = writeIntLE(dst, pos, (int) crc.getValue());
+            pos = writeIntLE(dst, pos, length);
+        }
+        return pos;
+    }
+
+    /**
+     * Returns a stream of the decoded bytes of the given encoded bytes.
+     */
+    public InputStream decode(InputStream in) throws IOException
+    {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in);
+            case DEFLATE:
+                return new InflaterInputStream(in);
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Returns the decoded form of the given value.
+     */
+    public static StoredValue decode(StoredValue value) throws IOException
+    {
+        ValueEncoding encoding = of(value.getEncoding());
+        if (encoding == IDENTITY) {
+            return value;
+        }
+
+        byte[] data;
+        try (InputStream in = encoding.decode(new ByteArrayInputStream(
+                value.getData(), value.getOffset(), value.getLength())))
+        {
+            data = IOUtils.toByteArray(in);
+        }
+        return new StoredValue(value.getType(), value.getDigest(), data, 0,
+                data.length);
+    }
+
+    /**
+     * Checks whether a client sending the given {@code Accept-Encoding}
+     * header accepts this coding.
+     */
+    public boolean isAccepted(String acceptEncoding)
+    {
+        if (this == IDENTITY) {
+            return true;
+        } else if (acceptEncoding == null) {
+            return false;
+        }
+
+        boolean wildcard = false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] params = item.split(";");
+            String coding = params[0].trim();
+            boolean accepted = true;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        accepted = Float.parseFloat(param.substring(2)) > 0;
+                    } catch (NumberFormatException x) {
+                        accepted = false;
+                    }
+                }
+            }
+
+            if (token.equalsIgnoreCase(coding)) {
+                return accepted;
+            } else if ("*".equals(coding)) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    private static int writeIntLE(byte[] dst, int pos, int value)
+    {
+        dst[pos++] = (byte) value;
+        dst[pos++] = (byte) (value >>> 8);
+        dst[pos++] = (byte) (value >>> 16);
+        dst[pos++] = (byte) (value >>> 24);
+        return pos;
+    }
+}
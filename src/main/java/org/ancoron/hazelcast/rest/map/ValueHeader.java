@@ -0,0 +1,279 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.hazelcast.map.impl.LazyMapEntry;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The metadata of a stored value without its payload.
+ * <p>
+ * Both value serializers start with the same header: the content type code,
+ * the {@link ValueEncoding} code, the length of the digest, the digest
+ * itself and then the stored (encoded) content length (4 bytes for inline
+ * values, 8 bytes after the chunk generation for chunked values), all
+ * big-endian. This allows reading the header of an entry on
+ * the owning member straight from its serialized form, without
+ * deserializing (and copying) a potentially large payload.
+ *
+ * @author ancoron
+ */
+public class ValueHeader implements DataSerializable
+{
+
+    private byte type;
+    private byte encoding;
+    private byte[] digest;
+    private long contentLength;
+    private boolean chunked;
+
+    public ValueHeader()
+    {
+    }
+
+    public ValueHeader(byte type, byte encoding, byte[] digest,
+            long contentLength, boolean chunked)
+    {
+        this.type = type;
+        this.encoding = encoding;
+        this.digest = digest;
+        this.contentLength = contentLength;
+        this.chunked = chunked;
+    }
+
+    public static ValueHeader of(StoredValue value)
+    {
+        if (value == null) {
+            return null;
+        }
+        return new ValueHeader(value.getType(), value.getEncoding(),
+                value.getDigest(),
+                value.getContentLength(), value instanceof ChunkedValue);
+    }
+
+    /**
+     * Reads the header of the value of an entry inside an entry processor,
+     * looking only at the serialized form if possible.
+     */
+    public static ValueHeader of(Map.Entry<String, StoredValue> entry)
+    {
+        if (entry instanceof LazyMapEntry) {
+            Object data = ((LazyMapEntry) entry).getValueData();
+            if (data instanceof Data) {
+                ValueHeader header = of((Data) data);
+                if (header != null) {
+                    return header;
+                }
+            }
+        }
+        return of(entry.getValue());
+    }
+
+    /**
+     * Reads the header from the serialized form of a value, returning
+     * {@code null} if the data does not represent a stored value.
+     */
+    public static ValueHeader of(Data data)
+    {
+        final boolean chunked;
+        if (data.getType() == StoredValueSerializer.TYPE_ID) {
+            chunked = false;
+        } else if (data.getType() == ChunkedValueSerializer.TYPE_ID) {
+            chunked = true;
+        } else {
+            return null;
+        }
+
+        byte[] bytes = data.toByteArray();
+        int pos = data.totalSize() - data.dataSize();
+        byte type = bytes[pos++];
+        byte encoding = bytes[pos++];
+        int size = bytes[pos++] & 0xff;
+        byte[] digest = null;
+        if (size > 0) {
+            digest = Arrays.copyOfRange(bytes, pos, pos + size);
+            pos += size;
+        }
+
+        long length;
+        if (chunked) {
+            // skip the generation...
+            length = getLong(bytes, pos + 8);
+        } else {
+            length = getInt(bytes, pos);
+        }
+        return new ValueHeader(type, encoding, digest, length, chunked);
+    }
+
+    /**
+     * Returns the position of the payload of an inline value within the
+     * array returned by {@link Data#toByteArray()}.
+     */
+    static int payloadOffset(Data data)
+    {
+        byte[] bytes = data.toByteArray();
+        int pos = data.totalSize() - data.dataSize();
+        // type, encoding, digest length, digest and payload length...
+        return pos + 3 + (bytes[pos + 2] & 0xff) + 4;
+    }
+
+    static void write(ObjectDataOutput out, byte type, byte encoding,
+            byte[] digest) throws IOException
+    {
+        out.writeByte(type);
+        out.writeByte(encoding);
+        if (digest == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(digest.length);
+            out.write(digest);
+        }
+    }
+
+    static byte[] readDigest(ObjectDataInput in) throws IOException
+    {
+        int size = in.readUnsignedByte();
+        if (size == 0) {
+            return null;
+        }
+        byte[] digest = new byte[size];
+        in.readFully(digest);
+        return digest;
+    }
+
+    static void writeInt(ObjectDataOutput out, int value) throws IOException
+    {
+        out.writeByte(value >>> 24);
+        out.writeByte(value >>> 16);
+        out.writeByte(value >>> 8);
+        out.writeByte(value);
+    }
+
+    static int readInt(ObjectDataInput in) throws IOException
+    {
+        return (in.readUnsignedByte() << 24)
+                | (in.readUnsignedByte() << 16)
+                | (in.readUnsignedByte() << 8)
+                | in.readUnsignedByte();
+    }
+
+    static void writeLong(ObjectDataOutput out, long value) throws IOException
+    {
+        writeInt(out, (int) (value >>> 32));
+        writeInt(out, (int) value);
+    }
+
+    static long readLong(ObjectDataInput in) throws IOException
+    {
+        return ((long) readInt(in) << 32) | (readInt(in) & 0xffffffffL);
+    }
+
+    private static int getInt(byte[] bytes, int pos)
+    {
+        return ((bytes[pos] & 0xff) << 24)
+                | ((bytes[pos + 1] & 0xff) << 16)
+                | ((bytes[pos + 2] & 0xff) << 8)
+                | (bytes[pos + 3] & 0xff);
+    }
+
+    private static long getLong(byte[] bytes, int pos)
+    {
+        return ((long) getInt(bytes, pos) << 32)
+                | (getInt(bytes, pos + 4) & 0xffffffffL);
+    }
+
+    public byte getType()
+    {
+        return type;
+    }
+
+    public byte getEncoding()
+    {
+        return encoding;
+    }
+
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    public String getETag()
+    {
+        return StoredValue.toETag(digest);
+    }
+
+    public long getContentLength()
+    {
+        return contentLength;
+    }
+
+    public boolean isChunked()
+    {
+        return chunked;
+    }
+
+    /**
+     * Checks whether this value matches one of the given entity tags, where
+     * {@code "*"} matches any value. Weak tags only match using the weak
+     * comparison (as for {@code If-None-Match}), while the strong comparison
+     * (as for {@code If-Match}) requires an identical strong tag.
+     */
+    public boolean matches(String[] etags, boolean weak)
+    {
+        String etag = getETag();
+        for (String candidate : etags) {
+            if ("*".equals(candidate)) {
+                return true;
+            }
+            if (etag == null) {
+                continue;
+            }
+            if (candidate.startsWith("W/")) {
+                if (weak && etag.equals(candidate.substring(2))) {
+                    return true;
+                }
+            } else if (etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        write(out, type, encoding, digest);
+        out.writeLong(contentLength);
+        out.writeBoolean(chunked);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        type = in.readByte();
+        encoding = in.readByte();
+        digest = readDigest(in);
+        contentLength = in.readLong();
+        chunked = in.readBoolean();
+    }
+}
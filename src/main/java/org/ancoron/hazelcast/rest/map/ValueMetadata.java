@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The {@link ValueHeader} of a stored value together with the timestamps
+ * of its map entry, as read by the {@link ValueMetadataOperation} on the
+ * owning member.
+ *
+ * @author ancoron
+ */
+public class ValueMetadata implements DataSerializable
+{
+
+    private ValueHeader header;
+    private long creationTime;
+    private long lastUpdateTime;
+    private long expirationTime;
+
+    public ValueMetadata()
+    {
+    }
+
+    public ValueMetadata(ValueHeader header, long creationTime,
+            long lastUpdateTime, long expirationTime)
+    {
+        this.header = header;
+        this.creationTime = creationTime;
+        this.lastUpdateTime = lastUpdateTime;
+        this.expirationTime = expirationTime;
+    }
+
+    public ValueHeader getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Returns the time the entry has been created in milliseconds since the
+     * epoch.
+     */
+    public long getCreationTime()
+    {
+        return creationTime;
+    }
+
+    /**
+     * Returns the time the value has last been set in milliseconds since the
+     * epoch.
+     */
+    public long getLastUpdateTime()
+    {
+        return lastUpdateTime;
+    }
+
+    /**
+     * Returns the time the entry expires in milliseconds since the epoch or
+     * 0 if it does not expire.
+     */
+    public long getExpirationTime()
+    {
+        return expirationTime;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        header.writeData(out);
+        out.writeLong(creationTime);
+        out.writeLong(lastUpdateTime);
+        out.writeLong(expirationTime);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        header = new ValueHeader();
+        header.readData(in);
+        creationTime = in.readLong();
+        lastUpdateTime = in.readLong();
+        expirationTime = in.readLong();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.impl.operation.KeyBasedMapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.InternalCompletableFuture;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.ReadonlyOperation;
+
+/**
+ * Reads the {@link ValueMetadata} of an entry on the partition thread of
+ * the owning member, straight from the serialized value and its record.
+ * Unlike {@code IMap.getEntryView()} this never transfers the value itself
+ * and, unlike an entry processor, it has access to the timestamps of the
+ * record and does not count as a write.
+ *
+ * @author ancoron
+ */
+public class ValueMetadataOperation extends KeyBasedMapOperation
+        implements ReadonlyOperation
+{
+
+    private ValueMetadata result;
+
+    public ValueMetadataOperation()
+    {
+    }
+
+    public ValueMetadataOperation(String name, Data dataKey)
+    {
+        super(name, dataKey);
+    }
+
+    /**
+     * Returns the metadata of the value of the given key or {@code null} if
+     * there is none. This requires the map proxy of a cluster member.
+     */
+    public static ValueMetadata invoke(IMap<String, StoredValue> map,
+            String key)
+    {
+        NodeEngine engine = ((AbstractDistributedObject<?>) map)
+                .getNodeEngine();
+        Data dataKey = engine.toData(key);
+        int partition = engine.getPartitionService().getPartitionId(dataKey);
+        InternalCompletableFuture<ValueMetadata> future = engine
+                .getOperationService().invokeOnPartition(
+                        MapService.SERVICE_NAME,
+                        new ValueMetadataOperation(map.getName(), dataKey),
+                        partition);
+        return future.getSafely();
+    }
+
+    @Override
+    public void run()
+    {
+        Record<?> record = recordStore.getRecordOrNull(dataKey);
+        if (record == null) {
+            return;
+        }
+
+        Object value = record.getValue();
+        ValueHeader header = value instanceof Data
+                ? ValueHeader.of((Data) value)
+                : ValueHeader.of((StoredValue) value);
+        if (header == null) {
+            return;
+        }
+
+        long updated = Math.max(record.getCreationTime(),
+                record.getLastUpdateTime());
+        long ttl = record.getTtl();
+        long expires = ttl > 0 && ttl < Long.MAX_VALUE - updated
+                ? updated + ttl : 0;
+        result = new ValueMetadata(header, record.getCreationTime(), updated,
+                expires);
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return result;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The byte ranges of a stored value as cut out by the
+ * {@link ValueRangeOperation} on the owning member: the
+ * {@link ValueHeader}, the time of the last update, the length of the
+ * selected representation and the satisfiable ranges together with their
+ * content.
+ * <p>
+ * For a chunked value only its manifest is sent back instead of the
+ * content, the slices are then fetched from the owners of the overlapping
+ * chunks while writing.
+ *
+ * @author ancoron
+ */
+public class ValueRange implements DataSerializable
+{
+
+    private ValueHeader header;
+    private long lastModified;
+    private long length;
+    private long[] ranges;
+    private byte[][] slices;
+    private ChunkedValue manifest;
+
+    public ValueRange()
+    {
+    }
+
+    public ValueRange(ValueHeader header, long lastModified, long length,
+            long[] ranges, byte[][] slices, ChunkedValue manifest)
+    {
+        this.header = header;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.ranges = ranges;
+        this.slices = slices;
+        this.manifest = manifest;
+    }
+
+    public ValueHeader getHeader()
+    {
+        return header;
+    }
+
+    /**
+     * Returns the time the value has last been set in milliseconds since the
+     * epoch.
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * Returns the complete length of the selected representation, which is
+     * the decoded length if the client does not accept the stored encoding.
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+    /**
+     * Returns the satisfiable ranges as pairs of the first and last byte
+     * position (inclusive), an empty array if none of the requested ranges
+     * is satisfiable or {@code null} if the {@code If-Range} validator did
+     * not match, so that the whole value has to be sent.
+     */
+    public long[] getRanges()
+    {
+        return ranges;
+    }
+
+    /**
+     * Returns the number of satisfiable ranges.
+     */
+    public int size()
+    {
+        return ranges == null ? 0 : ranges.length / 2;
+    }
+
+    /**
+     * Writes the content of the range with the given index to the stream.
+     *
+     * @throws java.io.FileNotFoundException if a chunk has already been
+     * evicted
+     */
+    public void writeTo(IMap<String, StoredValue> map, String key, int index,
+            OutputStream out) throws IOException
+    {
+        if (manifest != null) {
+            manifest.writeTo(map, key, ranges[index * 2],
+                    ranges[index * 2 + 1], out);
+        } else {
+            out.write(slices[index]);
+        }
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        header.writeData(out);
+        out.writeLong(lastModified);
+        out.writeLong(length);
+        if (ranges == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(ranges.length);
+            for (long position : ranges) {
+                out.writeLong(position);
+            }
+        }
+        out.writeBoolean(slices != null);
+        if (slices != null) {
+            for (byte[] slice : slices) {
+                out.writeByteArray(slice);
+            }
+        }
+        out.writeObject(manifest);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        header = new ValueHeader();
+        header.readData(in);
+        lastModified = in.readLong();
+        length = in.readLong();
+        int size = in.readInt();
+        if (size >= 0) {
+            ranges = new long[size];
+            for (int i = 0; i < size; i++) {
+                ranges[i] = in.readLong();
+            }
+        }
+        if (in.readBoolean()) {
+            slices = new byte[size / 2][];
+            for (int i = 0; i < slices.length; i++) {
+                slices[i] = in.readByteArray();
+            }
+        }
+        manifest = in.readObject();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.impl.operation.KeyBasedMapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.InternalCompletableFuture;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.ReadonlyOperation;
+
+/**
+ * Cuts byte ranges out of a value on the partition thread of the owning
+ * member, so that only the requested slices are transferred instead of the
+ * whole value. The {@code If-Range} validator is checked on the owner as
+ * well, against the entity tag and the last update time of the record.
+ * <p>
+ * The requested ranges are given as pairs of the first and last byte
+ * position (inclusive) as in the {@code Range} header, where a missing
+ * position is -1: {@code (first, -1)} selects everything from the first
+ * position and {@code (-1, n)} the last n bytes. Inline values are sliced
+ * straight from their serialized form unless the client does not accept
+ * their encoding, in which case the ranges apply to the decoded content.
+ * For chunked values only the manifest is returned.
+ *
+ * @author ancoron
+ */
+public class ValueRangeOperation extends KeyBasedMapOperation
+        implements ReadonlyOperation
+{
+
+    private long[] specs;
+    private String ifRange;
+    private long ifRangeDate;
+    private String acceptEncoding;
+    private ValueRange result;
+
+    public ValueRangeOperation()
+    {
+    }
+
+    /**
+     * @param ifRange the entity tag of an {@code If-Range} header or
+     * {@code null}
+     * @param ifRangeDate the date of an {@code If-Range} header or 0
+     */
+    public ValueRangeOperation(String name, Data dataKey, long[] specs,
+            String ifRange, long ifRangeDate, String acceptEncoding)
+    {
+        super(name, dataKey);
+        this.specs = specs;
+        this.ifRange = ifRange;
+        this.ifRangeDate = ifRangeDate;
+        this.acceptEncoding = acceptEncoding;
+    }
+
+    /**
+     * Returns the requested ranges of the value of the given key or
+     * {@code null} if there is none. This requires the map proxy of a
+     * cluster member.
+     */
+    public static ValueRange invoke(IMap<String, StoredValue> map,
+            String key, long[] specs, String ifRange, long ifRangeDate,
+            String acceptEncoding)
+    {
+        return submit(map, key, specs, ifRange, ifRangeDate, acceptEncoding)
+                .getSafely();
+    }
+
+    /**
+     * Submits the retrieval of a single unconditional range of the value of
+     * the given key as stored.
+     */
+    public static InternalCompletableFuture<ValueRange> submit(
+            IMap<String, StoredValue> map, String key, long first, long last)
+    {
+        return submit(map, key, new long[] {first, last}, null, 0, null);
+    }
+
+    private static InternalCompletableFuture<ValueRange> submit(
+            IMap<String, StoredValue> map, String key, long[] specs,
+            String ifRange, long ifRangeDate, String acceptEncoding)
+    {
+        NodeEngine engine = ((AbstractDistributedObject<?>) map)
+                .getNodeEngine();
+        Data dataKey = engine.toData(key);
+        int partition = engine.getPartitionService().getPartitionId(dataKey);
+        return engine.getOperationService().invokeOnPartition(
+                MapService.SERVICE_NAME,
+                new ValueRangeOperation(map.getName(), dataKey, specs,
+                        ifRange, ifRangeDate, acceptEncoding),
+                partition);
+    }
+
+    /**
+     * Resolves the requested ranges against the given length, dropping all
+     * unsatisfiable ones, and coalesces overlapping or adjacent ranges, so
+     * that no byte is sent more than once.
+     */
+    static long[] resolve(long[] specs, long length)
+    {
+        long[][] resolved = new long[specs.length / 2][];
+        int count = 0;
+        for (int i = 0; i < specs.length; i += 2) {
+            long first = specs[i];
+            long last = specs[i + 1];
+            if (first < 0) {
+                // suffix range...
+                if (last <= 0 || length == 0) {
+                    continue;
+                }
+                first = Math.max(0, length - last);
+                last = length - 1;
+            } else if (first >= length) {
+                continue;
+            } else if (last < 0 || last >= length) {
+                last = length - 1;
+            }
+            resolved[count++] = new long[] {first, last};
+        }
+
+        Arrays.sort(resolved, 0, count, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b)
+            {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long[] ranges = new long[count * 2];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size > 0 && resolved[i][0] <= ranges[size - 1] + 1) {
+                ranges[size - 1] = Math.max(ranges[size - 1], resolved[i][1]);
+            } else {
+                ranges[size++] = resolved[i][0];
+                ranges[size++] = resolved[i][1];
+            }
+        }
+        return size == ranges.length ? ranges : Arrays.copyOf(ranges, size);
+    }
+
+    @Override
+    public void run() throws IOException
+    {
+        Record<?> record = recordStore.getRecordOrNull(dataKey);
+        if (record == null) {
+            return;
+        }
+
+        Object value = record.getValue();
+        ValueHeader header = value instanceof Data
+                ? ValueHeader.of((Data) value)
+                : ValueHeader.of((StoredValue) value);
+        if (header == null) {
+            return;
+        }
+
+        long modified = Math.max(record.getCreationTime(),
+                record.getLastUpdateTime());
+        ValueEncoding encoding = ValueEncoding.of(header.getEncoding());
+        boolean decode = !encoding.isAccepted(acceptEncoding);
+        if (!validates(header, modified, encoding, decode)) {
+            result = new ValueRange(header, modified,
+                    header.getContentLength(), null, null, null);
+            return;
+        }
+
+        if (header.isChunked()) {
+            ChunkedValue manifest = value instanceof Data
+                    ? (ChunkedValue) getNodeEngine().toObject(value)
+                    : (ChunkedValue) value;
+            result = new ValueRange(header, modified,
+                    header.getContentLength(),
+                    resolve(specs, header.getContentLength()), null, manifest);
+            return;
+        }
+
+        byte[] bytes;
+        int offset;
+        int length;
+        if (decode) {
+            StoredValue decoded = ValueEncoding.decode(value instanceof Data
+                    ? (StoredValue) getNodeEngine().toObject(value)
+                    : (StoredValue) value);
+            bytes = decoded.getData();
+            offset = decoded.getOffset();
+            length = decoded.getLength();
+        } else if (value instanceof Data) {
+            bytes = ((Data) value).toByteArray();
+            offset = ValueHeader.payloadOffset((Data) value);
+            length = (int) header.getContentLength();
+        } else {
+            StoredValue stored = (StoredValue) value;
+            bytes = stored.getData();
+            offset = stored.getOffset();
+            length = stored.getLength();
+        }
+
+        long[] ranges = resolve(specs, length);
+        byte[][] slices = new byte[ranges.length / 2][];
+        for (int i = 0; i < slices.length; i++) {
+            slices[i] = Arrays.copyOfRange(bytes,
+                    offset + (int) ranges[i * 2],
+                    offset + (int) ranges[i * 2 + 1] + 1);
+        }
+        result = new ValueRange(header, modified, length, ranges, slices,
+                null);
+    }
+
+    /**
+     * Checks the {@code If-Range} validator, which requires a strong entity
+     * tag of the selected representation or the exact date of the last
+     * update (in seconds).
+     */
+    private boolean validates(ValueHeader header, long modified,
+            ValueEncoding encoding, boolean decode)
+    {
+        if (ifRange != null) {
+            // a stored encoding that is sent as is only has a weak tag...
+            return (decode || encoding == ValueEncoding.IDENTITY)
+                    && ifRange.equals(header.getETag());
+        } else if (ifRangeDate > 0) {
+            return modified / 1000 == ifRangeDate / 1000;
+        }
+        return true;
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return result;
+    }
+
+    @Override
+    protected void writeInternal(ObjectDataOutput out) throws IOException
+    {
+        super.writeInternal(out);
+        out.writeLongArray(specs);
+        out.writeUTF(ifRange);
+        out.writeLong(ifRangeDate);
+        out.writeUTF(acceptEncoding);
+    }
+
+    @Override
+    protected void readInternal(ObjectDataInput in) throws IOException
+    {
+        super.readInternal(in);
+        specs = in.readLongArray();
+        ifRange = in.readUTF();
+        ifRangeDate = in.readLong();
+        acceptEncoding = in.readUTF();
+    }
+}
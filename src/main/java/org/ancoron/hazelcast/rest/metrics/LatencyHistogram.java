@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds with a relative error
+ * of at most 12.5%. Values are counted in log-linear buckets: every power
+ * of two is split into 8 equally sized sub-buckets, so recording is just an
+ * index computation and an atomic increment, independent of the range.
+ * Latencies above 2^36 microseconds (about 19 hours) are counted as such.
+ *
+ * @author ancoron
+ */
+public class LatencyHistogram
+{
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_BITS = 36;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos)
+    {
+        long micros = Math.min(MAX_VALUE, Math.max(0, nanos / 1000));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+
+        long current;
+        while (micros > (current = max.get())
+                && !max.compareAndSet(current, micros))
+        {
+            // retry...
+        }
+    }
+
+    static int index(long micros)
+    {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+        int sub = (int) (micros >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Returns the highest value counted in the bucket with the given index.
+     */
+    static long upperBound(int index)
+    {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_COUNT - 1;
+        long lower = (long) (SUB_COUNT + index % SUB_COUNT) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * Returns the sum of all recorded latencies in microseconds.
+     */
+    public long getSum()
+    {
+        return sum.get();
+    }
+
+    /**
+     * Returns the highest recorded latency in microseconds.
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Returns the latency in microseconds that the given fraction of all
+     * recorded latencies did not exceed, as the upper bound of the
+     * corresponding bucket.
+     */
+    public long getPercentile(double quantile)
+    {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.gson.stream.JsonWriter;
+import com.hazelcast.monitor.LocalMapStats;
+
+/**
+ * The registry of the {@link OperationMetrics} of all buckets, which writes
+ * them together with the {@link LocalMapStats} of the bucket maps either as
+ * JSON or in the Prometheus text format.
+ *
+ * @author ancoron
+ */
+public class Metrics
+{
+
+    /**
+     * The name metrics of requests not targeting an existing bucket are
+     * recorded for, so that arbitrary bucket names in requests cannot make
+     * the registry grow.
+     */
+    public static final String OTHER = "_other";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final ConcurrentMap<String, OperationMetrics[]> buckets
+            = new ConcurrentHashMap<>();
+
+    public OperationMetrics get(String bucket, Operation operation)
+    {
+        OperationMetrics[] operations = buckets.get(bucket);
+        if (operations == null) {
+            Operation[] values = Operation.values();
+            operations = new OperationMetrics[values.length];
+            for (Operation op : values) {
+                operations[op.ordinal()] = new OperationMetrics(op);
+            }
+
+            OperationMetrics[] existing = buckets.putIfAbsent(bucket,
+                    operations);
+            if (existing != null) {
+                operations = existing;
+            }
+        }
+        return operations[operation.ordinal()];
+    }
+
+    public void remove(String bucket)
+    {
+        buckets.remove(bucket);
+    }
+
+    /**
+     * Writes the metrics as a JSON object with one entry per bucket.
+     *
+     * @param stats the statistics of the local bucket maps by bucket name
+     */
+    public void writeJson(Writer out, Map<String, LocalMapStats> stats)
+            throws IOException
+    {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("buckets").beginObject();
+        for (String bucket : names(stats)) {
+            writer.name(bucket).beginObject();
+
+            OperationMetrics[] operations = buckets.get(bucket);
+            if (operations != null) {
+                writer.name("operations").beginObject();
+                for (OperationMetrics op : operations) {
+                    LatencyHistogram latency = op.getLatency();
+                    if (latency.getCount() == 0) {
+                        continue;
+                    }
+                    writer.name(op.getOperation().getLabel()).beginObject();
+                    writer.name("count").value(latency.getCount());
+                    writer.name("hits").value(op.getHits());
+                    writer.name("misses").value(op.getMisses());
+                    writer.name("conflicts").value(op.getConflicts());
+                    writer.name("notFound").value(op.getNotFound());
+                    writer.name("errors").value(op.getErrors());
+                    writer.name("rejected").value(op.getRejected());
+                    writer.name("bytesIn").value(op.getBytesIn());
+                    writer.name("bytesOut").value(op.getBytesOut());
+                    writer.name("latency").beginObject();
+                    writer.name("mean").value(latency.getMean());
+                    for (int i = 0; i < QUANTILES.length; i++) {
+                        writer.name(QUANTILE_NAMES[i]).value(
+                                latency.getPercentile(QUANTILES[i]));
+                    }
+                    writer.name("max").value(latency.getMax());
+                    writer.endObject();
+                    writer.endObject();
+                }
+                writer.endObject();
+            }
+
+            LocalMapStats map = stats.get(bucket);
+            if (map != null) {
+                writer.name("map").beginObject();
+                writer.name("ownedEntries").value(map.getOwnedEntryCount());
+                writer.name("ownedMemory").value(map.getOwnedEntryMemoryCost());
+                writer.name("backupEntries").value(map.getBackupEntryCount());
+                writer.name("backupMemory").value(map.getBackupEntryMemoryCost());
+                writer.name("hits").value(map.getHits());
+                writer.name("gets").value(map.getGetOperationCount());
+                writer.name("puts").value(map.getPutOperationCount());
+                writer.name("removes").value(map.getRemoveOperationCount());
+                writer.name("totalGetLatency").value(map.getTotalGetLatency());
+                writer.name("totalPutLatency").value(map.getTotalPutLatency());
+                writer.name("totalRemoveLatency").value(map.getTotalRemoveLatency());
+                writer.name("maxGetLatency").value(map.getMaxGetLatency());
+                writer.name("maxPutLatency").value(map.getMaxPutLatency());
+                writer.name("maxRemoveLatency").value(map.getMaxRemoveLatency());
+                writer.endObject();
+            }
+
+            writer.endObject();
+        }
+        writer.endObject();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format (version
+     * 0.0.4). Latencies are exposed as summaries in seconds.
+     *
+     * @param stats the statistics of the local bucket maps by bucket name
+     */
+    public void writePrometheus(Writer out, Map<String, LocalMapStats> stats)
+            throws IOException
+    {
+        Set<String> names = names(stats);
+
+        out.write("# HELP hazelcast_rest_request_seconds Latency of requests by bucket and operation.\n");
+        out.write("# TYPE hazelcast_rest_request_seconds summary\n");
+        for (String bucket : names) {
+            OperationMetrics[] operations = buckets.get(bucket);
+            if (operations == null) {
+                continue;
+            }
+            for (OperationMetrics op : operations) {
+                LatencyHistogram latency = op.getLatency();
+                if (latency.getCount() == 0) {
+                    continue;
+                }
+                String labels = labels(bucket, op);
+                for (double quantile : QUANTILES) {
+                    sample(out, "hazelcast_rest_request_seconds", labels
+                            + ",quantile=\"" + quantile + "\"",
+                            seconds(latency.getPercentile(quantile)));
+                }
+                sample(out, "hazelcast_rest_request_seconds_sum", labels,
+                        seconds(latency.getSum()));
+                sample(out, "hazelcast_rest_request_seconds_count", labels,
+                        Long.toString(latency.getCount()));
+            }
+        }
+
+        counter(out, names, "hits", "Requests that found the value.");
+        counter(out, names, "misses", "Requests that did not find the value.");
+        counter(out, names, "conflicts", "Requests rejected with 409 or 412.");
+        counter(out, names, "not_found", "Requests answered with 404.");
+        counter(out, names, "errors", "Requests failed with a 5xx status other than 503.");
+        counter(out, names, "rejected", "Requests rejected with 503 by admission control.");
+        counter(out, names, "bytes_in", "Bytes received with requests.");
+        counter(out, names, "bytes_out", "Bytes sent with responses.");
+
+        gauge(out, stats, "owned_entries", "Entries owned by this member.");
+        gauge(out, stats, "owned_memory_bytes", "Memory of the entries owned by this member.");
+        gauge(out, stats, "backup_entries", "Backup entries held by this member.");
+        gauge(out, stats, "backup_memory_bytes", "Memory of the backup entries held by this member.");
+        gauge(out, stats, "hits", "Hits of the entries owned by this member.");
+        gauge(out, stats, "operations", "Map operations on this member by operation.");
+        gauge(out, stats, "latency_seconds", "Total latency of map operations on this member by operation.");
+        out.flush();
+    }
+
+    private Set<String> names(Map<String, LocalMapStats> stats)
+    {
+        Set<String> names = new TreeSet<>(stats.keySet());
+        names.addAll(buckets.keySet());
+        return names;
+    }
+
+    private void counter(Writer out, Set<String> names, String name,
+            String help) throws IOException
+    {
+        String metric = "hazelcast_rest_" + name + "_total";
+        out.write("# HELP " + metric + " " + help + "\n");
+        out.write("# TYPE " + metric + " counter\n");
+        for (String bucket : names) {
+            OperationMetrics[] operations = buckets.get(bucket);
+            if (operations == null) {
+                continue;
+            }
+            for (OperationMetrics op : operations) {
+                if (op.getLatency().getCount() == 0) {
+                    continue;
+                }
+                final long value;
+                switch (name) {
+                    case "hits":
+                        value = op.getHits();
+                        break;
+                    case "misses":
+                        value = op.getMisses();
+                        break;
+                    case "conflicts":
+                        value = op.getConflicts();
+                        break;
+                    case "not_found":
+                        value = op.getNotFound();
+                        break;
+                    case "errors":
+                        value = op.getErrors();
+                        break;
+                    case "rejected":
+                        value = op.getRejected();
+                        break;
+                    case "bytes_in":
+                        value = op.getBytesIn();
+                        break;
+                    default:
+                        value = op.getBytesOut();
+                        break;
+                }
+                sample(out, metric, labels(bucket, op), Long.toString(value));
+            }
+        }
+    }
+
+    private void gauge(Writer out, Map<String, LocalMapStats> stats,
+            String name, String help) throws IOException
+    {
+        String metric = "hazelcast_map_" + name;
+        out.write("# HELP " + metric + " " + help + "\n");
+        out.write("# TYPE " + metric + " gauge\n");
+        for (String bucket : new TreeSet<>(stats.keySet())) {
+            LocalMapStats map = stats.get(bucket);
+            String labels = "bucket=\"" + escape(bucket) + "\"";
+            switch (name) {
+                case "owned_entries":
+                    sample(out, metric, labels, Long.toString(map.getOwnedEntryCount()));
+                    break;
+                case "owned_memory_bytes":
+                    sample(out, metric, labels, Long.toString(map.getOwnedEntryMemoryCost()));
+                    break;
+                case "backup_entries":
+                    sample(out, metric, labels, Long.toString(map.getBackupEntryCount()));
+                    break;
+                case "backup_memory_bytes":
+                    sample(out, metric, labels, Long.toString(map.getBackupEntryMemoryCost()));
+                    break;
+                case "hits":
+                    sample(out, metric, labels, Long.toString(map.getHits()));
+                    break;
+                case "operations":
+                    sample(out, metric, labels + ",operation=\"get\"",
+                            Long.toString(map.getGetOperationCount()));
+                    sample(out, metric, labels + ",operation=\"put\"",
+                            Long.toString(map.getPutOperationCount()));
+                    sample(out, metric, labels + ",operation=\"remove\"",
+                            Long.toString(map.getRemoveOperationCount()));
+                    break;
+                default:
+                    // Hazelcast reports latencies in milliseconds...
+                    sample(out, metric, labels + ",operation=\"get\"",
+                            Double.toString(map.getTotalGetLatency() / 1e3));
+                    sample(out, metric, labels + ",operation=\"put\"",
+                            Double.toString(map.getTotalPutLatency() / 1e3));
+                    sample(out, metric, labels + ",operation=\"remove\"",
+                            Double.toString(map.getTotalRemoveLatency() / 1e3));
+                    break;
+            }
+        }
+    }
+
+    private static String labels(String bucket, OperationMetrics op)
+    {
+        return "bucket=\"" + escape(bucket) + "\",operation=\""
+                + op.getOperation().getLabel() + "\"";
+    }
+
+    private static void sample(Writer out, String metric, String labels,
+            String value) throws IOException
+    {
+        out.write(metric);
+        out.write('{');
+        out.write(labels);
+        out.write("} ");
+        out.write(value);
+        out.write('\n');
+    }
+
+    private static String seconds(long micros)
+    {
+        return Double.toString(micros / 1e6);
+    }
+
+    /**
+     * Escapes a label value as required by the text format.
+     */
+    static String escape(String value)
+    {
+        StringBuilder sb = null;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c == '\\') {
+                replacement = "\\\\";
+            } else if (c == '"') {
+                replacement = "\\\"";
+            } else if (c == '\n') {
+                replacement = "\\n";
+            } else {
+                if (sb != null) {
+                    sb.append(c);
+                }
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(value.length() + 8);
+                sb.append(value, 0, i);
+            }
+            sb.append(replacement);
+        }
+        return sb == null ? value : sb.toString();
+    }
+}
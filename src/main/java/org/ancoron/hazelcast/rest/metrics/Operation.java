@@ -0,0 +1,67 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.metrics;
+
+/**
+ * The operations metrics are recorded for.
+ *
+ * @author ancoron
+ */
+public enum Operation
+{
+
+    GET("get", true),
+    HEAD("head", true),
+    PUT("put", false),
+    CREATE("create", false),
+    DELETE("delete", false),
+    PATCH("patch", false),
+    MGET("mget", true),
+    BULK("bulk", false),
+    KEYS("keys", false),
+    QUERY("query", false),
+    CHANGES("changes", false),
+    BUCKET_INFO("bucket_info", false),
+    BUCKET_CREATE("bucket_create", false),
+    BUCKET_DELETE("bucket_delete", false),
+    OTHER("other", false);
+
+    private final String label;
+    private final boolean read;
+
+    private Operation(String label, boolean read)
+    {
+        this.label = label;
+        this.read = read;
+    }
+
+    /**
+     * Returns the name used for this operation in the metrics output.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Checks whether this operation reads values, so that it counts hits
+     * and misses.
+     */
+    public boolean isRead()
+    {
+        return read;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * The latency histogram and counters of a single operation on a bucket.
+ *
+ * @author ancoron
+ */
+public class OperationMetrics
+{
+
+    private final Operation operation;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong notFound = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    public OperationMetrics(Operation operation)
+    {
+        this.operation = operation;
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param nanos the time taken to serve the request
+     * @param status the HTTP status sent
+     * @param in the number of bytes received with the request
+     * @param out the number of bytes sent with the response body
+     */
+    public void record(long nanos, int status, long in, long out)
+    {
+        latency.record(nanos);
+        if (in > 0) {
+            bytesIn.addAndGet(in);
+        }
+        if (out > 0) {
+            bytesOut.addAndGet(out);
+        }
+
+        if (status < 400) {
+            if (operation.isRead()) {
+                hits.incrementAndGet();
+            }
+        } else if (status == SC_NOT_FOUND) {
+            notFound.incrementAndGet();
+            if (operation.isRead()) {
+                misses.incrementAndGet();
+            }
+        } else if (status == SC_CONFLICT || status == SC_PRECONDITION_FAILED) {
+            conflicts.incrementAndGet();
+        } else if (status == SC_SERVICE_UNAVAILABLE) {
+            rejected.incrementAndGet();
+        } else if (status >= 500) {
+            errors.incrementAndGet();
+        }
+    }
+
+    public Operation getOperation()
+    {
+        return operation;
+    }
+
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of requests rejected with 409 (Conflict) or 412
+     * (Precondition Failed).
+     */
+    public long getConflicts()
+    {
+        return conflicts.get();
+    }
+
+    public long getNotFound()
+    {
+        return notFound.get();
+    }
+
+    /**
+     * Returns the number of requests failed with a 5xx status other than
+     * 503 (Service Unavailable).
+     */
+    public long getErrors()
+    {
+        return errors.get();
+    }
+
+    /**
+     * Returns the number of requests rejected with 503 (Service
+     * Unavailable) by admission control.
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    public long getBytesIn()
+    {
+        return bytesIn.get();
+    }
+
+    public long getBytesOut()
+    {
+        return bytesOut.get();
+    }
+}
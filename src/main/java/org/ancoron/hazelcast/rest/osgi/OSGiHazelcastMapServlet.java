@@ -73,6 +73,51 @@ public class OSGiHazelcastMapServlet extends HazelcastMapServlet {
     public void configure(Map<String, Object> config)
             throws ServletException, NamespaceException
     {
+        Object async = config.get("async");
+        if (async != null) {
+            setAsync(Boolean.parseBoolean(String.valueOf(async)));
+        }
+        Object budget = config.get("heapBudget");
+        if (budget != null) {
+            setHeapBudget(Integer.parseInt(String.valueOf(budget)));
+        }
+        Object adaptive = config.get("adaptiveLimits");
+        if (adaptive != null) {
+            setAdaptiveLimits(Boolean.parseBoolean(String.valueOf(adaptive)));
+        }
+        Object inFlight = config.get("maxInFlight");
+        if (inFlight != null) {
+            setMaxInFlight(Integer.parseInt(String.valueOf(inFlight)));
+        }
+        Object bucketInFlight = config.get("bucketMaxInFlight");
+        if (bucketInFlight != null) {
+            setBucketMaxInFlight(Integer.parseInt(String.valueOf(bucketInFlight)));
+        }
+        Object retryAfter = config.get("retryAfter");
+        if (retryAfter != null) {
+            setRetryAfter(Integer.parseInt(String.valueOf(retryAfter)));
+        }
+        Object coalesce = config.get("coalesceReads");
+        if (coalesce != null) {
+            setCoalesceReads(Boolean.parseBoolean(String.valueOf(coalesce)));
+        }
+        Object readTtl = config.get("readTtl");
+        if (readTtl != null) {
+            setReadTtl(Integer.parseInt(String.valueOf(readTtl)));
+        }
+        Object changesBuffer = config.get("changesBuffer");
+        if (changesBuffer != null) {
+            setChangesBuffer(Integer.parseInt(String.valueOf(changesBuffer)));
+        }
+        Object directory = config.get("dataDirectory");
+        if (directory != null) {
+            try {
+                setDataDirectory(String.valueOf(directory));
+            } catch (IOException x) {
+                throw new ServletException(x);
+            }
+        }
+
         try {
             http.unregister("/buckets");
         } catch (IllegalArgumentException x) {}
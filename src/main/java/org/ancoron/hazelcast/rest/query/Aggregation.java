@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.query;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The counts, sums, minimums and maximums of the values matching a
+ * {@link Query}, per group if grouped. Partial aggregations of single
+ * partitions are computed on their owners and merged by the caller.
+ * <p>
+ * Groups are identified by the JSON text of the grouping field. At most
+ * {@link #MAX_GROUPS} groups are kept, values of further groups are left
+ * out and the aggregation is marked as truncated.
+ *
+ * @author ancoron
+ */
+public class Aggregation implements DataSerializable
+{
+
+    public static final int MAX_GROUPS = 10000;
+
+    /**
+     * The aggregates of a single group, with sums, minimums and maximums in
+     * the order of the fields of the query. Minimums and maximums are
+     * {@code NaN} as long as no number has been seen.
+     */
+    static final class Group
+    {
+
+        private long count;
+        private final double[] sum;
+        private final double[] min;
+        private final double[] max;
+
+        Group(int sum, int min, int max)
+        {
+            this(new double[sum], nan(new double[min]), nan(new double[max]));
+        }
+
+        Group(double[] sum, double[] min, double[] max)
+        {
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        private static double[] nan(double[] values)
+        {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.NaN;
+            }
+            return values;
+        }
+
+        private static double min(double a, double b)
+        {
+            return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.min(a, b);
+        }
+
+        private static double max(double a, double b)
+        {
+            return Double.isNaN(a) ? b : Double.isNaN(b) ? a : Math.max(a, b);
+        }
+
+        void merge(Group other)
+        {
+            count += other.count;
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] += other.sum[i];
+            }
+            for (int i = 0; i < min.length; i++) {
+                min[i] = min(min[i], other.min[i]);
+            }
+            for (int i = 0; i < max.length; i++) {
+                max[i] = max(max[i], other.max[i]);
+            }
+        }
+    }
+
+    private transient Query query;
+    private final Map<String, Group> groups = new TreeMap<>();
+    private boolean truncated;
+
+    public Aggregation()
+    {
+    }
+
+    public Aggregation(Query query)
+    {
+        this.query = query;
+    }
+
+    private Group group(String name)
+    {
+        Group group = groups.get(name);
+        if (group == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                truncated = true;
+                return null;
+            }
+            group = new Group(query.getSum().length, query.getMin().length,
+                    query.getMax().length);
+            groups.put(name, group);
+        }
+        return group;
+    }
+
+    /**
+     * Adds a matching value.
+     */
+    public void add(JsonElement json)
+    {
+        Group group = group(query.getGroupBy() == null ? "null"
+                : query.group(json));
+        if (group == null) {
+            return;
+        }
+
+        group.count++;
+        String[] fields = query.getSum();
+        for (int i = 0; i < fields.length; i++) {
+            Double value = Query.number(json, fields[i]);
+            if (value != null) {
+                group.sum[i] += value;
+            }
+        }
+        fields = query.getMin();
+        for (int i = 0; i < fields.length; i++) {
+            Double value = Query.number(json, fields[i]);
+            if (value != null) {
+                group.min[i] = Group.min(group.min[i], value);
+            }
+        }
+        fields = query.getMax();
+        for (int i = 0; i < fields.length; i++) {
+            Double value = Query.number(json, fields[i]);
+            if (value != null) {
+                group.max[i] = Group.max(group.max[i], value);
+            }
+        }
+    }
+
+    /**
+     * Adds a partial aggregation of the same query.
+     */
+    public void merge(Aggregation other)
+    {
+        truncated |= other.truncated;
+        for (Map.Entry<String, Group> entry : other.groups.entrySet()) {
+            Group group = group(entry.getKey());
+            if (group != null) {
+                group.merge(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of matching values (of all groups).
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (Group group : groups.values()) {
+            count += group.count;
+        }
+        return count;
+    }
+
+    public boolean isTruncated()
+    {
+        return truncated;
+    }
+
+    /**
+     * Writes the aggregates as the members of the current JSON object,
+     * either directly or as an array of groups if grouped.
+     */
+    public void writeJson(JsonWriter writer) throws IOException
+    {
+        if (query.getGroupBy() == null) {
+            Group group = groups.get("null");
+            if (group == null) {
+                group = new Group(query.getSum().length,
+                        query.getMin().length, query.getMax().length);
+            }
+            write(writer, group);
+            return;
+        }
+
+        writer.name("groups").beginArray();
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            writer.beginObject();
+            writer.name("group").jsonValue(entry.getKey());
+            write(writer, entry.getValue());
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.name("count").value(getCount());
+        if (truncated) {
+            writer.name("truncated").value(true);
+        }
+    }
+
+    private void write(JsonWriter writer, Group group) throws IOException
+    {
+        writer.name("count").value(group.count);
+        write(writer, "sum", query.getSum(), group.sum);
+        write(writer, "min", query.getMin(), group.min);
+        write(writer, "max", query.getMax(), group.max);
+    }
+
+    private static void write(JsonWriter writer, String name, String[] fields,
+            double[] values) throws IOException
+    {
+        if (fields.length == 0) {
+            return;
+        }
+
+        writer.name(name).beginObject();
+        for (int i = 0; i < fields.length; i++) {
+            writer.name(fields[i]);
+            if (Double.isNaN(values[i])) {
+                writer.nullValue();
+            } else {
+                writer.value(values[i]);
+            }
+        }
+        writer.endObject();
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeObject(query);
+        out.writeBoolean(truncated);
+        out.writeInt(groups.size());
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            Group group = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeLong(group.count);
+            out.writeDoubleArray(group.sum);
+            out.writeDoubleArray(group.min);
+            out.writeDoubleArray(group.max);
+        }
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        query = in.readObject();
+        truncated = in.readBoolean();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long n = in.readLong();
+            Group group = new Group(in.readDoubleArray(),
+                    in.readDoubleArray(), in.readDoubleArray());
+            group.count = n;
+            groups.put(name, group);
+        }
+    }
+}
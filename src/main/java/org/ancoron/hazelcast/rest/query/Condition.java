@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.query;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+/**
+ * A condition on a single field of a JSON value. Supported operators are:
+ * <ul>
+ * <li>{@code eq}, {@code ne} - (in)equality with any JSON value</li>
+ * <li>{@code gt}, {@code gte}, {@code lt}, {@code lte} - comparison of
+ * numbers with numbers and strings with strings</li>
+ * <li>{@code in} - equality with any element of an array</li>
+ * <li>{@code prefix} - strings starting with the given one</li>
+ * <li>{@code exists} - whether the field is present (and not null)</li>
+ * </ul>
+ * Apart from {@code ne} and {@code exists}, conditions never hold for a
+ * missing field.
+ *
+ * @author ancoron
+ */
+class Condition
+{
+
+    private static enum Operator
+    {
+        EQ, NE, GT, GTE, LT, LTE, IN, PREFIX, EXISTS
+    }
+
+    private final String path;
+    private final Operator operator;
+    private final JsonElement operand;
+
+    Condition(String path, String operator, JsonElement operand)
+    {
+        this.path = path;
+        try {
+            this.operator = Operator.valueOf(operator.toUpperCase());
+        } catch (IllegalArgumentException x) {
+            throw new IllegalArgumentException("Unknown operator: "
+                    + operator, x);
+        }
+        this.operand = operand;
+
+        switch (this.operator) {
+            case IN:
+                if (!operand.isJsonArray()) {
+                    throw new IllegalArgumentException(
+                            "Expected an array for 'in' of " + path);
+                }
+                break;
+            case PREFIX:
+                if (!isString(operand)) {
+                    throw new IllegalArgumentException(
+                            "Expected a string for 'prefix' of " + path);
+                }
+                break;
+            case EXISTS:
+                if (!operand.isJsonPrimitive()
+                        || !operand.getAsJsonPrimitive().isBoolean())
+                {
+                    throw new IllegalArgumentException(
+                            "Expected a boolean for 'exists' of " + path);
+                }
+                break;
+            case GT:
+            case GTE:
+            case LT:
+            case LTE:
+                if (!isString(operand) && !isNumber(operand)) {
+                    throw new IllegalArgumentException(
+                            "Expected a number or string to compare " + path);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isString(JsonElement json)
+    {
+        return json != null && json.isJsonPrimitive()
+                && json.getAsJsonPrimitive().isString();
+    }
+
+    private static boolean isNumber(JsonElement json)
+    {
+        return json != null && json.isJsonPrimitive()
+                && json.getAsJsonPrimitive().isNumber();
+    }
+
+    boolean matches(JsonElement json)
+    {
+        JsonElement field = Query.resolve(json, path);
+        switch (operator) {
+            case EQ:
+                return field != null && field.equals(operand);
+            case NE:
+                return field == null || !field.equals(operand);
+            case IN:
+                if (field != null) {
+                    for (JsonElement element : (JsonArray) operand) {
+                        if (field.equals(element)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            case PREFIX:
+                return isString(field)
+                        && field.getAsString().startsWith(operand.getAsString());
+            case EXISTS:
+                return (field != null) == operand.getAsBoolean();
+            default:
+                break;
+        }
+
+        final int comparison;
+        if (isNumber(field) && isNumber(operand)) {
+            comparison = Double.compare(field.getAsDouble(),
+                    operand.getAsDouble());
+        } else if (isString(field) && isString(operand)) {
+            comparison = field.getAsString().compareTo(operand.getAsString());
+        } else {
+            return false;
+        }
+
+        switch (operator) {
+            case GT:
+                return comparison > 0;
+            case GTE:
+                return comparison >= 0;
+            case LT:
+                return comparison < 0;
+            default:
+                return comparison <= 0;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * A query on the JSON values of a bucket, given as a JSON object:
+ * <pre>
+ * {
+ *   "where": {"status": "open", "price": {"gte": 10, "lt": 100}},
+ *   "select": ["name", "price"],
+ *   "groupBy": "status",
+ *   "aggregate": {"sum": ["price"], "min": ["price"], "max": ["price"]}
+ * }
+ * </pre>
+ * All conditions of {@code "where"} have to hold, where a plain value is
+ * compared for equality and an object holds operators, see
+ * {@link Condition}. Fields are addressed by dotted paths, with numbers
+ * selecting array elements (e.g. {@code "items.0.price"}).
+ * <p>
+ * Without {@code "groupBy"} and {@code "aggregate"} the query selects the
+ * matching values, optionally projected onto the fields in
+ * {@code "select"}. Otherwise it counts the matching values (per group)
+ * and computes the requested sums, minimums and maximums of numeric
+ * fields.
+ * <p>
+ * Only values stored as {@code application/json} are considered, chunked
+ * values are skipped.
+ *
+ * @author ancoron
+ */
+public class Query implements DataSerializable
+{
+
+    private String source;
+    private transient Condition[] where;
+    private transient String[] select;
+    private transient String groupBy;
+    private transient String[] sum;
+    private transient String[] min;
+    private transient String[] max;
+    private transient boolean aggregate;
+
+    public Query()
+    {
+    }
+
+    /**
+     * Parses a query.
+     *
+     * @throws IllegalArgumentException if the query is invalid
+     */
+    public static Query parse(String source)
+    {
+        Query query = new Query();
+        query.init(source);
+        return query;
+    }
+
+    private void init(String source)
+    {
+        this.source = source;
+
+        final JsonObject json;
+        try {
+            JsonElement element = new JsonParser().parse(source);
+            if (!element.isJsonObject()) {
+                throw new IllegalArgumentException(
+                        "Expected a JSON object as query");
+            }
+            json = element.getAsJsonObject();
+        } catch (JsonParseException x) {
+            throw new IllegalArgumentException("Invalid query: "
+                    + x.getMessage(), x);
+        }
+
+        List<Condition> conditions = new ArrayList<>();
+        JsonElement where_json = json.get("where");
+        if (where_json != null && !where_json.isJsonNull()) {
+            for (Map.Entry<String, JsonElement> field
+                    : object(where_json, "where").entrySet())
+            {
+                JsonElement value = field.getValue();
+                if (value.isJsonObject()) {
+                    for (Map.Entry<String, JsonElement> op
+                            : value.getAsJsonObject().entrySet())
+                    {
+                        conditions.add(new Condition(field.getKey(),
+                                op.getKey(), op.getValue()));
+                    }
+                } else {
+                    conditions.add(new Condition(field.getKey(), "eq", value));
+                }
+            }
+        }
+        where = conditions.toArray(new Condition[conditions.size()]);
+
+        select = strings(json.get("select"), "select");
+        JsonElement group_json = json.get("groupBy");
+        if (group_json != null && !group_json.isJsonNull()) {
+            groupBy = string(group_json, "groupBy");
+        }
+
+        JsonElement aggregate_json = json.get("aggregate");
+        if (aggregate_json != null && !aggregate_json.isJsonNull()) {
+            JsonObject aggregates = object(aggregate_json, "aggregate");
+            for (Map.Entry<String, JsonElement> entry : aggregates.entrySet()) {
+                switch (entry.getKey()) {
+                    case "count":
+                        // always counted...
+                        break;
+                    case "sum":
+                        sum = strings(entry.getValue(), "sum");
+                        break;
+                    case "min":
+                        min = strings(entry.getValue(), "min");
+                        break;
+                    case "max":
+                        max = strings(entry.getValue(), "max");
+                        break;
+                    default:
+                        throw new IllegalArgumentException(
+                                "Unknown aggregation: " + entry.getKey());
+                }
+            }
+            aggregate = true;
+        }
+        aggregate |= groupBy != null;
+
+        if (aggregate && select != null) {
+            throw new IllegalArgumentException(
+                    "Cannot select fields of aggregated values");
+        }
+    }
+
+    private static JsonObject object(JsonElement json, String name)
+    {
+        if (!json.isJsonObject()) {
+            throw new IllegalArgumentException("Expected an object for '"
+                    + name + "'");
+        }
+        return json.getAsJsonObject();
+    }
+
+    private static String string(JsonElement json, String name)
+    {
+        if (!json.isJsonPrimitive() || !json.getAsJsonPrimitive().isString()) {
+            throw new IllegalArgumentException("Expected a field name for '"
+                    + name + "'");
+        }
+        return json.getAsString();
+    }
+
+    private static String[] strings(JsonElement json, String name)
+    {
+        if (json == null || json.isJsonNull()) {
+            return null;
+        } else if (!json.isJsonArray()) {
+            return new String[] {string(json, name)};
+        }
+
+        JsonArray array = json.getAsJsonArray();
+        String[] strings = new String[array.size()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = string(array.get(i), name);
+        }
+        return strings;
+    }
+
+    /**
+     * Returns the element at the given dotted path or {@code null} if there
+     * is none.
+     */
+    public static JsonElement resolve(JsonElement json, String path)
+    {
+        int start = 0;
+        while (json != null && start <= path.length()) {
+            int dot = path.indexOf('.', start);
+            if (dot < 0) {
+                dot = path.length();
+            }
+            String name = path.substring(start, dot);
+            if (json.isJsonObject()) {
+                json = json.getAsJsonObject().get(name);
+            } else if (json.isJsonArray()) {
+                JsonArray array = json.getAsJsonArray();
+                try {
+                    int index = Integer.parseInt(name);
+                    json = index >= 0 && index < array.size()
+                            ? array.get(index) : null;
+                } catch (NumberFormatException x) {
+                    json = null;
+                }
+            } else {
+                json = null;
+            }
+            start = dot + 1;
+        }
+        return json == null || json.isJsonNull() ? null : json;
+    }
+
+    /**
+     * Parses a stored value if it is a JSON value.
+     *
+     * @return the parsed value or {@code null} if it is not a (valid) JSON
+     * value
+     */
+    public static JsonElement parse(Object value)
+    {
+        if (!(value instanceof StoredValue) || value instanceof ChunkedValue) {
+            return null;
+        }
+
+        StoredValue stored = (StoredValue) value;
+        if (stored.getType() != StoredValue.T_APPLICATION_JSON) {
+            return null;
+        }
+        try {
+            stored = ValueEncoding.decode(stored);
+            Reader in = new InputStreamReader(new ByteArrayInputStream(
+                    stored.getData(), stored.getOffset(), stored.getLength()),
+                    StandardCharsets.UTF_8);
+            return new JsonParser().parse(in);
+        } catch (IOException | JsonParseException x) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the given value matches all conditions.
+     */
+    public boolean matches(JsonElement json)
+    {
+        for (Condition condition : where) {
+            if (!condition.matches(json)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Projects the given value onto the selected fields, keyed by their
+     * paths. Fields missing in the value are left out.
+     */
+    public JsonElement project(JsonElement json)
+    {
+        if (select == null) {
+            return json;
+        }
+
+        JsonObject projection = new JsonObject();
+        for (String path : select) {
+            JsonElement field = resolve(json, path);
+            if (field != null) {
+                projection.add(path, field);
+            }
+        }
+        return projection;
+    }
+
+    /**
+     * Returns the value of the grouping field as a JSON text, "null" if
+     * missing.
+     */
+    String group(JsonElement json)
+    {
+        JsonElement group = resolve(json, groupBy);
+        return group == null ? "null" : group.toString();
+    }
+
+    /**
+     * Returns the number of the given field if it is a number, otherwise
+     * {@code null}.
+     */
+    static Double number(JsonElement json, String path)
+    {
+        JsonElement field = resolve(json, path);
+        if (field != null && field.isJsonPrimitive()) {
+            JsonPrimitive primitive = field.getAsJsonPrimitive();
+            if (primitive.isNumber()) {
+                return primitive.getAsDouble();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether this query aggregates the matching values instead of
+     * selecting them.
+     */
+    public boolean isAggregate()
+    {
+        return aggregate;
+    }
+
+    public String getGroupBy()
+    {
+        return groupBy;
+    }
+
+    public String[] getSum()
+    {
+        return sum == null ? new String[0] : sum;
+    }
+
+    public String[] getMin()
+    {
+        return min == null ? new String[0] : min;
+    }
+
+    public String[] getMax()
+    {
+        return max == null ? new String[0] : max;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTF(source);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        init(in.readUTF());
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+
+import com.google.gson.JsonElement;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.impl.operation.MapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.map.impl.recordstore.RecordStore;
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.spi.AbstractDistributedObject;
+import com.hazelcast.spi.InternalCompletableFuture;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.PartitionAwareOperation;
+import com.hazelcast.spi.ReadonlyOperation;
+import com.hazelcast.util.Clock;
+
+/**
+ * Runs a {@link Query} against a slice of the values of a single partition
+ * on its owner, so that only matching (and projected) values or partial
+ * aggregates are sent back instead of all values.
+ * <p>
+ * Each operation looks at no more than {@link #SLICE_SIZE} values, those
+ * with the keys following a given key in lexicographical order, and
+ * returns the key to continue the partition after if there are more. This
+ * way, a query of a large partition does not keep its thread from serving
+ * other operations for long, as parsing each value is expensive.
+ * <p>
+ * The first slice of a partition takes a sorted snapshot of its keys, which
+ * the following slices continue from, so that the keys of a partition are
+ * only deserialized and sorted once per query rather than once per slice.
+ * The snapshot is kept on the member until the last slice or the next query
+ * of the partition, and taken anew once it is older than
+ * {@link #SNAPSHOT_AGE}. Values added to a partition while it is queried
+ * may thus be missed, while removed ones are skipped.
+ * <p>
+ * Selected values are paged like the keys of a
+ * {@link org.ancoron.hazelcast.rest.map.KeyPageOperation}: the slice ends
+ * after at most a limit of matching values.
+ *
+ * @author ancoron
+ */
+public class QueryOperation extends MapOperation
+        implements PartitionAwareOperation, ReadonlyOperation
+{
+
+    /**
+     * The maximum number of values looked at by a single operation.
+     */
+    public static final int SLICE_SIZE = 256;
+
+    /**
+     * The maximum age of a key snapshot to continue a query with.
+     */
+    public static final long SNAPSHOT_AGE = TimeUnit.SECONDS.toMillis(30);
+
+    private Query query;
+    private String after;
+    private int limit;
+    private QueryResult result;
+
+    public QueryOperation()
+    {
+    }
+
+    /**
+     * @param after the key to continue after or {@code null} to start with
+     * the first key
+     * @param limit the maximum number of matching values to select (ignored
+     * for aggregations)
+     */
+    public QueryOperation(String name, Query query, String after, int limit)
+    {
+        super(name);
+        this.query = query;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    /**
+     * Submits the given query on the given partition. This requires the map
+     * proxy of a cluster member.
+     */
+    public static InternalCompletableFuture<QueryResult> submit(
+            IMap<String, StoredValue> map, int partition, Query query,
+            String after, int limit)
+    {
+        NodeEngine engine = ((AbstractDistributedObject<?>) map)
+                .getNodeEngine();
+        return engine.getOperationService().invokeOnPartition(
+                MapService.SERVICE_NAME,
+                new QueryOperation(map.getName(), query, after, limit),
+                partition);
+    }
+
+    @Override
+    public void run()
+    {
+        RecordStore<?> store = mapServiceContext.getExistingRecordStore(
+                getPartitionId(), name);
+        NavigableMap<String, Data> snapshot = snapshot(store);
+        if (after != null) {
+            snapshot = snapshot.tailMap(after, false);
+        }
+
+        Aggregation aggregation = query.isAggregate()
+                ? new Aggregation(query) : null;
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        String last = null;
+        boolean more = false;
+        int size = 0;
+        for (Map.Entry<String, Data> entry : snapshot.entrySet()) {
+            if (size >= SLICE_SIZE
+                    || (aggregation == null && keys.size() >= limit))
+            {
+                more = true;
+                break;
+            }
+            size++;
+            last = entry.getKey();
+            Record<?> record = store.getRecordOrNull(entry.getValue());
+            if (record == null) {
+                // removed since the snapshot has been taken...
+                continue;
+            }
+            JsonElement json = Query.parse(mapServiceContext.toObject(
+                    record.getValue()));
+            if (json == null || !query.matches(json)) {
+                continue;
+            } else if (aggregation != null) {
+                aggregation.add(json);
+            } else {
+                keys.add(last);
+                values.add(query.project(json).toString());
+            }
+        }
+
+        String resume = more ? last : null;
+        if (resume == null) {
+            snapshots().remove(snapshotKey());
+        }
+        if (aggregation != null) {
+            result = new QueryResult(aggregation, resume);
+        } else {
+            result = new QueryResult(keys.toArray(new String[keys.size()]),
+                    values.toArray(new String[values.size()]), resume);
+        }
+    }
+
+    /**
+     * Returns the sorted snapshot of the keys of this partition to continue
+     * the query with, taking a new one for the first slice.
+     */
+    private NavigableMap<String, Data> snapshot(RecordStore<?> store)
+    {
+        ConcurrentMap<String, Snapshot> snapshots = snapshots();
+        long now = Clock.currentTimeMillis();
+        Snapshot snapshot = snapshots.get(snapshotKey());
+        if (after != null && snapshot != null
+                && now - snapshot.taken <= SNAPSHOT_AGE)
+        {
+            return snapshot.keys;
+        }
+
+        NavigableMap<String, Data> keys = new TreeMap<>();
+        if (store != null) {
+            Iterator<?> records = store.iterator(now, false);
+            while (records.hasNext()) {
+                Data data = ((Record<?>) records.next()).getKey();
+                String key = (String) mapServiceContext.toObject(data);
+                if (!ChunkedValue.isChunkKey(key)) {
+                    keys.put(key, data);
+                }
+            }
+        }
+        snapshots.put(snapshotKey(), new Snapshot(keys, now));
+        return keys;
+    }
+
+    private String snapshotKey()
+    {
+        return name + '\0' + getPartitionId();
+    }
+
+    /**
+     * Returns the key snapshots of this member, each of which is only used
+     * by the thread of its partition.
+     */
+    @SuppressWarnings("unchecked")
+    private ConcurrentMap<String, Snapshot> snapshots()
+    {
+        // the user context is typed for any value...
+        ConcurrentMap<String, Object> context = getNodeEngine()
+                .getHazelcastInstance().getUserContext();
+        Object snapshots = context.get(Snapshot.class.getName());
+        if (snapshots == null) {
+            context.putIfAbsent(Snapshot.class.getName(),
+                    new ConcurrentHashMap<String, Snapshot>());
+            snapshots = context.get(Snapshot.class.getName());
+        }
+        return (ConcurrentMap<String, Snapshot>) snapshots;
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return result;
+    }
+
+    @Override
+    protected void writeInternal(ObjectDataOutput out) throws IOException
+    {
+        super.writeInternal(out);
+        out.writeObject(query);
+        out.writeUTF(after);
+        out.writeInt(limit);
+    }
+
+    @Override
+    protected void readInternal(ObjectDataInput in) throws IOException
+    {
+        super.readInternal(in);
+        query = in.readObject();
+        after = in.readUTF();
+        limit = in.readInt();
+    }
+
+    private static final class Snapshot
+    {
+
+        private final NavigableMap<String, Data> keys;
+        private final long taken;
+
+        Snapshot(NavigableMap<String, Data> keys, long taken)
+        {
+            this.keys = keys;
+            this.taken = taken;
+        }
+    }
+}
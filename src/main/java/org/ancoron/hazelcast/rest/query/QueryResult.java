@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.query;
+
+import java.io.IOException;
+
+import com.hazelcast.nio.ObjectDataInput;
+import com.hazelcast.nio.ObjectDataOutput;
+import com.hazelcast.nio.serialization.DataSerializable;
+
+/**
+ * The result of a {@link Query} on a slice of a single partition: either
+ * the sorted keys of the matching values along with their (projected) JSON
+ * texts or the partial {@link Aggregation} of all matching values, and the
+ * key to continue the partition after.
+ *
+ * @author ancoron
+ */
+public class QueryResult implements DataSerializable
+{
+
+    private String[] keys;
+    private String[] values;
+    private Aggregation aggregation;
+    private String resume;
+
+    public QueryResult()
+    {
+    }
+
+    QueryResult(String[] keys, String[] values, String resume)
+    {
+        this.keys = keys;
+        this.values = values;
+        this.resume = resume;
+    }
+
+    QueryResult(Aggregation aggregation, String resume)
+    {
+        this.aggregation = aggregation;
+        this.keys = new String[0];
+        this.values = new String[0];
+        this.resume = resume;
+    }
+
+    public String[] getKeys()
+    {
+        return keys;
+    }
+
+    public String[] getValues()
+    {
+        return values;
+    }
+
+    /**
+     * Returns the partial aggregation or {@code null} if the query selects
+     * values.
+     */
+    public Aggregation getAggregation()
+    {
+        return aggregation;
+    }
+
+    /**
+     * Returns the key to continue the partition after or {@code null} if
+     * the query is complete for the partition.
+     */
+    public String getResume()
+    {
+        return resume;
+    }
+
+    @Override
+    public void writeData(ObjectDataOutput out) throws IOException
+    {
+        out.writeUTFArray(keys);
+        out.writeUTFArray(values);
+        out.writeObject(aggregation);
+        out.writeUTF(resume);
+    }
+
+    @Override
+    public void readData(ObjectDataInput in) throws IOException
+    {
+        keys = in.readUTFArray();
+        values = in.readUTFArray();
+        aggregation = in.readObject();
+        resume = in.readUTF();
+    }
+}
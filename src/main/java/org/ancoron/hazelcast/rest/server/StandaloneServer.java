@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.server;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ancoron.hazelcast.rest.servlet.HazelcastMapServlet;
+import org.glassfish.grizzly.http.KeepAlive;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.servlet.ServletRegistration;
+import org.glassfish.grizzly.servlet.WebappContext;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ * Serves the buckets of a Hazelcast member through an embedded Grizzly NIO
+ * HTTP server, without any OSGi container.
+ * <p>
+ * The server is configured by the following properties (the defaults in
+ * parentheses):
+ * <ul>
+ * <li>{@code host} - the address to listen on ({@code 0.0.0.0})</li>
+ * <li>{@code port} - the port to listen on ({@code 8080})</li>
+ * <li>{@code path} - the context path of the servlet ({@code /buckets})</li>
+ * <li>{@code selectors} - the number of selector threads (one per
+ * processor)</li>
+ * <li>{@code workers} - the number of worker threads (two per
+ * processor)</li>
+ * <li>{@code virtualThreads} - run requests on a new virtual thread each
+ * instead of the worker threads, if the JDK supports it, which implies
+ * {@code async} ({@code false})</li>
+ * <li>{@code keepAliveTimeout} - the idle time in seconds after which a
+ * persistent connection is closed, -1 for never ({@code 30})</li>
+ * <li>{@code keepAliveRequests} - the number of requests per persistent
+ * connection, -1 for no limit ({@code -1})</li>
+ * <li>{@code readBuffer} - the size of socket read buffers in bytes
+ * ({@code 65536})</li>
+ * <li>{@code writeBuffer} - the size of socket write buffers in bytes
+ * ({@code 65536})</li>
+ * </ul>
+ * The servlet settings {@code async}, {@code chunkThreshold},
+ * {@code chunkSize}, {@code heapBudget}, {@code dataDirectory},
+ * {@code maxInFlight}, {@code bucketMaxInFlight}, {@code adaptiveLimits},
+ * {@code retryAfter}, {@code coalesceReads}, {@code readTtl} and
+ * {@code changesBuffer} are passed on to {@link HazelcastMapServlet}.
+ * <p>
+ * Synchronous calls of Hazelcast 3.6 wait for their response in a
+ * {@code synchronized} block, which pins a virtual thread to its carrier
+ * thread until the response arrives. Virtual threads therefore require
+ * asynchronous request processing (worker threads are used if
+ * {@code async=false} is configured explicitly), so that reads and writes of
+ * values release their thread while waiting. Bulk requests, key listings,
+ * queries, patches and bucket administration still block on the cluster, so
+ * a load dominated by them is better served by worker threads.
+ *
+ * @author ancoron
+ */
+public class StandaloneServer
+{
+
+    private static final Logger LOG = Logger.getLogger(StandaloneServer.class.getName());
+
+    private static final String[] SERVLET_PARAMETERS = {"async",
+        "chunkThreshold", "chunkSize", "heapBudget", "dataDirectory",
+        "maxInFlight", "bucketMaxInFlight", "adaptiveLimits", "retryAfter",
+        "coalesceReads", "readTtl", "changesBuffer"};
+
+    private final Properties config;
+    private final HazelcastInstance hazelcast;
+    private final HazelcastMapServlet servlet = new HazelcastMapServlet();
+
+    private HttpServer server;
+    private NetworkListener listener;
+    private ExecutorService virtualThreads;
+
+    public StandaloneServer(Properties config, HazelcastInstance hazelcast)
+    {
+        this.config = config;
+        this.hazelcast = hazelcast;
+    }
+
+    private int getInt(String name, int defaultValue)
+    {
+        String value = config.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public HazelcastInstance getHazelcast()
+    {
+        return hazelcast;
+    }
+
+    public HazelcastMapServlet getServlet()
+    {
+        return servlet;
+    }
+
+    /**
+     * Returns the port the server is listening on, which is only known
+     * after {@link #start() starting} it if port 0 has been configured.
+     */
+    public int getPort()
+    {
+        return listener == null ? getInt("port", 8080) : listener.getPort();
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (server != null) {
+            return;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        listener = new NetworkListener("buckets",
+                config.getProperty("host", NetworkListener.DEFAULT_NETWORK_HOST),
+                getInt("port", 8080));
+
+        TCPNIOTransport transport = listener.getTransport();
+        transport.setSelectorRunnersCount(getInt("selectors", processors));
+        transport.setReadBufferSize(getInt("readBuffer", 65536));
+        transport.setWriteBufferSize(getInt("writeBuffer", 65536));
+        transport.setTcpNoDelay(true);
+        if (Boolean.parseBoolean(config.getProperty("virtualThreads"))) {
+            if ("false".equalsIgnoreCase(config.getProperty("async", "").trim())) {
+                LOG.warning("Virtual threads require asynchronous request"
+                        + " processing, as synchronous Hazelcast calls pin"
+                        + " their carrier threads; using worker threads instead");
+            } else {
+                virtualThreads = newVirtualThreadExecutor();
+            }
+        }
+        if (virtualThreads != null) {
+            transport.setWorkerThreadPool(virtualThreads);
+        } else {
+            int workers = getInt("workers", processors * 2);
+            transport.setWorkerThreadPoolConfig(ThreadPoolConfig.defaultConfig()
+                    .setPoolName("bucket-worker")
+                    .setCorePoolSize(workers).setMaxPoolSize(workers));
+        }
+
+        KeepAlive keepAlive = listener.getKeepAlive();
+        keepAlive.setIdleTimeoutInSeconds(getInt("keepAliveTimeout", 30));
+        keepAlive.setMaxRequestsCount(getInt("keepAliveRequests", -1));
+
+        HttpServer http = new HttpServer();
+        http.addListener(listener);
+
+        String path = config.getProperty("path", "/buckets");
+        WebappContext context = new WebappContext("buckets", path);
+        ServletRegistration registration = context.addServlet("buckets", servlet);
+        registration.addMapping("/*");
+        registration.setAsyncSupported(true);
+        for (String name : SERVLET_PARAMETERS) {
+            String value = config.getProperty(name);
+            if (value != null) {
+                registration.setInitParameter(name, value);
+            }
+        }
+        if (virtualThreads != null) {
+            registration.setInitParameter("async", "true");
+        }
+        servlet.setHazelcast(hazelcast);
+        context.deploy(http);
+
+        try {
+            http.start();
+        } catch (IOException x) {
+            stopVirtualThreads();
+            throw x;
+        }
+        server = http;
+
+        LOG.log(Level.INFO, "Serving buckets at http://{0}:{1}{2} using {3}",
+                new Object[] {listener.getHost(), String.valueOf(getPort()),
+                    path, virtualThreads != null ? "virtual threads"
+                            : getInt("workers", processors * 2) + " workers"});
+    }
+
+    /**
+     * Stops accepting new connections, waits up to the given time for
+     * running requests to complete and then stops the server.
+     */
+    public synchronized void stop(long timeout, TimeUnit unit)
+    {
+        if (server == null) {
+            return;
+        }
+
+        try {
+            server.shutdown(timeout, unit).get();
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            server.shutdownNow();
+        } catch (ExecutionException x) {
+            LOG.log(Level.WARNING, "Unable to stop the server gracefully", x);
+            server.shutdownNow();
+        }
+        server = null;
+        servlet.setHazelcast(null);
+        stopVirtualThreads();
+    }
+
+    private void stopVirtualThreads()
+    {
+        if (virtualThreads != null) {
+            virtualThreads.shutdown();
+            virtualThreads = null;
+        }
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for each task, if
+     * the running JDK provides them.
+     *
+     * @return the executor or {@code null} if not supported
+     */
+    static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            LOG.log(Level.WARNING, "Virtual threads are not supported by this"
+                    + " JVM, using worker threads instead: {0}", x.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Starts a Hazelcast member (configured as usual, e.g. using the system
+     * property {@code hazelcast.config}) and serves its buckets.
+     * <p>
+     * The settings are taken from the optional properties file given as the
+     * first argument, overridden by system properties of the same name.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Properties config = new Properties();
+        if (args.length > 0) {
+            try (InputStream in = new FileInputStream(args[0])) {
+                config.load(in);
+            }
+        }
+        for (String name : System.getProperties().stringPropertyNames()) {
+            config.setProperty(name, System.getProperty(name));
+        }
+
+        final HazelcastInstance hazelcast = Hazelcast.newHazelcastInstance();
+        final StandaloneServer server = new StandaloneServer(config, hazelcast);
+        Runtime.getRuntime().addShutdownHook(new Thread("bucket-shutdown") {
+            @Override
+            public void run()
+            {
+                server.stop(10, TimeUnit.SECONDS);
+                hazelcast.shutdown();
+            }
+        });
+
+        try {
+            server.start();
+        } catch (IOException | RuntimeException x) {
+            hazelcast.shutdown();
+            throw x;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.ConditionalGetProcessor;
+import org.ancoron.hazelcast.rest.map.SetValueProcessor;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueHeader;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.ICompletableFuture;
+import com.hazelcast.core.IMap;
+
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * Serves single values without blocking a container thread: request bodies
+ * are consumed through a {@link ReadListener}, values are written through a
+ * {@link WriteListener} and the cluster is accessed via asynchronous
+ * operations whose callbacks complete the {@link AsyncContext}.
+ *
+ * @author ancoron
+ */
+class AsyncValueHandler
+{
+
+    private static final Logger LOG = Logger.getLogger(AsyncValueHandler.class
+            .getName());
+
+    private static final int WRITE_CHUNK_SIZE = 32 * 1024;
+
+    private final HazelcastMapServlet servlet;
+
+    AsyncValueHandler(HazelcastMapServlet servlet)
+    {
+        this.servlet = servlet;
+    }
+
+    @SuppressWarnings("unchecked")
+    void get(final String map, final String key, final String[] ifNoneMatch,
+            final HttpServletRequest req, final HttpServletResponse resp)
+            throws IOException
+    {
+        servlet.verifyBucket(map);
+
+        final AsyncContext ctx = req.startAsync();
+        IMap<String, StoredValue> m = servlet.getHazelcast().getMap(map);
+
+        ExecutionCallback<Object> callback = new ExecutionCallback<Object>() {
+            @Override
+            public void onResponse(final Object result)
+            {
+                try {
+                    if (result == null) {
+                        servlet.sendError(resp, SC_NOT_FOUND,
+                                "Key does not exist in bucket '" + map + "': " + key);
+                        ctx.complete();
+                        return;
+                    } else if (result instanceof ValueHeader) {
+                        servlet.sendNotModified(req, resp, (ValueHeader) result);
+                        ctx.complete();
+                        return;
+                    }
+
+                    if (result instanceof ChunkedValue) {
+                        final ChunkedValue value = (ChunkedValue) result;
+                        // streaming chunks blocks, so leave the callback thread
+                        ctx.start(new Runnable() {
+                            @Override
+                            public void run()
+                            {
+                                try {
+                                    servlet.sendChunkedValue(resp, map, key,
+                                            value);
+                                    ctx.complete();
+                                } catch (IOException | RuntimeException x) {
+                                    fail(ctx, resp, "Unable to send value for bucket '"
+                                            + map + "' and key '" + key + "'", x);
+                                }
+                            }
+                        });
+                        return;
+                    }
+
+                    StoredValue value = servlet.negotiateEncoding(req, resp,
+                            (StoredValue) result);
+                    if (value.getLength() == 0) {
+                        resp.setContentType(servlet.mapContentType(value.getType()));
+                        resp.setContentLength(0);
+                        resp.setStatus(SC_NO_CONTENT);
+                        ctx.complete();
+                    } else {
+                        resp.setStatus(SC_OK);
+                        resp.setContentType(servlet.mapContentType(value.getType()));
+                        resp.setContentLength(value.getLength());
+                        ServletOutputStream out = resp.getOutputStream();
+                        ValueWriter writer = new ValueWriter(ctx, out,
+                                value.getData(), value.getOffset(),
+                                value.getLength());
+                        out.setWriteListener(writer);
+                        // as for reading, not every container calls the
+                        // listener before isReady() returned false...
+                        writer.onWritePossible();
+                    }
+                } catch (IOException | RuntimeException x) {
+                    fail(ctx, resp, "Unable to send value for bucket '" + map
+                            + "' and key '" + key + "'", x);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                fail(ctx, resp, "Unable to get value for bucket '" + map
+                        + "' and key '" + key + "'", t);
+            }
+        };
+
+        ReadCoalescer.Flight flight = null;
+        if (servlet.isCoalesceReads()) {
+            flight = ifNoneMatch == null ? servlet.reads.join(m, key)
+                    : servlet.reads.find(map, key);
+        }
+
+        if (flight != null) {
+            flight.andThen(callback, ifNoneMatch);
+        } else if (ifNoneMatch == null) {
+            // the map proxy always returns an ICompletableFuture
+            ((ICompletableFuture<Object>) (ICompletableFuture) m.getAsync(key))
+                    .andThen(callback);
+        } else {
+            m.submitToKey(key, new ConditionalGetProcessor(ifNoneMatch),
+                    callback);
+        }
+    }
+
+    void put(final String map, final String key, final String contentType,
+            final int length, final String[] ifMatch,
+            final String[] ifNoneMatch, final HttpServletRequest req,
+            final HttpServletResponse resp) throws IOException
+    {
+        servlet.verifyBucket(map);
+
+        final byte type = servlet.mapContentType(contentType);
+        final byte[] data = new byte[length];
+
+        final AsyncContext ctx = req.startAsync();
+        final ServletInputStream in = req.getInputStream();
+        ReadListener listener = new ReadListener() {
+
+            private int offset = 0;
+            private boolean done = false;
+
+            @Override
+            public synchronized void onDataAvailable() throws IOException
+            {
+                int num;
+                while (offset < length && in.isReady()
+                        && (num = in.read(data, offset, length - offset)) > 0)
+                {
+                    offset += num;
+                }
+                if (offset >= length || in.isFinished()) {
+                    onAllDataRead();
+                }
+            }
+
+            @Override
+            public synchronized void onAllDataRead() throws IOException
+            {
+                if (done) {
+                    return;
+                }
+                done = true;
+
+                if (offset < length) {
+                    servlet.sendError(resp, SC_BAD_REQUEST, "Expected "
+                            + length + " bytes but got " + offset);
+                    ctx.complete();
+                    return;
+                }
+
+                final IMap<String, StoredValue> m = servlet.getHazelcast().getMap(map);
+                final StoredValue value = servlet.encodeValue(map,
+                        new StoredValue(type, StoredValue.digest(data, 0,
+                                length), data, 0, length));
+                m.submitToKey(key, new SetValueProcessor(value, ifMatch,
+                        ifNoneMatch),
+                        new ExecutionCallback<Object>() {
+                    @Override
+                    public void onResponse(Object previous)
+                    {
+                        try {
+                            if (Boolean.FALSE.equals(previous)) {
+                                servlet.sendWriteRejected(req, resp, map, key);
+                            } else {
+                                servlet.reads.invalidate(map, key);
+                                servlet.deleteChunks(m, key, previous);
+                                servlet.setETag(resp, value.getETag());
+                                resp.setStatus(SC_NO_CONTENT);
+                            }
+                            ctx.complete();
+                        } catch (IOException | RuntimeException x) {
+                            fail(ctx, resp, "Unable to send response for bucket '"
+                                    + map + "' and key '" + key + "'", x);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t)
+                    {
+                        fail(ctx, resp, "Unable to set value for bucket '"
+                                + map + "' and key '" + key + "'", t);
+                    }
+                });
+            }
+
+            @Override
+            public synchronized void onError(Throwable t)
+            {
+                if (done) {
+                    LOG.log(Level.FINE, "Unable to read value", t);
+                    return;
+                }
+                done = true;
+
+                fail(ctx, resp, "Unable to read value for bucket '" + map
+                        + "' and key '" + key + "'", t);
+            }
+        };
+        in.setReadListener(listener);
+        // some containers (e.g. Grizzly) neither notify about content that
+        // has already been received nor register for more before isReady()
+        // returned false, so start reading right away...
+        listener.onDataAvailable();
+    }
+
+    private void fail(AsyncContext ctx, HttpServletResponse resp,
+            String message, Throwable error)
+    {
+        try {
+            if (!resp.isCommitted()) {
+                servlet.sendError(resp, SC_INTERNAL_SERVER_ERROR, message, error);
+            } else {
+                LOG.log(Level.WARNING, message, error);
+            }
+        } catch (IOException | RuntimeException x) {
+            LOG.log(Level.WARNING, message, x);
+        } finally {
+            ctx.complete();
+        }
+    }
+
+    private static class ValueWriter implements WriteListener
+    {
+
+        private final AsyncContext ctx;
+        private final ServletOutputStream out;
+        private final byte[] data;
+        private final int end;
+        private int offset;
+        private boolean done;
+
+        ValueWriter(AsyncContext ctx, ServletOutputStream out, byte[] data,
+                int offset, int length)
+        {
+            this.ctx = ctx;
+            this.out = out;
+            this.data = data;
+            this.offset = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException
+        {
+            while (!done && out.isReady()) {
+                if (offset >= end) {
+                    done = true;
+                    ctx.complete();
+                    return;
+                }
+                int num = Math.min(WRITE_CHUNK_SIZE, end - offset);
+                out.write(data, offset, num);
+                offset += num;
+            }
+        }
+
+        @Override
+        public synchronized void onError(Throwable t)
+        {
+            LOG.log(Level.FINE, "Unable to write value", t);
+            if (!done) {
+                done = true;
+                ctx.complete();
+            }
+        }
+    }
+}
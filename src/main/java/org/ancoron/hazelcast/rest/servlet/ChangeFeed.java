@@ -0,0 +1,487 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.KeyPrefixPredicate;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+import org.ancoron.hazelcast.rest.query.Query;
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.IMap;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+
+import static javax.servlet.http.HttpServletResponse.*;
+
+/**
+ * Pushes the changes of buckets to subscribers as Server-Sent Events, so
+ * that clients can keep local copies up to date instead of polling.
+ * <p>
+ * Every subscriber registers an entry listener filtered by a
+ * {@link KeyPrefixPredicate}, which is evaluated on the owning members.
+ * Events are queued in a bounded buffer per subscriber and written through
+ * a {@link WriteListener}, flushing after a batch of them or once the
+ * buffer is empty. A subscriber whose buffer overflows (or who does not
+ * accept a heartbeat) is dropped by completing its response; it has to
+ * subscribe again and catch up by reading the values it is interested in.
+ *
+ * @author ancoron
+ */
+class ChangeFeed
+{
+
+    private static final Logger LOG = Logger.getLogger(ChangeFeed.class
+            .getName());
+
+    // keeps proxies from closing idle streams and detects gone clients...
+    private static final long HEARTBEAT_INTERVAL = 15;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(
+            StandardCharsets.UTF_8);
+
+    /**
+     * A single stream of events, which is also the entry listener feeding
+     * it.
+     */
+    final class Subscriber implements EntryAddedListener<String, StoredValue>,
+            EntryUpdatedListener<String, StoredValue>,
+            EntryRemovedListener<String, StoredValue>,
+            EntryEvictedListener<String, StoredValue>,
+            EntryExpiredListener<String, StoredValue>,
+            WriteListener, AsyncListener
+    {
+
+        private final IMap<String, StoredValue> map;
+        private final AsyncContext ctx;
+        private final ServletOutputStream out;
+        private final BlockingQueue<byte[]> events;
+        private final int batch;
+        private final boolean values;
+
+        // guarded by this...
+        private int unflushed;
+        private boolean closed;
+        private String registration;
+
+        Subscriber(IMap<String, StoredValue> map, AsyncContext ctx,
+                ServletOutputStream out, int buffer, int batch,
+                boolean values)
+        {
+            this.map = map;
+            this.ctx = ctx;
+            this.out = out;
+            this.events = new ArrayBlockingQueue<>(buffer);
+            this.batch = batch;
+            this.values = values;
+        }
+
+        @Override
+        public void entryAdded(EntryEvent<String, StoredValue> event)
+        {
+            offer(format("added", event.getKey(), event.getValue()));
+        }
+
+        @Override
+        public void entryUpdated(EntryEvent<String, StoredValue> event)
+        {
+            offer(format("updated", event.getKey(), event.getValue()));
+        }
+
+        @Override
+        public void entryRemoved(EntryEvent<String, StoredValue> event)
+        {
+            offer(format("removed", event.getKey(), null));
+        }
+
+        @Override
+        public void entryEvicted(EntryEvent<String, StoredValue> event)
+        {
+            offer(format("evicted", event.getKey(), null));
+        }
+
+        @Override
+        public void entryExpired(EntryEvent<String, StoredValue> event)
+        {
+            offer(format("expired", event.getKey(), null));
+        }
+
+        /**
+         * Queues an event and writes as much as possible right away, or
+         * drops this subscriber if its buffer is full.
+         */
+        void offer(byte[] event)
+        {
+            if (!events.offer(event)) {
+                LOG.log(Level.FINE, "Dropping slow subscriber of {0}",
+                        map.getName());
+                close();
+                return;
+            }
+            try {
+                onWritePossible();
+            } catch (IOException | RuntimeException x) {
+                onError(x);
+            }
+        }
+
+        private synchronized void registered(String registration)
+        {
+            this.registration = registration;
+            if (closed) {
+                deregister(map, registration);
+            }
+        }
+
+        @Override
+        public synchronized void onWritePossible() throws IOException
+        {
+            while (!closed && out.isReady()) {
+                byte[] event = unflushed < batch ? events.poll() : null;
+                if (event != null) {
+                    out.write(event);
+                    unflushed++;
+                } else if (unflushed > 0) {
+                    out.flush();
+                    unflushed = 0;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            LOG.log(Level.FINE, "Unable to write changes of "
+                    + map.getName(), t);
+            close();
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+            close();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event)
+        {
+            close();
+        }
+
+        @Override
+        public void onError(AsyncEvent event)
+        {
+            close();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        void close()
+        {
+            String id;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                id = registration;
+                events.clear();
+            }
+
+            Set<Subscriber> subscribers = buckets.get(map.getName());
+            if (subscribers != null) {
+                subscribers.remove(this);
+            }
+            if (id != null) {
+                deregister(map, id);
+            }
+            try {
+                ctx.complete();
+            } catch (IllegalStateException x) {
+                // completed already...
+            }
+        }
+    }
+
+    private final HazelcastMapServlet servlet;
+    private final ConcurrentMap<String, Set<Subscriber>> buckets
+            = new ConcurrentHashMap<>();
+
+    // guarded by this...
+    private ScheduledExecutorService scheduler;
+
+    ChangeFeed(HazelcastMapServlet servlet)
+    {
+        this.servlet = servlet;
+    }
+
+    /**
+     * Starts streaming the changes of a bucket as the response to the given
+     * request, which has to support asynchronous processing.
+     *
+     * @param prefix the prefix of the keys to stream changes of or
+     * {@code null} for all keys
+     * @param values whether to include the new values of added and updated
+     * entries (except for chunked values)
+     * @param buffer the number of events to buffer
+     * @param batch the number of events to write before flushing
+     */
+    void subscribe(IMap<String, StoredValue> map, String prefix,
+            boolean values, int buffer, int batch, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        resp.setStatus(SC_OK);
+        resp.setContentType("text/event-stream");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext ctx = req.startAsync();
+        ctx.setTimeout(0);
+        ServletOutputStream out = resp.getOutputStream();
+        Subscriber subscriber = new Subscriber(map, ctx, out, buffer, batch,
+                values);
+        ctx.addListener(subscriber);
+        subscribers(map.getName()).add(subscriber);
+        startHeartbeat();
+
+        out.setWriteListener(subscriber);
+        subscriber.registered(map.addEntryListener(subscriber,
+                new KeyPrefixPredicate(prefix), values));
+        // tells clients that changes from now on are streamed...
+        subscriber.offer(format("ready", null, null));
+    }
+
+    private Set<Subscriber> subscribers(String map)
+    {
+        Set<Subscriber> subscribers = buckets.get(map);
+        if (subscribers == null) {
+            subscribers = Collections.newSetFromMap(
+                    new ConcurrentHashMap<Subscriber, Boolean>());
+            Set<Subscriber> existing = buckets.putIfAbsent(map, subscribers);
+            if (existing != null) {
+                subscribers = existing;
+            }
+        }
+        return subscribers;
+    }
+
+    /**
+     * Returns the number of subscribers of the given bucket on this member.
+     */
+    int count(String map)
+    {
+        Set<Subscriber> subscribers = buckets.get(map);
+        return subscribers == null ? 0 : subscribers.size();
+    }
+
+    /**
+     * Ends the streams of all subscribers of the given bucket.
+     */
+    void remove(String map)
+    {
+        Set<Subscriber> subscribers = buckets.remove(map);
+        if (subscribers != null) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+
+    /**
+     * Ends the streams of all subscribers.
+     */
+    void close()
+    {
+        for (String map : new ArrayList<>(buckets.keySet())) {
+            remove(map);
+        }
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private synchronized void startHeartbeat()
+    {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "change-feed");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run()
+            {
+                List<Subscriber> all = new ArrayList<>();
+                for (Set<Subscriber> subscribers : buckets.values()) {
+                    all.addAll(subscribers);
+                }
+                for (Subscriber subscriber : all) {
+                    subscriber.offer(HEARTBEAT);
+                }
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Removes an entry listener off the calling thread, which may be an
+     * event thread of Hazelcast that must not wait for the cluster.
+     */
+    private void deregister(final IMap<String, StoredValue> map,
+            final String registration)
+    {
+        Runnable task = new Runnable() {
+            @Override
+            public void run()
+            {
+                try {
+                    map.removeEntryListener(registration);
+                } catch (RuntimeException x) {
+                    // the bucket or the cluster is gone...
+                    LOG.log(Level.FINE, "Unable to remove entry listener for "
+                            + map.getName(), x);
+                }
+            }
+        };
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.execute(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * Formats a single event: its type and a JSON object with the key and,
+     * if given, the metadata and content of the value.
+     */
+    private byte[] format(String type, String key, StoredValue value)
+    {
+        StringWriter data = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(data)) {
+            writer.beginObject();
+            if (key != null) {
+                writer.name("key").value(key);
+            }
+            if (value != null) {
+                writeValue(writer, value);
+            }
+            writer.endObject();
+        } catch (IOException x) {
+            // not for a StringWriter...
+            throw new IllegalStateException(x);
+        }
+
+        // a line break of the key would end the data line...
+        StringBuilder event = new StringBuilder(data.getBuffer().length() + 32);
+        event.append("event: ").append(type).append('\n');
+        for (String line : data.toString().split("\r\n|\r|\n", -1)) {
+            event.append("data: ").append(line).append('\n');
+        }
+        event.append('\n');
+        return event.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void writeValue(JsonWriter writer, StoredValue value)
+            throws IOException
+    {
+        writer.name("etag").value(value.getETag());
+        writer.name("contentType").value(servlet.mapContentType(
+                value.getType()));
+        writer.name("length").value(value.getContentLength());
+        if (value instanceof ChunkedValue) {
+            // the chunks are to be read separately...
+            writer.name("chunked").value(true);
+            return;
+        }
+
+        byte type = value.getType();
+        if (type == HazelcastMapServlet.T_APPLICATION_JSON) {
+            JsonElement json = Query.parse(value);
+            if (json != null) {
+                writer.name("value").jsonValue(json.toString());
+                return;
+            }
+        }
+
+        final StoredValue decoded;
+        try {
+            decoded = ValueEncoding.decode(value);
+        } catch (IOException x) {
+            LOG.log(Level.FINE, "Unable to decode value", x);
+            return;
+        }
+        if (type >= HazelcastMapServlet.T_APPLICATION_JSON
+                && type <= HazelcastMapServlet.T_TEXT_XML)
+        {
+            writer.name("value").value(new String(decoded.getData(),
+                    decoded.getOffset(), decoded.getLength(),
+                    StandardCharsets.UTF_8));
+        } else {
+            writer.name("value").value(Base64.encodeBase64String(
+                    decoded.toByteArray()));
+            writer.name("base64").value(true);
+        }
+    }
+}
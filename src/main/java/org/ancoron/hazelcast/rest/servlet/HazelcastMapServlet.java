@@ -17,32 +17,87 @@ package org.ancoron.hazelcast.rest.servlet;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.ancoron.hazelcast.rest.admission.AdmissionControl;
+import org.ancoron.hazelcast.rest.admission.ConcurrencyLimit;
+import org.ancoron.hazelcast.rest.catalog.BucketBalancer;
+import org.ancoron.hazelcast.rest.catalog.BucketCatalog;
+import org.ancoron.hazelcast.rest.catalog.BucketDefinition;
+import org.ancoron.hazelcast.rest.map.BufferPool;
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.ConditionalGetProcessor;
+import org.ancoron.hazelcast.rest.map.EntryCountOperation;
+import org.ancoron.hazelcast.rest.map.KeyPageOperation;
+import org.ancoron.hazelcast.rest.map.PatchProcessor;
+import org.ancoron.hazelcast.rest.map.SetValueProcessor;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+import org.ancoron.hazelcast.rest.map.ValueHeader;
+import org.ancoron.hazelcast.rest.map.ValueMetadata;
+import org.ancoron.hazelcast.rest.map.ValueMetadataOperation;
+import org.ancoron.hazelcast.rest.map.ValueRange;
+import org.ancoron.hazelcast.rest.map.ValueRangeOperation;
+import org.ancoron.hazelcast.rest.metrics.Metrics;
+import org.ancoron.hazelcast.rest.metrics.Operation;
+import org.ancoron.hazelcast.rest.metrics.OperationMetrics;
+import org.ancoron.hazelcast.rest.query.Aggregation;
+import org.ancoron.hazelcast.rest.query.Query;
+import org.ancoron.hazelcast.rest.query.QueryOperation;
+import org.ancoron.hazelcast.rest.query.QueryResult;
+import org.ancoron.hazelcast.rest.store.PersistentBucket;
+import org.ancoron.hazelcast.rest.store.SegmentStore;
+import org.ancoron.hazelcast.rest.servlet.Route.Target;
+import org.apache.commons.io.IOUtils;
+
+import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.hazelcast.config.EvictionPolicy;
 import com.hazelcast.config.InMemoryFormat;
 import com.hazelcast.config.MapConfig;
-import com.hazelcast.config.MaxSizeConfig;
+import com.hazelcast.config.NearCacheConfig;
 import com.hazelcast.core.DistributedObjectEvent;
 import com.hazelcast.core.DistributedObjectListener;
 import com.hazelcast.core.HazelcastInstance;
 import com.hazelcast.core.IMap;
 import com.hazelcast.map.impl.MapService;
+import com.hazelcast.monitor.LocalMapStats;
+import com.hazelcast.monitor.NearCacheStats;
+import com.hazelcast.spi.InternalCompletableFuture;
 
 import static javax.servlet.http.HttpServletResponse.*;
 
@@ -59,7 +114,8 @@ public class HazelcastMapServlet extends HttpServlet
     private static final Logger LOG = Logger.getLogger(HazelcastMapServlet.class
             .getName());
 
-    protected static final int T_APPLICATION_OCTETSTREAM = 0;
+    protected static final int T_APPLICATION_OCTETSTREAM =
+            StoredValue.T_APPLICATION_OCTETSTREAM;
     protected static final int T_IMAGE_GIF = 8;
     protected static final int T_IMAGE_PNG = 7;
     protected static final int T_IMAGE_JPEG = 6;
@@ -67,7 +123,8 @@ public class HazelcastMapServlet extends HttpServlet
     protected static final int T_APPLICATION_XML = 4;
     protected static final int T_TEXT_HTML = 3;
     protected static final int T_TEXT_PLAIN = 2;
-    protected static final int T_APPLICATION_JSON = 1;
+    protected static final int T_APPLICATION_JSON =
+            StoredValue.T_APPLICATION_JSON;
 
     protected static final String TYPE_APPLICATION_OCTETSTREAM = "application/octet-stream";
     protected static final String TYPE_IMAGE_GIF = "image/gif";
@@ -79,13 +136,308 @@ public class HazelcastMapServlet extends HttpServlet
     protected static final String TYPE_TEXT_PLAIN = "text/plain";
     protected static final String TYPE_APPLICATION_JSON = "application/json";
 
-    private static final Pattern ROUTE_BUCKET = Pattern.compile("^/([^/]+)$");
-    private static final Pattern ROUTE_KEY = Pattern.compile(
-            "^/([^/]+)/([^/]+)$");
+    private static final int BULK_BATCH_SIZE = 1000;
+    private static final long BULK_BATCH_BYTES = 8L * 1024 * 1024;
+
+    private static final int CHUNK_THRESHOLD = 1024 * 1024;
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int POOLED_BUFFERS = 16;
+    private static final int MAX_RANGES = 32;
+
+    private static final int KEYS_PAGE_SIZE = 1000;
+    private static final int KEYS_MAX_PAGE_SIZE = 10000;
+    private static final int KEYS_PREFETCH = 4;
+    private static final int QUERY_PREFETCH = 16;
+
+    private static final int CHANGES_BUFFER = 1024;
+    private static final int CHANGES_BATCH = 64;
+
+    // "If-None-Match: *", i.e. only if there is no value yet
+    private static final String[] ANY = {"*"};
+
+    private static final String PATCH_TYPES = "application/merge-patch+json, "
+            + "application/json-patch+json, application/octet-stream";
 
     protected HazelcastInstance hazelcast;
-    protected final ConcurrentMap<String, Long> bucketCreation
-            = new ConcurrentHashMap<>();
+    protected transient BucketCatalog catalog;
+
+    protected final transient Metrics metrics = new Metrics();
+
+    protected boolean async;
+    protected int heapBudget;
+    protected String dataDirectory;
+    protected int maxInFlight;
+    protected int bucketMaxInFlight;
+    protected boolean adaptiveLimits = true;
+    protected int retryAfter = 1;
+    protected boolean coalesceReads = true;
+    final transient ReadCoalescer reads = new ReadCoalescer();
+    protected int changesBuffer = CHANGES_BUFFER;
+    final transient ChangeFeed changes = new ChangeFeed(this);
+    protected transient volatile AdmissionControl admission
+            = new AdmissionControl(0, 0, true);
+    private final transient AsyncValueHandler asyncHandler
+            = new AsyncValueHandler(this);
+
+    protected int chunkThreshold = CHUNK_THRESHOLD;
+    protected int chunkSize = CHUNK_SIZE;
+    protected transient BufferPool buffers = new BufferPool(CHUNK_THRESHOLD,
+            POOLED_BUFFERS);
+
+    @Override
+    public void init() throws ServletException
+    {
+        String async_str = getInitParameter("async");
+        if (async_str != null) {
+            setAsync(Boolean.parseBoolean(async_str));
+        }
+        String threshold_str = getInitParameter("chunkThreshold");
+        if (threshold_str != null) {
+            setChunkThreshold(Integer.parseInt(threshold_str));
+        }
+        String chunk_str = getInitParameter("chunkSize");
+        if (chunk_str != null) {
+            setChunkSize(Integer.parseInt(chunk_str));
+        }
+        String budget_str = getInitParameter("heapBudget");
+        if (budget_str != null) {
+            setHeapBudget(Integer.parseInt(budget_str));
+        }
+        String directory_str = getInitParameter("dataDirectory");
+        if (directory_str != null) {
+            try {
+                setDataDirectory(directory_str);
+            } catch (IOException x) {
+                throw new ServletException(x);
+            }
+        }
+        String adaptive_str = getInitParameter("adaptiveLimits");
+        if (adaptive_str != null) {
+            setAdaptiveLimits(Boolean.parseBoolean(adaptive_str));
+        }
+        String inflight_str = getInitParameter("maxInFlight");
+        if (inflight_str != null) {
+            setMaxInFlight(Integer.parseInt(inflight_str));
+        }
+        String bucket_inflight_str = getInitParameter("bucketMaxInFlight");
+        if (bucket_inflight_str != null) {
+            setBucketMaxInFlight(Integer.parseInt(bucket_inflight_str));
+        }
+        String retry_str = getInitParameter("retryAfter");
+        if (retry_str != null) {
+            setRetryAfter(Integer.parseInt(retry_str));
+        }
+        String coalesce_str = getInitParameter("coalesceReads");
+        if (coalesce_str != null) {
+            setCoalesceReads(Boolean.parseBoolean(coalesce_str));
+        }
+        String read_ttl_str = getInitParameter("readTtl");
+        if (read_ttl_str != null) {
+            setReadTtl(Integer.parseInt(read_ttl_str));
+        }
+        String changes_buffer_str = getInitParameter("changesBuffer");
+        if (changes_buffer_str != null) {
+            setChangesBuffer(Integer.parseInt(changes_buffer_str));
+        }
+    }
+
+    public int getChunkThreshold()
+    {
+        return chunkThreshold;
+    }
+
+    /**
+     * Sets the value size in bytes above which values are stored as a
+     * sequence of chunks instead of a single entry.
+     */
+    public void setChunkThreshold(int chunkThreshold)
+    {
+        // no negative threshold, please
+        this.chunkThreshold = Math.max(0, chunkThreshold);
+        this.buffers = new BufferPool(Math.max(this.chunkThreshold, chunkSize),
+                POOLED_BUFFERS);
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize)
+    {
+        // no empty chunks, please
+        this.chunkSize = Math.max(1, chunkSize);
+        this.buffers = new BufferPool(Math.max(chunkThreshold, this.chunkSize),
+                POOLED_BUFFERS);
+    }
+
+    public boolean isAsync()
+    {
+        return async;
+    }
+
+    /**
+     * Enables serving single values asynchronously using non-blocking I/O
+     * and asynchronous cluster operations, if the request supports it.
+     */
+    public void setAsync(boolean async)
+    {
+        this.async = async;
+    }
+
+    public int getHeapBudget()
+    {
+        return heapBudget;
+    }
+
+    /**
+     * Sets the heap in MiB that all buckets together may use on each member
+     * (0 for no budget), see {@link BucketBalancer}.
+     */
+    public void setHeapBudget(int heapBudget)
+    {
+        // no negative budget, please
+        this.heapBudget = Math.max(0, heapBudget);
+        if (catalog != null) {
+            catalog.getBalancer().setHeapBudget(this.heapBudget);
+        }
+    }
+
+    public String getDataDirectory()
+    {
+        return dataDirectory;
+    }
+
+    /**
+     * Sets the directory in which persistent buckets are kept on this
+     * member, see {@link PersistentBucket}.
+     */
+    public void setDataDirectory(String dataDirectory) throws IOException
+    {
+        this.dataDirectory = dataDirectory;
+        if (catalog != null && dataDirectory != null) {
+            catalog.setDataDirectory(new File(dataDirectory));
+        }
+    }
+
+    public int getMaxInFlight()
+    {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets the number of requests this member serves at the same time (0
+     * for no limit), see {@link AdmissionControl}. Further requests are
+     * rejected with 503 (Service Unavailable).
+     */
+    public void setMaxInFlight(int maxInFlight)
+    {
+        this.maxInFlight = Math.max(0, maxInFlight);
+        this.admission = new AdmissionControl(this.maxInFlight,
+                bucketMaxInFlight, adaptiveLimits);
+    }
+
+    public int getBucketMaxInFlight()
+    {
+        return bucketMaxInFlight;
+    }
+
+    /**
+     * Sets the number of requests this member serves at the same time for
+     * each bucket (0 for no limit).
+     */
+    public void setBucketMaxInFlight(int bucketMaxInFlight)
+    {
+        this.bucketMaxInFlight = Math.max(0, bucketMaxInFlight);
+        this.admission = new AdmissionControl(maxInFlight,
+                this.bucketMaxInFlight, adaptiveLimits);
+    }
+
+    public boolean isAdaptiveLimits()
+    {
+        return adaptiveLimits;
+    }
+
+    /**
+     * Lets the limits of requests in flight follow the observed latency
+     * instead of being fixed, see {@link ConcurrencyLimit}.
+     */
+    public void setAdaptiveLimits(boolean adaptiveLimits)
+    {
+        this.adaptiveLimits = adaptiveLimits;
+        this.admission = new AdmissionControl(maxInFlight, bucketMaxInFlight,
+                adaptiveLimits);
+    }
+
+    public int getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    /**
+     * Sets the seconds clients are asked to wait before retrying a request
+     * rejected by admission control.
+     */
+    public void setRetryAfter(int retryAfter)
+    {
+        // no negative delay, please
+        this.retryAfter = Math.max(0, retryAfter);
+    }
+
+    public boolean isCoalesceReads()
+    {
+        return coalesceReads;
+    }
+
+    /**
+     * Lets concurrent reads of the same value on this member share a single
+     * fetch from the owning member, see {@link ReadCoalescer}.
+     */
+    public void setCoalesceReads(boolean coalesceReads)
+    {
+        this.coalesceReads = coalesceReads;
+    }
+
+    public int getReadTtl()
+    {
+        return (int) reads.getTtl(TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the milliseconds a value fetched for coalesced reads is used for
+     * further reads (0 to only share fetches in flight). Values changed on
+     * other members may be read that much later.
+     */
+    public void setReadTtl(int millis)
+    {
+        reads.setTtl(millis, TimeUnit.MILLISECONDS);
+    }
+
+    public int getChangesBuffer()
+    {
+        return changesBuffer;
+    }
+
+    /**
+     * Sets the number of events buffered for each subscriber of a change
+     * feed, see {@link ChangeFeed}. Subscribers falling further behind are
+     * dropped.
+     */
+    public void setChangesBuffer(int changesBuffer)
+    {
+        // at least one event, please
+        this.changesBuffer = Math.max(1, changesBuffer);
+    }
+
+    public AdmissionControl getAdmission()
+    {
+        return admission;
+    }
+
+    public Metrics getMetrics()
+    {
+        return metrics;
+    }
 
     public HazelcastInstance getHazelcast()
     {
@@ -94,33 +446,233 @@ public class HazelcastMapServlet extends HttpServlet
 
     public void setHazelcast(HazelcastInstance hazelcast)
     {
+        if (catalog != null) {
+            catalog.close();
+            catalog = null;
+        }
+        changes.close();
         this.hazelcast = hazelcast;
         if (hazelcast != null) {
+            catalog = new BucketCatalog(hazelcast);
+            if (heapBudget > 0) {
+                catalog.getBalancer().setHeapBudget(heapBudget);
+            }
+            if (dataDirectory != null) {
+                try {
+                    catalog.setDataDirectory(new File(dataDirectory));
+                } catch (IOException x) {
+                    LOG.log(Level.WARNING, "Unable to use data directory "
+                            + dataDirectory, x);
+                }
+            }
             hazelcast.addDistributedObjectListener(this);
         }
     }
 
+    /**
+     * Records the latency, status and transferred bytes of every request in
+     * the {@link Metrics} of the targeted bucket and operation. Asynchronous
+     * requests are recorded once they complete.
+     * <p>
+     * Requests beyond the limits of the {@link AdmissionControl} are
+     * rejected right away with 503 (Service Unavailable) and a
+     * {@code Retry-After} header. Metrics are always served, as are change
+     * feeds, which would hold on to a permit for as long as they last.
+     */
     @Override
-    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+    protected void service(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException
     {
-        final String path = req.getPathInfo();
-        Matcher matcher = ROUTE_KEY.matcher(path);
+        final long start = System.nanoTime();
+        final Route route = Route.of(req);
+        final String bucket = metricsBucket(route);
+        final OperationMetrics op = operationMetrics(route, bucket,
+                req.getMethod());
+        final MeteredResponse metered = new MeteredResponse(resp);
+        final long in = Math.max(0, req.getContentLength());
 
-        if (matcher.matches()) {
-            final String map = matcher.group(1);
-            final String key = matcher.group(2);
-            if (getValue(map, key) == null) {
-                doPut(req, resp);
+        final AdmissionControl.Permit permit;
+        if (route != null && (route.getTarget() == Target.METRICS
+                || route.getTarget() == Target.CHANGES))
+        {
+            permit = null;
+        } else {
+            permit = admission.acquire(bucket);
+            if (permit == null) {
+                metered.setHeader("Retry-After", String.valueOf(retryAfter));
+                sendError(metered, SC_SERVICE_UNAVAILABLE,
+                        "Too many requests in flight for bucket " + bucket);
+                op.record(System.nanoTime() - start, SC_SERVICE_UNAVAILABLE,
+                        in, metered.getBytesWritten());
+                return;
+            }
+        }
+
+        boolean failed = true;
+        try {
+            if ("PATCH".equals(req.getMethod())) {
+                // not known to HttpServlet...
+                doPatch(req, metered);
             } else {
-                resp.sendError(SC_CONFLICT,
-                        "Key already exists in bucket '" + map + "': " + key);
+                super.service(req, metered);
             }
-        } else if ((matcher = ROUTE_BUCKET.matcher(path)).matches()) {
-            final String map = matcher.group(1);
+            failed = false;
+        } finally {
+            if (failed) {
+                long nanos = System.nanoTime() - start;
+                if (permit != null) {
+                    permit.release(nanos);
+                }
+                op.record(nanos, SC_INTERNAL_SERVER_ERROR, in,
+                        metered.getBytesWritten());
+            } else if (req.isAsyncStarted()) {
+                req.getAsyncContext().addListener(new AsyncListener() {
+                    @Override
+                    public void onComplete(AsyncEvent event)
+                    {
+                        long nanos = System.nanoTime() - start;
+                        if (permit != null) {
+                            permit.release(nanos);
+                        }
+                        op.record(nanos, metered.getStatus(), in,
+                                metered.getBytesWritten());
+                    }
+
+                    @Override
+                    public void onTimeout(AsyncEvent event)
+                    {
+                        // recorded on completion...
+                    }
+
+                    @Override
+                    public void onError(AsyncEvent event)
+                    {
+                        // recorded on completion...
+                    }
+
+                    @Override
+                    public void onStartAsync(AsyncEvent event)
+                    {
+                    }
+                });
+            } else {
+                long nanos = System.nanoTime() - start;
+                if (permit != null) {
+                    permit.release(nanos);
+                }
+                op.record(nanos, metered.getStatus(), in,
+                        metered.getBytesWritten());
+            }
+        }
+    }
+
+    /**
+     * Returns the bucket a request is accounted to, which is
+     * {@link Metrics#OTHER} for anything but existing buckets.
+     */
+    private String metricsBucket(Route route)
+    {
+        // only existing buckets get metrics of their own...
+        String bucket = route == null ? null : route.getBucket();
+        if (bucket == null || !catalog.contains(bucket)) {
+            bucket = Metrics.OTHER;
+        }
+        return bucket;
+    }
+
+    private OperationMetrics operationMetrics(Route route, String bucket,
+            String method)
+    {
+        if (route == null) {
+            return metrics.get(bucket, Operation.OTHER);
+        }
+
+        final Operation op;
+        switch (route.getTarget()) {
+            case KEY:
+                switch (method) {
+                    case "GET":
+                        op = Operation.GET;
+                        break;
+                    case "HEAD":
+                        op = Operation.HEAD;
+                        break;
+                    case "PUT":
+                        op = Operation.PUT;
+                        break;
+                    case "POST":
+                        op = Operation.CREATE;
+                        break;
+                    case "DELETE":
+                        op = Operation.DELETE;
+                        break;
+                    case "PATCH":
+                        op = Operation.PATCH;
+                        break;
+                    default:
+                        op = Operation.OTHER;
+                }
+                break;
+            case BUCKET:
+                switch (method) {
+                    case "GET":
+                        op = Operation.BUCKET_INFO;
+                        break;
+                    case "POST":
+                        op = Operation.BUCKET_CREATE;
+                        break;
+                    case "DELETE":
+                        op = Operation.BUCKET_DELETE;
+                        break;
+                    default:
+                        op = Operation.OTHER;
+                }
+                break;
+            case MGET:
+                op = Operation.MGET;
+                break;
+            case BULK:
+                op = Operation.BULK;
+                break;
+            case KEYS:
+                op = Operation.KEYS;
+                break;
+            case QUERY:
+                op = Operation.QUERY;
+                break;
+            case CHANGES:
+                op = Operation.CHANGES;
+                break;
+            default:
+                op = Operation.OTHER;
+        }
+        return metrics.get(bucket, op);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException
+    {
+        final String path = req.getPathInfo();
+        final Route route = Route.of(req);
+        final Target target = route == null ? null : route.getTarget();
+
+        if (target == Target.KEY) {
+            // only create the value if absent, atomically on the owner...
+            putValue(route.getBucket(), route.getKey(), null, ANY, req, resp);
+        } else if (target == Target.MGET) {
+            doMultiGet(route.getBucket(), req, resp);
+        } else if (target == Target.BULK) {
+            doBulkPut(route.getBucket(), req, resp);
+        } else if (target == Target.QUERY) {
+            doQuery(route.getBucket(), req, resp);
+        } else if (target == Target.BUCKET) {
+            final String map = route.getBucket();
             String ttl_str = req.getParameter("ttl");
             String backups_str = req.getParameter("backups");
             String maxdata_str = req.getParameter("maxData");
+            String compression_str = req.getParameter("compression");
+            String persistent_str = req.getParameter("persistent");
             try {
                 final int ttl;
                 if (ttl_str != null) {
@@ -146,116 +698,924 @@ public class HazelcastMapServlet extends HttpServlet
                     maxdata = 128; // 128 MiB of data by default
                 }
 
-                createBucket(map, ttl, backups, maxdata);
+                final ValueEncoding compression;
+                if (compression_str != null) {
+                    compression = ValueEncoding.forName(compression_str);
+                } else {
+                    compression = ValueEncoding.IDENTITY; // store as is
+                }
+
+                createBucket(map, ttl, backups, maxdata, nearCacheConfig(req),
+                        compression, Boolean.parseBoolean(persistent_str));
 
                 resp.setStatus(SC_NO_CONTENT);
             } catch (FileAlreadyExistsException x) {
                 sendError(resp, SC_CONFLICT, "Bucket already exists: " + map, x);
-            } catch (NumberFormatException x) {
+            } catch (IllegalArgumentException x) {
                 sendError(resp, SC_BAD_REQUEST, "Invalid parameter value specified", x);
             }
+        } else if (target != null) {
+            resp.sendError(SC_METHOD_NOT_ALLOWED);
         } else {
             sendError(resp, SC_NOT_FOUND, "Resource not found: " + path);
         }
     }
 
+    /**
+     * Builds the near cache configuration from the request parameters, which
+     * is only enabled if at least one of the near cache parameters is given.
+     */
+    protected NearCacheConfig nearCacheConfig(HttpServletRequest req)
+    {
+        String size_str = req.getParameter("nearCacheSize");
+        String ttl_str = req.getParameter("nearCacheTtl");
+        String invalidate_str = req.getParameter("nearCacheInvalidate");
+        String format_str = req.getParameter("nearCacheFormat");
+        if (size_str == null && ttl_str == null && invalidate_str == null
+                && format_str == null)
+        {
+            return null;
+        }
+
+        NearCacheConfig config = new NearCacheConfig();
+        config.setEvictionPolicy(EvictionPolicy.LRU.name());
+        if (size_str != null) {
+            // at least one entry, please
+            config.setMaxSize(Math.max(1, Integer.valueOf(size_str)));
+        } else {
+            config.setMaxSize(10000);
+        }
+        if (ttl_str != null) {
+            // no negative TTL, please
+            config.setTimeToLiveSeconds(Math.max(0, Integer.valueOf(ttl_str)));
+        }
+        if (invalidate_str != null) {
+            config.setInvalidateOnChange(Boolean.parseBoolean(invalidate_str));
+        }
+        if (format_str != null) {
+            config.setInMemoryFormat(InMemoryFormat.valueOf(
+                    format_str.toUpperCase()));
+        }
+        return config;
+    }
+
+    /**
+     * Fetches the values for a JSON array of keys using a single call to the
+     * cluster and writes them as a "multipart/mixed" response, one part per
+     * existing key in request order. Keys that do not exist are omitted.
+     */
+    protected void doMultiGet(String map, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        final Set<String> keys = new LinkedHashSet<>();
+        try (JsonReader reader = new JsonReader(new InputStreamReader(
+                req.getInputStream(), StandardCharsets.UTF_8)))
+        {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String key = reader.nextString();
+                if (!Route.isValidKey(key)) {
+                    sendError(resp, SC_BAD_REQUEST, "Invalid key");
+                    return;
+                }
+                keys.add(key);
+            }
+            reader.endArray();
+        } catch (IllegalStateException | MalformedJsonException | EOFException x) {
+            sendError(resp, SC_BAD_REQUEST, "Expected a JSON array of keys", x);
+            return;
+        }
+
+        try {
+            verifyBucket(map);
+            final IMap<String, StoredValue> m = hazelcast.getMap(map);
+            final Map<String, StoredValue> values = keys.isEmpty()
+                    ? Collections.<String, StoredValue>emptyMap()
+                    : m.getAll(keys);
+
+            final String acceptEncoding = req.getHeader("Accept-Encoding");
+            final String boundary = MultipartWriter.newBoundary();
+            resp.setStatus(SC_OK);
+            resp.setContentType("multipart/mixed; boundary=" + boundary);
+            try (MultipartWriter writer = new MultipartWriter(
+                    resp.getOutputStream(), boundary))
+            {
+                for (String key : keys) {
+                    StoredValue value = values.get(key);
+                    if (value == null) {
+                        continue;
+                    }
+                    String etag = value.getETag();
+                    String contentEncoding = null;
+                    ValueEncoding encoding = ValueEncoding.of(value.getEncoding());
+                    if (encoding.isAccepted(acceptEncoding)) {
+                        if (encoding != ValueEncoding.IDENTITY) {
+                            contentEncoding = "Content-Encoding: "
+                                    + encoding.getToken();
+                            etag = weakETag(etag);
+                        }
+                    } else {
+                        value = ValueEncoding.decode(value);
+                    }
+                    writer.beginPart(
+                            "Content-ID: <" + URLEncoder.encode(key, "UTF-8") + ">",
+                            "Content-Type: " + mapContentType(value.getType()),
+                            "Content-Length: " + value.getContentLength(),
+                            contentEncoding,
+                            etag == null ? null : "ETag: " + etag);
+                    value.writeTo(m, key, writer.body());
+                    writer.endPart();
+                }
+            }
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+        }
+    }
+
+    /**
+     * Stores a stream of length-prefixed entries in chunks using
+     * {@link IMap#putAll(java.util.Map)}. Every entry is framed as written by
+     * a {@link java.io.DataOutputStream}: the key and the content type via
+     * {@code writeUTF}, the value length via {@code writeInt} followed by
+     * the value bytes. A chunk is flushed once it holds "batch" entries or
+     * {@link #BULK_BATCH_BYTES} bytes of data.
+     * <p>
+     * The response is a JSON object with the status of every entry, the
+     * number of stored and the number of failed entries.
+     */
+    protected void doBulkPut(String map, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        String batch_str = req.getParameter("batch");
+        final int batch;
+        try {
+            if (batch_str != null) {
+                // at least one entry per chunk, please
+                batch = Math.max(1, Integer.valueOf(batch_str));
+            } else {
+                batch = BULK_BATCH_SIZE;
+            }
+            verifyBucket(map);
+        } catch (NumberFormatException x) {
+            sendError(resp, SC_BAD_REQUEST, "Invalid parameter value specified", x);
+            return;
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            return;
+        }
+
+        resp.setStatus(SC_OK);
+        resp.setContentType(TYPE_APPLICATION_JSON);
+
+        int stored = 0;
+        int failed = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                req.getInputStream()));
+                JsonWriter writer = new JsonWriter(resp.getWriter()))
+        {
+            writer.beginObject();
+            writer.name("results").beginArray();
+
+            final Map<String, StoredValue> chunk = new LinkedHashMap<>();
+            final List<BufferPool.Buffer> staged = new ArrayList<>();
+            long chunkBytes = 0;
+            while (true) {
+                final String key;
+                try {
+                    key = in.readUTF();
+                } catch (EOFException x) {
+                    // regular end of the batch
+                    break;
+                }
+
+                try {
+                    String contentType = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0) {
+                        writeResult(writer, key, SC_BAD_REQUEST,
+                                "Invalid content length: " + length);
+                        failed++;
+                        break;
+                    }
+                    if (!Route.isValidKey(key)) {
+                        IOUtils.skipFully(in, length);
+                        writeResult(writer, key, SC_BAD_REQUEST,
+                                "Invalid key");
+                        failed++;
+                        continue;
+                    }
+
+                    final byte type;
+                    try {
+                        type = mapContentType(contentType);
+                    } catch (IllegalArgumentException x) {
+                        IOUtils.skipFully(in, length);
+                        writeResult(writer, key, SC_UNSUPPORTED_MEDIA_TYPE,
+                                x.getMessage());
+                        failed++;
+                        continue;
+                    }
+
+                    if (length > chunkThreshold) {
+                        setChunkedValue(map, key, type, length, in, null,
+                                null);
+                        writeResult(writer, key, SC_NO_CONTENT, null);
+                        stored++;
+                        continue;
+                    }
+
+                    chunk.put(key, readStagedValue(map, type, length, in,
+                            staged));
+                    chunkBytes += length;
+                } catch (EOFException x) {
+                    writeResult(writer, key, SC_BAD_REQUEST,
+                            "Unexpected end of batch");
+                    failed++;
+                    break;
+                }
+
+                if (chunk.size() >= batch || chunkBytes >= BULK_BATCH_BYTES) {
+                    int num = flushBulk(map, chunk, staged, writer);
+                    stored += num;
+                    failed += chunk.size() - num;
+                    chunk.clear();
+                    chunkBytes = 0;
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                int num = flushBulk(map, chunk, staged, writer);
+                stored += num;
+                failed += chunk.size() - num;
+            }
+
+            writer.endArray();
+            writer.name("stored").value(stored);
+            writer.name("failed").value(failed);
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Lists the keys of a bucket partition by partition, optionally only
+     * those starting with the value of the "prefix" parameter. Each page holds
+     * at most "limit" keys, fetched from the owners of the next few
+     * partitions in parallel and streamed as they arrive, so that neither
+     * this node nor any owner has to hold all keys at once.
+     * <p>
+     * The response is a JSON object with the keys (sorted within each
+     * partition), their count and an opaque cursor to pass as the "cursor"
+     * parameter for the next page, which is missing after the last page.
+     */
+    protected void doListKeys(String map, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        final String prefix = req.getParameter("prefix");
+        final PartitionPager<String[]> pager;
+        try {
+            verifyBucket(map);
+            final IMap<String, StoredValue> m = hazelcast.getMap(map);
+            pager = new PartitionPager<String[]>(req,
+                    KeyPageOperation.partitions(m), KEYS_PREFETCH,
+                    KEYS_PAGE_SIZE, KEYS_MAX_PAGE_SIZE) {
+                @Override
+                protected InternalCompletableFuture<String[]> submit(
+                        int partition, String after, int limit)
+                {
+                    return KeyPageOperation.submit(m, partition, prefix,
+                            after, limit);
+                }
+
+                @Override
+                protected String[] keys(String[] keys)
+                {
+                    return keys;
+                }
+
+                @Override
+                protected void write(String[] keys, int index,
+                        JsonWriter writer) throws IOException
+                {
+                    writer.value(keys[index]);
+                }
+            };
+        } catch (NumberFormatException x) {
+            sendError(resp, SC_BAD_REQUEST, "Invalid parameter value specified", x);
+            return;
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            return;
+        }
+
+        resp.setStatus(SC_OK);
+        resp.setContentType(TYPE_APPLICATION_JSON);
+        try (JsonWriter writer = new JsonWriter(resp.getWriter())) {
+            writer.beginObject();
+            pager.write(writer, "keys");
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Runs a JSON {@link Query} given as the request body on the owners of
+     * all partitions of a bucket, so that only matching values (projected
+     * onto the selected fields) or partial aggregates travel to this node.
+     * <p>
+     * Each partition is queried slice by slice (see {@link QueryOperation}),
+     * so that the partition threads of the owners are never busy with a
+     * query for long.
+     * <p>
+     * Selected values are paged like the keys of {@link #doListKeys}, using
+     * the same "limit" and "cursor" parameters, with the partitions queried
+     * a few at a time. The response is a JSON object with the "results" as
+     * objects of "key" and "value", their "count" and the "cursor" for the
+     * next page, if any.
+     * <p>
+     * Aggregations are computed with a few slices in flight at a time and
+     * merged here. The response holds the "count" of matching values and the
+     * requested "sum", "min" and "max" objects by field, or, if grouped,
+     * these for each of the "groups".
+     */
+    protected void doQuery(String map, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        final Query query;
+        final IMap<String, StoredValue> m;
+        final int partitions;
+        final PartitionPager<QueryResult> pager;
+        try {
+            query = Query.parse(IOUtils.toString(req.getInputStream(),
+                    StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException x) {
+            sendError(resp, SC_BAD_REQUEST, x.getMessage(), x);
+            return;
+        }
+        try {
+            verifyBucket(map);
+            m = hazelcast.getMap(map);
+            partitions = KeyPageOperation.partitions(m);
+            pager = new PartitionPager<QueryResult>(req, partitions,
+                    QUERY_PREFETCH, KEYS_PAGE_SIZE, KEYS_MAX_PAGE_SIZE) {
+                @Override
+                protected InternalCompletableFuture<QueryResult> submit(
+                        int partition, String after, int limit)
+                {
+                    return QueryOperation.submit(m, partition, query, after,
+                            limit);
+                }
+
+                @Override
+                protected String[] keys(QueryResult result)
+                {
+                    return result.getKeys();
+                }
+
+                @Override
+                protected void write(QueryResult result, int index,
+                        JsonWriter writer) throws IOException
+                {
+                    writer.beginObject();
+                    writer.name("key").value(result.getKeys()[index]);
+                    writer.name("value").jsonValue(result.getValues()[index]);
+                    writer.endObject();
+                }
+
+                @Override
+                protected String resume(QueryResult result)
+                {
+                    return result.getResume();
+                }
+            };
+        } catch (NumberFormatException x) {
+            sendError(resp, SC_BAD_REQUEST, "Invalid parameter value specified", x);
+            return;
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            return;
+        }
+
+        if (query.isAggregate()) {
+            Aggregation aggregation = aggregate(m, partitions, query);
+            resp.setStatus(SC_OK);
+            resp.setContentType(TYPE_APPLICATION_JSON);
+            try (JsonWriter writer = new JsonWriter(resp.getWriter())) {
+                writer.beginObject();
+                aggregation.writeJson(writer);
+                writer.endObject();
+            }
+            return;
+        }
+
+        resp.setStatus(SC_OK);
+        resp.setContentType(TYPE_APPLICATION_JSON);
+        try (JsonWriter writer = new JsonWriter(resp.getWriter())) {
+            writer.beginObject();
+            pager.write(writer, "results");
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Aggregates the values of all partitions slice by slice, with a few
+     * slices of different partitions in flight at a time.
+     */
+    private Aggregation aggregate(IMap<String, StoredValue> m,
+            int partitions, Query query)
+    {
+        Aggregation aggregation = new Aggregation(query);
+        Deque<InternalCompletableFuture<QueryResult>> pending
+                = new ArrayDeque<>(QUERY_PREFETCH);
+        Deque<Integer> scanning = new ArrayDeque<>(QUERY_PREFETCH);
+        int next = 0;
+        while (next < partitions || !pending.isEmpty()) {
+            while (next < partitions && pending.size() < QUERY_PREFETCH) {
+                pending.addLast(QueryOperation.submit(m, next, query, null, 0));
+                scanning.addLast(next++);
+            }
+
+            QueryResult result = pending.removeFirst().getSafely();
+            int partition = scanning.removeFirst();
+            aggregation.merge(result.getAggregation());
+            if (result.getResume() != null) {
+                pending.addLast(QueryOperation.submit(m, partition, query,
+                        result.getResume(), 0));
+                scanning.addLast(partition);
+            }
+        }
+        return aggregation;
+    }
+
+    /**
+     * Streams the changes of a bucket as Server-Sent Events, see
+     * {@link ChangeFeed}: optionally only of keys starting with the value of
+     * the "prefix" parameter and, if "values" is true, including the new
+     * values. The "batch" parameter sets the number of events written
+     * before flushing (at most the buffer per subscriber).
+     */
+    protected void doChanges(String map, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        String prefix = req.getParameter("prefix");
+        String values_str = req.getParameter("values");
+        String batch_str = req.getParameter("batch");
+        final int batch;
+        try {
+            verifyBucket(map);
+            if (batch_str != null) {
+                batch = Math.min(changesBuffer, Integer.valueOf(batch_str));
+            } else {
+                batch = Math.min(changesBuffer, CHANGES_BATCH);
+            }
+            if (batch < 1) {
+                throw new NumberFormatException("Out of range");
+            }
+        } catch (NumberFormatException x) {
+            sendError(resp, SC_BAD_REQUEST, "Invalid parameter value specified", x);
+            return;
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            return;
+        }
+
+        if (!req.isAsyncSupported()) {
+            sendError(resp, SC_NOT_IMPLEMENTED,
+                    "Change feeds require asynchronous request processing");
+            return;
+        }
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        changes.subscribe(m, prefix, Boolean.parseBoolean(values_str),
+                changesBuffer, batch, req, resp);
+    }
+
+    /**
+     * Stores the given chunk of values, reports their status and returns
+     * the staged buffers to the pool. Returns the number of stored values.
+     */
+    private int flushBulk(String map, Map<String, StoredValue> chunk,
+            List<BufferPool.Buffer> staged, JsonWriter writer)
+            throws IOException
+    {
+        try {
+            setValues(map, chunk);
+        } catch (IOException | RuntimeException x) {
+            log("Unable to store " + chunk.size() + " values for bucket '"
+                    + map + "'", x);
+            for (String key : chunk.keySet()) {
+                writeResult(writer, key, SC_INTERNAL_SERVER_ERROR,
+                        x.getMessage());
+            }
+            return 0;
+        } finally {
+            // putAll() has serialized the values before sending them...
+            for (BufferPool.Buffer buf : staged) {
+                buffers.release(buf);
+            }
+            staged.clear();
+        }
+
+        for (String key : chunk.keySet()) {
+            writeResult(writer, key, SC_NO_CONTENT, null);
+        }
+        return chunk.size();
+    }
+
+    private void writeResult(JsonWriter writer, String key, int status,
+            String error) throws IOException
+    {
+        writer.beginObject();
+        writer.name("key").value(key);
+        writer.name("status").value(status);
+        if (error != null) {
+            writer.name("error").value(error);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Answers {@code HEAD} requests for values from their metadata, which is
+     * read on the owning member without transferring the value.
+     */
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException
+    {
+        final Route route = Route.of(req);
+        if (route == null || route.getTarget() != Target.KEY) {
+            // everything else is cheap enough to be generated in full...
+            super.doHead(req, resp);
+            return;
+        }
+
+        final String map = route.getBucket();
+        final String key = route.getKey();
+        try {
+            ValueMetadata metadata = getMetadata(map, key);
+            if (metadata == null) {
+                sendError(resp, SC_NOT_FOUND,
+                        "Key does not exist in bucket '" + map + "': " + key);
+                return;
+            }
+
+            ValueHeader header = metadata.getHeader();
+            resp.setDateHeader("Last-Modified", metadata.getLastUpdateTime());
+            resp.setDateHeader("X-Created", metadata.getCreationTime());
+            if (metadata.getExpirationTime() > 0) {
+                resp.setDateHeader("Expires", metadata.getExpirationTime());
+            }
+
+            String[] ifNoneMatch = etags(req.getHeader("If-None-Match"));
+            if (ifNoneMatch != null && header.matches(ifNoneMatch, true)) {
+                sendNotModified(req, resp, header);
+                return;
+            }
+
+            resp.setStatus(SC_OK);
+            resp.setContentType(mapContentType(header.getType()));
+            resp.setHeader("Accept-Ranges", "bytes");
+            if (negotiateEncoding(req, resp, header.getEncoding(),
+                    header.getETag()))
+            {
+                resp.setContentLengthLong(header.getContentLength());
+            }
+            // the decoded length is only known after decoding
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, x.getMessage());
+        }
+    }
+
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException
     {
         final String path = req.getPathInfo();
-        Matcher matcher = ROUTE_KEY.matcher(path);
+        final Route route = Route.of(req);
+        final Target target = route == null ? null : route.getTarget();
 
-        if (matcher.matches()) {
-            String map = matcher.group(1);
-            String key = matcher.group(2);
+        if (target == Target.KEY) {
+            String map = route.getBucket();
+            String key = route.getKey();
 
             try {
-                byte[] bytes = getValue(map, key);
-                if (bytes == null) {
+                String[] ifNoneMatch = etags(req.getHeader("If-None-Match"));
+                resp.setHeader("Accept-Ranges", "bytes");
+                long[] ranges = ranges(req.getHeader("Range"));
+                if (ranges != null && sendRanges(req, resp, map, key, ranges,
+                        ifNoneMatch))
+                {
+                    return;
+                }
+
+                if (async && req.isAsyncSupported()) {
+                    asyncHandler.get(map, key, ifNoneMatch, req, resp);
+                    return;
+                }
+
+                Object result = ifNoneMatch == null
+                        ? getStoredValue(map, key)
+                        : getStoredValue(map, key, ifNoneMatch);
+                if (result == null) {
                     sendError(resp, SC_NOT_FOUND,
                             "Key does not exist in bucket '" + map + "': " + key);
-                } else if (bytes.length == 1) {
-                    resp.setContentType(mapContentType(bytes[0]));
+                    return;
+                } else if (result instanceof ValueHeader) {
+                    sendNotModified(req, resp, (ValueHeader) result);
+                    return;
+                }
+
+                StoredValue value = (StoredValue) result;
+                if (value instanceof ChunkedValue) {
+                    sendChunkedValue(resp, map, key, (ChunkedValue) value);
+                    return;
+                }
+
+                value = negotiateEncoding(req, resp, value);
+                if (value.getLength() == 0) {
+                    resp.setContentType(mapContentType(value.getType()));
                     resp.setContentLength(0);
                     resp.setStatus(SC_NO_CONTENT);
                 } else {
                     resp.setStatus(SC_OK);
-                    resp.setContentType(mapContentType(bytes[0]));
-                    resp.setContentLength(bytes.length - 1);
+                    resp.setContentType(mapContentType(value.getType()));
+                    resp.setContentLength(value.getLength());
                     try (final ServletOutputStream out = resp.getOutputStream()) {
-                        out.write(bytes, 1, bytes.length - 1);
+                        value.writeTo(hazelcast.<String, StoredValue>getMap(map),
+                                key, out);
                     }
                 }
             } catch (FileNotFoundException x) {
                 sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
             }
-        } else if ((matcher = ROUTE_BUCKET.matcher(path)).matches()) {
-            String map = matcher.group(1);
+        } else if (target == Target.BUCKET) {
+            String map = route.getBucket();
             try {
                 verifyBucket(map);
-                IMap<String, byte[]> m = hazelcast.getMap(map);
+                IMap<String, StoredValue> m = hazelcast.getMap(map);
                 MapConfig config = hazelcast.getConfig().getMapConfig(map);
                 resp.setStatus(SC_OK);
                 try (JsonWriter writer = new JsonWriter(resp.getWriter())) {
                     writer.beginObject();
-                    writer.name("count").value(m.size());
+                    long[] count = EntryCountOperation.count(m);
+                    writer.name("count").value(count[0]);
+                    writer.name("chunks").value(count[1]);
                     writer.name("ttl").value(config.getTimeToLiveSeconds());
                     writer.name("backups").value(config.getBackupCount());
-                    writer.name("maxData").value(config.getMaxSizeConfig().getSize());
+                    writer.name("maxData").value(catalog.get(map).getMaxData());
+                    writer.name("memberLimit").value(config.getMaxSizeConfig().getSize());
+                    ValueEncoding compression = catalog.get(map)
+                            .getCompression();
+                    if (compression != ValueEncoding.IDENTITY) {
+                        writer.name("compression").value(compression.getToken());
+                    }
+                    PersistentBucket persistent = catalog.getPersistentBucket(
+                            map);
+                    if (persistent != null) {
+                        SegmentStore store = persistent.getStore();
+                        writer.name("persistent").beginObject();
+                        writer.name("entries").value(store.size());
+                        writer.name("diskSize").value(store.getDiskSize());
+                        writer.endObject();
+                    }
+                    ConcurrencyLimit limit = admission.get(map);
+                    if (limit != null) {
+                        writer.name("admission").beginObject();
+                        writer.name("limit").value(limit.getLimit());
+                        writer.name("maxLimit").value(limit.getMaxLimit());
+                        writer.name("inFlight").value(limit.getInFlight());
+                        writer.name("rejected").value(limit.getRejected());
+                        writer.endObject();
+                    }
+                    writer.name("subscribers").value(changes.count(map));
+                    NearCacheConfig nearCache = config.getNearCacheConfig();
+                    if (nearCache != null) {
+                        writer.name("nearCache").beginObject();
+                        writer.name("maxSize").value(nearCache.getMaxSize());
+                        writer.name("ttl").value(nearCache.getTimeToLiveSeconds());
+                        writer.name("invalidate").value(nearCache.isInvalidateOnChange());
+                        writer.name("format").value(nearCache.getInMemoryFormat().name());
+                        NearCacheStats stats = m.getLocalMapStats().getNearCacheStats();
+                        if (stats != null) {
+                            writer.name("entries").value(stats.getOwnedEntryCount());
+                            writer.name("memory").value(stats.getOwnedEntryMemoryCost());
+                            writer.name("hits").value(stats.getHits());
+                            writer.name("misses").value(stats.getMisses());
+                        }
+                        writer.endObject();
+                    }
                     writer.endObject();
                 }
             } catch (FileNotFoundException x) {
-                sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+                sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            }
+        } else if (target == Target.KEYS) {
+            doListKeys(route.getBucket(), req, resp);
+        } else if (target == Target.CHANGES) {
+            doChanges(route.getBucket(), req, resp);
+        } else if (target == Target.METRICS) {
+            sendMetrics(req, resp);
+        } else if (target != null) {
+            resp.sendError(SC_METHOD_NOT_ALLOWED);
+        } else {
+            sendError(resp, SC_NOT_FOUND, "Resource not found: " + path);
+        }
+    }
+
+    /**
+     * Writes the request metrics and the local map statistics of all
+     * buckets, in the Prometheus text format if requested by the "format"
+     * parameter or the {@code Accept} header and as JSON otherwise.
+     */
+    protected void sendMetrics(HttpServletRequest req, HttpServletResponse resp)
+            throws IOException
+    {
+        Map<String, LocalMapStats> stats = new HashMap<>();
+        for (String map : catalog.names()) {
+            IMap<String, StoredValue> m = hazelcast.getMap(map);
+            stats.put(map, m.getLocalMapStats());
+        }
+
+        String format = req.getParameter("format");
+        String accept = req.getHeader("Accept");
+        resp.setStatus(SC_OK);
+        if ("prometheus".equals(format) || (format == null && accept != null
+                && accept.contains("text/plain")))
+        {
+            resp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+            metrics.writePrometheus(resp.getWriter(), stats);
+        } else {
+            resp.setContentType(TYPE_APPLICATION_JSON);
+            metrics.writeJson(resp.getWriter(), stats);
+        }
+    }
+
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException
+    {
+        final Route route = Route.of(req);
+
+        if (route != null && route.getTarget() == Target.KEY) {
+            putValue(route.getBucket(), route.getKey(),
+                    etags(req.getHeader("If-Match")),
+                    etags(req.getHeader("If-None-Match")), req, resp);
+        } else if (route != null) {
+            resp.sendError(SC_METHOD_NOT_ALLOWED);
+        } else {
+            resp.sendError(SC_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Stores the request body as the value of the given key if the
+     * preconditions hold, using a single operation on the owning member.
+     */
+    private void putValue(String map, String key, String[] ifMatch,
+            String[] ifNoneMatch, HttpServletRequest req,
+            HttpServletResponse resp) throws IOException
+    {
+        String contentType = req.getContentType();
+        if (contentType == null) {
+            resp.sendError(SC_UNSUPPORTED_MEDIA_TYPE,
+                    "No content type specified");
+            return;
+        }
+        int length = req.getContentLength();
+        if (length < 0) {
+            resp.sendError(SC_LENGTH_REQUIRED,
+                    "No content length specified");
+            return;
+        }
+
+        if (async && req.isAsyncSupported() && length <= chunkThreshold) {
+            try {
+                asyncHandler.put(map, key, contentType, length, ifMatch,
+                        ifNoneMatch, req, resp);
+            } catch (IllegalArgumentException x) {
+                resp.sendError(SC_UNSUPPORTED_MEDIA_TYPE,
+                        "Content-Type not supported: " + contentType);
+            } catch (FileNotFoundException x) {
+                resp.sendError(SC_NOT_FOUND, x.getMessage());
             }
-        } else {
-            sendError(resp, SC_NOT_FOUND, "Resource not found: " + path);
+            return;
+        }
+
+        try (final InputStream in = req.getInputStream()) {
+            String etag = setValue(map, key, contentType, length, in,
+                    ifMatch, ifNoneMatch);
+            if (etag == null) {
+                sendWriteRejected(req, resp, map, key);
+            } else {
+                setETag(resp, etag);
+                resp.setStatus(SC_NO_CONTENT);
+            }
+        } catch (IllegalArgumentException x) {
+            resp.sendError(SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Content-Type not supported: " + contentType);
+        } catch (FileNotFoundException x) {
+            resp.sendError(SC_NOT_FOUND, x.getMessage());
+        } catch (IOException x) {
+            log("Unable to set value for bucket '" + map + "' and key '" + key + "'",
+                    x);
+            resp.sendError(SC_INTERNAL_SERVER_ERROR,
+                    x.getMessage());
         }
     }
 
-    @Override
-    protected void doPut(HttpServletRequest req, HttpServletResponse resp)
+    /**
+     * Patches a value on the owning member using a {@link PatchProcessor},
+     * with the type of patch given by the content type of the request body:
+     * a JSON Merge Patch or JSON Patch (with increments) of a JSON value or
+     * bytes to append to a binary value. A missing value is created if the
+     * patch allows it.
+     * <p>
+     * The response carries the entity tag of the patched value, which is
+     * only sent itself if asked for by {@code Prefer: return=representation}.
+     */
+    protected void doPatch(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException
     {
-        final String path = req.getPathInfo();
-        Matcher matcher = ROUTE_KEY.matcher(path);
+        final Route route = Route.of(req);
+        if (route == null) {
+            resp.sendError(SC_NOT_FOUND);
+            return;
+        } else if (route.getTarget() != Target.KEY) {
+            resp.sendError(SC_METHOD_NOT_ALLOWED);
+            return;
+        }
 
-        if (matcher.matches()) {
-            final String map = matcher.group(1);
-            final String key = matcher.group(2);
-            String contentType = req.getContentType();
-            if (contentType == null) {
-                resp.sendError(SC_UNSUPPORTED_MEDIA_TYPE,
-                        "No content type specified");
+        final String map = route.getBucket();
+        final String key = route.getKey();
+        String contentType = req.getContentType();
+        PatchProcessor.Type type = contentType == null ? null
+                : PatchProcessor.Type.forContentType(contentType);
+        if (type == null) {
+            resp.setHeader("Accept-Patch", PATCH_TYPES);
+            sendError(resp, SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Patch type not supported: " + contentType);
+            return;
+        }
+        final byte[] patch;
+        if (req.getContentLength() > chunkThreshold) {
+            patch = null;
+        } else {
+            // no more than that without a content length either...
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    Math.max(32, Math.min(req.getContentLength(),
+                            chunkThreshold)));
+            IOUtils.copyLarge(req.getInputStream(), out, 0,
+                    chunkThreshold + 1L);
+            patch = out.toByteArray();
+        }
+        if (patch == null || patch.length > chunkThreshold) {
+            sendError(resp, SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Patch exceeds " + chunkThreshold + " bytes");
+            return;
+        }
+        final StoredValue patched;
+        try {
+            verifyBucket(map);
+            PatchProcessor.validate(type, patch);
+
+            BucketDefinition definition = catalog.get(map);
+            ValueEncoding encoding = definition == null
+                    ? ValueEncoding.IDENTITY : definition.getCompression();
+            String prefer = req.getHeader("Prefer");
+            boolean representation = prefer != null
+                    && prefer.contains("return=representation");
+
+            IMap<String, StoredValue> m = hazelcast.getMap(map);
+            Object result = m.executeOnKey(key, new PatchProcessor(type,
+                    patch, etags(req.getHeader("If-Match")),
+                    encoding.getCode(), chunkThreshold, representation));
+            if (Boolean.FALSE.equals(result)) {
+                sendWriteRejected(req, resp, map, key);
                 return;
-            }
-            int length = req.getContentLength();
-            if (length < 0) {
-                resp.sendError(SC_LENGTH_REQUIRED,
-                        "No content length specified");
+            } else if (result instanceof String) {
+                sendError(resp, SC_CONFLICT, (String) result);
                 return;
             }
 
-            try (final InputStream in = req.getInputStream()) {
-                setValue(map, key, contentType, length, in);
+            reads.invalidate(map, key);
+            if (result instanceof ValueHeader) {
+                setETag(resp, ((ValueHeader) result).getETag());
                 resp.setStatus(SC_NO_CONTENT);
-            } catch (IllegalArgumentException x) {
-                resp.sendError(SC_UNSUPPORTED_MEDIA_TYPE,
-                        "Content-Type not supported: " + contentType);
-            } catch (FileNotFoundException x) {
-                resp.sendError(SC_NOT_FOUND, x.getMessage());
-            } catch (IOException x) {
-                log("Unable to set value for bucket '" + map + "' and key '" + key + "'",
-                        x);
-                resp.sendError(SC_INTERNAL_SERVER_ERROR,
-                        x.getMessage());
+                return;
             }
-        } else if ((matcher = ROUTE_BUCKET.matcher(path)).matches()) {
-            final String map = matcher.group(1);
-            resp.sendError(SC_METHOD_NOT_ALLOWED);
-        } else {
-            resp.sendError(SC_NOT_FOUND);
+            patched = (StoredValue) result;
+        } catch (FileNotFoundException x) {
+            sendError(resp, SC_NOT_FOUND, "Bucket not found: " + map, x);
+            return;
+        } catch (IllegalArgumentException x) {
+            sendError(resp, SC_BAD_REQUEST, x.getMessage(), x);
+            return;
         }
+
+        StoredValue value = negotiateEncoding(req, resp, patched);
+        resp.setStatus(SC_OK);
+        resp.setContentType(mapContentType(value.getType()));
+        resp.setContentLength(value.getLength());
+        value.writeTo(hazelcast.<String, StoredValue>getMap(map), key,
+                resp.getOutputStream());
     }
 
     @Override
@@ -263,19 +1623,22 @@ public class HazelcastMapServlet extends HttpServlet
             throws ServletException, IOException
     {
         final String path = req.getPathInfo();
-        Matcher matcher = ROUTE_KEY.matcher(path);
+        final Route route = Route.of(req);
+        final Target target = route == null ? null : route.getTarget();
 
         try {
-            if (matcher.matches()) {
-                final String map = matcher.group(1);
-                final String key = matcher.group(2);
-
-                verifyBucket(map);
+            if (target == Target.KEY) {
+                final String map = route.getBucket();
+                final String key = route.getKey();
 
-                deleteValue(map, key);
-            } else if ((matcher = ROUTE_BUCKET.matcher(path)).matches()) {
-                final String map = matcher.group(1);
-                deleteBucket(map);
+                String[] ifMatch = etags(req.getHeader("If-Match"));
+                if (!deleteValue(map, key, ifMatch)) {
+                    sendPreconditionFailed(resp, map, key);
+                }
+            } else if (target == Target.BUCKET) {
+                deleteBucket(route.getBucket());
+                resp.sendError(SC_METHOD_NOT_ALLOWED);
+            } else if (target != null) {
                 resp.sendError(SC_METHOD_NOT_ALLOWED);
             } else {
                 sendError(resp, SC_NOT_FOUND, "Resource not found: " + path);
@@ -288,27 +1651,46 @@ public class HazelcastMapServlet extends HttpServlet
     public void createBucket(String map, int ttl, int backups, int mib)
             throws IOException
     {
-        if (bucketCreation.containsKey(map)) {
-            throw new FileAlreadyExistsException(null, null,
-                    "Bucket already exists: " + map);
-        }
+        createBucket(map, ttl, backups, mib, null);
+    }
 
-        Map<String, MapConfig> mapConfigs = hazelcast.getConfig()
-                .getMapConfigs();
-        MapConfig config = new MapConfig(map);
-        config.setTimeToLiveSeconds(ttl);
-        config.setEvictionPolicy(EvictionPolicy.LRU);
-        config.setInMemoryFormat(InMemoryFormat.BINARY);
-        config.setBackupCount(backups);
+    /**
+     * Creates a bucket with an optional near cache, which keeps recently read
+     * values on this node to save the round trip to the owning member.
+     */
+    public void createBucket(String map, int ttl, int backups, int mib,
+            NearCacheConfig nearCache) throws IOException
+    {
+        createBucket(map, ttl, backups, mib, nearCache, ValueEncoding.IDENTITY);
+    }
+
+    /**
+     * Creates a bucket whose textual values are compressed using the given
+     * encoding when stored.
+     */
+    public void createBucket(String map, int ttl, int backups, int mib,
+            NearCacheConfig nearCache, ValueEncoding compression)
+            throws IOException
+    {
+        createBucket(map, ttl, backups, mib, nearCache, compression, false);
+    }
 
-        int nodes = hazelcast.getCluster().getMembers().size();
-        MaxSizeConfig max = new MaxSizeConfig(mib / nodes,
-                MaxSizeConfig.MaxSizePolicy.USED_HEAP_SIZE);
-        config.setMaxSizeConfig(max);
-        mapConfigs.put(map, config);
+    /**
+     * Creates a bucket whose values are optionally kept on the local disk of
+     * their owners as well, which requires a data directory.
+     */
+    public void createBucket(String map, int ttl, int backups, int mib,
+            NearCacheConfig nearCache, ValueEncoding compression,
+            boolean persistent) throws IOException
+    {
+        if (persistent && catalog.getDataDirectory() == null) {
+            throw new IllegalArgumentException(
+                    "No data directory for persistent buckets");
+        }
 
-        // pre-fill local map configuration timestamp...
-        bucketCreation.putIfAbsent(map, System.currentTimeMillis());
+        // the configuration of the map is set up with the definition...
+        catalog.create(new BucketDefinition(map, ttl, backups, mib, nearCache,
+                compression, System.currentTimeMillis(), persistent));
 
         // this should always be the first call to the map...
         hazelcast.getMap(map);
@@ -318,59 +1700,672 @@ public class HazelcastMapServlet extends HttpServlet
     {
         verifyBucket(map);
 
-        hazelcast.getConfig().getMapConfigs().remove(map);
+        catalog.remove(map);
         hazelcast.getDistributedObject(MapService.SERVICE_NAME, map).destroy();
-        bucketCreation.remove(map);
+        metrics.remove(map);
+        admission.remove(map);
+        reads.remove(map);
+        changes.remove(map);
     }
 
     public void deleteValue(String map, String key) throws IOException
+    {
+        deleteValue(map, key, null);
+    }
+
+    /**
+     * Deletes a value, but only if it matches one of the given entity tags
+     * (if any). The existence check, comparison and removal happen
+     * atomically in a single operation on the owning member, which only
+     * sends back the header of the removed value.
+     *
+     * @return {@code false} if the value did not match the entity tags
+     * @throws FileNotFoundException if there is no value for the key
+     */
+    public boolean deleteValue(String map, String key, String[] ifMatch)
+            throws IOException
     {
         verifyBucket(map);
 
-        if (getValue(map, key) != null) {
-            hazelcast.getMap(map).delete(key);
-        } else {
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        Object previous = m.executeOnKey(key,
+                new SetValueProcessor(null, ifMatch));
+        if (Boolean.FALSE.equals(previous)) {
+            return false;
+        } else if (previous == null) {
             throw new FileNotFoundException(
                     "Key not found in bucket '" + map + "': " + key);
         }
+        reads.invalidate(map, key);
+        deleteChunks(m, key, previous);
+        return true;
     }
 
     public void setValue(String map, String key, String contentType,
             int length, final InputStream in) throws IOException
+    {
+        setValue(map, key, contentType, length, in, null);
+    }
+
+    /**
+     * Stores a value along with the digest of its content, but only if the
+     * current value matches one of the given entity tags (if any). The
+     * comparison and update happen atomically on the owning member.
+     *
+     * @return the entity tag of the new value or {@code null} if the current
+     * value did not match the entity tags
+     */
+    public String setValue(String map, String key, String contentType,
+            int length, final InputStream in, String[] ifMatch)
+            throws IOException
+    {
+        return setValue(map, key, contentType, length, in, ifMatch, null);
+    }
+
+    /**
+     * Stores a value like {@link #setValue(String, String, String, int,
+     * InputStream, String[])}, but only if the current value does not match
+     * any of the entity tags to avoid, where {@code "*"} creates the value
+     * only if there is none yet.
+     *
+     * @return the entity tag of the new value or {@code null} if a
+     * precondition did not hold
+     */
+    public String setValue(String map, String key, String contentType,
+            int length, final InputStream in, String[] ifMatch,
+            String[] ifNoneMatch) throws IOException
     {
         verifyBucket(map);
 
         byte type = mapContentType(contentType);
-        IMap<String, byte[]> m = hazelcast.getMap(map);
-        int offset = 1;
-        byte[] data = new byte[length + offset];
-        data[0] = type;
+        if (length > chunkThreshold) {
+            return setChunkedValue(map, key, type, length, in, ifMatch,
+                    ifNoneMatch);
+        }
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        StoredValue value = encodeValue(map, readValue(type, length, in));
+        Object previous = m.executeOnKey(key,
+                new SetValueProcessor(value, ifMatch, ifNoneMatch));
+        if (Boolean.FALSE.equals(previous)) {
+            return null;
+        }
+        reads.invalidate(map, key);
+        deleteChunks(m, key, previous);
+        return value.getETag();
+    }
+
+    /**
+     * Streams the value into a sequence of chunks of {@link #getChunkSize()}
+     * bytes stored under derived keys, spreading it across partitions, and
+     * stores the manifest referencing the chunks under the given key.
+     *
+     * @return the entity tag of the new value or {@code null} if the current
+     * value did not match the entity tags
+     */
+    protected String setChunkedValue(String map, String key, byte type,
+            int length, final InputStream in, String[] ifMatch,
+            String[] ifNoneMatch) throws IOException
+    {
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        ChunkedValue value = ChunkedValue.write(m, key, type, length,
+                chunkSize, in, StoredValue.newDigest());
+        Object previous = m.executeOnKey(key,
+                new SetValueProcessor(value, ifMatch, ifNoneMatch));
+        if (Boolean.FALSE.equals(previous)) {
+            // the new chunks have never been visible...
+            value.deleteAsync(m, key);
+            return null;
+        }
+        reads.invalidate(map, key);
+        deleteChunks(m, key, previous);
+        return value.getETag();
+    }
+
+    /**
+     * Deletes the chunks of a value that has just been replaced, if the
+     * previous value was a chunk manifest.
+     */
+    void deleteChunks(IMap<String, StoredValue> m, String key, Object previous)
+    {
+        if (previous instanceof ChunkedValue) {
+            ((ChunkedValue) previous).deleteAsync(m, key);
+        }
+    }
+
+    /**
+     * Writes a chunked value to the response, fetching the chunks in order
+     * with prefetching of the following chunks.
+     */
+    protected void sendChunkedValue(HttpServletResponse resp, String map,
+            String key, ChunkedValue value) throws IOException
+    {
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+
+        resp.setStatus(SC_OK);
+        resp.setContentType(mapContentType(value.getType()));
+        resp.setContentLengthLong(value.getContentLength());
+        setETag(resp, value.getETag());
+        ServletOutputStream out = resp.getOutputStream();
+        try {
+            value.writeTo(m, key, out);
+        } catch (FileNotFoundException x) {
+            if (resp.isCommitted()) {
+                // nothing left but to abort the response...
+                throw x;
+            }
+            resp.reset();
+            sendError(resp, SC_NOT_FOUND,
+                    "Key does not exist in bucket '" + map + "': " + key, x);
+            return;
+        }
+        out.close();
+    }
+
+    /**
+     * Answers a {@code Range} request with the requested byte ranges, which
+     * are cut out on the owning member(s) so that only the slices are
+     * transferred. A single range is sent as is, multiple ranges as
+     * {@code multipart/byteranges}. A matching {@code If-None-Match} takes
+     * precedence over the ranges.
+     *
+     * @param specs the requested ranges as returned by {@link #ranges(String)}
+     * @param ifNoneMatch the entity tags of {@code If-None-Match} or
+     * {@code null}
+     * @return {@code false} if the {@code If-Range} validator did not match,
+     * so that the whole value has to be sent instead
+     */
+    protected boolean sendRanges(HttpServletRequest req,
+            HttpServletResponse resp, String map, String key, long[] specs,
+            String[] ifNoneMatch) throws IOException
+    {
+        verifyBucket(map);
+
+        String ifRange = req.getHeader("If-Range");
+        long ifRangeDate = 0;
+        if (ifRange != null && !ifRange.startsWith("\"")
+                && !ifRange.startsWith("W/"))
+        {
+            try {
+                ifRangeDate = req.getDateHeader("If-Range");
+            } catch (IllegalArgumentException x) {
+                return false;
+            }
+            ifRange = null;
+        }
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        ValueRange range = ValueRangeOperation.invoke(m, key, specs, ifRange,
+                ifRangeDate, req.getHeader("Accept-Encoding"));
+        if (range == null) {
+            sendError(resp, SC_NOT_FOUND,
+                    "Key does not exist in bucket '" + map + "': " + key);
+            return true;
+        } else if (ifNoneMatch != null
+                && range.getHeader().matches(ifNoneMatch, true))
+        {
+            sendNotModified(req, resp, range.getHeader());
+            return true;
+        } else if (range.getRanges() == null) {
+            return false;
+        }
+
+        ValueHeader header = range.getHeader();
+        resp.setDateHeader("Last-Modified", range.getLastModified());
+        negotiateEncoding(req, resp, header.getEncoding(), header.getETag());
+        if (range.size() == 0) {
+            resp.setHeader("Content-Range", "bytes */" + range.getLength());
+            sendError(resp, SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                    "Range not satisfiable for key in bucket '" + map + "': "
+                    + key);
+            return true;
+        }
+
+        long[] ranges = range.getRanges();
+        String type = mapContentType(header.getType());
+        resp.setStatus(SC_PARTIAL_CONTENT);
+        try {
+            if (range.size() == 1) {
+                resp.setContentType(type);
+                resp.setHeader("Content-Range", contentRange(ranges[0],
+                        ranges[1], range.getLength()));
+                resp.setContentLengthLong(ranges[1] - ranges[0] + 1);
+                try (ServletOutputStream out = resp.getOutputStream()) {
+                    range.writeTo(m, key, 0, out);
+                }
+                return true;
+            }
+
+            String boundary = MultipartWriter.newBoundary();
+            resp.setContentType("multipart/byteranges; boundary=" + boundary);
+            try (MultipartWriter writer = new MultipartWriter(
+                    resp.getOutputStream(), boundary))
+            {
+                for (int i = 0; i < range.size(); i++) {
+                    writer.beginPart("Content-Type: " + type,
+                            "Content-Range: " + contentRange(ranges[i * 2],
+                                    ranges[i * 2 + 1], range.getLength()));
+                    range.writeTo(m, key, i, writer.body());
+                    writer.endPart();
+                }
+            }
+        } catch (FileNotFoundException x) {
+            if (resp.isCommitted()) {
+                // nothing left but to abort the response...
+                throw x;
+            }
+            resp.reset();
+            sendError(resp, SC_NOT_FOUND,
+                    "Key does not exist in bucket '" + map + "': " + key, x);
+        }
+        return true;
+    }
+
+    /**
+     * Parses the value of a {@code Range} header into pairs of the first
+     * and last byte position, where a missing position is -1 (see
+     * {@link ValueRangeOperation}). Returns {@code null} if the header is
+     * not present, is not a valid byte range set or requests too many
+     * ranges, in which case it is to be ignored.
+     */
+    protected static long[] ranges(String header)
+    {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        long[] ranges = new long[specs.length * 2];
+        for (int i = 0; i < specs.length; i++) {
+            String spec = specs[i].trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0 || spec.length() == 1
+                    || spec.indexOf('-', dash + 1) > 0
+                    || spec.indexOf('+') >= 0)
+            {
+                return null;
+            }
+            try {
+                ranges[i * 2] = dash == 0 ? -1
+                        : Long.parseLong(spec.substring(0, dash));
+                ranges[i * 2 + 1] = dash == spec.length() - 1 ? -1
+                        : Long.parseLong(spec.substring(dash + 1));
+            } catch (NumberFormatException x) {
+                return null;
+            }
+            if (ranges[i * 2 + 1] >= 0 && ranges[i * 2 + 1] < ranges[i * 2]) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    private static String contentRange(long first, long last, long length)
+    {
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+
+    /**
+     * Stores all given values at once. Hazelcast groups the entries by
+     * partition internally, so this costs a single operation per involved
+     * partition.
+     */
+    public void setValues(String map, Map<String, StoredValue> values)
+            throws IOException
+    {
+        verifyBucket(map);
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        m.putAll(values);
+        for (String key : values.keySet()) {
+            reads.invalidate(map, key);
+        }
+    }
+
+    /**
+     * Reads a value into an array of its exact size, which can be passed to
+     * an entry processor as it is.
+     */
+    protected StoredValue readValue(byte type, int length, final InputStream in)
+            throws IOException
+    {
+        byte[] data = new byte[length];
+        readFully(in, data, length);
+        return new StoredValue(type, StoredValue.digest(data, 0, length),
+                data, 0, length);
+    }
+
+    /**
+     * Reads a value of a bulk request into a pooled buffer and compresses it
+     * into another one like {@link #encodeValue(String, StoredValue)}. The
+     * buffers are added to the given list, to be released once
+     * {@code putAll()} has serialized the values.
+     */
+    private StoredValue readStagedValue(String map, byte type, int length,
+            InputStream in, List<BufferPool.Buffer> staged)
+            throws IOException
+    {
+        BufferPool.Buffer buf = buffers.acquire(length);
+        staged.add(buf);
+        byte[] data = buf.array();
+        readFully(in, data, length);
+        StoredValue value = new StoredValue(type,
+                StoredValue.digest(data, 0, length), data, 0, length);
+
+        ValueEncoding encoding = getEncoding(map, value);
+        if (encoding == ValueEncoding.IDENTITY) {
+            return value;
+        }
+        BufferPool.Buffer target = buffers.acquire(length);
+        staged.add(target);
+        byte[] encoded = target.array();
+        int num = encoding.encode(data, 0, length, encoded);
+        if (num < 0) {
+            return value;
+        }
+        return new StoredValue(type, encoding.getCode(), value.getDigest(),
+                encoded, 0, num);
+    }
+
+    private static void readFully(InputStream in, byte[] data, int length)
+            throws IOException
+    {
+        int offset = 0;
         int num;
-        while ((num = in.read(data, offset, length)) > 0) {
+        while (offset < length
+                && (num = in.read(data, offset, length - offset)) > 0)
+        {
             offset += num;
-            if (offset >= data.length) {
-                break;
+        }
+
+        if (offset < length) {
+            throw new EOFException("Expected " + length + " bytes but got "
+                    + offset);
+        }
+    }
+
+    /**
+     * Returns the encoding to store the given value with, which is
+     * {@link ValueEncoding#IDENTITY} unless the bucket is configured for
+     * compression and the value is textual and large enough.
+     */
+    private ValueEncoding getEncoding(String map, StoredValue value)
+    {
+        BucketDefinition definition = catalog.get(map);
+        if (definition == null || value.getLength() < ValueEncoding.MIN_LENGTH
+                || !isCompressible(value.getType()))
+        {
+            return ValueEncoding.IDENTITY;
+        }
+        return definition.getCompression();
+    }
+
+    /**
+     * Compresses a value read by {@link #readValue(byte, int, InputStream)}
+     * if the bucket is configured for compression, the content type is
+     * textual and the compressed form is actually smaller. The compressed
+     * value is returned in an array of its exact size, only the compression
+     * itself uses a pooled buffer.
+     */
+    protected StoredValue encodeValue(String map, StoredValue value)
+    {
+        ValueEncoding encoding = getEncoding(map, value);
+        if (encoding == ValueEncoding.IDENTITY) {
+            return value;
+        }
+
+        BufferPool.Buffer buf = buffers.acquire(value.getLength());
+        try {
+            int length = encoding.encode(value.getData(), value.getOffset(),
+                    value.getLength(), buf.array());
+            if (length < 0) {
+                return value;
             }
+            return new StoredValue(value.getType(), encoding.getCode(),
+                    value.getDigest(), Arrays.copyOf(buf.array(), length), 0,
+                    length);
+        } finally {
+            buffers.release(buf);
+        }
+    }
+
+    protected boolean isCompressible(byte type)
+    {
+        switch (type) {
+            case T_APPLICATION_JSON:
+            case T_APPLICATION_XML:
+            case T_TEXT_HTML:
+            case T_TEXT_PLAIN:
+            case T_TEXT_XML:
+                return true;
+            default:
+                // binary or already compressed
+                return false;
+        }
+    }
+
+    /**
+     * Prepares the response for sending the given value, which is returned
+     * as is if the client accepts its encoding (announced using the
+     * {@code Content-Encoding} header) or decoded otherwise.
+     */
+    protected StoredValue negotiateEncoding(HttpServletRequest req,
+            HttpServletResponse resp, StoredValue value) throws IOException
+    {
+        if (negotiateEncoding(req, resp, value.getEncoding(),
+                value.getETag()))
+        {
+            return value;
+        }
+        return ValueEncoding.decode(value);
+    }
+
+    /**
+     * Sets the entity tag and encoding headers for a value stored with the
+     * given encoding.
+     *
+     * @return {@code true} if the stored bytes are sent as they are or
+     * {@code false} if they have to be decoded for the client
+     */
+    protected boolean negotiateEncoding(HttpServletRequest req,
+            HttpServletResponse resp, byte code, String etag)
+    {
+        ValueEncoding encoding = ValueEncoding.of(code);
+        if (encoding == ValueEncoding.IDENTITY) {
+            setETag(resp, etag);
+            return true;
         }
 
-        m.set(key, data);
+        resp.addHeader("Vary", "Accept-Encoding");
+        if (encoding.isAccepted(req.getHeader("Accept-Encoding"))) {
+            resp.setHeader("Content-Encoding", encoding.getToken());
+            // a different representation of the same content...
+            setETag(resp, weakETag(etag));
+            return true;
+        }
+        setETag(resp, etag);
+        return false;
     }
 
     protected void verifyBucket(String map) throws FileNotFoundException
     {
-        if (!bucketCreation.containsKey(map)) {
+        if (!catalog.contains(map)) {
             throw new FileNotFoundException("Bucket not found: " + map);
         }
     }
 
-    public byte[] getValue(String map, String key) throws IOException
+    public StoredValue getValue(String map, String key) throws IOException
+    {
+        verifyBucket(map);
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        StoredValue value = coalesceReads
+                ? (StoredValue) reads.join(m, key).get(null) : m.get(key);
+        if (value instanceof ChunkedValue) {
+            return ((ChunkedValue) value).toValue(m, key);
+        } else if (value != null) {
+            return ValueEncoding.decode(value);
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether there is a value for the given key without transferring
+     * it from the owning member.
+     */
+    public boolean hasValue(String map, String key) throws IOException
+    {
+        verifyBucket(map);
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        return m.containsKey(key);
+    }
+
+    /**
+     * Returns the type, length, entity tag and timestamps of a value without
+     * transferring it from the owning member, or {@code null} if there is no
+     * value for the given key.
+     */
+    public ValueMetadata getMetadata(String map, String key) throws IOException
     {
         verifyBucket(map);
 
-        IMap<String, byte[]> m = hazelcast.getMap(map);
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        return ValueMetadataOperation.invoke(m, key);
+    }
+
+    /**
+     * Returns the value as stored, which is the manifest for a chunked value.
+     */
+    protected StoredValue getStoredValue(String map, String key)
+            throws IOException
+    {
+        verifyBucket(map);
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        if (coalesceReads) {
+            return (StoredValue) reads.join(m, key).get(null);
+        }
         return m.get(key);
     }
 
+    /**
+     * Returns the value as stored unless it matches one of the given entity
+     * tags, in which case only its {@link ValueHeader} is returned without
+     * transferring the value from the owning member. If the value is being
+     * fetched for other reads anyway, that fetch is shared instead.
+     */
+    protected Object getStoredValue(String map, String key,
+            String[] ifNoneMatch) throws IOException
+    {
+        verifyBucket(map);
+
+        ReadCoalescer.Flight flight = coalesceReads ? reads.find(map, key)
+                : null;
+        if (flight != null) {
+            return flight.get(ifNoneMatch);
+        }
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        return m.executeOnKey(key, new ConditionalGetProcessor(ifNoneMatch));
+    }
+
+    /**
+     * Fetches the values for all given keys at once. Hazelcast groups the keys
+     * by partition internally, so this costs a single operation per involved
+     * partition instead of one round trip per key.
+     */
+    public Map<String, StoredValue> getValues(String map, Set<String> keys)
+            throws IOException
+    {
+        verifyBucket(map);
+
+        if (keys.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        IMap<String, StoredValue> m = hazelcast.getMap(map);
+        Map<String, StoredValue> values = m.getAll(keys);
+        for (Map.Entry<String, StoredValue> entry : values.entrySet()) {
+            if (entry.getValue() instanceof ChunkedValue) {
+                entry.setValue(((ChunkedValue) entry.getValue()).toValue(m,
+                        entry.getKey()));
+            } else {
+                entry.setValue(ValueEncoding.decode(entry.getValue()));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Splits the value of an {@code If-Match} or {@code If-None-Match} header
+     * into the list of entity tags or returns {@code null} if not present.
+     */
+    protected static String[] etags(String header)
+    {
+        if (header == null || header.trim().isEmpty()) {
+            return null;
+        }
+        String[] etags = header.split(",");
+        for (int i = 0; i < etags.length; i++) {
+            etags[i] = etags[i].trim();
+        }
+        return etags;
+    }
+
+    protected void setETag(HttpServletResponse resp, String etag)
+    {
+        if (etag != null) {
+            resp.setHeader("ETag", etag);
+        }
+    }
+
+    protected void sendNotModified(HttpServletRequest req,
+            HttpServletResponse resp, ValueHeader header)
+    {
+        ValueEncoding encoding = ValueEncoding.of(header.getEncoding());
+        if (encoding != ValueEncoding.IDENTITY) {
+            resp.addHeader("Vary", "Accept-Encoding");
+            if (encoding.isAccepted(req.getHeader("Accept-Encoding"))) {
+                setETag(resp, weakETag(header.getETag()));
+                resp.setStatus(SC_NOT_MODIFIED);
+                return;
+            }
+        }
+        setETag(resp, header.getETag());
+        resp.setStatus(SC_NOT_MODIFIED);
+    }
+
+    protected static String weakETag(String etag)
+    {
+        return etag == null ? null : "W/" + etag;
+    }
+
+    protected void sendPreconditionFailed(HttpServletResponse resp, String map,
+            String key) throws IOException
+    {
+        sendError(resp, SC_PRECONDITION_FAILED,
+                "Value does not match in bucket '" + map + "': " + key);
+    }
+
+    /**
+     * Responds to a write whose preconditions did not hold, which for the
+     * creation of a value (POST) means that the key already exists.
+     */
+    void sendWriteRejected(HttpServletRequest req, HttpServletResponse resp,
+            String map, String key) throws IOException
+    {
+        if ("POST".equals(req.getMethod())) {
+            sendError(resp, SC_CONFLICT,
+                    "Key already exists in bucket '" + map + "': " + key);
+        } else {
+            sendPreconditionFailed(resp, map, key);
+        }
+    }
+
     public void sendError(HttpServletResponse resp, int status, String message)
             throws IOException
     {
@@ -391,7 +2386,16 @@ public class HazelcastMapServlet extends HttpServlet
         resp.setStatus(status);
         resp.setContentType(TYPE_APPLICATION_JSON);
 
-        try (JsonWriter writer = new JsonWriter(resp.getWriter())) {
+        Writer out;
+        try {
+            out = resp.getWriter();
+        } catch (IllegalStateException x) {
+            // the output stream has already been requested...
+            out = new OutputStreamWriter(resp.getOutputStream(),
+                    StandardCharsets.UTF_8);
+        }
+
+        try (JsonWriter writer = new JsonWriter(out)) {
             writer.beginObject();
             writer.name("error").value(message);
             writer.endObject();
@@ -459,10 +2463,15 @@ public class HazelcastMapServlet extends HttpServlet
         if (DistributedObjectEvent.EventType.CREATED == event.getEventType()) {
             String serviceName = event.getServiceName();
             if (MapService.SERVICE_NAME.equals(serviceName)) {
-                bucketCreation.putIfAbsent(
-                        String.class.cast(event.getObjectName()),
-                        System.currentTimeMillis()
-                );
+                // maps not created as buckets are served with their
+                // static configuration...
+                String map = String.class.cast(event.getObjectName());
+                if (!catalog.contains(map)) {
+                    catalog.register(BucketDefinition.of(
+                            hazelcast.getConfig().findMapConfig(map),
+                            hazelcast.getCluster().getMembers().size(),
+                            System.currentTimeMillis()));
+                }
             }
         }
     }
@@ -473,7 +2482,19 @@ public class HazelcastMapServlet extends HttpServlet
         if (DistributedObjectEvent.EventType.DESTROYED == event.getEventType()) {
             String serviceName = event.getServiceName();
             if (MapService.SERVICE_NAME.equals(serviceName)) {
-                bucketCreation.remove(
+                catalog.discard(
+                        String.class.cast(event.getObjectName())
+                );
+                metrics.remove(
+                        String.class.cast(event.getObjectName())
+                );
+                admission.remove(
+                        String.class.cast(event.getObjectName())
+                );
+                reads.remove(
+                        String.class.cast(event.getObjectName())
+                );
+                changes.remove(
                         String.class.cast(event.getObjectName())
                 );
             }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Keeps track of the status and the number of body bytes of a response for
+ * recording metrics. The output stream is only wrapped if it is actually
+ * requested.
+ *
+ * @author ancoron
+ */
+class MeteredResponse extends HttpServletResponseWrapper
+{
+
+    private int status = SC_OK;
+    private CountingOutputStream out;
+
+    MeteredResponse(HttpServletResponse response)
+    {
+        super(response);
+    }
+
+    @Override
+    public void setStatus(int status)
+    {
+        this.status = status;
+        super.setStatus(status);
+    }
+
+    @Override
+    public void sendError(int status) throws IOException
+    {
+        this.status = status;
+        super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException
+    {
+        this.status = status;
+        super.sendError(status, message);
+    }
+
+    @Override
+    public void reset()
+    {
+        super.reset();
+        status = SC_OK;
+    }
+
+    @Override
+    public int getStatus()
+    {
+        return status;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException
+    {
+        if (out == null) {
+            out = new CountingOutputStream(super.getOutputStream());
+        }
+        return out;
+    }
+
+    long getBytesWritten()
+    {
+        return out == null ? 0 : out.count;
+    }
+
+    private static class CountingOutputStream extends ServletOutputStream
+    {
+
+        private final ServletOutputStream delegate;
+        private long count;
+
+        CountingOutputStream(ServletOutputStream delegate)
+        {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            delegate.close();
+        }
+
+        @Override
+        public boolean isReady()
+        {
+            return delegate.isReady();
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener)
+        {
+            delegate.setWriteListener(listener);
+        }
+    }
+}
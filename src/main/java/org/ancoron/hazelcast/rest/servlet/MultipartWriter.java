@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a MIME multipart body part by part directly to an output stream.
+ *
+ * @author ancoron
+ */
+public class MultipartWriter implements Closeable
+{
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] DASHES = {'-', '-'};
+
+    private final OutputStream out;
+    private final byte[] boundary;
+
+    public MultipartWriter(OutputStream out, String boundary)
+    {
+        this.out = out;
+        this.boundary = boundary.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static String newBoundary()
+    {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return "hzrest-" + Long.toHexString(rnd.nextLong())
+                + Long.toHexString(rnd.nextLong());
+    }
+
+    /**
+     * Starts a new part with the given header lines (each in the form
+     * "Name: value"), skipping {@code null} header lines.
+     */
+    public void beginPart(String... headers) throws IOException
+    {
+        out.write(DASHES);
+        out.write(boundary);
+        out.write(CRLF);
+        for (String header : headers) {
+            if (header == null) {
+                continue;
+            }
+            out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+        }
+        out.write(CRLF);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        out.write(data, offset, length);
+    }
+
+    /**
+     * Returns a stream for writing the body of the current part, which does
+     * not close the underlying stream.
+     */
+    public OutputStream body()
+    {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException
+            {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException
+            {
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    public void endPart() throws IOException
+    {
+        out.write(CRLF);
+    }
+
+    public void part(byte[] data, int offset, int length, String... headers)
+            throws IOException
+    {
+        beginPart(headers);
+        write(data, offset, length);
+        endPart();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        out.write(DASHES);
+        out.write(boundary);
+        out.write(DASHES);
+        out.write(CRLF);
+        out.close();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.gson.stream.JsonWriter;
+import com.hazelcast.spi.InternalCompletableFuture;
+
+/**
+ * Writes a page of results read from the partitions of a bucket one after
+ * another, each in the order of their keys, as for the key listing and
+ * queries. The results of the next few partitions are fetched ahead while
+ * writing those of the current one.
+ * <p>
+ * A page is selected by the "limit" and "cursor" parameters of the request,
+ * where the cursor is an opaque token holding the partition to continue
+ * with and the last key returned from it. A partition may take several
+ * operations, each continuing after the key returned by the previous one.
+ *
+ * @param <R> the result of an operation on a partition
+ * @author ancoron
+ */
+abstract class PartitionPager<R>
+{
+
+    private final int partitions;
+    private final int prefetch;
+    private final int limit;
+    private final int start;
+    private final String after;
+
+    /**
+     * Reads the page from the "limit" and "cursor" parameters.
+     *
+     * @throws NumberFormatException if a parameter is invalid
+     */
+    PartitionPager(HttpServletRequest req, int partitions, int prefetch,
+            int defaultLimit, int maxLimit)
+    {
+        String limit_str = req.getParameter("limit");
+        String cursor = req.getParameter("cursor");
+        this.partitions = partitions;
+        this.prefetch = prefetch;
+        if (limit_str != null) {
+            limit = Math.min(maxLimit, Integer.valueOf(limit_str));
+        } else {
+            limit = defaultLimit;
+        }
+        if (cursor != null) {
+            String position = new String(Base64.decodeBase64(cursor),
+                    StandardCharsets.UTF_8);
+            int colon = position.indexOf(':');
+            start = Integer.valueOf(position.substring(0, Math.max(0,
+                    colon)));
+            after = position.substring(colon + 1);
+        } else {
+            start = 0;
+            after = null;
+        }
+        if (limit < 1 || start < 0 || start >= partitions) {
+            throw new NumberFormatException("Out of range");
+        }
+    }
+
+    /**
+     * Submits the operation reading at most the given number of results from
+     * a partition.
+     *
+     * @param after the key to continue after or {@code null} to start with
+     * the first key
+     */
+    protected abstract InternalCompletableFuture<R> submit(int partition,
+            String after, int limit);
+
+    /**
+     * Returns the keys of the results in order.
+     */
+    protected abstract String[] keys(R result);
+
+    /**
+     * Writes the result with the given index.
+     */
+    protected abstract void write(R result, int index, JsonWriter writer)
+            throws IOException;
+
+    /**
+     * Returns the key to continue the partition after or {@code null} if it
+     * has been read completely. Returns {@code null} by default, for
+     * operations reading partitions in a single step.
+     */
+    protected String resume(R result)
+    {
+        return null;
+    }
+
+    /**
+     * Writes the results as an array of the given name along with their
+     * "count" and the "cursor" of the next page, unless this is the last
+     * one.
+     */
+    void write(JsonWriter writer, String name) throws IOException
+    {
+        Deque<InternalCompletableFuture<R>> pending = new ArrayDeque<>(
+                prefetch);
+        int partition = start;
+        int next = start;
+        int remaining = limit;
+        String last = after;
+        writer.name(name).beginArray();
+        while (remaining > 0 && partition < partitions) {
+            while (next < partitions && pending.size() < prefetch) {
+                pending.addLast(submit(next, next == start ? after : null,
+                        remaining));
+                next++;
+            }
+
+            R result = pending.removeFirst().getSafely();
+            String[] keys = keys(result);
+            int count = Math.min(keys.length, remaining);
+            for (int i = 0; i < count; i++) {
+                write(result, i, writer);
+            }
+            remaining -= count;
+            String resume = resume(result);
+            if (count < keys.length || (remaining == 0 && resume == null)) {
+                // the partition may hold more...
+                last = keys[count - 1];
+                break;
+            } else if (resume != null) {
+                last = resume;
+                if (remaining == 0) {
+                    break;
+                }
+                pending.addFirst(submit(partition, resume, remaining));
+            } else {
+                partition++;
+            }
+            if (count > 0) {
+                writer.flush();
+            }
+        }
+        writer.endArray();
+        writer.name("count").value(limit - remaining);
+        if (partition < partitions) {
+            writer.name("cursor").value(Base64.encodeBase64URLSafeString(
+                    (partition + ":" + last).getBytes(
+                            StandardCharsets.UTF_8)));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueHeader;
+
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.ICompletableFuture;
+import com.hazelcast.core.IMap;
+
+/**
+ * Lets concurrent reads of the same key on this member share a single fetch
+ * from the owning member ("single flight"), whose result is handed to all
+ * of them. A fetched value may also be kept for a short time (the micro
+ * TTL) to absorb bursts of reads following each other, at the price of
+ * reading a value up to that long after it has been changed on another
+ * member. Changes made through this member invalidate it right away.
+ * <p>
+ * Chunk manifests and failures are never kept beyond their fetch, as the
+ * chunks of an outdated manifest may be gone already.
+ *
+ * @author ancoron
+ */
+class ReadCoalescer
+{
+
+    private static final Logger LOG = Logger.getLogger(ReadCoalescer.class
+            .getName());
+
+    // remove expired values every so many fetches...
+    private static final int SWEEP_INTERVAL = 1024;
+
+    /**
+     * A fetch of a single value from the owning member.
+     */
+    static final class Flight implements ExecutionCallback<StoredValue>
+    {
+
+        private final ConcurrentMap<String, Flight> flights;
+        private final String key;
+        private final long ttl;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // guarded by this until done...
+        private List<Callback> callbacks = new ArrayList<>();
+        private StoredValue value;
+        private Throwable error;
+        private volatile long expires;
+
+        Flight(ConcurrentMap<String, Flight> flights, String key, long ttl)
+        {
+            this.flights = flights;
+            this.key = key;
+            this.ttl = ttl;
+        }
+
+        /**
+         * Checks whether this fetch has completed and its value is not to
+         * be used any longer.
+         */
+        boolean isExpired(long now)
+        {
+            long time = expires;
+            return time != 0 && now - time >= 0;
+        }
+
+        /**
+         * Waits for the value as stored or, if it matches one of the given
+         * entity tags, its {@link ValueHeader}.
+         */
+        Object get(String[] ifNoneMatch) throws IOException
+        {
+            try {
+                done.await();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading "
+                        + key);
+            }
+
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new IOException("Unable to read " + key, error);
+            }
+            return match(value, ifNoneMatch);
+        }
+
+        /**
+         * Hands the value as stored or, if it matches one of the given
+         * entity tags, its {@link ValueHeader} to the given callback once
+         * fetched.
+         */
+        void andThen(ExecutionCallback<Object> callback, String[] ifNoneMatch)
+        {
+            Callback waiting = new Callback(callback, ifNoneMatch);
+            synchronized (this) {
+                if (callbacks != null) {
+                    callbacks.add(waiting);
+                    return;
+                }
+            }
+            deliver(waiting);
+        }
+
+        @Override
+        public void onResponse(StoredValue response)
+        {
+            complete(response, null);
+        }
+
+        @Override
+        public void onFailure(Throwable t)
+        {
+            complete(null, t);
+        }
+
+        private void complete(StoredValue result, Throwable failure)
+        {
+            List<Callback> waiting;
+            synchronized (this) {
+                value = result;
+                error = failure;
+                waiting = callbacks;
+                callbacks = null;
+            }
+
+            long now = System.nanoTime();
+            if (ttl > 0 && failure == null && !(result instanceof ChunkedValue)) {
+                expires = now + ttl;
+            } else {
+                expires = now;
+                flights.remove(key, this);
+            }
+            done.countDown();
+
+            for (Callback callback : waiting) {
+                deliver(callback);
+            }
+        }
+
+        private void deliver(Callback callback)
+        {
+            try {
+                if (error != null) {
+                    callback.target.onFailure(error);
+                } else {
+                    callback.target.onResponse(match(value,
+                            callback.ifNoneMatch));
+                }
+            } catch (RuntimeException x) {
+                LOG.log(Level.WARNING, "Unable to hand over value for " + key,
+                        x);
+            }
+        }
+    }
+
+    private static final class Callback
+    {
+
+        private final ExecutionCallback<Object> target;
+        private final String[] ifNoneMatch;
+
+        Callback(ExecutionCallback<Object> target, String[] ifNoneMatch)
+        {
+            this.target = target;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+    }
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Flight>> buckets
+            = new ConcurrentHashMap<>();
+    private final AtomicInteger fetches = new AtomicInteger();
+    private volatile long ttl;
+
+    /**
+     * Returns the value as stored unless it matches one of the given entity
+     * tags, in which case only its {@link ValueHeader} is returned.
+     */
+    static Object match(StoredValue value, String[] ifNoneMatch)
+    {
+        if (value == null || ifNoneMatch == null) {
+            return value;
+        }
+        ValueHeader header = ValueHeader.of(value);
+        if (header != null && header.matches(ifNoneMatch, true)) {
+            return header;
+        }
+        return value;
+    }
+
+    long getTtl(TimeUnit unit)
+    {
+        return unit.convert(ttl, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the time fetched values are kept, 0 to share fetches in flight
+     * only.
+     */
+    void setTtl(long ttl, TimeUnit unit)
+    {
+        this.ttl = unit.toNanos(Math.max(0, ttl));
+        if (this.ttl == 0) {
+            buckets.clear();
+        }
+    }
+
+    private ConcurrentMap<String, Flight> flights(String map)
+    {
+        ConcurrentMap<String, Flight> flights = buckets.get(map);
+        if (flights == null) {
+            flights = new ConcurrentHashMap<>();
+            ConcurrentMap<String, Flight> existing = buckets.putIfAbsent(map,
+                    flights);
+            if (existing != null) {
+                flights = existing;
+            }
+        }
+        return flights;
+    }
+
+    /**
+     * Returns the fetch of the given value in flight (or kept) or starts a
+     * new one.
+     */
+    @SuppressWarnings("unchecked")
+    Flight join(IMap<String, StoredValue> m, String key)
+    {
+        ConcurrentMap<String, Flight> flights = flights(m.getName());
+        for (;;) {
+            Flight current = flights.get(key);
+            if (current != null && !current.isExpired(System.nanoTime())) {
+                return current;
+            }
+
+            Flight flight = new Flight(flights, key, ttl);
+            boolean started = current == null
+                    ? flights.putIfAbsent(key, flight) == null
+                    : flights.replace(key, current, flight);
+            if (started) {
+                if (ttl > 0 && fetches.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                    sweep();
+                }
+                // the map proxy always returns an ICompletableFuture
+                ((ICompletableFuture<StoredValue>) m.getAsync(key))
+                        .andThen(flight);
+                return flight;
+            }
+        }
+    }
+
+    /**
+     * Returns the fetch of the given value in flight (or kept), if any.
+     */
+    Flight find(String map, String key)
+    {
+        ConcurrentMap<String, Flight> flights = buckets.get(map);
+        Flight flight = flights == null ? null : flights.get(key);
+        if (flight == null || flight.isExpired(System.nanoTime())) {
+            return null;
+        }
+        return flight;
+    }
+
+    /**
+     * Makes reads following a change of the given value fetch it anew.
+     */
+    void invalidate(String map, String key)
+    {
+        ConcurrentMap<String, Flight> flights = buckets.get(map);
+        if (flights != null) {
+            flights.remove(key);
+        }
+    }
+
+    void remove(String map)
+    {
+        buckets.remove(map);
+    }
+
+    private void sweep()
+    {
+        long now = System.nanoTime();
+        for (ConcurrentMap<String, Flight> flights : buckets.values()) {
+            for (Map.Entry<String, Flight> entry : flights.entrySet()) {
+                if (entry.getValue().isExpired(now)) {
+                    flights.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * A request path resolved into its target, bucket and key in a single pass
+ * without regular expressions. Supported paths are:
+ * <ul>
+ * <li>"/{resource}" for a {@link Target} on the level of all buckets</li>
+ * <li>"/{bucket}" for the bucket itself</li>
+ * <li>"/{bucket}/{resource}" for a {@link Target} of the bucket</li>
+ * <li>"/{bucket}/{key}" for a single value, where the key is the remainder
+ * of the path (which may contain further slashes)</li>
+ * </ul>
+ * The path is expected to be decoded already (as returned by
+ * {@code HttpServletRequest.getPathInfo()}), so keys may contain any
+ * character if URL-encoded by the client, except for NUL characters, which
+ * are reserved for the derived keys of chunks (see {@link #isValidKey}).
+ *
+ * @author ancoron
+ */
+public final class Route
+{
+
+    /**
+     * The resources a path can resolve to. Named resources start with an
+     * underscore so that they hardly clash with bucket names or keys.
+     */
+    public static enum Target
+    {
+
+        BUCKET(null, true),
+        KEY(null, true),
+        MGET("_mget", true),
+        BULK("_bulk", true),
+        KEYS("_keys", true),
+        QUERY("_query", true),
+        CHANGES("_changes", true),
+        METRICS("_metrics", false);
+
+        private static final Target[] VALUES = values();
+
+        private final String resource;
+        private final boolean bucket;
+
+        private Target(String resource, boolean bucket)
+        {
+            this.resource = resource;
+            this.bucket = bucket;
+        }
+
+        /**
+         * Returns the path segment of a named resource or {@code null} for
+         * buckets and keys.
+         */
+        public String getResource()
+        {
+            return resource;
+        }
+
+        /**
+         * Checks whether this target lives within a bucket.
+         */
+        public boolean isBucket()
+        {
+            return bucket;
+        }
+
+        static Target find(String path, int start, boolean bucket)
+        {
+            if (path.charAt(start) != '_') {
+                return null;
+            }
+            int length = path.length() - start;
+            for (Target target : VALUES) {
+                if (target.resource != null && target.bucket == bucket
+                        && target.resource.length() == length
+                        && path.startsWith(target.resource, start))
+                {
+                    return target;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final String ATTRIBUTE = Route.class.getName();
+    // marks requests known to match no route...
+    private static final Object NONE = new Object();
+
+    private final Target target;
+    private final String bucket;
+    private final String key;
+
+    private Route(Target target, String bucket, String key)
+    {
+        this.target = target;
+        this.bucket = bucket;
+        this.key = key;
+    }
+
+    /**
+     * Returns the route of a request, which is resolved only once and then
+     * kept as a request attribute for all further handlers, or {@code null}
+     * if its path does not match any route.
+     */
+    public static Route of(HttpServletRequest req)
+    {
+        Object route = req.getAttribute(ATTRIBUTE);
+        if (route == null) {
+            route = parse(req.getPathInfo());
+            req.setAttribute(ATTRIBUTE, route == null ? NONE : route);
+        }
+        return route == NONE ? null : (Route) route;
+    }
+
+    /**
+     * Resolves the given path or returns {@code null} if it does not match
+     * any route.
+     */
+    public static Route parse(String path)
+    {
+        if (path == null || path.length() < 2 || path.charAt(0) != '/'
+                || !isValidKey(path))
+        {
+            return null;
+        }
+
+        int slash = path.indexOf('/', 1);
+        if (slash < 0) {
+            Target target = Target.find(path, 1, false);
+            if (target != null) {
+                return new Route(target, null, null);
+            }
+            return new Route(Target.BUCKET, path.substring(1), null);
+        } else if (slash == 1 || slash == path.length() - 1) {
+            // empty bucket name or key
+            return null;
+        }
+
+        String bucket = path.substring(1, slash);
+        Target target = Target.find(path, slash + 1, true);
+        if (target != null) {
+            return new Route(target, bucket, null);
+        }
+        return new Route(Target.KEY, bucket, path.substring(slash + 1));
+    }
+
+    /**
+     * Checks whether the given key may be used by clients, i.e. whether it
+     * contains no NUL character, so that clients can neither read nor
+     * overwrite the chunks of large values.
+     */
+    public static boolean isValidKey(String key)
+    {
+        return key.indexOf('\u0000') < 0;
+    }
+
+    public Target getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Returns the name of the bucket or {@code null} for targets on the
+     * level of all buckets.
+     */
+    public String getBucket()
+    {
+        return bucket;
+    }
+
+    /**
+     * Returns the key of the value or {@code null} for all other targets.
+     */
+    public String getKey()
+    {
+        return key;
+    }
+}
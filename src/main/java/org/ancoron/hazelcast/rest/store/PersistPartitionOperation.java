@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.store;
+
+import java.util.Iterator;
+
+import com.hazelcast.map.impl.operation.MapOperation;
+import com.hazelcast.map.impl.record.Record;
+import com.hazelcast.map.impl.recordstore.RecordStore;
+import com.hazelcast.spi.PartitionAwareOperation;
+import com.hazelcast.spi.ReadonlyOperation;
+import com.hazelcast.util.Clock;
+
+/**
+ * Queues all entries of a partition in a local {@link SegmentStore}, e.g.
+ * after the partition has been migrated to this member. It runs on the
+ * partition thread, so that no change of the partition is missed between
+ * copying its entries and the events of later changes.
+ * <p>
+ * This operation is only meant to be invoked on a partition owned by the
+ * local member, it does nothing anywhere else.
+ *
+ * @author ancoron
+ */
+public class PersistPartitionOperation extends MapOperation
+        implements PartitionAwareOperation, ReadonlyOperation
+{
+
+    private transient SegmentStore target;
+    private int count;
+
+    public PersistPartitionOperation()
+    {
+    }
+
+    public PersistPartitionOperation(String name, SegmentStore target)
+    {
+        super(name);
+        this.target = target;
+    }
+
+    @Override
+    public void run()
+    {
+        RecordStore<?> store = mapServiceContext.getExistingRecordStore(
+                getPartitionId(), name);
+        if (target == null || store == null) {
+            return;
+        }
+
+        Iterator<?> records = store.iterator(Clock.currentTimeMillis(), false);
+        while (records.hasNext()) {
+            Record<?> record = (Record<?>) records.next();
+            String key = (String) mapServiceContext.toObject(record.getKey());
+            target.put(key, mapServiceContext.toData(record.getValue())
+                    .toByteArray(), Math.max(record.getCreationTime(),
+                            record.getLastUpdateTime()));
+            count++;
+        }
+    }
+
+    @Override
+    public Object getResponse()
+    {
+        return count;
+    }
+}
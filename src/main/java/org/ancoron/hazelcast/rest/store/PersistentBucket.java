@@ -0,0 +1,579 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.ancoron.hazelcast.rest.catalog.BucketDefinition;
+import org.ancoron.hazelcast.rest.map.SetValueProcessor;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+
+import com.hazelcast.cluster.impl.ClusterClockImpl;
+import com.hazelcast.core.EntryEvent;
+import com.hazelcast.core.ExecutionCallback;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.HazelcastInstanceNotActiveException;
+import com.hazelcast.core.IMap;
+import com.hazelcast.core.MapEvent;
+import com.hazelcast.core.Member;
+import com.hazelcast.core.MigrationEvent;
+import com.hazelcast.core.MigrationListener;
+import com.hazelcast.core.Partition;
+import com.hazelcast.core.PartitionService;
+import com.hazelcast.internal.serialization.impl.HeapData;
+import com.hazelcast.map.impl.DataAwareEntryEvent;
+import com.hazelcast.map.impl.MapService;
+import com.hazelcast.map.listener.EntryAddedListener;
+import com.hazelcast.map.listener.EntryEvictedListener;
+import com.hazelcast.map.listener.EntryExpiredListener;
+import com.hazelcast.map.listener.EntryMergedListener;
+import com.hazelcast.map.listener.EntryRemovedListener;
+import com.hazelcast.map.listener.EntryUpdatedListener;
+import com.hazelcast.map.listener.MapClearedListener;
+import com.hazelcast.nio.serialization.Data;
+import com.hazelcast.query.Predicate;
+import com.hazelcast.query.TruePredicate;
+import com.hazelcast.spi.NodeEngine;
+import com.hazelcast.spi.impl.NodeEngineImpl;
+import com.hazelcast.util.Clock;
+
+/**
+ * Keeps the entries of a bucket owned by this member in a local
+ * {@link SegmentStore}, so that the bucket is warm again right after the
+ * whole cluster has been restarted.
+ * <p>
+ * Changes are picked up by a local entry listener, i.e. on the owner of
+ * each entry, and written behind by {@link #flush()}. When a partition is
+ * migrated to this member its entries are added to the store, when it is
+ * migrated away they are removed, so that each entry is only kept on the
+ * disk of its owner. Partitions migrated away during a rebalancing are
+ * collected and removed together, in a single pass over the stored keys. Evicted and expired entries are removed from the
+ * store as well, so that it does not outgrow the limits of the bucket.
+ * <p>
+ * The serialized value of an event is stored as it is, which relies on
+ * values never being changed once they have been passed to the map (see
+ * {@link org.ancoron.hazelcast.rest.map.BufferPool}).
+ * <p>
+ * On opening, the store is loaded into the bucket if the cluster has been
+ * started since it has been written (as recorded in the directory), by
+ * several threads in parallel with a number of outstanding operations each.
+ * Values are only loaded if absent, with the TTL of the bucket starting
+ * anew, and values that would have expired already are skipped. Afterwards,
+ * entries owned by other members are removed from the store, as they are
+ * kept by their owners now. If this member rejoins the cluster it has been
+ * part of, the store is stale and discarded instead.
+ * <p>
+ * The store has to be closed before the member shuts down, so that the
+ * partitions migrated away while shutting down are kept. After a member
+ * has left, the entries of the partitions promoted from backups are only
+ * stored by their new owners once they change.
+ *
+ * @author ancoron
+ */
+public class PersistentBucket implements
+        EntryAddedListener<String, StoredValue>,
+        EntryUpdatedListener<String, StoredValue>,
+        EntryRemovedListener<String, StoredValue>,
+        EntryEvictedListener<String, StoredValue>,
+        EntryExpiredListener<String, StoredValue>,
+        EntryMergedListener<String, StoredValue>, MapClearedListener,
+        MigrationListener
+{
+
+    private static final Logger LOG = Logger.getLogger(PersistentBucket.class
+            .getName());
+
+    private static final String DEFINITION = "bucket";
+    private static final String CLUSTER = "cluster";
+    private static final String LOCK = "lock";
+
+    private static final int WARM_START_THREADS = 4;
+    private static final int WARM_START_PIPELINE = 64;
+    // "If-None-Match: *", i.e. only if there is no value yet
+    private static final String[] ANY = {"*"};
+
+    private final HazelcastInstance hazelcast;
+    private final NodeEngine engine;
+    private final BucketDefinition definition;
+    private final File directory;
+    private final ExecutorService executor;
+    private volatile SegmentStore store;
+    private volatile boolean open;
+    private FileChannel channel;
+    private FileLock lock;
+    private String registration;
+    private String migration;
+    // partitions migrated away, dropped from the store in a single pass over
+    // its keys for all of them...
+    private final Set<Integer> dropped = Collections.newSetFromMap(
+            new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicBoolean dropping = new AtomicBoolean();
+
+    /**
+     * @param executor runs the background work, e.g. after migrations
+     */
+    public PersistentBucket(HazelcastInstance hazelcast, NodeEngine engine,
+            BucketDefinition definition, File directory,
+            ExecutorService executor)
+    {
+        this.hazelcast = hazelcast;
+        this.engine = engine;
+        this.definition = definition;
+        this.directory = directory;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the directory of the given bucket below the data directory.
+     */
+    public static File directory(File base, String name)
+    {
+        try {
+            return new File(base, URLEncoder.encode(name, "UTF-8"));
+        } catch (IOException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /**
+     * Reads the definition of the bucket stored in the given directory or
+     * returns {@code null} if there is none.
+     */
+    public static BucketDefinition readDefinition(NodeEngine engine,
+            File directory) throws IOException
+    {
+        File file = new File(directory, DEFINITION);
+        if (!file.isFile()) {
+            return null;
+        }
+        return engine.toObject(new HeapData(Files.readAllBytes(
+                file.toPath())));
+    }
+
+    /**
+     * Tells whether the store in the given directory has been written while
+     * the current cluster was running.
+     */
+    public static boolean isCurrent(NodeEngine engine, File directory)
+            throws IOException
+    {
+        File file = new File(directory, CLUSTER);
+        if (!file.isFile()) {
+            return false;
+        }
+        String written = new String(Files.readAllBytes(file.toPath()),
+                StandardCharsets.UTF_8).trim();
+        return written.equals(String.valueOf(clusterStartTime(engine)));
+    }
+
+    /**
+     * Deletes the store in the given directory.
+     */
+    public static void delete(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static long clusterStartTime(NodeEngine engine)
+    {
+        return ((ClusterClockImpl) ((NodeEngineImpl) engine)
+                .getClusterService().getClusterClock()).getClusterStartTime();
+    }
+
+    public BucketDefinition getDefinition()
+    {
+        return definition;
+    }
+
+    public SegmentStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Opens the store and starts to keep the entries of the bucket, after
+     * loading them first if the cluster has been restarted.
+     *
+     * @throws IOException if the store could not be opened, e.g. because it
+     * is in use already
+     */
+    public synchronized void open() throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        channel = FileChannel.open(new File(directory, LOCK).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException x) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("Store is in use already: " + directory);
+        }
+
+        Files.write(new File(directory, DEFINITION).toPath(),
+                engine.toData(definition).toByteArray());
+        store = new SegmentStore(directory);
+        final boolean warm = store.size() > 0
+                && !isCurrent(engine, directory);
+        if (!warm) {
+            store.clear();
+        }
+        Files.write(new File(directory, CLUSTER).toPath(), String.valueOf(
+                clusterStartTime(engine)).getBytes(StandardCharsets.UTF_8));
+
+        IMap<String, StoredValue> map = hazelcast.getMap(
+                definition.getName());
+        // TruePredicate is not generic...
+        @SuppressWarnings("unchecked")
+        Predicate<String, StoredValue> all = TruePredicate.INSTANCE;
+        registration = map.addLocalEntryListener(this, all, true);
+        migration = hazelcast.getPartitionService().addMigrationListener(
+                this);
+        open = true;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run()
+            {
+                if (warm) {
+                    warmStart();
+                } else {
+                    for (Partition partition : hazelcast.getPartitionService()
+                            .getPartitions())
+                    {
+                        Member owner = partition.getOwner();
+                        if (owner != null && owner.localMember()) {
+                            persist(partition.getPartitionId());
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all queued changes to disk.
+     */
+    public void flush()
+    {
+        SegmentStore current = store;
+        if (current != null) {
+            try {
+                current.flush();
+            } catch (IOException x) {
+                LOG.log(Level.WARNING, "Unable to write the store of bucket '"
+                        + definition.getName() + "'", x);
+            }
+        }
+    }
+
+    /**
+     * Stops keeping the entries and closes the store after writing all
+     * queued changes.
+     */
+    public synchronized void close()
+    {
+        if (!open) {
+            return;
+        }
+        open = false;
+        hazelcast.getMap(definition.getName()).removeEntryListener(
+                registration);
+        hazelcast.getPartitionService().removeMigrationListener(migration);
+        flush();
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException x) {
+            // nothing left to do...
+        }
+    }
+
+    /**
+     * Closes and deletes the store, e.g. after the bucket has been deleted.
+     */
+    public synchronized void destroy()
+    {
+        close();
+        if (store != null) {
+            store.destroy();
+        }
+        delete(directory);
+    }
+
+    /**
+     * Loads all values of the store into the bucket (if absent), several
+     * keys at a time, and removes the entries owned by other members from
+     * the store afterwards.
+     */
+    private void warmStart()
+    {
+        final String name = definition.getName();
+        final IMap<String, StoredValue> map = hazelcast.getMap(name);
+        final long start = Clock.currentTimeMillis();
+        final long expiry = definition.getTtl() > 0
+                ? start - TimeUnit.SECONDS.toMillis(definition.getTtl())
+                : Long.MIN_VALUE;
+        final AtomicInteger loaded = new AtomicInteger();
+        final List<String> keys = new ArrayList<>(store.keys());
+
+        ExecutorService loaders = Executors.newFixedThreadPool(
+                WARM_START_THREADS);
+        for (int t = 0; t < WARM_START_THREADS; t++) {
+            final int first = t;
+            loaders.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    final Semaphore permits = new Semaphore(
+                            WARM_START_PIPELINE);
+                    ExecutionCallback<Object> callback
+                            = new ExecutionCallback<Object>() {
+                        @Override
+                        public void onResponse(Object response)
+                        {
+                            if (response != Boolean.FALSE) {
+                                loaded.incrementAndGet();
+                            }
+                            permits.release();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t)
+                        {
+                            permits.release();
+                        }
+                    };
+
+                    for (int i = first; i < keys.size();
+                            i += WARM_START_THREADS)
+                    {
+                        String key = keys.get(i);
+                        SegmentStore.Entry entry = store.get(key);
+                        if (entry == null || entry.getTimestamp() < expiry) {
+                            continue;
+                        }
+                        StoredValue value = engine.toObject(
+                                new HeapData(entry.getValue()));
+                        permits.acquireUninterruptibly();
+                        map.submitToKey(key, new SetValueProcessor(value,
+                                null, ANY), callback);
+                    }
+                    // wait for the outstanding operations...
+                    permits.acquireUninterruptibly(WARM_START_PIPELINE);
+                }
+            });
+        }
+        loaders.shutdown();
+        try {
+            loaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        PartitionService partitions = hazelcast.getPartitionService();
+        long now = Clock.currentTimeMillis();
+        for (String key : store.keys()) {
+            Member owner = partitions.getPartition(key).getOwner();
+            if (owner != null && !owner.localMember()) {
+                store.delete(key, now);
+            }
+        }
+        flush();
+
+        LOG.log(Level.INFO, "Loaded {0} of {1} values of bucket ''{2}'' in"
+                + " {3} ms", new Object[] {loaded.get(), keys.size(), name,
+                    Clock.currentTimeMillis() - start});
+    }
+
+    private void persist(int partition)
+    {
+        if (!open) {
+            return;
+        }
+        try {
+            engine.getOperationService().invokeOnPartition(
+                    MapService.SERVICE_NAME, new PersistPartitionOperation(
+                            definition.getName(), store), partition)
+                    .getSafely();
+        } catch (HazelcastInstanceNotActiveException x) {
+            // shutting down...
+        } catch (RuntimeException x) {
+            LOG.log(Level.WARNING, "Unable to store partition " + partition
+                    + " of bucket '" + definition.getName() + "'", x);
+        }
+    }
+
+    /**
+     * Removes the keys of all partitions migrated away so far from the
+     * store, so that a rebalancing costs a few passes over the keys rather
+     * than one per partition.
+     */
+    private void drop()
+    {
+        dropping.set(false);
+        Set<Integer> batch = new HashSet<>();
+        for (Iterator<Integer> it = dropped.iterator(); it.hasNext();) {
+            batch.add(it.next());
+            it.remove();
+        }
+        if (!open || batch.isEmpty()) {
+            return;
+        }
+
+        PartitionService partitions = hazelcast.getPartitionService();
+        long now = Clock.currentTimeMillis();
+        for (String key : store.keys()) {
+            if (batch.contains(partitions.getPartition(key).getPartitionId())) {
+                store.delete(key, now);
+            }
+        }
+    }
+
+    private void store(EntryEvent<String, StoredValue> event)
+    {
+        Data value = event instanceof DataAwareEntryEvent
+                ? ((DataAwareEntryEvent) event).getNewValueData() : null;
+        if (value == null) {
+            value = engine.toData(event.getValue());
+        }
+        store.put(event.getKey(), value.toByteArray(),
+                Clock.currentTimeMillis());
+    }
+
+    @Override
+    public void entryAdded(EntryEvent<String, StoredValue> event)
+    {
+        store(event);
+    }
+
+    @Override
+    public void entryUpdated(EntryEvent<String, StoredValue> event)
+    {
+        store(event);
+    }
+
+    @Override
+    public void entryMerged(EntryEvent<String, StoredValue> event)
+    {
+        store(event);
+    }
+
+    @Override
+    public void entryRemoved(EntryEvent<String, StoredValue> event)
+    {
+        store.delete(event.getKey(), Clock.currentTimeMillis());
+    }
+
+    @Override
+    public void entryEvicted(EntryEvent<String, StoredValue> event)
+    {
+        store.delete(event.getKey(), Clock.currentTimeMillis());
+    }
+
+    @Override
+    public void entryExpired(EntryEvent<String, StoredValue> event)
+    {
+        store.delete(event.getKey(), Clock.currentTimeMillis());
+    }
+
+    @Override
+    public void mapCleared(MapEvent event)
+    {
+        try {
+            store.clear();
+        } catch (IOException x) {
+            LOG.log(Level.WARNING, "Unable to clear the store of bucket '"
+                    + definition.getName() + "'", x);
+        }
+    }
+
+    @Override
+    public void migrationStarted(MigrationEvent event)
+    {
+    }
+
+    @Override
+    public void migrationCompleted(MigrationEvent event)
+    {
+        if (!open) {
+            return;
+        }
+        final int partition = event.getPartitionId();
+        Member newOwner = event.getNewOwner();
+        Member oldOwner = event.getOldOwner();
+        if (newOwner != null && newOwner.localMember()) {
+            dropped.remove(partition);
+            executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    persist(partition);
+                }
+            });
+        } else if (oldOwner != null && oldOwner.localMember()) {
+            dropped.add(partition);
+            if (dropping.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        drop();
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void migrationFailed(MigrationEvent event)
+    {
+    }
+}
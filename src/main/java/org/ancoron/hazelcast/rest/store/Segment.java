@@ -0,0 +1,367 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A single append-only segment file of a {@link SegmentStore}, which is
+ * memory-mapped as a whole.
+ * <p>
+ * A segment starts with a magic number and a version, followed by records
+ * of the form {@code length, kind, timestamp, key length, key, value, CRC},
+ * where the length covers everything up to the CRC (exclusive) and the CRC
+ * covers the same bytes. A length of 0 marks the end, as the file is
+ * preallocated with zeros. Reading stops at the first incomplete or
+ * corrupt record, so a torn write at the end is simply ignored.
+ *
+ * @author ancoron
+ */
+final class Segment
+{
+
+    private static final Logger LOG = Logger.getLogger(Segment.class.getName());
+
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    private static final int MAGIC = 0x48435347; // "HCSG"
+    private static final int VERSION = 1;
+    static final int HEADER = 8;
+    // length, kind, timestamp, key length...
+    private static final int RECORD_HEADER = 4 + 1 + 8 + 4;
+    // ...and the CRC
+    static final int RECORD_OVERHEAD = RECORD_HEADER + 4;
+
+    private final int id;
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int position;
+    private long garbage;
+
+    private Segment(int id, File file, MappedByteBuffer buffer)
+    {
+        this.id = id;
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    static String fileName(int id)
+    {
+        return String.format("%08x.seg", id);
+    }
+
+    /**
+     * Creates a new segment file of the given size.
+     */
+    static Segment create(File directory, int id, int size) throws IOException
+    {
+        File file = new File(directory, fileName(id));
+        Segment segment = new Segment(id, file, map(file, size));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(4, VERSION);
+        segment.position = HEADER;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment file, which has to be {@link #scan(Visitor)
+     * scanned} before appending to it.
+     */
+    static Segment open(File file, int id) throws IOException
+    {
+        Segment segment = new Segment(id, file, map(file, -1));
+        if (segment.buffer.capacity() < HEADER
+                || segment.buffer.getInt(0) != MAGIC
+                || segment.buffer.getInt(4) != VERSION)
+        {
+            throw new IOException("Not a segment file: " + file);
+        }
+        return segment;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel())
+        {
+            if (size > 0) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after closing the channel...
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    channel.size());
+        }
+    }
+
+    /**
+     * Returns the number of bytes needed to store a record.
+     */
+    static int sizeOf(byte[] key, byte[] value)
+    {
+        return RECORD_OVERHEAD + key.length
+                + (value == null ? 0 : value.length);
+    }
+
+    int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    int getSize()
+    {
+        return position;
+    }
+
+    /**
+     * Returns the number of written bytes that belong to records which have
+     * been superseded.
+     */
+    long getGarbage()
+    {
+        return garbage;
+    }
+
+    void addGarbage(long bytes)
+    {
+        garbage += bytes;
+    }
+
+    /**
+     * Appends a record and returns its offset or -1 if there is not enough
+     * space left in this segment.
+     */
+    int append(byte kind, long timestamp, byte[] key, byte[] value)
+    {
+        int size = sizeOf(key, value);
+        // keep space for the end marker...
+        if (position + size + 4 > buffer.capacity()) {
+            return -1;
+        }
+
+        byte[] payload = new byte[size - 8];
+        ByteBuffer record = ByteBuffer.wrap(payload);
+        record.put(kind);
+        record.putLong(timestamp);
+        record.putInt(key.length);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteBuffer out = buffer.duplicate();
+        out.position(position + 4);
+        out.put(payload);
+        out.putInt((int) crc.getValue());
+
+        // the length is written last, so that a record only becomes
+        // visible once it is complete...
+        buffer.putInt(position, payload.length);
+
+        int offset = position;
+        position += size;
+        return offset;
+    }
+
+    /**
+     * Reads the record at the given offset or returns {@code null} if there
+     * is none (or it is corrupt).
+     */
+    Record read(int offset)
+    {
+        if (offset < HEADER || offset + RECORD_OVERHEAD > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length < RECORD_HEADER - 4
+                || offset + 8 + (long) length > buffer.capacity())
+        {
+            return null;
+        }
+
+        byte[] payload = new byte[length];
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset + 4);
+        in.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (in.getInt() != (int) crc.getValue()) {
+            return null;
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(payload);
+        byte kind = record.get();
+        long timestamp = record.getLong();
+        int keyLength = record.getInt();
+        if (keyLength < 0 || keyLength > record.remaining()
+                || (kind != PUT && kind != DELETE))
+        {
+            return null;
+        }
+        String key = new String(payload, record.position(), keyLength,
+                StandardCharsets.UTF_8);
+        int valueOffset = record.position() + keyLength;
+        return new Record(kind, timestamp, key, payload, valueOffset,
+                offset + 8 + length);
+    }
+
+    /**
+     * Visits all complete records from the start and sets the position for
+     * appending after the last of them.
+     *
+     * @return the number of bytes after the last complete record, which are
+     * unusable (if not zero-filled)
+     */
+    int scan(Visitor visitor)
+    {
+        int offset = HEADER;
+        Record record;
+        while ((record = read(offset)) != null) {
+            visitor.visit(this, offset, record);
+            offset = record.next;
+        }
+        position = offset;
+        return buffer.capacity() - offset;
+    }
+
+    /**
+     * Writes all changes through to the file.
+     */
+    void force()
+    {
+        buffer.force();
+    }
+
+    /**
+     * Releases the mapping and deletes the file. The segment must not be
+     * used anymore afterwards, as accessing an unmapped buffer crashes the
+     * JVM.
+     */
+    boolean delete()
+    {
+        unmap(buffer);
+        return file.delete();
+    }
+
+    /**
+     * Releases a mapping right away instead of once the buffer has been
+     * garbage collected, which would keep the address space and the disk
+     * space of a deleted file until then (and prevent deleting it at all on
+     * Windows).
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try {
+            try {
+                // Java 9 and later...
+                Class<?> type = Class.forName("sun.misc.Unsafe");
+                Field field = type.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                type.getMethod("invokeCleaner", ByteBuffer.class).invoke(
+                        field.get(null), buffer);
+            } catch (NoSuchMethodException x) {
+                // ...or the cleaner of the buffer up to Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null) {
+                    clean.getClass().getMethod("clean").invoke(clean);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException x) {
+            LOG.log(Level.FINE, "Unable to unmap segment, leaving it to the"
+                    + " garbage collector", x);
+        }
+    }
+
+    interface Visitor
+    {
+
+        void visit(Segment segment, int offset, Record record);
+    }
+
+    /**
+     * A record read from a segment.
+     */
+    static final class Record
+    {
+
+        final byte kind;
+        final long timestamp;
+        final String key;
+        final int next;
+        private final byte[] payload;
+        private final int valueOffset;
+
+        private Record(byte kind, long timestamp, String key, byte[] payload,
+                int valueOffset, int next)
+        {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.key = key;
+            this.payload = payload;
+            this.valueOffset = valueOffset;
+            this.next = next;
+        }
+
+        /**
+         * Returns the size of the whole record in the segment.
+         */
+        int size()
+        {
+            return payload.length + 8;
+        }
+
+        byte[] value()
+        {
+            if (kind != PUT) {
+                return null;
+            }
+            byte[] value = new byte[payload.length - valueOffset];
+            System.arraycopy(payload, valueOffset, value, 0, value.length);
+            return value;
+        }
+
+        boolean hasValue(byte[] value)
+        {
+            if (kind != PUT || value.length != payload.length - valueOffset) {
+                return false;
+            }
+            for (int i = 0; i < value.length; i++) {
+                if (value[i] != payload[valueOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.ancoron.hazelcast.rest.store.Segment.Record;
+
+/**
+ * A local key/value log in a directory of append-only, memory-mapped
+ * {@link Segment} files with an in-memory index of the latest record of
+ * each key.
+ * <p>
+ * Changes are written behind: {@link #put(String, byte[], long)} and
+ * {@link #delete(String, long)} only queue the change, coalescing multiple
+ * changes of the same key, and {@link #flush()} appends all queued changes
+ * and forces them to disk. Writing a value that equals the stored one is
+ * skipped.
+ * <p>
+ * Once at least half of a full segment has been superseded, its live
+ * records are copied to the current segment and the file is unmapped and
+ * deleted, once no reader can access it anymore.
+ * Deletions are kept as long as an older segment might still hold a value
+ * of the key.
+ *
+ * @author ancoron
+ */
+public class SegmentStore implements Closeable
+{
+
+    public static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final double COMPACTION_RATIO = 0.5;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Integer, Segment> segments
+            = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Location> index
+            = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Pending> pending
+            = new ConcurrentHashMap<>();
+    // readers hold the read lock, so that segments are only unmapped once
+    // nobody reads from them anymore...
+    private final ReadWriteLock mappings = new ReentrantReadWriteLock();
+    private Segment active;
+
+    public SegmentStore(File directory) throws IOException
+    {
+        this(directory, SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the store in the given directory, reading the index from all
+     * existing segments.
+     */
+    public SegmentStore(File directory, int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file)
+            {
+                return file.isFile() && file.getName().endsWith(".seg");
+            }
+        });
+        Map<Integer, File> sorted = new ConcurrentSkipListMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            try {
+                sorted.put(Integer.parseInt(
+                        name.substring(0, name.length() - 4), 16), file);
+            } catch (NumberFormatException x) {
+                // not one of ours...
+            }
+        }
+
+        for (Map.Entry<Integer, File> entry : sorted.entrySet()) {
+            Segment segment = Segment.open(entry.getValue(), entry.getKey());
+            segments.put(segment.getId(), segment);
+            segment.scan(new Segment.Visitor() {
+                @Override
+                public void visit(Segment segment, int offset, Record record)
+                {
+                    Location previous;
+                    if (record.kind == Segment.PUT) {
+                        previous = index.put(record.key, new Location(
+                                segment.getId(), offset, record.size()));
+                    } else {
+                        previous = index.remove(record.key);
+                        segment.addGarbage(record.size());
+                    }
+                    release(previous);
+                }
+            });
+            active = segment;
+        }
+        if (active == null) {
+            active = Segment.create(directory, 1, segmentSize);
+            segments.put(active.getId(), active);
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Queues storing the given value of a key.
+     *
+     * @param value the serialized value
+     * @param timestamp the time of the change in milliseconds since the
+     * epoch
+     */
+    public void put(String key, byte[] value, long timestamp)
+    {
+        pending.put(key, new Pending(value, timestamp));
+    }
+
+    /**
+     * Queues the deletion of a key.
+     */
+    public void delete(String key, long timestamp)
+    {
+        pending.put(key, new Pending(null, timestamp));
+    }
+
+    /**
+     * Returns the current value of the given key including queued changes
+     * or {@code null} if there is none.
+     */
+    public Entry get(String key)
+    {
+        Pending change = pending.get(key);
+        if (change != null) {
+            return change.value == null ? null
+                    : new Entry(change.value, change.timestamp);
+        }
+
+        mappings.readLock().lock();
+        try {
+            // retry if the record has just been moved by a compaction...
+            for (int i = 0; i < 3; i++) {
+                Location location = index.get(key);
+                if (location == null) {
+                    return null;
+                }
+                Record record = read(location);
+                if (record != null) {
+                    return new Entry(record.value(), record.timestamp);
+                }
+            }
+            return null;
+        } finally {
+            mappings.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns all keys that currently have a value including queued changes.
+     */
+    public Set<String> keys()
+    {
+        Set<String> keys = new LinkedHashSet<>(index.keySet());
+        for (Map.Entry<String, Pending> change : pending.entrySet()) {
+            if (change.getValue().value == null) {
+                keys.remove(change.getKey());
+            } else {
+                keys.add(change.getKey());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Returns the number of keys with a value on disk.
+     */
+    public int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Returns the size of all segment files in bytes.
+     */
+    public long getDiskSize()
+    {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * Appends all queued changes, compacts segments if necessary and
+     * forces the changes to disk.
+     */
+    public synchronized void flush() throws IOException
+    {
+        Set<Segment> touched = new HashSet<>();
+        for (Map.Entry<String, Pending> change : pending.entrySet()) {
+            // only if not changed again in the meantime...
+            if (pending.remove(change.getKey(), change.getValue())) {
+                write(change.getKey(), change.getValue(), touched);
+            }
+        }
+        List<Segment> compacted = compact(touched);
+
+        for (Segment segment : touched) {
+            segment.force();
+        }
+        delete(compacted);
+    }
+
+    /**
+     * Drops all values and queued changes.
+     */
+    public synchronized void clear() throws IOException
+    {
+        pending.clear();
+        index.clear();
+        int id = active.getId() + 1;
+        List<Segment> all = new ArrayList<>(segments.values());
+        segments.clear();
+        delete(all);
+        active = Segment.create(directory, id, segmentSize);
+        segments.put(active.getId(), active);
+    }
+
+    /**
+     * Flushes all queued changes.
+     */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        flush();
+    }
+
+    /**
+     * Drops all values and deletes all segment files.
+     */
+    public synchronized void destroy()
+    {
+        pending.clear();
+        index.clear();
+        List<Segment> all = new ArrayList<>(segments.values());
+        segments.clear();
+        delete(all);
+    }
+
+    /**
+     * Deletes segments that are no longer listed, waiting for running reads.
+     */
+    private void delete(List<Segment> deleted)
+    {
+        mappings.writeLock().lock();
+        try {
+            for (Segment segment : deleted) {
+                segment.delete();
+            }
+        } finally {
+            mappings.writeLock().unlock();
+        }
+    }
+
+    private void write(String key, Pending change, Set<Segment> touched)
+            throws IOException
+    {
+        Location previous = index.get(key);
+        byte[] name = key.getBytes(StandardCharsets.UTF_8);
+        if (change.value == null) {
+            if (previous == null) {
+                // nothing to delete on disk...
+                return;
+            }
+            Location location = append(Segment.DELETE, change.timestamp, name,
+                    null, touched);
+            segments.get(location.segment).addGarbage(location.size);
+            index.remove(key);
+        } else {
+            if (previous != null) {
+                Record record = read(previous);
+                if (record != null && record.hasValue(change.value)) {
+                    return;
+                }
+            }
+            index.put(key, append(Segment.PUT, change.timestamp, name,
+                    change.value, touched));
+        }
+        release(previous);
+    }
+
+    private Location append(byte kind, long timestamp, byte[] key,
+            byte[] value, Set<Segment> touched) throws IOException
+    {
+        int offset = active.append(kind, timestamp, key, value);
+        if (offset < 0) {
+            touched.add(active);
+            int size = Segment.sizeOf(key, value);
+            active = Segment.create(directory, active.getId() + 1,
+                    Math.max(segmentSize, Segment.HEADER + size + 4));
+            segments.put(active.getId(), active);
+            offset = active.append(kind, timestamp, key, value);
+        }
+        touched.add(active);
+        return new Location(active.getId(), offset,
+                Segment.sizeOf(key, value));
+    }
+
+    private List<Segment> compact(final Set<Segment> touched)
+            throws IOException
+    {
+        List<Segment> compacted = new ArrayList<>();
+        for (Segment segment : segments.values()) {
+            if (segment == active || segment.getGarbage()
+                    < (segment.getSize() - Segment.HEADER) * COMPACTION_RATIO)
+            {
+                continue;
+            }
+
+            final boolean oldest = segment.getId() == segments.firstKey();
+            final List<Record> live = new ArrayList<>();
+            final List<Integer> offsets = new ArrayList<>();
+            segment.scan(new Segment.Visitor() {
+                @Override
+                public void visit(Segment segment, int offset, Record record)
+                {
+                    if (record.kind == Segment.PUT) {
+                        Location location = index.get(record.key);
+                        if (location != null
+                                && location.segment == segment.getId()
+                                && location.offset == offset)
+                        {
+                            live.add(record);
+                            offsets.add(offset);
+                        }
+                    } else if (!oldest && !index.containsKey(record.key)) {
+                        // an older segment may still hold a value...
+                        live.add(record);
+                        offsets.add(offset);
+                    }
+                }
+            });
+
+            for (Record record : live) {
+                byte[] key = record.key.getBytes(StandardCharsets.UTF_8);
+                Location location = append(record.kind, record.timestamp, key,
+                        record.value(), touched);
+                if (record.kind == Segment.PUT) {
+                    index.put(record.key, location);
+                } else {
+                    segments.get(location.segment).addGarbage(location.size);
+                }
+            }
+            segments.remove(segment.getId());
+            compacted.add(segment);
+        }
+        return compacted;
+    }
+
+    private Record read(Location location)
+    {
+        Segment segment = segments.get(location.segment);
+        return segment == null ? null : segment.read(location.offset);
+    }
+
+    private void release(Location location)
+    {
+        if (location != null) {
+            Segment segment = segments.get(location.segment);
+            if (segment != null) {
+                segment.addGarbage(location.size);
+            }
+        }
+    }
+
+    /**
+     * A value read from the store.
+     */
+    public static final class Entry
+    {
+
+        private final byte[] value;
+        private final long timestamp;
+
+        Entry(byte[] value, long timestamp)
+        {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        public byte[] getValue()
+        {
+            return value;
+        }
+
+        /**
+         * Returns the time of the last change in milliseconds since the
+         * epoch.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+    }
+
+    private static final class Location
+    {
+
+        private final int segment;
+        private final int offset;
+        private final int size;
+
+        Location(int segment, int offset, int size)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static final class Pending
+    {
+
+        private final byte[] value;
+        private final long timestamp;
+
+        Pending(byte[] value, long timestamp)
+        {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.admission;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author ancoron
+ */
+public class ConcurrencyLimitTest {
+
+    /**
+     * Runs operations taking the given time, keeping the limit busy.
+     */
+    private static void load(ConcurrencyLimit limit, long nanos, int count) {
+        for (int i = 0; i < count; i++) {
+            int n = limit.getLimit();
+            for (int j = 0; j < n; j++) {
+                Assert.assertTrue(limit.tryAcquire());
+            }
+            for (int j = 0; j < n; j++) {
+                limit.release(nanos);
+            }
+        }
+    }
+
+    @Test
+    public void fixed() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(2, false);
+        Assert.assertTrue(limit.tryAcquire());
+        Assert.assertTrue(limit.tryAcquire());
+        Assert.assertFalse(limit.tryAcquire());
+        Assert.assertEquals(1, limit.getRejected());
+
+        limit.release(1_000_000_000L);
+        Assert.assertEquals(1, limit.getInFlight());
+        Assert.assertTrue(limit.tryAcquire());
+        Assert.assertEquals(2, limit.getLimit());
+    }
+
+    @Test
+    public void adaptive() {
+        ConcurrencyLimit limit = new ConcurrencyLimit(100, true);
+        load(limit, 1_000_000L, 20);
+        Assert.assertEquals(100, limit.getLimit());
+
+        // latency goes up tenfold, so does queuing...
+        load(limit, 10_000_000L, 5);
+        int reduced = limit.getLimit();
+        Assert.assertTrue(reduced < 60);
+
+        // ...and further, but never below a tenth
+        load(limit, 100_000_000L, 50);
+        Assert.assertTrue(limit.getLimit() < reduced);
+        Assert.assertTrue(limit.getLimit() >= 10);
+
+        // ...and back to normal
+        load(limit, 1_000_000L, 200);
+        Assert.assertEquals(100, limit.getLimit());
+        Assert.assertEquals(0, limit.getInFlight());
+        Assert.assertEquals(0, limit.getRejected());
+    }
+
+    @Test
+    public void admission() {
+        AdmissionControl admission = new AdmissionControl(3, 2, false);
+        AdmissionControl.Permit a1 = admission.acquire("a");
+        AdmissionControl.Permit a2 = admission.acquire("a");
+        Assert.assertNotNull(a1);
+        Assert.assertNotNull(a2);
+
+        // the noisy bucket is limited on its own...
+        Assert.assertNull(admission.acquire("a"));
+        AdmissionControl.Permit b1 = admission.acquire("b");
+        Assert.assertNotNull(b1);
+
+        // ...while all buckets share the global limit
+        Assert.assertNull(admission.acquire("c"));
+        Assert.assertEquals(0, admission.get("c").getInFlight());
+
+        a1.release(0);
+        Assert.assertNotNull(admission.acquire("c"));
+        Assert.assertEquals(3, admission.getGlobal().getInFlight());
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.catalog;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author ancoron
+ */
+public class BucketBalancerTest {
+
+    private static BucketDefinition bucket(String name, int maxData) {
+        return new BucketDefinition(name, 0, 0, maxData, null,
+                ValueEncoding.IDENTITY, 0);
+    }
+
+    @Test
+    public void limits() {
+        List<BucketDefinition> buckets = Arrays.asList(bucket("a", 1200),
+                bucket("b", 300), bucket("c", 0));
+
+        // without a budget the limits scale with the members...
+        Map<String, Integer> limits = BucketBalancer.limits(buckets, 3, 0);
+        Assert.assertEquals(400, (int) limits.get("a"));
+        Assert.assertEquals(100, (int) limits.get("b"));
+        Assert.assertEquals(0, (int) limits.get("c"));
+
+        limits = BucketBalancer.limits(buckets, 12, 0);
+        Assert.assertEquals(100, (int) limits.get("a"));
+        Assert.assertEquals(25, (int) limits.get("b"));
+
+        // ...but never drop to "no limit"
+        limits = BucketBalancer.limits(buckets, 1000, 0);
+        Assert.assertEquals(1, (int) limits.get("a"));
+        Assert.assertEquals(1, (int) limits.get("b"));
+
+        // an overcommitted budget is shared proportionally
+        limits = BucketBalancer.limits(buckets, 3, 250);
+        Assert.assertEquals(200, (int) limits.get("a"));
+        Assert.assertEquals(50, (int) limits.get("b"));
+        Assert.assertEquals(1, (int) limits.get("c"));
+
+        // the rest goes to buckets without a limit of their own
+        limits = BucketBalancer.limits(buckets, 12, 250);
+        Assert.assertEquals(100, (int) limits.get("a"));
+        Assert.assertEquals(25, (int) limits.get("b"));
+        Assert.assertEquals(125, (int) limits.get("c"));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.hazelcast.config.SerializationConfig;
+import com.hazelcast.internal.serialization.SerializationService;
+import com.hazelcast.internal.serialization.impl.DefaultSerializationServiceBuilder;
+import com.hazelcast.nio.serialization.Data;
+
+/**
+ *
+ * @author ancoron
+ */
+public class BufferPoolTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void sizeClasses() {
+        BufferPool pool = new BufferPool(65536, 2);
+        Assert.assertEquals(4096, pool.acquire(1).array().length);
+        Assert.assertEquals(4096, pool.acquire(4096).array().length);
+        Assert.assertEquals(8192, pool.acquire(4097).array().length);
+        Assert.assertEquals(65536, pool.acquire(65536).array().length);
+        // too large to be pooled
+        Assert.assertEquals(65537, pool.acquire(65537).array().length);
+
+        BufferPool.Buffer buf = pool.acquire(5000);
+        byte[] array = buf.array();
+        pool.release(buf);
+        Assert.assertSame(array, pool.acquire(6000).array());
+        Assert.assertNotSame(array, pool.acquire(6000).array());
+    }
+
+    @Test
+    public void releaseOnlyOwnBuffers() {
+        BufferPool pool = new BufferPool(65536, 2);
+        BufferPool other = new BufferPool(65536, 2);
+
+        // a buffer of another pool is not recycled...
+        BufferPool.Buffer foreign = other.acquire(8192);
+        pool.release(foreign);
+        Assert.assertNotSame(foreign.array(), pool.acquire(8192).array());
+
+        // ...and one released twice is only recycled once
+        BufferPool.Buffer buf = pool.acquire(8192);
+        byte[] array = buf.array();
+        pool.release(buf);
+        pool.release(buf);
+        Assert.assertSame(array, pool.acquire(8192).array());
+        Assert.assertNotSame(array, pool.acquire(8192).array());
+
+        try {
+            buf.array();
+            Assert.fail("Released buffer should not be usable");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+    }
+
+    @Test
+    public void serializedValueOwnsItsBytes() {
+        SerializationConfig config = new SerializationConfig();
+        StoredValueSerializer.register(config);
+        SerializationService ss = new DefaultSerializationServiceBuilder()
+                .setConfig(config).build();
+
+        BufferPool pool = new BufferPool(65536, 2);
+        BufferPool.Buffer pooled = pool.acquire(7);
+        byte[] buf = pooled.array();
+        System.arraycopy(bytes("{\"v\":1}"), 0, buf, 0, 7);
+        StoredValue value = new StoredValue((byte) 1,
+                StoredValue.digest(buf, 0, 7), buf, 0, 7);
+
+        Data data = ss.toData(value);
+        pool.release(pooled);
+        Arrays.fill(pool.acquire(7).array(), (byte) 'x');
+
+        StoredValue copy = ss.toObject(data);
+        Assert.assertEquals(7, copy.getData().length);
+        Assert.assertArrayEquals(bytes("{\"v\":1}"), copy.getData());
+        Assert.assertEquals(value.getETag(), copy.getETag());
+    }
+}
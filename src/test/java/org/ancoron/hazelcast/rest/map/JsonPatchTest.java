@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+/**
+ *
+ * @author ancoron
+ */
+public class JsonPatchTest {
+
+    private static JsonElement json(String json) {
+        return new JsonParser().parse(json);
+    }
+
+    private static JsonElement apply(String document, String patch) {
+        return JsonPatch.apply(document == null ? null : json(document),
+                JsonPatch.parse(patch, false).getAsJsonArray());
+    }
+
+    @Test
+    public void merge() {
+        // the example of RFC 7396
+        JsonElement result = JsonPatch.merge(json("{\"title\":\"Goodbye!\","
+                + "\"author\":{\"givenName\":\"John\",\"familyName\":\"Doe\"},"
+                + "\"tags\":[\"example\",\"sample\"],\"content\":\"text\"}"),
+                json("{\"title\":\"Hello!\",\"phoneNumber\":\"+01-123-456-7890\","
+                        + "\"author\":{\"familyName\":null},\"tags\":[\"example\"]}"));
+        Assert.assertEquals(json("{\"title\":\"Hello!\",\"author\":"
+                + "{\"givenName\":\"John\"},\"tags\":[\"example\"],"
+                + "\"content\":\"text\",\"phoneNumber\":\"+01-123-456-7890\"}"),
+                result);
+
+        Assert.assertEquals(json("{\"a\":{\"b\":1}}"),
+                JsonPatch.merge(null, json("{\"a\":{\"b\":1,\"c\":null}}")));
+    }
+
+    @Test
+    public void patch() {
+        Assert.assertEquals(json("{\"foo\":[\"bar\",\"qux\",\"baz\"]}"),
+                apply("{\"foo\":[\"bar\",\"baz\"]}",
+                        "[{\"op\":\"add\",\"path\":\"/foo/1\",\"value\":\"qux\"}]"));
+        Assert.assertEquals(json("{\"foo\":[\"bar\",\"baz\",1]}"),
+                apply("{\"foo\":[\"bar\",\"baz\"]}",
+                        "[{\"op\":\"add\",\"path\":\"/foo/-\",\"value\":1}]"));
+        Assert.assertEquals(json("{\"baz\":\"boo\",\"foo\":\"bar\"}"),
+                apply("{\"baz\":\"qux\",\"foo\":\"bar\"}",
+                        "[{\"op\":\"replace\",\"path\":\"/baz\",\"value\":\"boo\"}]"));
+        Assert.assertEquals(json("{\"foo\":{\"bar\":\"baz\"},\"qux\":"
+                + "{\"corge\":\"grault\",\"thud\":\"fred\"}}"),
+                apply("{\"foo\":{\"bar\":\"baz\",\"waldo\":\"fred\"},"
+                        + "\"qux\":{\"corge\":\"grault\"}}",
+                        "[{\"op\":\"move\",\"from\":\"/foo/waldo\","
+                                + "\"path\":\"/qux/thud\"}]"));
+        Assert.assertEquals(json("{\"a/b\":[1],\"c\":[1]}"),
+                apply("{\"a/b\":[1]}",
+                        "[{\"op\":\"copy\",\"from\":\"/a~1b\",\"path\":\"/c\"},"
+                                + "{\"op\":\"test\",\"path\":\"/c/0\",\"value\":1}]"));
+        Assert.assertEquals(json("{\"foo\":[\"bar\"]}"),
+                apply("{\"foo\":[\"bar\",\"qux\"]}",
+                        "[{\"op\":\"remove\",\"path\":\"/foo/1\"}]"));
+
+        try {
+            apply("{\"foo\":\"bar\"}",
+                    "[{\"op\":\"test\",\"path\":\"/foo\",\"value\":\"baz\"}]");
+            Assert.fail("Test should fail");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+        try {
+            apply("{\"foo\":\"bar\"}",
+                    "[{\"op\":\"remove\",\"path\":\"/baz\"}]");
+            Assert.fail("Missing member should not be removed");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+    }
+
+    @Test
+    public void increment() {
+        Assert.assertEquals(json("{\"n\":42,\"m\":1.5}"),
+                apply("{\"n\":40}",
+                        "[{\"op\":\"increment\",\"path\":\"/n\",\"value\":2},"
+                                + "{\"op\":\"increment\",\"path\":\"/m\",\"value\":1.5}]"));
+        // ...a missing document as well
+        Assert.assertEquals(json("-1"), apply(null,
+                "[{\"op\":\"increment\",\"path\":\"\",\"value\":-1}]"));
+
+        try {
+            apply("{\"n\":\"x\"}",
+                    "[{\"op\":\"increment\",\"path\":\"/n\",\"value\":1}]");
+            Assert.fail("Strings should not be incremented");
+        } catch (IllegalStateException x) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalid() {
+        JsonPatch.parse("[{\"op\":\"increment\",\"path\":\"/n\"}]", false);
+    }
+}
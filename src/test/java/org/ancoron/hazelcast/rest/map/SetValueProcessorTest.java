@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.map;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author ancoron
+ */
+public class SetValueProcessorTest {
+
+    private static StoredValue value(String s) {
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        return new StoredValue((byte) 1,
+                StoredValue.digest(data, 0, data.length), data, 0, data.length);
+    }
+
+    private static Map.Entry<String, StoredValue> entry(StoredValue value) {
+        return new AbstractMap.SimpleEntry<>("k", value);
+    }
+
+    @Test
+    public void backupOnlyChanges() {
+        StoredValue current = value("{\"v\":1}");
+        StoredValue next = value("{\"v\":2}");
+
+        // deleting an absent entry changes nothing...
+        SetValueProcessor processor = new SetValueProcessor(null);
+        Assert.assertNull(processor.process(entry(null)));
+        Assert.assertNull(processor.getBackupProcessor());
+
+        // ...nor does a failing precondition
+        processor = new SetValueProcessor(next, new String[] {"\"other\""});
+        Assert.assertEquals(Boolean.FALSE, processor.process(entry(current)));
+        Assert.assertNull(processor.getBackupProcessor());
+        processor = new SetValueProcessor(next, null, new String[] {"*"});
+        Assert.assertEquals(Boolean.FALSE, processor.process(entry(current)));
+        Assert.assertNull(processor.getBackupProcessor());
+
+        processor = new SetValueProcessor(next,
+                new String[] {current.getETag()});
+        Map.Entry<String, StoredValue> entry = entry(current);
+        Assert.assertNotNull(processor.process(entry));
+        Assert.assertSame(next, entry.getValue());
+
+        // the backup sets the value regardless of its preconditions
+        Map.Entry<String, StoredValue> backup = entry(value("{\"v\":0}"));
+        processor.getBackupProcessor().processBackup(backup);
+        Assert.assertSame(next, backup.getValue());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author ancoron
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long v = 0; v < 1L << 20; v++) {
+            int index = LatencyHistogram.index(v);
+            Assert.assertTrue(v <= LatencyHistogram.upperBound(index));
+            Assert.assertTrue(index == 0
+                    || v > LatencyHistogram.upperBound(index - 1));
+            // at most 12.5% error...
+            Assert.assertTrue(LatencyHistogram.upperBound(index) - v <= v / 8);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000, histogram.getMax());
+        Assert.assertEquals(500.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(500, histogram.getPercentile(0.5), 500 / 8);
+        Assert.assertEquals(990, histogram.getPercentile(0.99), 990 / 8);
+        Assert.assertEquals(1000, histogram.getPercentile(1.0));
+    }
+}
@@ -16,17 +16,62 @@
 package org.ancoron.hazelcast.rest.osgi;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.ancoron.hazelcast.rest.admission.AdmissionControl;
+import org.ancoron.hazelcast.rest.map.ChunkedValue;
+import org.ancoron.hazelcast.rest.map.StoredValue;
+import org.ancoron.hazelcast.rest.map.ValueEncoding;
+import org.ancoron.hazelcast.rest.map.ValueMetadata;
+import org.ancoron.hazelcast.rest.query.QueryOperation;
 import org.ancoron.hazelcast.rest.servlet.HazelcastMapServlet;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.hamcrest.CoreMatchers;
+import org.junit.AfterClass;
 import org.junit.Assert;
+import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mockito.Mockito;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.hazelcast.config.Config;
 import com.hazelcast.core.Hazelcast;
 import com.hazelcast.core.HazelcastInstance;
@@ -38,19 +83,132 @@ import com.hazelcast.core.HazelcastInstance;
  */
 public class HazelcastServiceTest {
 
-    private InputStream stream(String resource) {
-        return getClass().getClassLoader().getResourceAsStream(resource);
-    }
+    private static HazelcastInstance hz;
 
-    @Test
-    public void lifecycleSimple() throws Exception {
+    @BeforeClass
+    public static void startHazelcast() {
         Config cfg = new Config("HazelcastServiceTest");
 
         // disable multicast...
         cfg.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
 
-        HazelcastInstance hz = Hazelcast.newHazelcastInstance(cfg);
+        hz = Hazelcast.newHazelcastInstance(cfg);
+    }
+
+    @AfterClass
+    public static void stopHazelcast() {
+        hz.shutdown();
+    }
+
+    private InputStream stream(String resource) {
+        return getClass().getClassLoader().getResourceAsStream(resource);
+    }
+
+    private InputStream stream(byte[] data) {
+        return new ByteArrayInputStream(data);
+    }
+
+    private HttpServletRequest request(String method, String path,
+            byte[] body) throws IOException
+    {
+        final InputStream in = stream(body);
+        HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(req.getMethod()).thenReturn(method);
+        Mockito.when(req.getPathInfo()).thenReturn(path);
+        Mockito.when(req.getContentLength()).thenReturn(body.length);
+        Mockito.when(req.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public int read() throws IOException {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return in.read(b, off, len);
+            }
+
+            @Override
+            public boolean isFinished() {
+                return false;
+            }
 
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener listener) {
+                try {
+                    listener.onDataAvailable();
+                    listener.onAllDataRead();
+                } catch (IOException x) {
+                    listener.onError(x);
+                }
+            }
+        });
+        return req;
+    }
+
+    private HttpServletRequest asyncRequest(String method, String path,
+            byte[] body, AsyncContext ctx) throws IOException
+    {
+        HttpServletRequest req = request(method, path, body);
+        Mockito.when(req.isAsyncSupported()).thenReturn(true);
+        Mockito.when(req.startAsync()).thenReturn(ctx);
+        return req;
+    }
+
+    private HttpServletResponse response(final ByteArrayOutputStream body)
+            throws IOException
+    {
+        HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(resp.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                try {
+                    listener.onWritePossible();
+                } catch (IOException x) {
+                    listener.onError(x);
+                }
+            }
+        });
+        return resp;
+    }
+
+    private HttpServletResponse response(StringWriter body) throws IOException {
+        HttpServletResponse resp = Mockito.mock(HttpServletResponse.class);
+        Mockito.when(resp.getWriter()).thenReturn(new PrintWriter(body));
+        return resp;
+    }
+
+    private String await(ByteArrayOutputStream body, String expected)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        String content = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        while (!content.contains(expected)
+                && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            content = new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+        Assert.assertThat(content, CoreMatchers.containsString(expected));
+        return content;
+    }
+
+    @Test
+    public void lifecycleSimple() throws Exception {
         HazelcastMapServlet service = new HazelcastMapServlet();
         service.setHazelcast(hz);
 
@@ -67,9 +225,7 @@ public class HazelcastServiceTest {
         }
 
         // Step #3: fetch some data for a key
-        byte[] value = service.getValue("A", "1");
-        byte[] data = new byte[value.length - 1];
-        System.arraycopy(value, 1, data, 0, data.length);
+        byte[] data = service.getValue("A", "1").toByteArray();
 
         Assert.assertThat(DigestUtils.md5Hex(data),
                 CoreMatchers.is(Hex.encodeHexString(md5.digest()))
@@ -81,4 +237,1127 @@ public class HazelcastServiceTest {
         // Step #4: delete the bucket
         service.deleteBucket("A");
     }
+
+    @Test
+    public void multiGet() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("B", 60, 0, 128);
+
+        byte[] one = "one".getBytes(StandardCharsets.UTF_8);
+        byte[] two = "{\"two\":2}".getBytes(StandardCharsets.UTF_8);
+        service.setValue("B", "1", "text/plain", one.length, stream(one));
+        service.setValue("B", "2", "application/json", two.length, stream(two));
+
+        Map<String, StoredValue> values = service.getValues("B",
+                new LinkedHashSet<>(Arrays.asList("1", "2", "3")));
+
+        Assert.assertThat(values.size(), CoreMatchers.is(2));
+        Assert.assertThat(values.get("1").toByteArray(), CoreMatchers.is(one));
+        Assert.assertThat(values.get("2").toByteArray(), CoreMatchers.is(two));
+        Assert.assertThat(values.containsKey("3"), CoreMatchers.is(false));
+
+        service.deleteBucket("B");
+    }
+
+    @Test
+    public void bulkPut() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("C", 60, 0, 128);
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(batch)) {
+            out.writeUTF("1");
+            out.writeUTF("text/plain");
+            out.writeInt(3);
+            out.write("one".getBytes(StandardCharsets.UTF_8));
+            out.writeUTF("2");
+            out.writeUTF("text/unknown");
+            out.writeInt(3);
+            out.write("two".getBytes(StandardCharsets.UTF_8));
+            out.writeUTF("3");
+            out.writeUTF("application/octet-stream");
+            out.writeInt(0);
+        }
+
+        StringWriter report = new StringWriter();
+        HttpServletResponse resp = response(report);
+        service.service(request("POST", "/C/_bulk", batch.toByteArray()), resp);
+
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertThat(report.toString(), CoreMatchers.containsString(
+                "\"stored\":2,\"failed\":1"));
+        Assert.assertThat(service.getValue("C", "1").getLength(), CoreMatchers.is(3));
+        Assert.assertThat(service.getValue("C", "2"), CoreMatchers.nullValue());
+        Assert.assertThat(service.getValue("C", "3").getLength(), CoreMatchers.is(0));
+
+        service.deleteBucket("C");
+    }
+
+    @Test
+    public void asyncPutAndGet() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setAsync(true);
+
+        service.createBucket("D", 60, 0, 128);
+
+        byte[] data = "{\"async\":true}".getBytes(StandardCharsets.UTF_8);
+        AsyncContext put = Mockito.mock(AsyncContext.class);
+        HttpServletRequest req = asyncRequest("PUT", "/D/1", data, put);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+
+        Mockito.verify(put, Mockito.timeout(5000)).complete();
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+        AsyncContext get = Mockito.mock(AsyncContext.class);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(asyncRequest("GET", "/D/1", new byte[0], get), resp);
+
+        Mockito.verify(get, Mockito.timeout(5000)).complete();
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(resp).setContentType("application/json");
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+
+        service.deleteBucket("D");
+    }
+
+    @Test
+    public void chunkedValue() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setChunkThreshold(64);
+        service.setChunkSize(50);
+
+        service.createBucket("E", 60, 0, 128);
+
+        byte[] data = IOUtils.toByteArray(stream("test.json"));
+        service.setValue("E", "1", "application/json", data.length, stream(data));
+
+        // one value stored as manifest plus 4 chunks of at most 50 bytes...
+        StringWriter info = new StringWriter();
+        service.service(request("GET", "/E", new byte[0]), response(info));
+        Assert.assertThat(info.toString(), CoreMatchers.containsString(
+                "\"count\":1,\"chunks\":4,"));
+
+        Assert.assertThat(service.getValue("E", "1").toByteArray(),
+                CoreMatchers.is(data));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse resp = response(body);
+        service.service(request("GET", "/E/1", new byte[0]), resp);
+
+        Mockito.verify(resp).setContentType("application/json");
+        Mockito.verify(resp).setContentLengthLong(data.length);
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+
+        // chunks are out of reach for clients
+        String chunk = ((ChunkedValue) hz.getMap("E").get("1")).chunkKey("1", 0);
+        resp = response(new StringWriter());
+        service.service(request("GET", "/E/" + chunk, new byte[0]), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_FOUND);
+        HttpServletRequest req = request("PUT", "/E/" + chunk, new byte[1]);
+        Mockito.when(req.getContentType()).thenReturn("text/plain");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).sendError(HttpServletResponse.SC_NOT_FOUND);
+        resp = response(new StringWriter());
+        service.service(request("POST", "/E/_mget", ("[\"1\", \""
+                + chunk.replace("\u0000", "\\u0000") + "\"]").getBytes(
+                        StandardCharsets.UTF_8)), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        Assert.assertThat(service.getValue("E", "1").toByteArray(),
+                CoreMatchers.is(data));
+
+        service.deleteValue("E", "1");
+        info = new StringWriter();
+        service.service(request("GET", "/E", new byte[0]), response(info));
+        Assert.assertThat(info.toString(), CoreMatchers.containsString(
+                "\"count\":0,\"chunks\":0,"));
+
+        service.deleteBucket("E");
+    }
+
+    @Test
+    public void nearCache() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        HttpServletRequest req = request("POST", "/F", new byte[0]);
+        Mockito.when(req.getParameter("nearCacheSize")).thenReturn("100");
+        Mockito.when(req.getParameter("nearCacheFormat")).thenReturn("object");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+        StringWriter info = new StringWriter();
+        service.service(request("GET", "/F", new byte[0]), response(info));
+        Assert.assertThat(info.toString(), CoreMatchers.containsString(
+                "\"nearCache\":{\"maxSize\":100,"));
+        Assert.assertThat(info.toString(), CoreMatchers.containsString(
+                "\"format\":\"OBJECT\""));
+
+        service.deleteBucket("F");
+    }
+
+    @Test
+    public void conditionalRequests() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("G", 60, 0, 128);
+
+        byte[] data = "{\"version\":1}".getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+        HttpServletRequest req = request("PUT", "/G/1", data);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setHeader("ETag", etag);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+        // revalidation does not transfer the value...
+        req = request("GET", "/G/1", new byte[0]);
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn("\"0\", " + etag);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Mockito.verify(resp).setHeader("ETag", etag);
+        Assert.assertEquals(0, body.size());
+
+        // ...unless it has changed
+        req = request("GET", "/G/1", new byte[0]);
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn("\"0\"");
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+
+        // updates with an outdated tag are rejected
+        byte[] update = "{\"version\":2}".getBytes(StandardCharsets.UTF_8);
+        req = request("PUT", "/G/1", update);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        Mockito.when(req.getHeader("If-Match")).thenReturn("\"0\"");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+        Assert.assertThat(service.getValue("G", "1").toByteArray(),
+                CoreMatchers.is(data));
+
+        req = request("PUT", "/G/1", update);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        Mockito.when(req.getHeader("If-Match")).thenReturn(etag);
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+        Assert.assertThat(service.getValue("G", "1").toByteArray(),
+                CoreMatchers.is(update));
+
+        // deletes as well
+        req = request("DELETE", "/G/1", new byte[0]);
+        Mockito.when(req.getHeader("If-Match")).thenReturn(etag);
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+
+        req = request("DELETE", "/G/1", new byte[0]);
+        Mockito.when(req.getHeader("If-Match")).thenReturn(
+                "\"" + DigestUtils.md5Hex(update) + "\"");
+        service.service(req, response(new StringWriter()));
+        Assert.assertNull(service.getValue("G", "1"));
+
+        service.deleteBucket("G");
+    }
+
+    @Test
+    public void compression() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        HttpServletRequest req = request("POST", "/H", new byte[0]);
+        Mockito.when(req.getParameter("compression")).thenReturn("gzip");
+        service.service(req, response(new StringWriter()));
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"value\"},");
+        }
+        byte[] data = json.append("{}]").toString().getBytes(StandardCharsets.UTF_8);
+        req = request("PUT", "/H/1", data);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        service.service(req, response(new StringWriter()));
+
+        StoredValue stored = hz.<String, StoredValue>getMap("H").get("1");
+        Assert.assertEquals(ValueEncoding.GZIP.getCode(), stored.getEncoding());
+        Assert.assertTrue(stored.getLength() * 5 < data.length);
+
+        // compressed bytes are passed through...
+        req = request("GET", "/H/1", new byte[0]);
+        Mockito.when(req.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setHeader("Content-Encoding", "gzip");
+        Mockito.verify(resp).setContentLength(stored.getLength());
+        Assert.assertThat(IOUtils.toByteArray(new GZIPInputStream(
+                new ByteArrayInputStream(body.toByteArray()))),
+                CoreMatchers.is(data));
+
+        // ...unless the client does not accept them
+        req = request("GET", "/H/1", new byte[0]);
+        Mockito.when(req.getHeader("Accept-Encoding")).thenReturn("gzip;q=0");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp, Mockito.never()).setHeader(
+                Mockito.eq("Content-Encoding"), Mockito.anyString());
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+        Assert.assertThat(service.getValue("H", "1").toByteArray(),
+                CoreMatchers.is(data));
+
+        service.deleteBucket("H");
+    }
+
+    @Test
+    public void metrics() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("I", 60, 0, 128);
+
+        byte[] data = "{\"metrics\":true}".getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest req = request("PUT", "/I/1", data);
+        Mockito.when(req.getContentType()).thenReturn("application/json");
+        service.service(req, response(new StringWriter()));
+        service.service(request("GET", "/I/1", new byte[0]),
+                response(new ByteArrayOutputStream()));
+        service.service(request("GET", "/I/2", new byte[0]),
+                response(new StringWriter()));
+
+        StringWriter json = new StringWriter();
+        service.service(request("GET", "/_metrics", new byte[0]), response(json));
+        Assert.assertThat(json.toString(), CoreMatchers.containsString(
+                "\"get\":{\"count\":2,\"hits\":1,\"misses\":1,"));
+        Assert.assertThat(json.toString(), CoreMatchers.containsString(
+                "\"bytesOut\":" + data.length + ","));
+        Assert.assertThat(json.toString(), CoreMatchers.containsString(
+                "\"map\":{\"ownedEntries\":1,"));
+
+        StringWriter text = new StringWriter();
+        req = request("GET", "/_metrics", new byte[0]);
+        Mockito.when(req.getHeader("Accept")).thenReturn("text/plain;version=0.0.4");
+        service.service(req, response(text));
+        Assert.assertThat(text.toString(), CoreMatchers.containsString(
+                "hazelcast_rest_request_seconds_count{bucket=\"I\",operation=\"put\"} 1\n"));
+        Assert.assertThat(text.toString(), CoreMatchers.containsString(
+                "hazelcast_rest_bytes_in_total{bucket=\"I\",operation=\"put\"} "
+                + data.length + "\n"));
+        Assert.assertThat(text.toString(), CoreMatchers.containsString(
+                "hazelcast_map_owned_entries{bucket=\"I\"} 1\n"));
+
+        service.deleteBucket("I");
+    }
+
+    @Test
+    public void atomicCreateAndDelete() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("J", 60, 0, 128);
+
+        byte[] first = "first".getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest req = request("POST", "/J/1", first);
+        Mockito.when(req.getContentType()).thenReturn("text/plain");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+
+        // creating it again fails without touching the value...
+        byte[] second = "second".getBytes(StandardCharsets.UTF_8);
+        req = request("POST", "/J/1", second);
+        Mockito.when(req.getContentType()).thenReturn("text/plain");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_CONFLICT);
+        Assert.assertThat(service.getValue("J", "1").toByteArray(),
+                CoreMatchers.is(first));
+
+        // ...as does a PUT only for absent values
+        req = request("PUT", "/J/1", second);
+        Mockito.when(req.getContentType()).thenReturn("text/plain");
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn("*");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PRECONDITION_FAILED);
+        Assert.assertThat(service.getValue("J", "1").toByteArray(),
+                CoreMatchers.is(first));
+
+        resp = response(new StringWriter());
+        service.service(request("DELETE", "/J/1", new byte[0]), resp);
+        Mockito.verify(resp, Mockito.never()).setStatus(Mockito.anyInt());
+        Assert.assertNull(service.getValue("J", "1"));
+
+        resp = response(new StringWriter());
+        service.service(request("DELETE", "/J/1", new byte[0]), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+        service.deleteBucket("J");
+    }
+
+    @Test
+    public void head() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("K", 60, 0, 128);
+
+        long before = System.currentTimeMillis();
+        byte[] data = "{\"head\":true}".getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+        service.setValue("K", "1", "application/json", data.length, stream(data));
+        Assert.assertTrue(service.hasValue("K", "1"));
+        Assert.assertFalse(service.hasValue("K", "2"));
+
+        ValueMetadata metadata = service.getMetadata("K", "1");
+        Assert.assertEquals(data.length, metadata.getHeader().getContentLength());
+        Assert.assertEquals(etag, metadata.getHeader().getETag());
+        Assert.assertTrue(metadata.getCreationTime() >= before);
+        Assert.assertEquals(metadata.getLastUpdateTime() + 60000,
+                metadata.getExpirationTime());
+        Assert.assertNull(service.getMetadata("K", "2"));
+
+        HttpServletRequest req = request("HEAD", "/K/1", new byte[0]);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(resp).setContentType("application/json");
+        Mockito.verify(resp).setContentLengthLong(data.length);
+        Mockito.verify(resp).setHeader("ETag", etag);
+        Mockito.verify(resp).setDateHeader("Last-Modified",
+                metadata.getLastUpdateTime());
+        Mockito.verify(resp).setDateHeader("Expires",
+                metadata.getExpirationTime());
+        Mockito.verify(resp, Mockito.never()).getOutputStream();
+
+        req = request("HEAD", "/K/1", new byte[0]);
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn(etag);
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        resp = response(new StringWriter());
+        service.service(request("HEAD", "/K/2", new byte[0]), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+        service.deleteBucket("K");
+    }
+
+    @Test
+    public void ranges() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setChunkThreshold(64);
+        service.setChunkSize(50);
+
+        service.createBucket("L", 60, 0, 128);
+
+        byte[] data = "0123456789abcdefghij".getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + DigestUtils.md5Hex(data) + "\"";
+        service.setValue("L", "1", "text/plain", data.length, stream(data));
+
+        HttpServletRequest req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=2-5");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        Mockito.verify(resp).setHeader("Content-Range", "bytes 2-5/20");
+        Mockito.verify(resp).setContentLengthLong(4);
+        Assert.assertEquals("2345", body.toString("UTF-8"));
+
+        // suffix range with a matching validator
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=-3");
+        Mockito.when(req.getHeader("If-Range")).thenReturn(etag);
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setHeader("Content-Range", "bytes 17-19/20");
+        Assert.assertEquals("hij", body.toString("UTF-8"));
+
+        // multiple ranges
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=0-1, 18-, 30-40");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        Mockito.verify(resp).setContentType(Mockito.startsWith(
+                "multipart/byteranges; boundary="));
+        String multipart = body.toString("UTF-8");
+        Assert.assertTrue(multipart.contains("Content-Range: bytes 0-1/20\r\n\r\n01\r\n"));
+        Assert.assertTrue(multipart.contains("Content-Range: bytes 18-19/20\r\n\r\nij\r\n"));
+        Assert.assertFalse(multipart.contains("bytes 30"));
+
+        // overlapping or adjacent ranges are coalesced
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=0-,0-,-20,5-9");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setHeader("Content-Range", "bytes 0-19/20");
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=12-13,2-3,0-1");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        multipart = body.toString("UTF-8");
+        Assert.assertTrue(multipart.contains("Content-Range: bytes 0-3/20\r\n\r\n0123\r\n"));
+        Assert.assertTrue(multipart.contains("Content-Range: bytes 12-13/20\r\n\r\ncd\r\n"));
+
+        // only a matching If-None-Match takes precedence
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=2-5");
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn("\"other\"");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        Assert.assertEquals("2345", body.toString("UTF-8"));
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=2-5");
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn(etag);
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        Assert.assertEquals(0, body.size());
+
+        // unsatisfiable
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=20-");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(
+                HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        Mockito.verify(resp).setHeader("Content-Range", "bytes */20");
+
+        // a changed value is sent as a whole
+        req = request("GET", "/L/1", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=2-5");
+        Mockito.when(req.getHeader("If-Range")).thenReturn("\"outdated\"");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertThat(body.toByteArray(), CoreMatchers.is(data));
+
+        // ranges across the chunks of a large value
+        byte[] large = IOUtils.toByteArray(stream("test.json"));
+        service.setValue("L", "2", "application/json", large.length,
+                stream(large));
+        req = request("GET", "/L/2", new byte[0]);
+        Mockito.when(req.getHeader("Range")).thenReturn("bytes=45-120");
+        body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setHeader("Content-Range",
+                "bytes 45-120/" + large.length);
+        Assert.assertThat(body.toByteArray(),
+                CoreMatchers.is(Arrays.copyOfRange(large, 45, 121)));
+
+        service.deleteBucket("L");
+    }
+
+    @Test
+    public void listKeys() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setChunkThreshold(64);
+        service.setChunkSize(50);
+
+        service.createBucket("M", 60, 0, 128);
+
+        Set<String> expected = new TreeSet<>();
+        byte[] data = "{}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 40; i++) {
+            String key = (i % 2 == 0 ? "a/" : "b/") + i;
+            service.setValue("M", key, "application/json", data.length,
+                    stream(data));
+            expected.add(key);
+        }
+        // chunks are not listed
+        byte[] large = IOUtils.toByteArray(stream("test.json"));
+        service.setValue("M", "a/large", "application/json", large.length,
+                stream(large));
+        expected.add("a/large");
+
+        Set<String> keys = new TreeSet<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            HttpServletRequest req = request("GET", "/M/_keys", new byte[0]);
+            Mockito.when(req.getParameter("limit")).thenReturn("7");
+            Mockito.when(req.getParameter("cursor")).thenReturn(cursor);
+            StringWriter body = new StringWriter();
+            service.service(req, response(body));
+
+            JsonObject page = new JsonParser().parse(body.toString())
+                    .getAsJsonObject();
+            Assert.assertTrue(page.get("count").getAsInt() <= 7);
+            for (JsonElement key : page.getAsJsonArray("keys")) {
+                Assert.assertTrue(keys.add(key.getAsString()));
+            }
+            cursor = page.has("cursor")
+                    ? page.get("cursor").getAsString() : null;
+            pages++;
+        } while (cursor != null);
+        Assert.assertEquals(expected, keys);
+        Assert.assertTrue(pages >= 6);
+
+        HttpServletRequest req = request("GET", "/M/_keys", new byte[0]);
+        Mockito.when(req.getParameter("prefix")).thenReturn("a/");
+        StringWriter body = new StringWriter();
+        service.service(req, response(body));
+        JsonObject page = new JsonParser().parse(body.toString())
+                .getAsJsonObject();
+        Assert.assertEquals(21, page.get("count").getAsInt());
+        Assert.assertFalse(page.has("cursor"));
+
+        req = request("GET", "/M/_keys", new byte[0]);
+        Mockito.when(req.getParameter("cursor")).thenReturn("invalid");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+
+        service.deleteBucket("M");
+    }
+
+    @Test
+    public void bucketCatalog() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("N", 42, 0, 128, null, ValueEncoding.GZIP);
+        try {
+            service.createBucket("N", 42, 0, 128);
+            Assert.fail("Bucket created twice");
+        } catch (FileAlreadyExistsException x) {
+            // expected
+        }
+
+        // a servlet started later knows the bucket right away...
+        final HazelcastMapServlet other = new HazelcastMapServlet();
+        other.setHazelcast(hz);
+        Assert.assertFalse(other.hasValue("N", "1"));
+
+        StringWriter body = new StringWriter();
+        other.service(request("GET", "/N", new byte[0]), response(body));
+        JsonObject info = new JsonParser().parse(body.toString())
+                .getAsJsonObject();
+        Assert.assertEquals(42, info.get("ttl").getAsInt());
+        Assert.assertEquals("gzip", info.get("compression").getAsString());
+
+        other.deleteBucket("N");
+        try {
+            other.hasValue("N", "1");
+            Assert.fail("Bucket still exists");
+        } catch (FileNotFoundException x) {
+            // expected
+        }
+    }
+
+    @Test
+    public void persistentBucket() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        // not without a data directory...
+        HttpServletRequest req = request("POST", "/O", new byte[0]);
+        Mockito.when(req.getParameter("persistent")).thenReturn("true");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+
+        File directory = Files.createTempDirectory("buckets").toFile();
+        service.setDataDirectory(directory.getPath());
+        req = request("POST", "/O", new byte[0]);
+        Mockito.when(req.getParameter("persistent")).thenReturn("true");
+        service.service(req, response(new StringWriter()));
+
+        for (int i = 0; i < 10; i++) {
+            byte[] data = ("value " + i).getBytes(StandardCharsets.UTF_8);
+            service.setValue("O", String.valueOf(i), "text/plain",
+                    data.length, stream(data));
+        }
+        service.deleteValue("O", "3");
+        hz.getMap("O").evict("4");
+
+        // the changes are written behind...
+        JsonObject persistent = null;
+        long timeout = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < timeout) {
+            StringWriter body = new StringWriter();
+            service.service(request("GET", "/O", new byte[0]), response(body));
+            persistent = new JsonParser().parse(body.toString())
+                    .getAsJsonObject().getAsJsonObject("persistent");
+            if (persistent.get("entries").getAsInt() == 8) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        Assert.assertEquals(8, persistent.get("entries").getAsInt());
+        Assert.assertTrue(persistent.get("diskSize").getAsLong() > 0);
+        File store = new File(directory, "O");
+        Assert.assertTrue(new File(store, "bucket").isFile());
+
+        service.deleteBucket("O");
+        Assert.assertFalse(store.exists());
+        directory.delete();
+    }
+
+    @Test
+    public void admissionControl() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setBucketMaxInFlight(1);
+        service.setRetryAfter(2);
+
+        service.createBucket("Q", 60, 0, 128);
+        service.setValue("Q", "1", "text/plain", 1, stream(new byte[] {'1'}));
+
+        // the only slot of the bucket is taken...
+        AdmissionControl.Permit permit = service.getAdmission().acquire("Q");
+        Assert.assertNotNull(permit);
+
+        StringWriter error = new StringWriter();
+        HttpServletResponse resp = response(error);
+        service.service(request("GET", "/Q/1", new byte[0]), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        Mockito.verify(resp).setHeader("Retry-After", "2");
+        Assert.assertThat(error.toString(), CoreMatchers.containsString(
+                "\"error\":\"Too many requests in flight for bucket Q\""));
+
+        // ...while other buckets and the metrics are still served
+        StringWriter metrics = new StringWriter();
+        service.service(request("GET", "/_metrics", new byte[0]),
+                response(metrics));
+        Assert.assertThat(metrics.toString(), CoreMatchers.containsString(
+                "\"rejected\":1"));
+
+        permit.release(0);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(request("GET", "/Q/1", new byte[0]), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Assert.assertEquals("1", body.toString("UTF-8"));
+
+        // (the info request itself is in flight)
+        StringWriter info = new StringWriter();
+        service.service(request("GET", "/Q", new byte[0]), response(info));
+        Assert.assertThat(info.toString(), CoreMatchers.containsString(
+                "\"admission\":{\"limit\":1,\"maxLimit\":1,\"inFlight\":1,"
+                + "\"rejected\":1}"));
+
+        service.deleteBucket("Q");
+    }
+
+    @Test
+    public void readCoalescing() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setReadTtl(60000);
+        // another member serving the same bucket
+        final HazelcastMapServlet other = new HazelcastMapServlet();
+        other.setHazelcast(hz);
+
+        service.createBucket("R", 60, 0, 128);
+        byte[] a = "a".getBytes(StandardCharsets.UTF_8);
+        service.setValue("R", "1", "text/plain", 1, stream(a));
+        Assert.assertArrayEquals(a, service.getValue("R", "1").toByteArray());
+
+        // concurrent reads share a fetch...
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<StoredValue>> reads = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                reads.add(executor.submit(new Callable<StoredValue>() {
+                    @Override
+                    public StoredValue call() throws Exception {
+                        return other.getValue("R", "1");
+                    }
+                }));
+            }
+            for (Future<StoredValue> read : reads) {
+                Assert.assertArrayEquals(a, read.get().toByteArray());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // ...and the kept value hides changes on other members for a while
+        byte[] b = "b".getBytes(StandardCharsets.UTF_8);
+        other.setValue("R", "1", "text/plain", 1, stream(b));
+        Assert.assertArrayEquals(b, other.getValue("R", "1").toByteArray());
+        Assert.assertArrayEquals(a, service.getValue("R", "1").toByteArray());
+
+        HttpServletRequest req = request("GET", "/R/1", new byte[0]);
+        Mockito.when(req.getHeader("If-None-Match")).thenReturn(
+                "\"" + DigestUtils.md5Hex(a) + "\"");
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+
+        // changes through this member are visible right away
+        byte[] c = "c".getBytes(StandardCharsets.UTF_8);
+        service.setValue("R", "1", "text/plain", 1, stream(c));
+        Assert.assertArrayEquals(c, service.getValue("R", "1").toByteArray());
+        service.deleteValue("R", "1");
+        Assert.assertNull(service.getValue("R", "1"));
+
+        service.deleteBucket("R");
+        other.setHazelcast(null);
+    }
+
+    @Test
+    public void query() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+        service.setChunkThreshold(64);
+        service.setChunkSize(50);
+
+        service.createBucket("S", 60, 0, 128);
+        for (int i = 0; i < 30; i++) {
+            byte[] data = ("{\"n\":" + i + ",\"kind\":\""
+                    + (i % 3 == 0 ? "a" : "b") + "\",\"tags\":[\"t" + i
+                    + "\"]}").getBytes(StandardCharsets.UTF_8);
+            service.setValue("S", "k" + i, "application/json", data.length,
+                    stream(data));
+        }
+        // neither values of other types nor chunked values are queried
+        byte[] text = "{\"n\":100}".getBytes(StandardCharsets.UTF_8);
+        service.setValue("S", "text", "text/plain", text.length, stream(text));
+        byte[] large = IOUtils.toByteArray(stream("test.json"));
+        service.setValue("S", "large", "application/json", large.length,
+                stream(large));
+
+        byte[] select = ("{\"where\":{\"kind\":\"a\",\"n\":{\"gte\":6}},"
+                + "\"select\":[\"n\",\"tags.0\"]}").getBytes(
+                        StandardCharsets.UTF_8);
+        Set<Integer> matches = new TreeSet<>();
+        String cursor = null;
+        do {
+            HttpServletRequest req = request("POST", "/S/_query", select);
+            Mockito.when(req.getParameter("limit")).thenReturn("3");
+            Mockito.when(req.getParameter("cursor")).thenReturn(cursor);
+            StringWriter body = new StringWriter();
+            service.service(req, response(body));
+
+            JsonObject page = new JsonParser().parse(body.toString())
+                    .getAsJsonObject();
+            Assert.assertTrue(page.get("count").getAsInt() <= 3);
+            for (JsonElement result : page.getAsJsonArray("results")) {
+                JsonObject value = result.getAsJsonObject()
+                        .getAsJsonObject("value");
+                int n = value.get("n").getAsInt();
+                Assert.assertEquals("k" + n, result.getAsJsonObject()
+                        .get("key").getAsString());
+                Assert.assertEquals("t" + n, value.get("tags.0").getAsString());
+                Assert.assertFalse(value.has("kind"));
+                Assert.assertTrue(matches.add(n));
+            }
+            cursor = page.has("cursor")
+                    ? page.get("cursor").getAsString() : null;
+        } while (cursor != null);
+        Assert.assertEquals(new TreeSet<>(Arrays.asList(6, 9, 12, 15, 18, 21,
+                24, 27)), matches);
+
+        byte[] aggregate = ("{\"groupBy\":\"kind\",\"aggregate\":"
+                + "{\"sum\":[\"n\"],\"min\":\"n\",\"max\":\"n\"}}")
+                .getBytes(StandardCharsets.UTF_8);
+        StringWriter body = new StringWriter();
+        service.service(request("POST", "/S/_query", aggregate),
+                response(body));
+        JsonObject result = new JsonParser().parse(body.toString())
+                .getAsJsonObject();
+        Assert.assertEquals(30, result.get("count").getAsInt());
+        JsonObject a = result.getAsJsonArray("groups").get(0)
+                .getAsJsonObject();
+        Assert.assertEquals("a", a.get("group").getAsString());
+        Assert.assertEquals(10, a.get("count").getAsInt());
+        Assert.assertEquals(135, a.getAsJsonObject("sum").get("n").getAsInt());
+        Assert.assertEquals(0, a.getAsJsonObject("min").get("n").getAsInt());
+        Assert.assertEquals(27, a.getAsJsonObject("max").get("n").getAsInt());
+        JsonObject b = result.getAsJsonArray("groups").get(1)
+                .getAsJsonObject();
+        Assert.assertEquals("b", b.get("group").getAsString());
+        Assert.assertEquals(20, b.get("count").getAsInt());
+        Assert.assertEquals(300, b.getAsJsonObject("sum").get("n").getAsInt());
+
+        byte[] count = "{\"where\":{\"n\":{\"in\":[1,2,3,42]}},\"aggregate\":{}}"
+                .getBytes(StandardCharsets.UTF_8);
+        body = new StringWriter();
+        service.service(request("POST", "/S/_query", count), response(body));
+        result = new JsonParser().parse(body.toString()).getAsJsonObject();
+        Assert.assertEquals(3, result.get("count").getAsInt());
+
+        byte[] invalid = "{\"where\":{\"n\":{\"like\":1}}}"
+                .getBytes(StandardCharsets.UTF_8);
+        HttpServletResponse resp = response(new StringWriter());
+        service.service(request("POST", "/S/_query", invalid), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+
+        resp = response(new StringWriter());
+        service.service(request("POST", "/unknown/_query", count), resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NOT_FOUND);
+
+        // partitions holding more values are queried slice by slice
+        int partition = hz.getPartitionService().getPartition("c")
+                .getPartitionId();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < QueryOperation.SLICE_SIZE + 44; i++) {
+            String key = "c" + i;
+            if (hz.getPartitionService().getPartition(key).getPartitionId()
+                    == partition)
+            {
+                byte[] data = ("{\"n\":" + keys.size() + ",\"kind\":\"c\"}")
+                        .getBytes(StandardCharsets.UTF_8);
+                service.setValue("S", key, "application/json", data.length,
+                        stream(data));
+                keys.add(key);
+            }
+        }
+        Collections.sort(keys);
+
+        count = "{\"where\":{\"kind\":\"c\"},\"aggregate\":{\"max\":[\"n\"]}}"
+                .getBytes(StandardCharsets.UTF_8);
+        body = new StringWriter();
+        service.service(request("POST", "/S/_query", count), response(body));
+        result = new JsonParser().parse(body.toString()).getAsJsonObject();
+        Assert.assertEquals(keys.size(), result.get("count").getAsInt());
+        Assert.assertEquals(keys.size() - 1, result.getAsJsonObject("max")
+                .get("n").getAsInt());
+
+        select = "{\"where\":{\"kind\":\"c\"},\"select\":[\"n\"]}"
+                .getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest req = request("POST", "/S/_query", select);
+        Mockito.when(req.getParameter("limit")).thenReturn("10000");
+        body = new StringWriter();
+        service.service(req, response(body));
+        result = new JsonParser().parse(body.toString()).getAsJsonObject();
+        Assert.assertEquals(keys.size(), result.get("count").getAsInt());
+        Assert.assertFalse(result.has("cursor"));
+        List<String> selected = new ArrayList<>();
+        for (JsonElement match : result.getAsJsonArray("results")) {
+            selected.add(match.getAsJsonObject().get("key").getAsString());
+        }
+        Assert.assertEquals(keys, selected);
+
+        service.deleteBucket("S");
+    }
+
+    @Test
+    public void changeFeed() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("T", 60, 0, 128);
+
+        AsyncContext feed = Mockito.mock(AsyncContext.class);
+        HttpServletRequest req = asyncRequest("GET", "/T/_changes",
+                new byte[0], feed);
+        Mockito.when(req.getParameter("prefix")).thenReturn("a/");
+        Mockito.when(req.getParameter("values")).thenReturn("true");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        HttpServletResponse resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(resp).setContentType("text/event-stream");
+        await(body, "event: ready\n");
+
+        // a subscriber not reading anything...
+        service.setChangesBuffer(4);
+        AsyncContext stalled = Mockito.mock(AsyncContext.class);
+        final ServletOutputStream blocked = Mockito.mock(
+                ServletOutputStream.class);
+        HttpServletResponse stalledResp = Mockito.mock(
+                HttpServletResponse.class);
+        Mockito.when(stalledResp.getOutputStream()).thenReturn(blocked);
+        service.service(asyncRequest("GET", "/T/_changes", new byte[0],
+                stalled), stalledResp);
+
+        byte[] json = "{\"v\":1}".getBytes(StandardCharsets.UTF_8);
+        service.setValue("T", "a/1", "application/json", json.length,
+                stream(json));
+        service.setValue("T", "b/1", "application/json", json.length,
+                stream(json));
+        byte[] text = "x\ny".getBytes(StandardCharsets.UTF_8);
+        service.setValue("T", "a/1", "text/plain", text.length, stream(text));
+        service.deleteValue("T", "a/1");
+
+        String events = await(body, "event: removed\n");
+        Assert.assertThat(events, CoreMatchers.containsString(
+                "event: added\ndata: {\"key\":\"a/1\",\"etag\":\"\\\""
+                + DigestUtils.md5Hex(json) + "\\\"\",\"contentType\":"
+                + "\"application/json\",\"length\":7,\"value\":{\"v\":1}}\n\n"));
+        Assert.assertThat(events, CoreMatchers.containsString(
+                "event: updated\ndata: {\"key\":\"a/1\""));
+        Assert.assertThat(events, CoreMatchers.containsString(
+                "\"value\":\"x\\ny\"}\n\n"));
+        Assert.assertThat(events, CoreMatchers.containsString(
+                "event: removed\ndata: {\"key\":\"a/1\"}\n\n"));
+        Assert.assertThat(events, CoreMatchers.not(
+                CoreMatchers.containsString("b/1")));
+
+        // ...is dropped once its buffer overflows
+        Mockito.verify(stalled, Mockito.timeout(5000)).complete();
+        Mockito.verify(feed, Mockito.never()).complete();
+
+        // values must not change once written, even if the next request
+        // reads into the same buffer
+        for (int i = 0; i < 16; i++) {
+            json = ("{\"v\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+            service.setValue("T", "a/n" + i, "application/json", json.length,
+                    stream(json));
+        }
+        for (int i = 0; i < 16; i++) {
+            json = ("{\"v\":" + i + "}").getBytes(StandardCharsets.UTF_8);
+            await(body, "data: {\"key\":\"a/n" + i + "\",\"etag\":\"\\\""
+                    + DigestUtils.md5Hex(json) + "\\\"\",\"contentType\":"
+                    + "\"application/json\",\"length\":" + json.length
+                    + ",\"value\":" + new String(json, StandardCharsets.UTF_8)
+                    + "}\n\n");
+        }
+
+        service.deleteBucket("T");
+        Mockito.verify(feed, Mockito.timeout(5000)).complete();
+    }
+
+    private HttpServletResponse patch(HazelcastMapServlet service, String path,
+            String contentType, String patch, StringWriter body)
+            throws Exception
+    {
+        byte[] data = patch.getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest req = request("PATCH", path, data);
+        Mockito.when(req.getContentType()).thenReturn(contentType);
+        HttpServletResponse resp = response(body);
+        service.service(req, resp);
+        return resp;
+    }
+
+    @Test
+    public void patch() throws Exception {
+        HazelcastMapServlet service = new HazelcastMapServlet();
+        service.setHazelcast(hz);
+
+        service.createBucket("U", 60, 0, 128, null, ValueEncoding.GZIP);
+
+        // a merge patch of a (compressed) document...
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("lorem ipsum ");
+        }
+        byte[] json = ("{\"title\":\"a\",\"text\":\"" + text
+                + "\",\"n\":1}").getBytes(StandardCharsets.UTF_8);
+        service.setValue("U", "doc", "application/json", json.length,
+                stream(json));
+        HttpServletResponse resp = patch(service, "/U/doc",
+                "application/merge-patch+json",
+                "{\"title\":\"b\",\"n\":null}", new StringWriter());
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_NO_CONTENT);
+        JsonObject doc = new JsonParser().parse(new String(
+                service.getValue("U", "doc").toByteArray(),
+                StandardCharsets.UTF_8)).getAsJsonObject();
+        Assert.assertEquals("b", doc.get("title").getAsString());
+        Assert.assertEquals(text.toString(), doc.get("text").getAsString());
+        Assert.assertFalse(doc.has("n"));
+        Assert.assertEquals(ValueEncoding.GZIP.getCode(), hz.<String,
+                StoredValue>getMap("U").get("doc").getEncoding());
+        Mockito.verify(resp).setHeader("ETag", "\"" + DigestUtils.md5Hex(
+                doc.toString()) + "\"");
+
+        // ...with preconditions checked on the owner
+        byte[] patch = "{\"title\":\"c\"}".getBytes(StandardCharsets.UTF_8);
+        HttpServletRequest req = request("PATCH", "/U/doc", patch);
+        Mockito.when(req.getContentType()).thenReturn(
+                "application/merge-patch+json; charset=UTF-8");
+        Mockito.when(req.getHeader("If-Match")).thenReturn("\"other\"");
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(
+                HttpServletResponse.SC_PRECONDITION_FAILED);
+
+        // counters are created by their first increment
+        String increment = "[{\"op\":\"increment\",\"path\":\"\",\"value\":1}]";
+        for (int i = 0; i < 3; i++) {
+            patch(service, "/U/counter", "application/json-patch+json",
+                    increment, new StringWriter());
+        }
+        req = request("PATCH", "/U/counter",
+                increment.getBytes(StandardCharsets.UTF_8));
+        Mockito.when(req.getContentType()).thenReturn(
+                "application/json-patch+json");
+        Mockito.when(req.getHeader("Prefer")).thenReturn(
+                "return=representation");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        resp = response(body);
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_OK);
+        Mockito.verify(resp).setContentType("application/json");
+        Assert.assertEquals("4", new String(body.toByteArray(),
+                StandardCharsets.UTF_8));
+
+        // bytes are appended to binary values
+        patch(service, "/U/log", "application/octet-stream", "ab",
+                new StringWriter());
+        patch(service, "/U/log", "application/octet-stream", "cd",
+                new StringWriter());
+        Assert.assertArrayEquals("abcd".getBytes(StandardCharsets.UTF_8),
+                service.getValue("U", "log").toByteArray());
+
+        // patches not applicable to a value leave it as it is...
+        resp = patch(service, "/U/log", "application/merge-patch+json",
+                "{}", new StringWriter());
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_CONFLICT);
+        resp = patch(service, "/U/doc", "application/json-patch+json",
+                "[{\"op\":\"replace\",\"path\":\"/title\",\"value\":\"d\"},"
+                + "{\"op\":\"test\",\"path\":\"/title\",\"value\":\"e\"}]",
+                new StringWriter());
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_CONFLICT);
+        Assert.assertThat(new String(service.getValue("U", "doc")
+                .toByteArray(), StandardCharsets.UTF_8),
+                CoreMatchers.containsString("\"title\":\"b\""));
+
+        // ...and invalid or unknown ones are not even sent
+        resp = patch(service, "/U/doc", "application/json-patch+json",
+                "{\"op\":\"add\"}", new StringWriter());
+        Mockito.verify(resp).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        resp = patch(service, "/U/doc", "text/plain", "x",
+                new StringWriter());
+        Mockito.verify(resp).setStatus(
+                HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+
+        // patches are never read beyond the chunk threshold
+        req = request("PATCH", "/U/log",
+                new byte[service.getChunkThreshold() + 1]);
+        Mockito.when(req.getContentType()).thenReturn("application/octet-stream");
+        Mockito.when(req.getContentLength()).thenReturn(-1);
+        resp = response(new StringWriter());
+        service.service(req, resp);
+        Mockito.verify(resp).setStatus(
+                HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        Assert.assertArrayEquals("abcd".getBytes(StandardCharsets.UTF_8),
+                service.getValue("U", "log").toByteArray());
+
+        service.deleteBucket("U");
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/**
+ *
+ * @author ancoron
+ */
+public class StandaloneServerTest {
+
+    private static HazelcastInstance hz;
+
+    @BeforeClass
+    public static void startHazelcast() {
+        Config cfg = new Config("StandaloneServerTest");
+
+        // disable multicast...
+        cfg.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+
+        hz = Hazelcast.newHazelcastInstance(cfg);
+    }
+
+    @AfterClass
+    public static void stopHazelcast() {
+        hz.shutdown();
+    }
+
+    private static HttpURLConnection open(StandaloneServer server,
+            String method, String path) throws IOException
+    {
+        URL url = new URL("http://127.0.0.1:" + server.getPort() + path);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        return conn;
+    }
+
+    private static void roundTrip(Properties config) throws IOException {
+        StandaloneServer server = new StandaloneServer(config, hz);
+        server.start();
+        try {
+            Assert.assertNotEquals(0, server.getPort());
+
+            HttpURLConnection conn = open(server, "POST", "/buckets/P?ttl=60");
+            Assert.assertEquals(204, conn.getResponseCode());
+
+            byte[] data = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+            conn = open(server, "PUT", "/buckets/P/1");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(data);
+            }
+            Assert.assertEquals(204, conn.getResponseCode());
+
+            conn = open(server, "GET", "/buckets/P/1");
+            Assert.assertEquals(200, conn.getResponseCode());
+            Assert.assertEquals("application/json", conn.getContentType());
+            try (InputStream in = conn.getInputStream()) {
+                Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+            }
+
+            server.getServlet().deleteBucket("P");
+        } finally {
+            server.stop(1, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void workerThreads() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", "0");
+        config.setProperty("selectors", "1");
+        config.setProperty("workers", "4");
+        config.setProperty("keepAliveTimeout", "5");
+        config.setProperty("readBuffer", "16384");
+        config.setProperty("async", "true");
+        roundTrip(config);
+    }
+
+    @Test
+    public void virtualThreads() throws Exception {
+        Properties config = new Properties();
+        config.setProperty("host", "127.0.0.1");
+        config.setProperty("port", "0");
+        // falls back to worker threads where not supported
+        config.setProperty("virtualThreads", "true");
+        roundTrip(config);
+    }
+}
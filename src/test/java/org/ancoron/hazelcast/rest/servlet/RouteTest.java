@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.ancoron.hazelcast.rest.servlet.Route.Target;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ *
+ * @author ancoron
+ */
+public class RouteTest {
+
+    @Test
+    public void parse() {
+        Route route = Route.parse("/bucket");
+        Assert.assertEquals(Target.BUCKET, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+        Assert.assertNull(route.getKey());
+
+        route = Route.parse("/bucket/some key");
+        Assert.assertEquals(Target.KEY, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+        Assert.assertEquals("some key", route.getKey());
+
+        route = Route.parse("/bucket/a/b");
+        Assert.assertEquals(Target.KEY, route.getTarget());
+        Assert.assertEquals("a/b", route.getKey());
+
+        route = Route.parse("/bucket/_mget");
+        Assert.assertEquals(Target.MGET, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+
+        route = Route.parse("/bucket/_keys");
+        Assert.assertEquals(Target.KEYS, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+
+        route = Route.parse("/bucket/_query");
+        Assert.assertEquals(Target.QUERY, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+
+        route = Route.parse("/bucket/_changes");
+        Assert.assertEquals(Target.CHANGES, route.getTarget());
+        Assert.assertEquals("bucket", route.getBucket());
+
+        // only known resources are reserved
+        route = Route.parse("/bucket/_mgetx");
+        Assert.assertEquals(Target.KEY, route.getTarget());
+        Assert.assertEquals("_mgetx", route.getKey());
+
+        Assert.assertNull(Route.parse(null));
+        Assert.assertNull(Route.parse("/"));
+        Assert.assertNull(Route.parse("//key"));
+        Assert.assertNull(Route.parse("/bucket/"));
+        // NUL is reserved for the keys of chunks
+        Assert.assertNull(Route.parse("/bucket/key\u0000abc\u00000"));
+        Assert.assertFalse(Route.isValidKey("key\u0000"));
+        Assert.assertTrue(Route.isValidKey("key"));
+    }
+
+    private static HttpServletRequest request(String path) {
+        final Map<String, Object> attributes = new HashMap<>();
+        HttpServletRequest req = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(req.getPathInfo()).thenReturn(path);
+        Mockito.when(req.getAttribute(Mockito.anyString())).thenAnswer(
+                new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return attributes.get(invocation.getArguments()[0]);
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                attributes.put((String) invocation.getArguments()[0],
+                        invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(req).setAttribute(Mockito.anyString(), Mockito.any());
+        return req;
+    }
+
+    @Test
+    public void parsedOncePerRequest() {
+        HttpServletRequest req = request("/bucket/key");
+        Route route = Route.of(req);
+        Assert.assertEquals("key", route.getKey());
+        Assert.assertSame(route, Route.of(req));
+        Mockito.verify(req, Mockito.times(1)).getPathInfo();
+
+        // ...as is the lack of a route
+        req = request("/");
+        Assert.assertNull(Route.of(req));
+        Assert.assertNull(Route.of(req));
+        Mockito.verify(req, Mockito.times(1)).getPathInfo();
+    }
+}
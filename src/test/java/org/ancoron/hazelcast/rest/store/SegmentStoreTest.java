@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 ancoron.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ancoron.hazelcast.rest.store;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author ancoron
+ */
+public class SegmentStoreTest {
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String value(SegmentStore store, String key) {
+        SegmentStore.Entry entry = store.get(key);
+        return entry == null ? null
+                : new String(entry.getValue(), StandardCharsets.UTF_8);
+    }
+
+    private static int segments(File directory) {
+        return directory.list().length;
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        File directory = Files.createTempDirectory("segments").toFile();
+        try {
+            SegmentStore store = new SegmentStore(directory, 4096);
+            store.put("a", bytes("1"), 1);
+            store.put("a", bytes("2"), 2);
+            store.put("b", bytes("3"), 3);
+            store.put("c", bytes("4"), 4);
+            store.delete("c", 5);
+
+            // queued changes are visible right away...
+            Assert.assertEquals("2", value(store, "a"));
+            Assert.assertNull(value(store, "c"));
+            Assert.assertEquals(0, store.size());
+            store.close();
+            Assert.assertEquals(2, store.size());
+
+            store = new SegmentStore(directory, 4096);
+            Assert.assertEquals("2", value(store, "a"));
+            Assert.assertEquals(2, store.get("a").getTimestamp());
+            Assert.assertEquals("3", value(store, "b"));
+            Assert.assertNull(value(store, "c"));
+
+            store.delete("a", 6);
+            store.close();
+            store = new SegmentStore(directory, 4096);
+            Assert.assertNull(value(store, "a"));
+            Assert.assertEquals(1, store.size());
+        } finally {
+            PersistentBucket.delete(directory);
+        }
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        File directory = Files.createTempDirectory("segments").toFile();
+        try {
+            SegmentStore store = new SegmentStore(directory, 4096);
+            byte[] value = new byte[200];
+            // overwrite the same keys over several segments...
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 10; i++) {
+                    value[0] = (byte) round;
+                    store.put("key-" + i, value.clone(), round);
+                }
+                store.flush();
+            }
+            store.delete("key-0", 20);
+            store.flush();
+
+            // only the current segment and the live values remain...
+            Assert.assertTrue(segments(directory) <= 3);
+            Assert.assertEquals(9, store.size());
+            // ...and the deleted ones are no longer mapped (where visible)
+            File maps = new File("/proc/self/maps");
+            if (maps.exists()) {
+                for (String line : Files.readAllLines(maps.toPath(),
+                        StandardCharsets.UTF_8)) {
+                    Assert.assertFalse(line, line.contains(directory.getPath())
+                            && line.endsWith("(deleted)"));
+                }
+            }
+            store.close();
+
+            store = new SegmentStore(directory, 4096);
+            Assert.assertEquals(9, store.size());
+            Assert.assertNull(store.get("key-0"));
+            Assert.assertEquals(19, store.get("key-9").getValue()[0]);
+        } finally {
+            PersistentBucket.delete(directory);
+        }
+    }
+
+    @Test
+    public void tornWrite() throws Exception {
+        File directory = Files.createTempDirectory("segments").toFile();
+        try {
+            SegmentStore store = new SegmentStore(directory, 4096);
+            store.put("a", bytes("complete"), 1);
+            store.flush();
+            store.put("b", bytes("torn"), 2);
+            store.close();
+
+            // damage the last byte of the last record (its CRC)...
+            File segment = directory.listFiles()[0];
+            try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                long position = 8;
+                for (int i = 0; i < 2; i++) {
+                    file.seek(position);
+                    position += file.readInt() + 8;
+                }
+                file.seek(position - 1);
+                int last = file.read();
+                file.seek(position - 1);
+                file.write(last ^ 0xff);
+            }
+
+            store = new SegmentStore(directory, 4096);
+            Assert.assertEquals(1, store.size());
+            Assert.assertNotNull(store.get("a"));
+            Assert.assertNull(store.get("b"));
+
+            // ...which is overwritten by the next one
+            store.put("c", bytes("next"), 3);
+            store.close();
+            store = new SegmentStore(directory, 4096);
+            Assert.assertEquals("next", value(store, "c"));
+        } finally {
+            PersistentBucket.delete(directory);
+        }
+    }
+}